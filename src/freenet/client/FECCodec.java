@@ -63,7 +63,7 @@ public abstract class FECCodec {
 		if(splitfileType == Metadata.SPLITFILE_NONREDUNDANT)
 			return null;
 		if(splitfileType == Metadata.SPLITFILE_ONION_STANDARD)
-			return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+			return onionCodec(dataBlocks, checkBlocks);
 		else
 			return null;
 	}
@@ -77,12 +77,22 @@ public abstract class FECCodec {
 			return null;
 		if(splitfileType == Metadata.SPLITFILE_ONION_STANDARD) {
 			int checkBlocks = standardOnionCheckBlocks(dataBlocks, compatibilityMode);
-			return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+			return onionCodec(dataBlocks, checkBlocks);
 		}
 		else
 			return null;
 	}
 	
+	/**
+	 * The word-parallel codec produces exactly the same blocks as the onion code, but only
+	 * handles the 8-bit code, i.e. segments of up to 256 blocks.
+	 */
+	private static FECCodec onionCodec(int dataBlocks, int checkBlocks) {
+		if(dataBlocks + checkBlocks <= FastOnionFECCodec.MAX_BLOCKS)
+			return FastOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+		return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+	}
+
 	private static int standardOnionCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
 		/**
 		 * ALCHEMY: What we do know is that redundancy by FEC is much more efficient than 
@@ -171,7 +181,9 @@ public abstract class FECCodec {
 			for(int i = 0; i < dataBlockStatus.length; i++) {
 				buckets[i] = dataBlockStatus[i].getData();
 				if(buckets[i] == null) {
-					buckets[i] = bf.makeBucket(blockLength);
+					buckets[i] = dataBlockStatus[i].getDecodeTarget();
+					if(buckets[i] == null)
+						buckets[i] = bf.makeBucket(blockLength);
 					if(stripeSize != blockLength) {
 						writers[i] = buckets[i].getOutputStream();
 					}
@@ -239,7 +251,7 @@ public abstract class FECCodec {
 				// The FEC codec will change the indexes in disposableIndexes. We need them to stay the same for multiple stripes.
 				int[] disposableIndexes = packetIndexes.clone();
 				// Do the decode, not shuffled
-				fec.decode(packets, disposableIndexes);
+				decodeStripe(packets, disposableIndexes);
 				// packets now contains an array of decoded blocks, in order
 				// Write the data out
 				for(int i = 0; i < k; i++) {
@@ -282,6 +294,22 @@ public abstract class FECCodec {
 		}
 	}
 
+	/**
+	 * Decode one stripe. On entry packets[i] holds the stripe of block packetIndexes[i]; on
+	 * return packets[i] holds the stripe of data block i. packetIndexes may be modified.
+	 */
+	protected void decodeStripe(Buffer[] packets, int[] packetIndexes) {
+		fec.decode(packets, packetIndexes);
+	}
+
+	/**
+	 * Encode one stripe: compute the stripe of check block toEncode[i] from the data stripes
+	 * and write it into checkPackets[i].
+	 */
+	protected void encodeStripe(Buffer[] dataPackets, Buffer[] checkPackets, int[] toEncode) {
+		fec.encode(dataPackets, checkPackets, toEncode);
+	}
+
 	/**
 	 * Do the actual encode.
 	 */
@@ -409,7 +437,7 @@ public abstract class FECCodec {
 						long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
 					}
-					fec.encode(dataPackets, checkPackets, toEncode);
+					encodeStripe(dataPackets, checkPackets, toEncode);
 					if(logMINOR) {
 						long memUsedAfterStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 						Logger.minor(this, "Memory in use after stripe: " + memUsedAfterStripe);
@@ -0,0 +1,351 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.LRUMap;
+
+/**
+ * Pure Java implementation of the onion 8-bit Reed-Solomon code, producing exactly the same
+ * check blocks as {@link StandardOnionFECCodec} (Rizzo's Vandermonde code over GF(2^8) with
+ * the polynomial x^8+x^4+x^3+x^2+1), but much faster.
+ *
+ * The onion code multiplies one byte at a time through a 64KB table. Here a whole stripe is
+ * packed into longs, eight bytes per word, and each output row is computed by Horner's rule
+ * over the bits of its coefficients: for each bit, from the top, double the accumulator and
+ * XOR in every input whose coefficient has that bit set. Doubling eight bytes at once is a
+ * handful of shifts and masks, so on average a coefficient costs four XORs per eight bytes
+ * rather than eight table lookups. Stripes are processed in small tiles so that the inputs
+ * for a tile stay in cache while all the outputs are computed.
+ *
+ * Only handles segments of up to 256 blocks; bigger ones need the 16-bit code, and
+ * {@link FECCodec#getCodec(short, int, int)} uses {@link StandardOnionFECCodec} for them.
+ */
+public class FastOnionFECCodec extends FECCodec {
+
+	/** The largest n the 8-bit code can handle. */
+	static final int MAX_BLOCKS = 256;
+
+	private static final int MAX_CACHED_CODECS = 8;
+
+	/** Words per tile: 4KB of each input, so a tile of all the inputs mostly stays in L2. */
+	private static final int TILE_WORDS = 512;
+
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+	/** The primitive polynomial without the x^8 term. */
+	private static final int POLY = 0x1D;
+
+	private static final int[] GF_EXP = new int[510];
+	private static final int[] GF_LOG = new int[256];
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; i++) {
+			GF_EXP[i] = x;
+			GF_EXP[i + 255] = x;
+			GF_LOG[x] = i;
+			x <<= 1;
+			if((x & 0x100) != 0)
+				x ^= 0x100 | POLY;
+		}
+	}
+
+	private static final LRUMap<Integer, FastOnionFECCodec> recentlyUsedCodecs = LRUMap.createSafeMap();
+
+	/** For each check block, the coefficients applied to the data blocks. Immutable once loaded. */
+	private transient int[][] encodeMatrix;
+	/** For each check block, its coefficients as bit planes, see {@link #bitPlanes(int[])}. */
+	private transient int[][][] encodePlans;
+
+	public synchronized static FECCodec getInstance(int dataBlocks, int checkBlocks) {
+		if(checkBlocks == 0 || dataBlocks == 0)
+			throw new IllegalArgumentException("data blocks "+dataBlocks+" check blocks "+checkBlocks);
+		Integer key = (dataBlocks << 16) | (dataBlocks + checkBlocks);
+		FastOnionFECCodec codec = recentlyUsedCodecs.get(key);
+		if(codec != null) {
+			recentlyUsedCodecs.push(key, codec);
+			return codec;
+		}
+		codec = new FastOnionFECCodec(dataBlocks, dataBlocks + checkBlocks);
+		recentlyUsedCodecs.push(key, codec);
+		while(recentlyUsedCodecs.size() > MAX_CACHED_CODECS) {
+			recentlyUsedCodecs.popKey();
+		}
+		return codec;
+	}
+
+	public FastOnionFECCodec(int k, int n) {
+		super(k, n);
+		if(k >= n) throw new IllegalArgumentException("n must be >k: n = "+n+" k = "+k);
+		if(n > MAX_BLOCKS) throw new IllegalArgumentException("Too many blocks for the 8-bit code: n = "+n);
+		loadFEC();
+	}
+
+	@Override
+	protected void loadFEC() {
+		synchronized(this) {
+			if(encodePlans != null) return;
+		}
+		// Same construction as the onion code: evaluate at 0, 1, a, a^2, ..., then make it
+		// systematic by multiplying by the inverse of the top k x k Vandermonde matrix.
+		int[][] vandermonde = new int[n][k];
+		vandermonde[0][0] = 1;
+		for(int row = 1; row < n; row++)
+			for(int col = 0; col < k; col++)
+				vandermonde[row][col] = GF_EXP[((row - 1) * col) % 255];
+		int[][] top = new int[k][];
+		for(int i = 0; i < k; i++)
+			top[i] = vandermonde[i].clone();
+		int[][] inverse = invert(top);
+		int[][] matrix = new int[n - k][k];
+		int[][][] plans = new int[n - k][][];
+		for(int row = 0; row < n - k; row++) {
+			int[] v = vandermonde[row + k];
+			for(int col = 0; col < k; col++) {
+				int sum = 0;
+				for(int i = 0; i < k; i++)
+					sum ^= mul(v[i], inverse[i][col]);
+				matrix[row][col] = sum;
+			}
+			plans[row] = bitPlanes(matrix[row]);
+		}
+		synchronized(this) {
+			encodeMatrix = matrix;
+			encodePlans = plans;
+		}
+	}
+
+	@Override
+	protected void encodeStripe(Buffer[] dataPackets, Buffer[] checkPackets, int[] toEncode) {
+		int[][][] plans;
+		synchronized(this) {
+			plans = encodePlans;
+		}
+		int length = dataPackets[0].len;
+		int words = (length + 7) >>> 3;
+		long[] in = new long[k * words];
+		for(int i = 0; i < k; i++)
+			pack(dataPackets[i], in, i * words, length);
+		int[][][] rows = new int[toEncode.length][][];
+		for(int i = 0; i < toEncode.length; i++) {
+			int index = toEncode[i];
+			if(index < k) {
+				System.arraycopy(dataPackets[index].b, dataPackets[index].off, checkPackets[i].b, checkPackets[i].off, length);
+			} else if(index < n) {
+				rows[i] = plans[index - k];
+			} else
+				throw new IllegalArgumentException("Invalid index "+index+" (n="+n+")");
+		}
+		long[] out = new long[toEncode.length * words];
+		multiply(rows, in, out, words);
+		for(int i = 0; i < toEncode.length; i++)
+			if(rows[i] != null)
+				unpack(out, i * words, checkPackets[i], length);
+	}
+
+	@Override
+	protected void decodeStripe(Buffer[] packets, int[] packetIndexes) {
+		int[][] matrix;
+		synchronized(this) {
+			matrix = encodeMatrix;
+		}
+		int length = packets[0].len;
+		int words = (length + 7) >>> 3;
+		// Which packet holds each data block, if any.
+		int[] dataAt = new int[k];
+		for(int i = 0; i < k; i++) dataAt[i] = -1;
+		boolean[] seen = new boolean[n];
+		int[][] received = new int[k][];
+		boolean needDecode = false;
+		for(int i = 0; i < k; i++) {
+			int index = packetIndexes[i];
+			if(index < 0 || index >= n || seen[index])
+				throw new IllegalArgumentException("Invalid or duplicate index "+index+" at "+i);
+			seen[index] = true;
+			if(index < k) {
+				dataAt[index] = i;
+				received[i] = new int[k];
+				received[i][index] = 1;
+			} else {
+				received[i] = matrix[index - k].clone();
+				needDecode = true;
+			}
+		}
+		if(!needDecode && isIdentity(packetIndexes)) return;
+		// Take a copy of the packets, since the outputs overwrite them in place.
+		long[] in = new long[k * words];
+		for(int i = 0; i < k; i++)
+			pack(packets[i], in, i * words, length);
+		int[][] decodeMatrix = needDecode ? invert(received) : null;
+		int[][][] rows = new int[k][][];
+		for(int i = 0; i < k; i++)
+			if(dataAt[i] == -1)
+				rows[i] = bitPlanes(decodeMatrix[i]);
+		long[] out = new long[k * words];
+		multiply(rows, in, out, words);
+		for(int i = 0; i < k; i++) {
+			if(dataAt[i] == -1)
+				unpack(out, i * words, packets[i], length);
+			else if(dataAt[i] != i)
+				unpack(in, dataAt[i] * words, packets[i], length);
+			packetIndexes[i] = i;
+		}
+	}
+
+	private static boolean isIdentity(int[] indexes) {
+		for(int i = 0; i < indexes.length; i++)
+			if(indexes[i] != i) return false;
+		return true;
+	}
+
+	/**
+	 * Compute out[r] = sum over j of coefficient[r][j] * in[j] for every row with a plan, with
+	 * each block being words longs at offset j * words (r * words for out).
+	 */
+	static void multiply(int[][][] rows, long[] in, long[] out, int words) {
+		long[] acc = new long[TILE_WORDS];
+		for(int start = 0; start < words; start += TILE_WORDS) {
+			int len = Math.min(TILE_WORDS, words - start);
+			for(int r = 0; r < rows.length; r++) {
+				int[][] planes = rows[r];
+				if(planes == null) continue;
+				boolean started = false;
+				for(int bit = 7; bit >= 0; bit--) {
+					if(started) {
+						for(int w = 0; w < len; w++) {
+							long a = acc[w];
+							acc[w] = ((a & LOW_SEVEN_BITS) << 1) ^ (((a >>> 7) & LOW_BITS) * POLY);
+						}
+					}
+					int[] inputs = planes[bit];
+					for(int j = 0; j < inputs.length; j++) {
+						int base = inputs[j] * words + start;
+						if(!started) {
+							System.arraycopy(in, base, acc, 0, len);
+							started = true;
+						} else {
+							for(int w = 0; w < len; w++)
+								acc[w] ^= in[base + w];
+						}
+					}
+				}
+				if(started)
+					System.arraycopy(acc, 0, out, r * words + start, len);
+			}
+		}
+	}
+
+	/**
+	 * Split a row of coefficients into bit planes: planes[b] lists the inputs whose coefficient
+	 * has bit b set.
+	 */
+	static int[][] bitPlanes(int[] coefficients) {
+		int[][] planes = new int[8][];
+		int[] tmp = new int[coefficients.length];
+		for(int bit = 0; bit < 8; bit++) {
+			int x = 0;
+			for(int j = 0; j < coefficients.length; j++)
+				if((coefficients[j] & (1 << bit)) != 0)
+					tmp[x++] = j;
+			planes[bit] = new int[x];
+			System.arraycopy(tmp, 0, planes[bit], 0, x);
+		}
+		return planes;
+	}
+
+	/** Pack a packet into words, little-endian, padding the last word with zeros. */
+	private static void pack(Buffer buf, long[] words, int offset, int length) {
+		byte[] b = buf.b;
+		int off = buf.off;
+		int full = length >>> 3;
+		for(int w = 0; w < full; w++, off += 8) {
+			words[offset + w] =
+				(b[off] & 0xFFL) | (b[off+1] & 0xFFL) << 8 | (b[off+2] & 0xFFL) << 16 | (b[off+3] & 0xFFL) << 24 |
+				(b[off+4] & 0xFFL) << 32 | (b[off+5] & 0xFFL) << 40 | (b[off+6] & 0xFFL) << 48 | (b[off+7] & 0xFFL) << 56;
+		}
+		if((length & 7) != 0) {
+			long word = 0;
+			for(int i = 0; i < (length & 7); i++)
+				word |= (b[off + i] & 0xFFL) << (i * 8);
+			words[offset + full] = word;
+		}
+	}
+
+	private static void unpack(long[] words, int offset, Buffer buf, int length) {
+		byte[] b = buf.b;
+		int off = buf.off;
+		int full = length >>> 3;
+		for(int w = 0; w < full; w++, off += 8) {
+			long word = words[offset + w];
+			b[off] = (byte) word;
+			b[off+1] = (byte) (word >>> 8);
+			b[off+2] = (byte) (word >>> 16);
+			b[off+3] = (byte) (word >>> 24);
+			b[off+4] = (byte) (word >>> 32);
+			b[off+5] = (byte) (word >>> 40);
+			b[off+6] = (byte) (word >>> 48);
+			b[off+7] = (byte) (word >>> 56);
+		}
+		long word = (length & 7) != 0 ? words[offset + full] : 0;
+		for(int i = 0; i < (length & 7); i++)
+			b[off + i] = (byte) (word >>> (i * 8));
+	}
+
+	static int mul(int a, int b) {
+		if(a == 0 || b == 0) return 0;
+		return GF_EXP[GF_LOG[a] + GF_LOG[b]];
+	}
+
+	/** Invert a square matrix over GF(2^8) by Gauss-Jordan elimination. Destroys the input. */
+	static int[][] invert(int[][] m) {
+		int size = m.length;
+		int[][] inv = new int[size][size];
+		for(int i = 0; i < size; i++)
+			inv[i][i] = 1;
+		for(int col = 0; col < size; col++) {
+			int pivot = col;
+			while(pivot < size && m[pivot][col] == 0) pivot++;
+			if(pivot == size)
+				throw new IllegalArgumentException("Singular matrix");
+			if(pivot != col) {
+				int[] t = m[pivot]; m[pivot] = m[col]; m[col] = t;
+				t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+			}
+			int scale = GF_EXP[255 - GF_LOG[m[col][col]]];
+			if(scale != 1) {
+				for(int j = 0; j < size; j++) {
+					m[col][j] = mul(m[col][j], scale);
+					inv[col][j] = mul(inv[col][j], scale);
+				}
+			}
+			for(int row = 0; row < size; row++) {
+				int factor = m[row][col];
+				if(row == col || factor == 0) continue;
+				int[] mr = m[row], ir = inv[row], mc = m[col], ic = inv[col];
+				for(int j = 0; j < size; j++) {
+					mr[j] ^= mul(factor, mc[j]);
+					ir[j] ^= mul(factor, ic[j]);
+				}
+			}
+		}
+		return inv;
+	}
+
+	@Override
+	public int countCheckBlocks() {
+		return n-k;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":n="+n+",k="+k;
+	}
+
+	@Override
+	public short getAlgorithm() {
+		return Metadata.SPLITFILE_ONION_STANDARD;
+	}
+}
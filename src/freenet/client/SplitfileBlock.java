@@ -29,4 +29,8 @@ public interface SplitfileBlock {
 	/** Replace the data - set it and return the old data */
 	abstract Bucket replaceData(Bucket data);
 
+	/** Where the decoder should write this block if it has to reconstruct it, or null to use
+	 * a new bucket. */
+	abstract Bucket getDecodeTarget();
+
 }
@@ -3,10 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.List;
@@ -32,6 +33,7 @@ import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.UnsafeContentTypeException;
 import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
 import freenet.keys.ClientKeyBlock;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
@@ -40,7 +42,11 @@ import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.io.BaseFileBucket;
 import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NullOutputStream;
+import freenet.support.io.RingBufferPipe;
 
 /**
  * A high level data request. Follows redirects, downloads splitfiles, etc. Similar to what you get from FCP,
@@ -301,8 +307,17 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		if(streamGenerator instanceof SplitFileStreamGenerator) {
+			File decoded = ((SplitFileStreamGenerator)streamGenerator).getDecodedFile();
+			if(decoded != null) {
+				onSuccessDecodedInPlace(decoded, clientMetadata, state, container, context);
+				return;
+			}
+		}
+
+		RingBufferPipe pipe = new RingBufferPipe();
+		OutputStream dataOutput = pipe.getOutputStream();
+		InputStream dataInput = pipe.getInputStream();
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -325,7 +340,6 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
@@ -333,7 +347,7 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 				if(persistent()) container.activate(decompressors, 5);
 				if(logMINOR) Logger.minor(this, "Decompressing...");
 				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+				dataInput = decompressorManager.execute(context.mainExecutor);
 			}
 
 			output = finalResult.getOutputStream();
@@ -410,6 +424,57 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 			clientCallback.onSuccess(result, ClientGetter.this, container);
 	}
 
+	/**
+	 * If the data can go straight into the return bucket, without decompression, filtering or
+	 * a binary blob, return a new file in the same directory for a splitfile to be decoded into
+	 * in place. It is made the content of the return bucket in onSuccess(), saving a copy of
+	 * the whole download. Otherwise return null.
+	 */
+	File getDirectOutputFile(List<? extends Compressor> decompressors) {
+		if(persistent()) return null;
+		if(decompressors != null && !decompressors.isEmpty()) return null;
+		if(ctx.filterData || binaryBlobWriter != null) return null;
+		if(!(returnBucket instanceof BaseFileBucket) || returnBucket.isReadOnly()) return null;
+		try {
+			return ((BaseFileBucket)returnBucket).makeAdoptableFile();
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to decode directly to "+returnBucket+" : "+e, e);
+			return null;
+		}
+	}
+
+	/** The splitfile was decoded straight into a file from getDirectOutputFile(). Check the
+	 * hashes if we have any, and move it into the return bucket. */
+	private void onSuccessDecodedInPlace(File decoded, ClientMetadata clientMetadata, ClientGetState state, ObjectContainer container, ClientContext context) {
+		FetchException ex = null;
+		try {
+			if(hashes != null) {
+				MultiHashInputStream hashStream = new MultiHashInputStream(new FileInputStream(decoded), HashResult.makeBitmask(hashes));
+				try {
+					FileUtil.copy(hashStream, new NullOutputStream(), -1);
+				} finally {
+					hashStream.close();
+				}
+				if(!HashResult.strictEquals(hashStream.getResults(), hashes)) {
+					Logger.error(this, "Hashes failed verification (length read is "+hashStream.getReadBytes()+") "+" for "+uri);
+					throw new FetchException(FetchException.CONTENT_HASH_FAILED);
+				}
+			}
+			((BaseFileBucket)returnBucket).adoptFile(decoded);
+		} catch (IOException e) {
+			Logger.error(this, "Caught "+e, e);
+			ex = new FetchException(FetchException.BUCKET_ERROR, e);
+		} catch (FetchException e) {
+			ex = e;
+		}
+		if(ex != null) {
+			decoded.delete();
+			onFailure(ex, state, container, context, true);
+			return;
+		}
+		clientCallback.onSuccess(new FetchResult(clientMetadata, returnBucket), ClientGetter.this, container);
+	}
+
 	/**
 	 * Called when the request fails. Retrying will have already been attempted by the calling state, if
 	 * appropriate; we have tried to get the data, and given up.
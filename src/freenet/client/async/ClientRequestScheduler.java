@@ -84,12 +84,16 @@ public class ClientRequestScheduler implements RequestScheduler {
 	private String choosenPriorityScheduler; 
 	
 	public ClientRequestScheduler(boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random, RequestStarter starter, Node node, NodeClientCore core, String name, ClientContext context) {
+		this(forInserts, forSSKs, forRT, random, starter, node, core.clientDatabaseExecutor, core.storeChecker, name, context);
+	}
+
+	ClientRequestScheduler(boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random, RequestStarter starter, Node node, PrioritizedSerialExecutor databaseExecutor, DatastoreChecker datastoreChecker, String name, ClientContext context) {
 		this.isInsertScheduler = forInserts;
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		schedTransient = new ClientRequestSchedulerNonPersistent(this, forInserts, forSSKs, forRT, random);
-		this.databaseExecutor = core.clientDatabaseExecutor;
-		this.datastoreChecker = core.storeChecker;
+		this.databaseExecutor = databaseExecutor;
+		this.datastoreChecker = datastoreChecker;
 		this.starter = starter;
 		this.random = random;
 		this.node = node;
@@ -100,7 +104,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 		
 		this.choosenPriorityScheduler = PRIORITY_HARD; // Will be reset later.
 		if(!forInserts) {
-			offeredKeys = new OfferedKeysList(core, random, (short)0, forSSKs, forRT);
+			offeredKeys = new OfferedKeysList(random, (short)0, forSSKs, forRT);
 		} else {
 			offeredKeys = null;
 		}
@@ -424,18 +424,27 @@ public class DatastoreChecker implements PrioRunnable {
 			sched = getter.getScheduler(null, context);
 		}
 		boolean anyValid = false;
-		for(Key key : keys) {
-			if(random != null) {
-				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+		if(random != null) {
+			ArrayList<Key> notKilled = new ArrayList<Key>(keys.length);
+			for(Key key : keys) {
+				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS)
 					anyValid = true;
-					continue;
-				}
+				else
+					notKilled.add(key);
 			}
+			keys = notKilled.toArray(new Key[notKilled.size()]);
+		}
+		// Check all the keys in one go, so the store can read them in disk order.
+		KeyBlock[] found = null;
+		if(blocks == null)
+			found = node.fetch(keys, true, true, false, false);
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			KeyBlock block;
 			if(blocks != null)
 				block = blocks.get(key);
 			else
-				block = node.fetch(key, true, true, false, false, null);
+				block = found[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
@@ -25,6 +25,8 @@ public class MinimalSplitfileBlock implements SplitfileBlock {
 
 	public final int number;
 	private Bucket data;
+	/** Where to decode the block to if it is missing. Only used by transient fetches. */
+	private transient Bucket decodeTarget;
 	boolean flag;
 	
 	public MinimalSplitfileBlock(int n) {
@@ -77,6 +79,15 @@ public class MinimalSplitfileBlock implements SplitfileBlock {
 		return ret;
 	}
 
+	@Override
+	public synchronized Bucket getDecodeTarget() {
+		return decodeTarget;
+	}
+
+	public synchronized void setDecodeTarget(Bucket target) {
+		this.decodeTarget = target;
+	}
+
 	// Useful for debugging duplicate object bugs. But use the new logging infrastructure if you reinstate it, please.
 //	public void objectOnDeactivate(ObjectContainer container) {
 //		if(Logger.shouldLog(LogLevel.MINOR, this))
@@ -5,6 +5,7 @@ package freenet.client.async;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -29,7 +30,10 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.compress.Compressor;
+import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
+import freenet.support.io.RandomAccessFileWrapper;
+import freenet.support.io.RandomAccessThing;
 
 /**
  * Fetch a splitfile, decompress it if need be, and return it to the GetCompletionCallback.
@@ -134,6 +138,10 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 
 	private final int crossCheckBlocks;
 	private final SplitFileFetcherCrossSegment[] crossSegments;
+	/** If not null, the segments decode their data blocks straight into this file, at their
+	 * final offsets. Transient fetches only. */
+	private transient RandomAccessThing decodeTarget;
+	private transient File decodeTargetFile;
 	
 	public SplitFileFetcher(Metadata metadata, GetCompletionCallback rcb, ClientRequester parent2,
 			FetchContext newCtx, boolean deleteFetchContext, boolean realTimeFlag, List<? extends Compressor> decompressors2, ClientMetadata clientMetadata,
@@ -357,8 +365,40 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		} catch (IOException e) {
 			throw new FetchException(FetchException.BUCKET_ERROR, "Unable to write Bloom filters for splitfile");
 		}
+		maybeDecodeInPlace(rcb, finalLength);
 	}
 	
+	/**
+	 * If the client can take the data as a file, preallocate it and tell each segment where its
+	 * data blocks go, so the fetched and decoded blocks are written in place and we don't need
+	 * to concatenate the segments at the end. Transient fetches without cross-segment
+	 * redundancy only.
+	 */
+	private void maybeDecodeInPlace(GetCompletionCallback rcb, long finalLength) {
+		if(persistent || crossCheckBlocks != 0 || splitfileType != Metadata.SPLITFILE_ONION_STANDARD) return;
+		if(!(rcb instanceof ClientGetter)) return;
+		File f = ((ClientGetter)rcb).getDirectOutputFile(decompressors);
+		if(f == null) return;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.setLength(finalLength);
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to decode in place to "+f+" : "+e, e);
+			Closer.close(raf);
+			f.delete();
+			return;
+		}
+		decodeTarget = new RandomAccessFileWrapper(raf);
+		decodeTargetFile = f;
+		if(logMINOR) Logger.minor(this, "Decoding in place to "+f+" for "+this);
+		long offset = 0;
+		for(SplitFileFetcherSegment segment : segments) {
+			segment.setDecodeTarget(decodeTarget, offset, finalLength);
+			offset += 1L * segment.realDataBlocks() * CHKBlock.DATA_LENGTH;
+		}
+	}
+
 	private void allocateCrossDataBlock(SplitFileFetcherCrossSegment segment, Random random) {
 		int x = 0;
 		for(int i=0;i<10;i++) {
@@ -433,6 +473,11 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 				throw new FetchException(FetchException.INVALID_METADATA, "Splitfile is "+length+" but length is "+length);
 			length = overrideLength;
 		}
+		if(decodeTarget != null) {
+			// All the data is in the file now. Close it so the client can rename it.
+			decodeTarget.close();
+			return new SplitFileStreamGenerator(segments, length, crossCheckBlocks, decodeTargetFile);
+		}
 		SplitFileStreamGenerator streamGenerator = new SplitFileStreamGenerator(segments, length, crossCheckBlocks);
 		return streamGenerator;
 }
@@ -503,6 +548,13 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		} finally {
 			if(!cbWasActive) container.deactivate(cb, 1);
 		}
+		if(decodeTarget != null) {
+			decodeTarget.close();
+			// Moved to the client's bucket on success, so only deleted on failure.
+			decodeTargetFile.delete();
+			for(SplitFileFetcherSegment segment : segments)
+				segment.fetcherHalfFinished(container);
+		}
 		if(crossCheckBlocks != 0 && !persistent) finishSegments(container, context);
 	}
 
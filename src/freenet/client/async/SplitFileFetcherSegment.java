@@ -47,6 +47,8 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.RandomAccessThing;
+import freenet.support.io.RandomAccessThingSliceBucket;
 
 /**
  * A single segment within a SplitFileFetcher.
@@ -159,6 +161,18 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	
 	private transient FECCodec codec;
 	
+	/** If not null, the data blocks are written straight into this at their final offsets,
+	 * both when fetched and when decoded. Transient fetches only. */
+	private transient RandomAccessThing decodeTarget;
+	/** Where the first data block of this segment goes in decodeTarget. */
+	private transient long decodeTargetOffset;
+	/** The length of the whole data in decodeTarget. Blocks beyond it are truncated. */
+	private transient long decodeTargetLength;
+	/** Set if we are decoding in place and have deferred calling segmentFinished() until
+	 * the check blocks have been encoded, because the encoder still reads the data blocks
+	 * from decodeTarget. */
+	private transient boolean finishAfterEncode;
+	
 	public SplitFileFetcherSegment(short splitfileType, SplitFileSegmentKeys keys, SplitFileFetcher fetcher, ArchiveContext archiveContext, FetchContext blockFetchContext, long maxTempLength, int recursionLevel, ClientRequester requester, int segNum, boolean ignoreLastDataBlock, boolean pre1254, int crossCheckBlocks, byte cryptoAlgorithm, byte[] forceCryptoKey, int maxRetries, boolean realTimeFlag) throws MetadataParseException, FetchException {
 		this.crossCheckBlocks = crossCheckBlocks;
 		this.keys = keys;
@@ -323,6 +337,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 
 	private short onSuccessInner(Bucket data, int blockNo, ObjectContainer container, ClientContext context) {
+		data = moveToDecodeTarget(data, blockNo);
 		SplitFileFetcherCrossSegment crossSegment = null;
 		short res = 0;
 		synchronized(this) {
@@ -946,6 +961,15 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			}
 		}
 		if(allDecodedCorrectly && logMINOR) Logger.minor(this, "All decoded correctly on "+this);
+		if(decodeTarget != null) {
+			try {
+				writeToDecodeTarget();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write decoded data in place on "+this+" : "+e, e);
+				fail(new FetchException(FetchException.BUCKET_ERROR, e), container, context, false);
+				return;
+			}
+		}
 		if(persistent) container.store(this);
 		if(persistent) {
 			boolean fin;
@@ -957,7 +981,15 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 				return;
 			}
 		}
-		boolean finishNow = splitfileType == Metadata.SPLITFILE_NONREDUNDANT || !isCollectingBinaryBlob();
+		// If we are decoding in place, the fetcher will close the file when all the segments
+		// have finished, so we must wait for the encoder, which reads the data blocks.
+		boolean finishNow = splitfileType == Metadata.SPLITFILE_NONREDUNDANT ||
+			(!isCollectingBinaryBlob() && decodeTarget == null);
+		if(!finishNow && decodeTarget != null) {
+			synchronized(this) {
+				finishAfterEncode = true;
+			}
+		}
 		if(finishNow) {
 			// Must set finished BEFORE calling parentFetcher.
 			// Otherwise a race is possible that might result in it not seeing our finishing.
@@ -1021,11 +1053,15 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		}
 
 		try {
+			boolean encoderGone;
 			synchronized(this) {
-				if(encoderFinished) {
+				encoderGone = encoderFinished;
+				if(encoderGone)
 					Logger.error(this, "Encoder finished in onDecodedSegment at end??? on "+this);
-					return; // Calling addToQueue now will NPE.
-				}
+			}
+			if(encoderGone) {
+				finishWithoutEncode(container, context);
+				return; // Calling addToQueue now will NPE.
 			}
 			codec.addToQueue(new FECJob(codec, context.fecQueue, dataBuckets, checkBuckets, 32768, context.getBucketFactory(persistent), this, false, parent.getPriorityClass(), persistent),
 					context.fecQueue, container);
@@ -1052,6 +1088,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		}
 		if(logMINOR)
 			Logger.minor(this, "Encoded "+this);
+		boolean deferred;
 		// Because we use SplitfileBlock, we DON'T have to copy here.
 		// See FECCallback comments for explanation.
 		synchronized(this) {
@@ -1180,13 +1217,16 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 				else Logger.minor(this, "Not encoded correctly on "+this);
 			}
 			finished = true;
+			deferred = finishAfterEncode;
+			finishAfterEncode = false;
 			if(persistent && !fetcherFinished) {
 				container.store(this);
 			}
 		}
 		if(logMINOR) Logger.minor(this, "Checked blocks.");
-		// Defer the completion until we have generated healing blocks if we are collecting binary blobs.
-		if(!(splitfileType == Metadata.SPLITFILE_NONREDUNDANT || !isCollectingBinaryBlob())) {
+		// Defer the completion until we have generated healing blocks if we are collecting binary blobs,
+		// or until the encoder has finished reading the data if we are decoding in place.
+		if(deferred || !(splitfileType == Metadata.SPLITFILE_NONREDUNDANT || !isCollectingBinaryBlob())) {
 			if(persistent)
 				container.activate(parentFetcher, 1);
 			parentFetcher.segmentFinished(SplitFileFetcherSegment.this, container, context);
@@ -1294,11 +1334,12 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	 * original data when it is finished with it, the healing queue will free the copied data. If the data is 
 	 * not persistent, we create a MultiReaderBucket wrapper, so that the data will be freed when both the caller
 	 * and the healing queue are finished with it; the caller must accept the returned bucket, and free it when it
-	 * is finished with it. 
+	 * is finished with it. Data decoded in place is copied too, because the target will be closed
+	 * when the fetch completes, probably before the insert has finished.
 	 */
 	private Bucket queueHeal(Bucket data, ObjectContainer container, ClientContext context) {
 		Bucket copy;
-		if(persistent) {
+		if(persistent || data instanceof RandomAccessThingSliceBucket) {
 			try {
 				copy = context.tempBucketFactory.makeBucket(data.size());
 				BucketTools.copy(data, copy);
@@ -1811,7 +1852,13 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 				Logger.error(this, "FEC decode or encode failed but already finished: "+t, t);
 				return;
 			}
-			finished = true;
+			if(!finishAfterEncode)
+				finished = true;
+		}
+		if(finishWithoutEncode(container, context)) {
+			// The data was decoded in place, we just can't heal.
+			Logger.error(this, "FEC encode failed after decoding in place: "+t, t);
+			return;
 		}
 		if(persistent)
 			container.store(this);
@@ -2209,6 +2256,89 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		return dataBuckets.length - crossCheckBlocks;
 	}
 
+	/**
+	 * Decode in place: write the data blocks straight into the final output, at their final
+	 * offsets, rather than keeping them in separate buckets. The FEC decoder writes the blocks
+	 * it reconstructs there too, so nothing needs to be copied at the end.
+	 * @param target The output for the whole splitfile.
+	 * @param offset Where our first data block goes.
+	 * @param length The length of the whole data. The last block may be truncated.
+	 */
+	void setDecodeTarget(RandomAccessThing target, long offset, long length) {
+		assert(!persistent);
+		synchronized(this) {
+			decodeTarget = target;
+			decodeTargetOffset = offset;
+			decodeTargetLength = length;
+		}
+		for(int i=0;i<realDataBlocks();i++) {
+			long blockOffset = offset + 1L * i * CHKBlock.DATA_LENGTH;
+			// The truncated last block is copied in by writeToDecodeTarget().
+			if(blockOffset + CHKBlock.DATA_LENGTH > length) break;
+			dataBuckets[i].setDecodeTarget(new RandomAccessThingSliceBucket(target, blockOffset, CHKBlock.DATA_LENGTH, 0));
+		}
+	}
+
+	/** If we are decoding in place, move a newly fetched data block into its final place.
+	 * @return The bucket to use for the block. */
+	private Bucket moveToDecodeTarget(Bucket data, int blockNo) {
+		RandomAccessThing target;
+		long offset;
+		synchronized(this) {
+			if(decodeTarget == null || finished) return data;
+			if(blockNo >= realDataBlocks()) return data;
+			MinimalSplitfileBlock block = dataBuckets[blockNo];
+			if(block == null || block.getDecodeTarget() == null) return data;
+			target = decodeTarget;
+			offset = decodeTargetOffset + 1L * blockNo * CHKBlock.DATA_LENGTH;
+		}
+		if(data.size() != CHKBlock.DATA_LENGTH) return data;
+		// A new slice each time: if we get the block twice, or decode it, the data is the same.
+		Bucket slice = new RandomAccessThingSliceBucket(target, offset, CHKBlock.DATA_LENGTH, 0);
+		try {
+			BucketTools.copy(data, slice);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write block "+blockNo+" in place on "+this+" : "+e, e);
+			return data;
+		}
+		data.free();
+		return slice;
+	}
+
+	/** Copy any data blocks which are not already in place into the decode target. This is the
+	 * truncated last block, and any block we failed to move when it was fetched. */
+	private void writeToDecodeTarget() throws IOException {
+		byte[] buf = null;
+		for(int i=0;i<realDataBlocks();i++) {
+			Bucket data = dataBuckets[i].getData();
+			if(data instanceof RandomAccessThingSliceBucket) continue;
+			long offset = decodeTargetOffset + 1L * i * CHKBlock.DATA_LENGTH;
+			if(offset >= decodeTargetLength) break;
+			int length = (int) Math.min(CHKBlock.DATA_LENGTH, decodeTargetLength - offset);
+			if(buf == null) buf = new byte[CHKBlock.DATA_LENGTH];
+			InputStream is = data.getInputStream();
+			try {
+				new DataInputStream(is).readFully(buf, 0, length);
+			} finally {
+				is.close();
+			}
+			decodeTarget.pwrite(offset, buf, 0, length);
+		}
+	}
+
+	/** If we were decoding in place and waiting for the encoder, which won't run now, finish
+	 * the segment: the data is complete.
+	 * @return True if we finished the segment. */
+	private boolean finishWithoutEncode(ObjectContainer container, ClientContext context) {
+		synchronized(this) {
+			if(!finishAfterEncode) return false;
+			finishAfterEncode = false;
+			finished = true;
+		}
+		parentFetcher.segmentFinished(SplitFileFetcherSegment.this, container, context);
+		return true;
+	}
+
 	/**
 	 * 
 	 * @param fetching
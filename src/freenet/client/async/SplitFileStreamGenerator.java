@@ -4,7 +4,10 @@
 
 package freenet.client.async;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.db4o.ObjectContainer;
@@ -13,6 +16,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
 
 /**Writes an array of <code>SplitFileFetcherSegment</code> objects to an output
  * stream.*/
@@ -21,6 +25,8 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 	private final SplitFileFetcherSegment[] segments;
 	private final long length;
 	private final int crossCheckBlocks;
+	/** If the segments were decoded in place, the file containing the whole data. */
+	private final File decodedFile;
 
         private static volatile boolean logMINOR;
 	static {
@@ -33,9 +39,20 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 	}
 
 	SplitFileStreamGenerator(SplitFileFetcherSegment[] segments, long length, int crossCheckBlocks) {
+		this(segments, length, crossCheckBlocks, null);
+	}
+
+	SplitFileStreamGenerator(SplitFileFetcherSegment[] segments, long length, int crossCheckBlocks, File decodedFile) {
 		this.segments = segments;
 		this.length = length;
 		this.crossCheckBlocks = crossCheckBlocks;
+		this.decodedFile = decodedFile;
+	}
+
+	/** @return The file the segments were decoded into, or null if they must be concatenated
+	 * by writeTo(). The caller may take the file over rather than reading it. */
+	File getDecodedFile() {
+		return decodedFile;
 	}
 
 	@Override
@@ -43,6 +60,16 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 			ClientContext context) throws IOException {
 		try {
 			if(logMINOR) Logger.minor(this, "Generating Stream", new Exception("debug"));
+			if(decodedFile != null) {
+				InputStream is = new FileInputStream(decodedFile);
+				try {
+					FileUtil.copy(is, os, length);
+				} finally {
+					is.close();
+				}
+				os.close();
+				return;
+			}
 			long bytesWritten = 0;
 			for(SplitFileFetcherSegment segment : segments) {
 				long max = (length < 0 ? 0 : (length - bytesWritten));
@@ -131,14 +131,15 @@ public class USKManager {
 	private ClientContext context;
 	
 	public USKManager(NodeClientCore core) {
-		HighLevelSimpleClient client = core.makeClient(RequestStarter.UPDATE_PRIORITY_CLASS, false, false);
-		client.setMaxIntermediateLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
-		client.setMaxLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
-		backgroundFetchContext = client.getFetchContext();
+		this(makeFetchContext(core), core.getExecutor());
+	}
+
+	USKManager(FetchContext fetchContext, Executor executor) {
+		backgroundFetchContext = fetchContext.clone();
 		backgroundFetchContext.followRedirects = false;
 		backgroundFetchContextIgnoreDBR = backgroundFetchContext.clone();
 		backgroundFetchContextIgnoreDBR.ignoreUSKDatehints = true;
-		realFetchContext = client.getFetchContext();
+		realFetchContext = fetchContext;
 		// Performance: I'm pretty sure there is no spatial locality in the underlying data, so it's okay to use the FAST_COMPARATOR here.
 		// That is, even if two USKs are by the same author, they won't necessarily be updated or polled at the same time.
 		latestKnownGoodByClearUSK = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
@@ -147,7 +148,14 @@ public class USKManager {
 		backgroundFetchersByClearUSK = new TreeMap<USK, USKFetcher>(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
-		executor = core.getExecutor();
+		this.executor = executor;
+	}
+
+	private static FetchContext makeFetchContext(NodeClientCore core) {
+		HighLevelSimpleClient client = core.makeClient(RequestStarter.UPDATE_PRIORITY_CLASS, false, false);
+		client.setMaxIntermediateLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
+		client.setMaxLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
+		return client.getFetchContext();
 	}
 
 	public void init(ClientContext context) {
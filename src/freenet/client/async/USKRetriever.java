@@ -4,9 +4,8 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.List;
 
@@ -31,6 +30,7 @@ import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.io.Closer;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
+import freenet.support.io.RingBufferPipe;
 
 /**
  * Poll a USK, and when a new slot is found, fetch it. 
@@ -117,8 +117,8 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		}
 
-		PipedInputStream pipeIn = null;
-		PipedOutputStream pipeOut = null;
+		InputStream pipeIn = null;
+		OutputStream pipeOut = null;
 		try {
 			output = finalResult.getOutputStream();
 			// Decompress
@@ -128,10 +128,11 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 					container.activate(decompressors, 5);
 					container.activate(ctx, 1);
 				}
-				pipeIn = new PipedInputStream();
-				pipeOut = new PipedOutputStream(pipeIn);
+				RingBufferPipe pipe = new RingBufferPipe();
+				pipeIn = pipe.getInputStream();
+				pipeOut = pipe.getOutputStream();
 				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-				pipeIn = decompressorManager.execute();
+				pipeIn = decompressorManager.execute(context.mainExecutor);
 				ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 				worker.start();
 				streamGenerator.writeTo(pipeOut, container, context);
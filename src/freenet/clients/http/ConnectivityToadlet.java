@@ -107,6 +107,11 @@ public class ConnectivityToadlet extends Toadlet {
 			HTMLNode row = table.addChild("tr");
 			row.addChild("td", handler.getTitle());
 			row.addChild("td", AddressTracker.statusString(tracker.getPortForwardStatus()));
+			if(ctx.isAdvancedModeEnabled())
+				row.addChild("td", NodeL10n.getBase().getString("ConnectivityToadlet.receiveQueue",
+						new String[] { "depth", "peak", "threads", "dropped" },
+						new String[] { Integer.toString(handler.getReceiveQueueDepth()), Integer.toString(handler.getPeakReceiveQueueDepth()),
+							Integer.toString(handler.getReceiveWorkerCount()), Long.toString(handler.getDroppedReceivedPackets()) }));
 		}
 		
 		if(ctx.isAdvancedModeEnabled()) {
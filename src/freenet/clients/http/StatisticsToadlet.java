@@ -243,6 +243,11 @@ public class StatisticsToadlet extends Toadlet {
 				HTMLNode successRateContent = successRateBox.addChild("div", "class", "infobox-content");
 				stats.fillSuccessRateBox(successRateContent);
 				
+				HTMLNode bandwidthClassesBox = nextTableCell.addChild("div", "class", "infobox");
+				bandwidthClassesBox.addChild("div", "class", "infobox-header", l10n("requestBandwidthClasses"));
+				HTMLNode bandwidthClassesContent = bandwidthClassesBox.addChild("div", "class", "infobox-content");
+				stats.fillRequestBandwidthClassesBox(bandwidthClassesContent);
+				
 				HTMLNode timeDetailBox = nextTableCell.addChild("div", "class", "infobox");
 				timeDetailBox.addChild("div", "class", "infobox-header", l10n("chkDetailTiming"));
 				HTMLNode timingsContent = timeDetailBox.addChild("div", "class", "infobox-content");
@@ -782,6 +787,8 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("writeQueue"));
+		row.addChild("th", l10n("cacheTier"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -843,6 +850,35 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", access);
 			row.addChild("td", thousandPoint.format(sessionAccess.falsePos()) +
 					(totalAccess == null ? "" : (" ("+thousandPoint.format(totalAccess.falsePos())+")")));
+			if(sessionAccess.writeQueueCapacity() > 0)
+				row.addChild("td", l10n("writeQueueValue", new String[] { "length", "capacity", "merged", "stalls", "stallTime", "failed" },
+						new String[] { thousandPoint.format(sessionAccess.writeQueueLength()),
+						thousandPoint.format(sessionAccess.writeQueueCapacity()),
+						thousandPoint.format(sessionAccess.coalescedWrites()),
+						thousandPoint.format(sessionAccess.writeQueueStalls()),
+						TimeUtil.formatTime(sessionAccess.writeQueueStallTime()),
+						thousandPoint.format(sessionAccess.writeQueueFailures()) }));
+			else
+				row.addChild("td", "N/A");
+			if(sessionAccess.cacheCapacity() > 0) {
+				String cacheRate;
+				String storeRate;
+				try {
+					cacheRate = fix1p4.format(sessionAccess.cacheHitRate()) + "%";
+				} catch (StatsNotAvailableException e) {
+					cacheRate = "N/A";
+				}
+				try {
+					storeRate = fix1p4.format(sessionAccess.storeHitRate()) + "%";
+				} catch (StatsNotAvailableException e) {
+					storeRate = "N/A";
+				}
+				row.addChild("td", l10n("cacheTierValue", new String[] { "cacheRate", "storeRate", "size", "capacity" },
+						new String[] { cacheRate, storeRate,
+						SizeUtil.formatSize(sessionAccess.cacheSize()),
+						SizeUtil.formatSize(sessionAccess.cacheCapacity()) }));
+			} else
+				row.addChild("td", "N/A");
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
@@ -1144,6 +1180,17 @@ public class StatisticsToadlet extends Toadlet {
 		activityList.addChild("li", l10n("payloadOutput", new String[] { "total", "rate", "percent" }, new String[] { SizeUtil.formatSize(totalPayload, true), SizeUtil.formatSize(total_payload_rate, true), Integer.toString(percent) } ));
 		activityList.addChild("li", l10n("totalInput", new String[] { "total" }, new String[] { SizeUtil.formatSize(overall_total_in, true) }));
 		activityList.addChild("li", l10n("totalOutput", new String[] { "total" }, new String[] { SizeUtil.formatSize(overall_total_out, true) } ));
+		if(isAdvancedModeEnabled) {
+			long[] batches = node.collector.getSendBatchStats();
+			if(batches[0] > 0)
+				activityList.addChild("li", l10n("sendBatches", new String[] { "batches", "packets", "average", "max" }, new String[] { Long.toString(batches[0]), Long.toString(batches[1]), new DecimalFormat("0.0").format((double) batches[1] / batches[0]), Long.toString(batches[2]) }));
+			long[] acks = node.collector.getAckStats();
+			if(acks[0] > 0 && total[0] > 0)
+				activityList.addChild("li", l10n("ackOverhead", new String[] { "acks", "packets", "size", "perAck", "percent" }, new String[] { Long.toString(acks[1]), Long.toString(acks[0]), SizeUtil.formatSize(acks[2], true), new DecimalFormat("0.00").format((double) acks[2] / acks[1]), new DecimalFormat("0.0").format(100.0 * acks[2] / total[0]) }));
+			long[] scheduler = node.ps.getSchedulerStats();
+			if(scheduler[0] > 0)
+				activityList.addChild("li", l10n("packetSenderWakeups", new String[] { "wakeups", "fullScans", "average" }, new String[] { Long.toString(scheduler[0]), Long.toString(scheduler[1]), new DecimalFormat("0.0").format((double) scheduler[2] / scheduler[0]) }));
+		}
 		if(isAdvancedModeEnabled) {
 			long totalBytesSentCHKRequests = node.nodeStats.getCHKRequestTotalBytesSent();
 			long totalBytesSentSSKRequests = node.nodeStats.getSSKRequestTotalBytesSent();
@@ -1326,6 +1373,10 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "messageFilters:\u00a0" + node.getUSM().getFilterCount());
+		long[] filterLock = node.getUSM().getFilterLockStats();
+		if(filterLock[0] > 0)
+			overviewList.addChild("li", "messageFilterLockContended:\u00a0" + fix3p1pct.format(((double)filterLock[1])/((double)filterLock[0]))+"\u00a0("+filterLock[1]+", "+(filterLock[1] == 0 ? 0 : filterLock[2] / filterLock[1] / 1000)+"\u00a0\u00b5s average wait)");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
@@ -4,6 +4,7 @@
 package freenet.crypt;
 
 import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -38,6 +39,70 @@ public class HMAC {
 		return MessageDigest.isEqual(mac, mac2);
 	}
 
+	/** Scratch space for the methods which work on slices. */
+	private byte[] padScratch;
+	private byte[] hashScratch;
+
+	/**
+	 * Compute a MAC over part of a buffer, writing it into part of another buffer. Does no
+	 * allocation, provided the key is no longer than the block size. Not thread-safe.
+	 * @param K The key.
+	 * @param text The buffer containing the data to MAC.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param out The buffer to write the MAC to. May be the same as text, provided the
+	 * regions don't overlap.
+	 * @param outOffset The offset to write the MAC at.
+	 * @param macbytes The number of bytes of the MAC to write.
+	 */
+	public void mac(byte[] K, byte[] text, int offset, int length, byte[] out, int outOffset, int macbytes) {
+		byte[] hash = macToScratch(K, text, offset, length);
+		System.arraycopy(hash, 0, out, outOffset, Math.min(macbytes, hash.length));
+	}
+
+	/**
+	 * Verify a MAC over part of a buffer, in constant time. Does no allocation, provided the
+	 * key is no longer than the block size. Not thread-safe.
+	 * @param mac The buffer containing the MAC to check.
+	 * @param macOffset The offset of the MAC.
+	 * @param macbytes The length of the MAC.
+	 */
+	public boolean verify(byte[] K, byte[] text, int offset, int length, byte[] mac, int macOffset, int macbytes) {
+		byte[] hash = macToScratch(K, text, offset, length);
+		if(macbytes > hash.length) return false;
+		// this is constant-time; DO NOT 'optimize'
+		int diff = 0;
+		for(int i=0;i<macbytes;i++)
+			diff |= hash[i] ^ mac[macOffset+i];
+		return diff == 0;
+	}
+
+	private byte[] macToScratch(byte[] K, byte[] text, int offset, int length) {
+		if(K.length > B)
+			K = Util.hashBytes(d, K);
+		int hashLength = d.getDigestLength();
+		if(padScratch == null) {
+			padScratch = new byte[B];
+			hashScratch = new byte[hashLength];
+		}
+		byte[] pad = padScratch;
+		try {
+			for(int i=0;i<B;i++)
+				pad[i] = (byte) ((i < K.length ? K[i] : 0) ^ 0x36);
+			d.update(pad);
+			d.update(text, offset, length);
+			d.digest(hashScratch, 0, hashLength);
+			for(int i=0;i<B;i++)
+				pad[i] = (byte) ((i < K.length ? K[i] : 0) ^ 0x5c);
+			d.update(pad);
+			d.update(hashScratch);
+			d.digest(hashScratch, 0, hashLength);
+		} catch (DigestException e) {
+			throw new Error(e); // Impossible, the buffer is big enough
+		}
+		return hashScratch;
+	}
+
 	public byte[] mac(byte[] K, byte[] text, int macbytes) {
 		byte[] K0 = null;
 
@@ -21,6 +21,12 @@ public class IOStatisticCollector {
 	private static boolean logDEBUG;
 	private long totalbytesin;
 	private long totalbytesout;
+	private long sendBatches;
+	private long batchedPackets;
+	private int largestSendBatch;
+	private long packetsWithAcks;
+	private long acksSent;
+	private long ackBytes;
 	private final LinkedHashMap<String, StatisticEntry> targets;
 	static boolean ENABLE_PER_ADDRESS_TRACKING = false;
 	
@@ -64,6 +70,34 @@ public class IOStatisticCollector {
 		}
 	}
 	
+	/** Record that a batch of packets queued by the PacketSender was sent.
+	 * The bytes are counted separately, by addInfo(). */
+	public synchronized void addBatchInfo(int packets) {
+		sendBatches++;
+		batchedPackets += packets;
+		if(packets > largestSendBatch) largestSendBatch = packets;
+	}
+
+	/** @return The number of batches sent, the total number of packets in them, and the
+	 * number of packets in the largest batch. */
+	public synchronized long[] getSendBatchStats() {
+		return new long[] { sendBatches, batchedPackets, largestSendBatch };
+	}
+
+	/** Record the acks included in a packet we have sent. The packet itself is counted by
+	 * addInfo(). */
+	public synchronized void addAckInfo(int acks, int bytes) {
+		packetsWithAcks++;
+		acksSent += acks;
+		ackBytes += bytes;
+	}
+
+	/** @return The number of packets sent with acks, the total number of acks in them, and
+	 * the number of bytes used for the acks. */
+	public synchronized long[] getAckStats() {
+		return new long[] { packetsWithAcks, acksSent, ackBytes };
+	}
+
 	public void dumpInfo() {
 		synchronized (this) {
 			_dumpInfo();
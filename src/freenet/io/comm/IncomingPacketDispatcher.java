@@ -0,0 +1,201 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Hands packets from the receiving thread of a socket to a pool of worker threads, which
+ * decrypt and dispatch them through the IncomingPacketFilter. Trial decryption against
+ * candidate peers is expensive, so with many peers a single thread doing both receiving
+ * and decrypting can saturate a core.
+ *
+ * Packets are sharded by source Peer, so packets from the same address are always
+ * processed by the same worker, in the order they were received. Receive buffers are
+ * pooled. If a worker's queue is full the packet is dropped, just as the kernel would
+ * drop it if we didn't read the socket fast enough.
+ *
+ * With no workers, packets are processed on the receiving thread, as before.
+ */
+class IncomingPacketDispatcher {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(IncomingPacketDispatcher.class);
+	}
+
+	/** Maximum number of packets waiting for each worker. */
+	static final int WORKER_QUEUE_SIZE = 256;
+	/** Maximum number of spare receive buffers kept. */
+	static final int MAX_POOLED_BUFFERS = 256;
+
+	private final IncomingPacketFilter filter;
+	private final int bufferSize;
+	private final Worker[] workers;
+	private final ArrayBlockingQueue<byte[]> bufferPool;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger peakQueued = new AtomicInteger();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param filter The filter to pass packets to.
+	 * @param bufferSize The size of the receive buffers.
+	 * @param threads The number of worker threads. If 0, packets are processed by the
+	 * thread calling dispatch().
+	 * @param executor Used to start the workers.
+	 * @param name Used in the names of the worker threads.
+	 */
+	IncomingPacketDispatcher(IncomingPacketFilter filter, int bufferSize, int threads, Executor executor, String name) {
+		this.filter = filter;
+		this.bufferSize = bufferSize;
+		workers = new Worker[threads];
+		bufferPool = new ArrayBlockingQueue<byte[]>(Math.min(MAX_POOLED_BUFFERS, threads * WORKER_QUEUE_SIZE + 1));
+		for(int i=0;i<threads;i++) {
+			workers[i] = new Worker();
+			executor.execute(workers[i], "Packet receive worker "+i+" for "+name);
+		}
+	}
+
+	/** Get a buffer to receive a packet into. Ownership passes to the caller until it is
+	 * passed to dispatch(). */
+	byte[] getBuffer() {
+		byte[] buf = bufferPool.poll();
+		if(buf == null) buf = new byte[bufferSize];
+		return buf;
+	}
+
+	/**
+	 * Process a received packet, either now or on a worker thread. The buffer belongs to
+	 * the dispatcher after this call.
+	 */
+	void dispatch(byte[] buf, int length, Peer peer, long now) {
+		if(workers.length == 0) {
+			process(buf, length, peer, now);
+			return;
+		}
+		Worker worker = workers[(peer.hashCode() & Integer.MAX_VALUE) % workers.length];
+		if(worker.queue.offer(new ReceivedPacket(buf, length, peer, now))) {
+			int depth = queued.incrementAndGet();
+			int peak;
+			while(depth > (peak = peakQueued.get()))
+				if(peakQueued.compareAndSet(peak, depth)) break;
+		} else {
+			dropped.incrementAndGet();
+			bufferPool.offer(buf);
+			if(logMINOR) Logger.minor(this, "Dropped packet from "+peer+": receive queue full");
+		}
+	}
+
+	private void process(byte[] buf, int length, Peer peer, long now) {
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			filter.process(buf, 0, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ filter, t);
+		} finally {
+			processed.incrementAndGet();
+			bufferPool.offer(buf);
+		}
+	}
+
+	/** Stop the workers. Packets still queued are discarded. */
+	void stop() {
+		for(Worker worker : workers) {
+			while(worker.queue.poll() != null)
+				queued.decrementAndGet();
+			worker.queue.offer(STOP);
+		}
+	}
+
+	/** @return The number of worker threads, 0 if packets are processed on the receiving
+	 * thread. */
+	int workerCount() {
+		return workers.length;
+	}
+
+	/** @return The number of packets waiting for a worker. */
+	int queueDepth() {
+		return queued.get();
+	}
+
+	/** @return The largest number of packets which have been waiting for a worker. */
+	int peakQueueDepth() {
+		return peakQueued.get();
+	}
+
+	/** @return The number of packets passed to the filter. */
+	long processedPackets() {
+		return processed.get();
+	}
+
+	/** @return The number of packets dropped because a worker's queue was full. */
+	long droppedPackets() {
+		return dropped.get();
+	}
+
+	private static final class ReceivedPacket {
+		final byte[] buf;
+		final int length;
+		final Peer peer;
+		final long now;
+
+		ReceivedPacket(byte[] buf, int length, Peer peer, long now) {
+			this.buf = buf;
+			this.length = length;
+			this.peer = peer;
+			this.now = now;
+		}
+	}
+
+	private static final ReceivedPacket STOP = new ReceivedPacket(null, 0, null, 0);
+
+	private class Worker implements PrioRunnable {
+
+		final ArrayBlockingQueue<ReceivedPacket> queue =
+			new ArrayBlockingQueue<ReceivedPacket>(WORKER_QUEUE_SIZE);
+
+		@Override
+		public void run() {
+			while(true) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == STOP) return;
+				queued.decrementAndGet();
+				process(packet.buf, packet.length, packet.peer, packet.now);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
+	}
+
+}
@@ -58,6 +58,11 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
 		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
+		// Usually the encrypted sequence number tells us the peer and key.
+		if(node.peers.seqNumIndex.handleReceivedPacket(buf, offset, length, now, peer, mangler) != null) {
+			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+			return DECODED.DECODED;
+		}
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
 
 		if(opn != null) {
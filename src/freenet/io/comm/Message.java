@@ -19,14 +19,13 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
@@ -70,7 +69,14 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** The primitive fields, as raw bits, in the slots given by the MessageType. Not boxed. */
+	private final long[] _primitives;
+	/** The other fields, in the slots given by the MessageType. */
+	private final Object[] _objects;
+	/** Bit n is set if the field with index n has been set. */
+	private long _set;
+	private static final long[] NO_PRIMITIVES = new long[0];
+	private static final Object[] NO_OBJECTS = new Object[0];
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,15 +113,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m.readFields(bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -167,6 +165,8 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_primitives = spec.primitiveSlots() == 0 ? NO_PRIMITIVES : new long[spec.primitiveSlots()];
+		_objects = spec.objectSlots() == 0 ? NO_OBJECTS : new Object[spec.objectSlots()];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +174,9 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.length == 0 ? NO_PRIMITIVES : m._primitives.clone();
+		_objects = m._objects.length == 0 ? NO_OBJECTS : m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +185,92 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The index of a field if it is set and stored as the given type of primitive,
+	 * otherwise -1, in which case the caller should go through getObject(), which will fail
+	 * in the same way as it would have for a missing or wrongly typed field. */
+	private int primitiveIndex(String key, byte slotType) {
+		int i = _spec.fieldIndex(key);
+		if(i < 0 || _spec.slotType(i) != slotType || (_set & (1L << i)) == 0) return -1;
+		return _spec.slot(i);
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_BOOLEAN);
+		if(i < 0) return (Boolean) getObject(key);
+		return _primitives[i] != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_BYTE);
+		if(i < 0) return (Byte) getObject(key);
+		return (byte) _primitives[i];
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_SHORT);
+		if(i < 0) return (Short) getObject(key);
+		return (short) _primitives[i];
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_INT);
+		if(i < 0) return (Integer) getObject(key);
+		return (int) _primitives[i];
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_LONG);
+		if(i < 0) return (Long) getObject(key);
+		return _primitives[i];
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_DOUBLE);
+		if(i < 0) return (Double) getObject(key);
+		return Double.longBitsToDouble(_primitives[i]);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int i = primitiveIndex(key, MessageType.SLOT_FLOAT);
+		if(i < 0) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) _primitives[i]);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
+	/** @return The value of a field, boxed if it is a primitive, or null if it isn't set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _spec.fieldIndex(key);
+		if(i < 0 || (_set & (1L << i)) == 0) return null;
+		int slot = _spec.slot(i);
+		switch(_spec.slotType(i)) {
+		case MessageType.SLOT_BOOLEAN:
+			return Boolean.valueOf(_primitives[slot] != 0);
+		case MessageType.SLOT_BYTE:
+			return Byte.valueOf((byte) _primitives[slot]);
+		case MessageType.SLOT_SHORT:
+			return Short.valueOf((short) _primitives[slot]);
+		case MessageType.SLOT_INT:
+			return Integer.valueOf((int) _primitives[slot]);
+		case MessageType.SLOT_LONG:
+			return Long.valueOf(_primitives[slot]);
+		case MessageType.SLOT_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) _primitives[slot]));
+		case MessageType.SLOT_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(_primitives[slot]));
+		default:
+			return _objects[slot];
+		}
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -232,32 +278,50 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/** Set a primitive field without boxing it.
+	 * @return False if there is no such field of that type, in which case the caller should
+	 * go through set(String, Object) to report the error. */
+	private boolean setPrimitive(String key, byte slotType, long bits) {
+		int i = _spec.fieldIndex(key);
+		if(i < 0 || _spec.slotType(i) != slotType) return false;
+		_primitives[_spec.slot(i)] = bits;
+		_set |= 1L << i;
+		return true;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if(!setPrimitive(key, MessageType.SLOT_BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if(!setPrimitive(key, MessageType.SLOT_BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if(!setPrimitive(key, MessageType.SLOT_SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if(!setPrimitive(key, MessageType.SLOT_INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if(!setPrimitive(key, MessageType.SLOT_LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		if(!setPrimitive(key, MessageType.SLOT_DOUBLE, Double.doubleToRawLongBits(d)))
+			set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		if(!setPrimitive(key, MessageType.SLOT_FLOAT, Float.floatToRawIntBits(f)))
+			set(key, Float.valueOf(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,43 +331,181 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int i = _spec.fieldIndex(key);
+		int slot = _spec.slot(i);
+		switch(_spec.slotType(i)) {
+		case MessageType.SLOT_BOOLEAN:
+			_primitives[slot] = ((Boolean) value) ? 1 : 0;
+			break;
+		case MessageType.SLOT_BYTE:
+			_primitives[slot] = (Byte) value;
+			break;
+		case MessageType.SLOT_SHORT:
+			_primitives[slot] = (Short) value;
+			break;
+		case MessageType.SLOT_INT:
+			_primitives[slot] = (Integer) value;
+			break;
+		case MessageType.SLOT_LONG:
+			_primitives[slot] = (Long) value;
+			break;
+		case MessageType.SLOT_FLOAT:
+			_primitives[slot] = Float.floatToRawIntBits((Float) value);
+			break;
+		case MessageType.SLOT_DOUBLE:
+			_primitives[slot] = Double.doubleToRawLongBits((Double) value);
+			break;
+		default:
+			_objects[slot] = value;
+		}
+		_set |= 1L << i;
+	}
+
+	/** Read every field, in the order given by the MessageType. */
+	private void readFields(ByteBufferInputStream bb) throws IOException {
+		int count = _spec.fieldCount();
+		for (int i = 0; i < count; i++) {
+			int slot = _spec.slot(i);
+			switch(_spec.slotType(i)) {
+			case MessageType.SLOT_BOOLEAN:
+				// Only 0 and 1 are written, anything else indicates a problem.
+				byte b = bb.readByte();
+				if(b != 0 && b != 1) throw new IOException("Boolean is non boolean value: " + b);
+				_primitives[slot] = b;
+				break;
+			case MessageType.SLOT_BYTE:
+				_primitives[slot] = bb.readByte();
+				break;
+			case MessageType.SLOT_SHORT:
+				_primitives[slot] = bb.readShort();
+				break;
+			case MessageType.SLOT_INT:
+				_primitives[slot] = bb.readInt();
+				break;
+			case MessageType.SLOT_LONG:
+				_primitives[slot] = bb.readLong();
+				break;
+			case MessageType.SLOT_FLOAT:
+				_primitives[slot] = Float.floatToRawIntBits(bb.readFloat());
+				break;
+			case MessageType.SLOT_DOUBLE:
+				_primitives[slot] = Double.doubleToRawLongBits(bb.readDouble());
+				break;
+			default:
+				Class<?> elementType = _spec.elementType(i);
+				if (elementType != null) { // Special handling for LinkedList to deal with element type
+					_objects[slot] = Serializer.readListFromDataInputStream(elementType, bb);
+				} else {
+					_objects[slot] = Serializer.readFromDataInputStream(_spec.fieldType(i), bb);
+				}
+			}
+			_set |= 1L << i;
+		}
 	}
 
 	public byte[] encodeToPacket() {
 		return encodeToPacket(true, false);
 	}
 
+	/** Don't keep an encoding buffer bigger than this once we're done with it. */
+	private static final int MAX_KEPT_ENCODE_BUFFER = 65536;
+
+	/** Per-thread buffer for encodeToPacket(). A fresh buffer starts small and would be
+	 * grown, and copied, several times for a message carrying a packet of a block. Reusing
+	 * one means the message is written once and then copied once into its final array.
+	 * Primitive fields are written straight into the ByteBuffer; other fields go through
+	 * a DataOutputStream which writes into the same buffer. */
+	private static final class EncodeBuffer extends OutputStream {
+
+		ByteBuffer buf = ByteBuffer.allocate(2048);
+		final DataOutputStream dos = new DataOutputStream(this);
+
+		/** Make sure there is room for at least this many more bytes. */
+		ByteBuffer ensure(int bytes) {
+			if(buf.remaining() < bytes) {
+				ByteBuffer newBuf = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+				buf.flip();
+				newBuf.put(buf);
+				buf = newBuf;
+			}
+			return buf;
+		}
+
+		@Override
+		public void write(int b) {
+			ensure(1).put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			ensure(length).put(data, offset, length);
+		}
+
+	}
+
+	private static final ThreadLocal<EncodeBuffer> encodeBuffers = new ThreadLocal<EncodeBuffer>() {
+		@Override
+		protected EncodeBuffer initialValue() {
+			return new EncodeBuffer();
+		}
+	};
+
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+		// Encode the sub-messages first, as they use the same buffer.
+		byte[][] subMessages = null;
+		if (_subMessages != null && includeSubMessages) {
+			subMessages = new byte[_subMessages.size()][];
+			for (int i = 0; i < subMessages.length; i++)
+				subMessages[i] = _subMessages.get(i).encodeToPacket(false, true);
+		}
+
+		EncodeBuffer encoder = encodeBuffers.get();
+		encoder.buf.clear();
 		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			encoder.ensure(4).putInt(_spec.getName().hashCode());
+			int count = _spec.fieldCount();
+			for (int i = 0; i < count; i++) {
+				if((_set & (1L << i)) == 0)
+					throw new FieldNotSetException(_spec.fieldName(i)+" not set in "+_spec.getName());
+				long bits = _spec.slotType(i) == MessageType.SLOT_OBJECT ? 0 : _primitives[_spec.slot(i)];
+				switch(_spec.slotType(i)) {
+				case MessageType.SLOT_BOOLEAN:
+				case MessageType.SLOT_BYTE:
+					encoder.ensure(1).put((byte) bits);
+					break;
+				case MessageType.SLOT_SHORT:
+					encoder.ensure(2).putShort((short) bits);
+					break;
+				case MessageType.SLOT_INT:
+				case MessageType.SLOT_FLOAT:
+					encoder.ensure(4).putInt((int) bits);
+					break;
+				case MessageType.SLOT_LONG:
+				case MessageType.SLOT_DOUBLE:
+					encoder.ensure(8).putLong(bits);
+					break;
+				default:
+					Serializer.writeToDataOutputStream(_objects[_spec.slot(i)], encoder.dos);
+				}
+			}
+			if (subMessages != null) {
+				for (byte[] temp : subMessages) {
+					encoder.ensure(2 + temp.length).putShort((short) temp.length).put(temp);
+				}
 			}
-			dos.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IllegalStateException(e.getMessage());
 		}
 
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
-			}
-		}
-
-		byte[] buf = baos.toByteArray();
+		ByteBuffer out = encoder.buf;
+		byte[] buf = new byte[out.position()];
+		out.flip();
+		out.get(buf);
+		if (out.capacity() > MAX_KEPT_ENCODE_BUFFER)
+			encodeBuffers.remove();
 		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
 		return buf;
 	}
@@ -313,9 +515,10 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (int i = 0; i < _spec.fieldCount(); i++) {
+			String name = _spec.fieldName(i);
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +538,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _spec.fieldIndex(fieldName);
+		return i >= 0 && (_set & (1L << i)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r =  getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -24,12 +24,11 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
-import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
@@ -56,9 +55,17 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	/** _lock protects both */
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
+	private final UnclaimedMessages _unclaimed = new UnclaimedMessages();
+	private final ReentrantLock _lock = new ReentrantLock();
+	/** Number of times _lock has been taken, number of times we had to wait for it, and
+	 * the total time spent waiting in nanoseconds. Protected by _lock. */
+	private long lockAcquired;
+	private long lockContended;
+	private long lockWaitNanos;
+	/** When we last asked the filters with callbacks whether they want to time out. */
+	private long lastCallbackCheck;
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
@@ -123,46 +130,33 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
-						}
+		ArrayList<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
+		lock();
+		try {
+			// Only the filters which are due are looked at, except that every
+			// MAX_FILTER_REMOVE_TIME we also look at all the filters with callbacks, because
+			// they may be timed out early because their client callbacks say they should be.
+			// See also the end of waitFor() for another weird case.
+			boolean checkCallbacks = tStart - lastCallbackCheck >= MAX_FILTER_REMOVE_TIME;
+			if(checkCallbacks)
+				lastCallbackCheck = tStart;
+			_filters.removeTimedOut(tStart, checkCallbacks, timedOutFilters);
+			if(logMINOR) {
+				for(MessageFilter f : timedOutFilters) {
+					Message m = _unclaimed.find(f, tStart);
+					if(m != null) {
+						// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+						Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
+		} finally {
+			_lock.unlock();
 		}
 		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		
 		long tEnd = System.currentTimeMillis();
@@ -195,34 +189,21 @@ public class MessageCore {
 					+ m.getSource() + " : " + m);
 		}
 		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
+		lock();
+		try {
+			// Only one match permitted per message
+			match = _filters.match(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+			} else if(logDEBUG) Logger.debug(this, "Did not match any of "+_filters.size()+" filters");
+		} finally {
+			_lock.unlock();
 		}
-		if(timedOut != null) {
+		if(!timedOut.isEmpty()) {
 			for(MessageFilter f : timedOut) {
 				if(logMINOR) Logger.minor(this, "Timed out "+f);
 				f.setMessage(null);
@@ -241,7 +222,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -266,29 +247,19 @@ public class MessageCore {
 		     * Another race is possible if we merely recheck the
 		     * filters after we return from dispatcher, for example.
 		     */
-			synchronized (_filters) {
+			lock();
+			try {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = _filters.match(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
+				        Message removed = _unclaimed.oldest();
+				        _unclaimed.remove(removed);
 				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
 				        if ((removed.getSource()) instanceof PeerNode) {
 				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
@@ -296,18 +267,18 @@ public class MessageCore {
 				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
 				        }
 				    }
-				    _unclaimed.addLast(m);
+				    _unclaimed.add(m);
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
+			} finally {
+				_lock.unlock();
 			}
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for(MessageFilter f : timedOut) {
+				f.setMessage(null);
+				f.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -322,19 +293,13 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
+		lock();
+		try {
+			droppedFilters = _filters.removeForConnection(ctx, false);
+		} finally {
+			_lock.unlock();
+		}
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
 		        mf.onDroppedConnection(ctx, _executor);
@@ -344,19 +309,13 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
+		lock();
+		try {
+			droppedFilters = _filters.removeForConnection(ctx, true);
+		} finally {
+			_lock.unlock();
+		}
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
 		        mf.onRestartedConnection(ctx, _executor);
@@ -380,10 +339,9 @@ public class MessageCore {
 		// Check to see whether the filter matches any of the recently _unclaimed messages
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
-		synchronized (_filters) {
+		lock();
+		try {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
 			//have disconnected between check above and locking, so we *must* check again.
 			if(filter.anyConnectionsDropped()) {
@@ -392,44 +350,15 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			ret = claim(filter, now);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				addFilter(filter, now);
+				return;
 			}
+		} finally {
+			_lock.unlock();
 		}
 		if(ret != null) {
 			filter.setMessage(ret);
@@ -472,47 +401,16 @@ public class MessageCore {
 		// Check to see whether the filter matches any of the recently _unclaimed messages
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
-		synchronized (_filters) {
+		lock();
+		try {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = claim(filter, now);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				addFilter(filter, now);
 			}
+		} finally {
+			_lock.unlock();
 		}
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - now > 50) {
@@ -548,7 +446,8 @@ public class MessageCore {
 		
 		// More tricky locking ...
 		
-		synchronized(_filters) {
+		lock();
+		try {
 			// Some nasty race conditions can happen here.
 			// E.g. the filter can be matched and yet we timeout at the same time.
 			// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
@@ -563,12 +462,11 @@ public class MessageCore {
 			}
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
+			// it will still be registered with its old timeout.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
+		} finally {
+			_lock.unlock();
 		}
 		
 		// Probably get rid...
@@ -604,15 +502,19 @@ public class MessageCore {
 	 * @return the number of received messages that are currently unclaimed
 	 */
 	public int getUnclaimedFIFOSize() {
-		synchronized (_filters){
+		lock();
+		try {
 			return _unclaimed.size();
+		} finally {
+			_lock.unlock();
 		}
 	}
 	
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
-		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
+		lock();
+		try {
+			for (Iterator<Message> i = _unclaimed.iterator(); i.hasNext();) {
 				Message m = i.next();
 				String messageName = m.getSpec().getName();
 				Integer messageCount = messageCounts.get(messageName);
@@ -623,10 +525,82 @@ public class MessageCore {
 					messageCounts.put(messageName, messageCount );
 				}
 			}
+		} finally {
+			_lock.unlock();
 		}
 		return messageCounts;
 	}
 
+	/**
+	 * @return the number of filters waiting for a message
+	 */
+	public int getFilterCount() {
+		lock();
+		try {
+			return _filters.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of times the filter lock has been taken, the number of times a
+	 * thread had to wait for it, and the total time spent waiting in nanoseconds.
+	 */
+	public long[] getFilterLockStats() {
+		lock();
+		try {
+			return new long[] { lockAcquired, lockContended, lockWaitNanos };
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Take _lock, counting how often we have to wait for it and for how long. */
+	private void lock() {
+		if(_lock.tryLock()) {
+			lockAcquired++;
+			return;
+		}
+		long start = System.nanoTime();
+		_lock.lock();
+		lockAcquired++;
+		lockContended++;
+		lockWaitNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Remove and return the oldest unclaimed message which the filter matches, and drop any
+	 * unclaimed messages older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME. Caller must hold _lock.
+	 */
+	private Message claim(MessageFilter filter, long now) {
+		Message ret = _unclaimed.find(filter, now);
+		if(ret != null) {
+			_unclaimed.remove(ret);
+			if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+		}
+		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
+		Message m;
+		while((m = _unclaimed.oldest()) != null && m.localInstantiationTime < messageDropTime) {
+			_unclaimed.remove(m);
+			long messageLifeTime = now - m.localInstantiationTime;
+			if ((m.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			}
+		}
+		return ret;
+	}
+
+	/** Add a filter to _filters. Caller must hold _lock. */
+	private void addFilter(MessageFilter filter, long now) {
+		if(_filters.add(filter, now)) {
+			if(logMINOR) Logger.minor(this, "Added "+filter+" timeout="+filter.getTimeout());
+		} else
+			Logger.error(this, "Filter "+filter+" is already waiting!", new Exception("error"));
+	}
+
 	public Executor getExecutor() {
 		return _executor;
 	}
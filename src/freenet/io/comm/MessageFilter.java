@@ -188,6 +188,26 @@ public final class MessageFilter {
 		return this;
 	}
 
+	/** @return The message type this filter matches, or null if it matches any type. Does
+	 * not include the filters it is or()ed with. */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** @return The filter this one is or()ed with, if any. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** @return The UID this filter matches, or null if it matches any UID. Used to index
+	 * filters; does not include the filters it is or()ed with. */
+	Long getUID() {
+		synchronized (_fields) {
+			Object uid = _fields.get(DMT.UID);
+			return uid instanceof Long ? (Long) uid : null;
+		}
+	}
+
 	public MessageFilter setAsyncCallback(AsyncMessageFilterCallback cb, ByteCounter ctr) {
 		_callback = cb;
 		_ctr = ctr;
@@ -0,0 +1,323 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The MessageFilters waiting in a MessageCore, indexed by message type, source and UID, so
+ * that finding the filter for an incoming message only looks at the filters which could
+ * match it, rather than at every filter. Timeouts are kept on a timing wheel, so removing
+ * timed out filters only looks at the filters which are due.
+ *
+ * A filter which is or()ed with other filters is indexed under each of them. Where more
+ * than one filter matches a message, the one with the earliest timeout wins, and if they
+ * are equal the one which was added first, just as when the filters were kept in one list
+ * sorted by timeout.
+ *
+ * Not thread-safe: MessageCore holds its lock while using it.
+ */
+class MessageFilterIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(MessageFilterIndex.class);
+	}
+
+	/** Length of a tick of the timing wheel in milliseconds. */
+	static final long WHEEL_TICK = 100;
+	/** Number of slots on the timing wheel. Filters with longer timeouts go round more than
+	 * once. Must be a power of 2. */
+	static final int WHEEL_SLOTS = 1024;
+
+	/** The fields a filter, or a message, is indexed by. Any of them may be null, meaning
+	 * "any" for a filter. */
+	static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final Long uid;
+		private final int hashCode;
+
+		Key(MessageType type, PeerContext source, Long uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int h = type == null ? 0 : type.hashCode();
+			h = h * 31 + (source == null ? 0 : source.hashCode());
+			h = h * 31 + (uid == null ? 0 : uid.hashCode());
+			hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(k.hashCode != hashCode) return false;
+			if(type == null ? k.type != null : !type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			return uid == null ? k.uid == null : uid.equals(k.uid);
+		}
+	}
+
+	private static final class Registration {
+		final MessageFilter filter;
+		/** The timeout when the filter was added, used for priority. */
+		final long timeout;
+		/** Order in which filters were added, used for priority. */
+		final long sequence;
+		final Key[] keys;
+		final boolean hasCallback;
+		boolean removed;
+
+		Registration(MessageFilter filter, long sequence, Key[] keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.sequence = sequence;
+			this.keys = keys;
+			this.hasCallback = filter.hasCallback();
+		}
+
+		boolean before(Registration r) {
+			if(timeout != r.timeout) return timeout < r.timeout;
+			return sequence < r.sequence;
+		}
+	}
+
+	private final HashMap<Key, LinkedHashSet<Registration>> buckets =
+		new HashMap<Key, LinkedHashSet<Registration>>();
+	private final IdentityHashMap<MessageFilter, Registration> registered =
+		new IdentityHashMap<MessageFilter, Registration>();
+	/** Filters with a callback, which may ask to be timed out early. */
+	private final LinkedHashSet<Registration> withCallback = new LinkedHashSet<Registration>();
+	private final List<ArrayList<Registration>> wheel = new ArrayList<ArrayList<Registration>>(WHEEL_SLOTS);
+	/** The last tick of the wheel which has been processed. */
+	private long currentTick = -1;
+	private long sequence;
+	/** Number of keys with a null type. If there are none, we don't need to look them up. */
+	private int anyTypeKeys;
+	/** Likewise for keys with a null source. */
+	private int anySourceKeys;
+
+	MessageFilterIndex() {
+		for(int i=0;i<WHEEL_SLOTS;i++)
+			wheel.add(new ArrayList<Registration>());
+	}
+
+	/** @return The number of filters. */
+	int size() {
+		return registered.size();
+	}
+
+	boolean contains(MessageFilter filter) {
+		return registered.containsKey(filter);
+	}
+
+	/**
+	 * Add a filter.
+	 * @param now The current time, used to start the timing wheel.
+	 * @return False if the filter was already in the index.
+	 */
+	boolean add(MessageFilter filter, long now) {
+		if(registered.containsKey(filter)) return false;
+		ArrayList<Key> keys = new ArrayList<Key>(2);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key key = new Key(f.getType(), f.getSource(), f.getUID());
+			if(!keys.contains(key)) keys.add(key);
+		}
+		Registration reg = new Registration(filter, sequence++, keys.toArray(new Key[keys.size()]));
+		registered.put(filter, reg);
+		for(Key key : reg.keys) {
+			LinkedHashSet<Registration> bucket = buckets.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Registration>();
+				buckets.put(key, bucket);
+			}
+			bucket.add(reg);
+			if(key.type == null) anyTypeKeys++;
+			if(key.source == null) anySourceKeys++;
+		}
+		if(reg.hasCallback) withCallback.add(reg);
+		if(currentTick < 0) currentTick = now / WHEEL_TICK - 1;
+		addToWheel(reg);
+		return true;
+	}
+
+	private void addToWheel(Registration reg) {
+		long timeout = reg.filter.getTimeout();
+		if(timeout == Long.MAX_VALUE) return;
+		long tick = Math.max(timeout / WHEEL_TICK, currentTick + 1);
+		wheel.get((int) (tick & (WHEEL_SLOTS - 1))).add(reg);
+	}
+
+	/**
+	 * Remove a filter.
+	 * @return False if it wasn't in the index.
+	 */
+	boolean remove(MessageFilter filter) {
+		Registration reg = registered.remove(filter);
+		if(reg == null) return false;
+		reg.removed = true;
+		for(Key key : reg.keys) {
+			LinkedHashSet<Registration> bucket = buckets.get(key);
+			bucket.remove(reg);
+			if(bucket.isEmpty()) buckets.remove(key);
+			if(key.type == null) anyTypeKeys--;
+			if(key.source == null) anySourceKeys--;
+		}
+		if(reg.hasCallback) withCallback.remove(reg);
+		// It stays on the wheel until its slot comes round.
+		return true;
+	}
+
+	/**
+	 * Find the filter which should get a message, and remove it. Filters found on the way
+	 * which have timed out, or which have been matched already, are removed too.
+	 * @param timedOut Filters which have timed out are added to this list. The caller must
+	 * call onTimedOut() on them after releasing the lock.
+	 * @return The filter which matched, or null.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Long uid = null;
+		if(m.isSet(DMT.UID)) {
+			Object o = m.getFromPayload(DMT.UID);
+			if(o instanceof Long) uid = (Long) o;
+		}
+		Registration best = null;
+		for(int t=0;t<2;t++) {
+			MessageType ty = t == 0 ? type : null;
+			if(t == 1 && anyTypeKeys == 0) break;
+			for(int s=0;s<2;s++) {
+				PeerContext so = s == 0 ? source : null;
+				if(s == 1 && (source == null || anySourceKeys == 0)) break;
+				best = matchBucket(new Key(ty, so, null), m, now, timedOut, best);
+				if(uid != null)
+					best = matchBucket(new Key(ty, so, uid), m, now, timedOut, best);
+			}
+		}
+		if(best == null) return null;
+		remove(best.filter);
+		return best.filter;
+	}
+
+	private Registration matchBucket(Key key, Message m, long now, List<MessageFilter> timedOut, Registration best) {
+		LinkedHashSet<Registration> bucket = buckets.get(key);
+		if(bucket == null) return best;
+		List<MessageFilter> toRemove = null;
+		for(Registration reg : bucket) {
+			MessageFilter f = reg.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				if(toRemove == null) toRemove = new ArrayList<MessageFilter>();
+				toRemove.add(f);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				if(toRemove == null) toRemove = new ArrayList<MessageFilter>();
+				toRemove.add(f);
+				timedOut.add(f);
+			} else if(status == MATCHED.MATCHED) {
+				if(best == null || reg.before(best))
+					best = reg;
+			}
+		}
+		if(toRemove != null) {
+			for(MessageFilter f : toRemove) {
+				remove(f);
+				if(best != null && best.filter == f) best = null;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Remove the filters which have timed out.
+	 * @param now The current time.
+	 * @param checkCallbacks If true, also ask each filter with a callback whether it wants
+	 * to time out now. This means looking at all of them, so should be done less often.
+	 * @param timedOut The filters removed are added to this list.
+	 */
+	void removeTimedOut(long now, boolean checkCallbacks, List<MessageFilter> timedOut) {
+		if(currentTick >= 0) {
+			long nowTick = now / WHEEL_TICK;
+			long ticks = nowTick - currentTick;
+			if(ticks > WHEEL_SLOTS) {
+				// Been a while; every slot is due.
+				currentTick = nowTick - WHEEL_SLOTS;
+			}
+			while(currentTick < nowTick) {
+				currentTick++;
+				int slot = (int) (currentTick & (WHEEL_SLOTS - 1));
+				ArrayList<Registration> list = wheel.get(slot);
+				if(list.isEmpty()) continue;
+				wheel.set(slot, new ArrayList<Registration>());
+				for(Registration reg : list) {
+					if(reg.removed) continue;
+					if(reg.filter.timedOut(now)) {
+						if(logMINOR) Logger.minor(this, "Removing "+reg.filter);
+						remove(reg.filter);
+						timedOut.add(reg.filter);
+					} else {
+						// A later round, or its timeout has changed.
+						addToWheel(reg);
+					}
+				}
+			}
+		}
+		if(checkCallbacks && !withCallback.isEmpty()) {
+			List<MessageFilter> expired = null;
+			for(Registration reg : withCallback) {
+				if(reg.filter.timedOut(now)) {
+					if(expired == null) expired = new ArrayList<MessageFilter>();
+					expired.add(reg.filter);
+				}
+			}
+			if(expired != null) {
+				for(MessageFilter f : expired) {
+					if(logMINOR) Logger.minor(this, "Removing "+f);
+					remove(f);
+					timedOut.add(f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the filters waiting for a peer which has disconnected or restarted.
+	 * @param restarted If true, the peer restarted, otherwise it disconnected.
+	 * @return The filters removed, or null if there were none.
+	 */
+	List<MessageFilter> removeForConnection(PeerContext ctx, boolean restarted) {
+		List<MessageFilter> dropped = null;
+		for(Iterator<MessageFilter> i = registered.keySet().iterator(); i.hasNext();) {
+			MessageFilter f = i.next();
+			if(restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if(dropped == null) dropped = new ArrayList<MessageFilter>();
+				dropped.add(f);
+			}
+		}
+		if(dropped != null)
+			for(MessageFilter f : dropped)
+				remove(f);
+		return dropped;
+	}
+
+}
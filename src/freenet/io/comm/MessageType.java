@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -33,10 +34,36 @@ public class MessageType {
 
 	private static HashMap<Integer, MessageType> _specs = new HashMap<Integer, MessageType>();
 
+	/** How a field is stored in a Message: as an object, or as the raw bits of a primitive. */
+	static final byte SLOT_OBJECT = 0;
+	static final byte SLOT_BOOLEAN = 1;
+	static final byte SLOT_BYTE = 2;
+	static final byte SLOT_SHORT = 3;
+	static final byte SLOT_INT = 4;
+	static final byte SLOT_LONG = 5;
+	static final byte SLOT_FLOAT = 6;
+	static final byte SLOT_DOUBLE = 7;
+	/** A Message keeps track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+	private static final byte[] EMPTY_SLOT_TYPES = new byte[0];
+	private static final int[] EMPTY_SLOTS = new int[0];
+	private static final String[] EMPTY_NAMES = new String[0];
+	private static final Class<?>[] EMPTY_CLASSES = new Class<?>[0];
+
 	private final String _name;
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/** The layout of a Message of this type. Each field has an index, in the order it was
+	 * added, and a slot in either the primitive or the object array of the Message. */
+	private final HashMap<String, Integer> _fieldIndexes = new HashMap<String, Integer>();
+	private String[] _fieldNames = EMPTY_NAMES;
+	private Class<?>[] _fieldTypes = EMPTY_CLASSES;
+	private Class<?>[] _elementTypes = EMPTY_CLASSES;
+	private byte[] _slotTypes = EMPTY_SLOT_TYPES;
+	private int[] _slots = EMPTY_SLOTS;
+	private int _primitiveSlots;
+	private int _objectSlots;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -67,9 +94,40 @@ public class MessageType {
 		addField(name, LinkedList.class);
 	}
 
+	/**
+	 * Add a field. All fields must be added before a Message of this type is created.
+	 */
 	public void addField(String name, Class<?> type) {
+		if(_fieldIndexes.containsKey(name))
+			throw new IllegalStateException("Field "+name+" already exists in "+_name);
+		int index = _fieldNames.length;
+		if(index == MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in "+_name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		_fieldIndexes.put(name, index);
+		byte slotType = slotTypeOf(type);
+		_fieldNames = Arrays.copyOf(_fieldNames, index + 1);
+		_fieldNames[index] = name;
+		_fieldTypes = Arrays.copyOf(_fieldTypes, index + 1);
+		_fieldTypes[index] = type;
+		_elementTypes = Arrays.copyOf(_elementTypes, index + 1);
+		_elementTypes[index] = _linkedListTypes.get(name);
+		_slotTypes = Arrays.copyOf(_slotTypes, index + 1);
+		_slotTypes[index] = slotType;
+		_slots = Arrays.copyOf(_slots, index + 1);
+		_slots[index] = slotType == SLOT_OBJECT ? _objectSlots++ : _primitiveSlots++;
+	}
+
+	private static byte slotTypeOf(Class<?> type) {
+		if(type == Boolean.class) return SLOT_BOOLEAN;
+		if(type == Byte.class) return SLOT_BYTE;
+		if(type == Short.class) return SLOT_SHORT;
+		if(type == Integer.class) return SLOT_INT;
+		if(type == Long.class) return SLOT_LONG;
+		if(type == Float.class) return SLOT_FLOAT;
+		if(type == Double.class) return SLOT_DOUBLE;
+		return SLOT_OBJECT;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -98,6 +156,47 @@ public class MessageType {
 		return _fields.get(field);
 	}
 
+	/** @return The index of the field, or -1 if there is no such field. */
+	int fieldIndex(String name) {
+		Integer index = _fieldIndexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	int fieldCount() {
+		return _fieldNames.length;
+	}
+
+	String fieldName(int index) {
+		return _fieldNames[index];
+	}
+
+	Class<?> fieldType(int index) {
+		return _fieldTypes[index];
+	}
+
+	/** @return The element type of a LinkedList field. */
+	Class<?> elementType(int index) {
+		return _elementTypes[index];
+	}
+
+	/** @return One of the SLOT_ constants. */
+	byte slotType(int index) {
+		return _slotTypes[index];
+	}
+
+	/** @return The index of the field in the primitive or object array of a Message. */
+	int slot(int index) {
+		return _slots[index];
+	}
+
+	int primitiveSlots() {
+		return _primitiveSlots;
+	}
+
+	int objectSlots() {
+		return _objectSlots;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (!(o instanceof MessageType)) {
@@ -0,0 +1,116 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A ring of direct buffers holding outgoing packets which have been encrypted but not yet
+ * sent. The PacketSender fills it during one round and then flushes it, so the packets for
+ * a round go out back to back in one pass over the channel, and there is no per-packet
+ * allocation of a DatagramPacket or of the temporary direct buffer the channel would
+ * otherwise copy a heap array into.
+ *
+ * Not thread-safe: the UdpSocketHandler synchronizes on it.
+ */
+class SendBatch {
+
+	/** Told what happened to each packet when the batch is flushed. */
+	interface Listener {
+		void sent(Peer peer, InetSocketAddress address, int length, boolean isLocal);
+		void failed(Peer peer, InetSocketAddress address, IOException e);
+	}
+
+	private final ByteBuffer[] buffers;
+	private final InetSocketAddress[] addresses;
+	private final Peer[] peers;
+	private final boolean[] local;
+	/** Index of the first packet waiting to be sent. */
+	private int head;
+	private int count;
+
+	/**
+	 * @param capacity The maximum number of packets in a batch.
+	 * @param bufferSize The maximum size of a packet.
+	 */
+	SendBatch(int capacity, int bufferSize) {
+		buffers = new ByteBuffer[capacity];
+		for(int i=0;i<capacity;i++)
+			buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+		addresses = new InetSocketAddress[capacity];
+		peers = new Peer[capacity];
+		local = new boolean[capacity];
+	}
+
+	int size() {
+		return count;
+	}
+
+	boolean isFull() {
+		return count == buffers.length;
+	}
+
+	/** @return The largest packet which can be added. */
+	int maxPacketSize() {
+		return buffers[0].capacity();
+	}
+
+	/**
+	 * Copy a packet into the next free buffer. The caller may reuse the array afterwards.
+	 * The batch must not be full, and the packet must fit.
+	 */
+	void add(byte[] data, int offset, int length, InetSocketAddress address, Peer peer, boolean isLocal) {
+		assert(!isFull());
+		int i = (head + count) % buffers.length;
+		ByteBuffer buf = buffers[i];
+		buf.clear();
+		buf.put(data, offset, length);
+		buf.flip();
+		addresses[i] = address;
+		peers[i] = peer;
+		local[i] = isLocal;
+		count++;
+	}
+
+	/** Discard every queued packet. */
+	void clear() {
+		while(count > 0) {
+			addresses[head] = null;
+			peers[head] = null;
+			head = (head + 1) % buffers.length;
+			count--;
+		}
+	}
+
+	/**
+	 * Send every queued packet, oldest first. A packet which can't be sent is reported to
+	 * the listener and doesn't stop the rest.
+	 * @return The number of packets which were taken from the batch.
+	 */
+	int flush(DatagramChannel channel, Listener listener) {
+		int flushed = count;
+		while(count > 0) {
+			int i = head;
+			ByteBuffer buf = buffers[i];
+			InetSocketAddress address = addresses[i];
+			Peer peer = peers[i];
+			int length = buf.remaining();
+			addresses[i] = null;
+			peers[i] = null;
+			head = (head + 1) % buffers.length;
+			count--;
+			try {
+				channel.send(buf, address);
+				listener.sent(peer, address, length, local[i]);
+			} catch (IOException e) {
+				listener.failed(peer, address, e);
+			}
+		}
+		return flushed;
+	}
+
+}
@@ -5,8 +5,10 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
 
 import freenet.io.AddressTracker;
@@ -19,6 +21,7 @@ import freenet.support.transport.ip.IPUtil;
 
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
+	private final DatagramChannel _channel;
 	private final DatagramSocket _sock;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
@@ -40,6 +43,26 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** Decrypts and dispatches received packets, possibly on other threads. Created in run(). */
+	private volatile IncomingPacketDispatcher dispatcher;
+	/** Packets queued by the thread which called startBatch(), sent by flushBatch().
+	 * Also the lock for batchThread. */
+	private final SendBatch sendBatch = new SendBatch(MAX_BATCH_PACKETS, MAX_RECEIVE_SIZE);
+	/** The thread whose packets go into sendBatch, or null. */
+	private volatile Thread batchThread;
+	private final SendBatch.Listener batchListener = new SendBatch.Listener() {
+
+		@Override
+		public void sent(Peer peer, InetSocketAddress address, int length, boolean isLocal) {
+			sentPacket(peer, address.getAddress(), address.getPort(), length, isLocal);
+		}
+
+		@Override
+		public void failed(Peer peer, InetSocketAddress address, IOException e) {
+			sendFailed(peer, address.getAddress(), e);
+		}
+
+	};
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -56,16 +79,29 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
+		try {
+			_channel = DatagramChannel.open();
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw (SocketException) new SocketException("Unable to open channel: "+e).initCause(e);
 		}
+		_sock = _channel.socket();
 		try {
-			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
+			try {
+				// Exit reasonably quickly
+				_sock.setReuseAddress(true);
+			} catch (SocketException e) {
+				throw new RuntimeException(e);
+			}
+			_sock.bind(new InetSocketAddress(bindto, listenPort));
 		} catch (SocketException e) {
-			throw new RuntimeException(e);
+			_sock.close();
+			throw e;
+		}
+		int sz = _sock.getReceiveBufferSize();
+		if(sz < 65536) {
+			_sock.setReceiveBufferSize(65536);
 		}
 //		}
 		// Only used for debugging, no need to seed from Yarrow
@@ -131,20 +167,31 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
-		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
-		while (_active) {
-			try {
-				realRun(packet);
-			} catch (Throwable t) {
-				System.err.println("Caught "+t);
-				t.printStackTrace(System.err);
-				Logger.error(this, "Caught " + t, t);
+		IncomingPacketDispatcher d = new IncomingPacketDispatcher(lowLevelFilter, MAX_RECEIVE_SIZE,
+				node.getPacketReceiveThreads(), node.executor, "port "+listenPort);
+		dispatcher = d;
+		try {
+			DatagramPacket packet = new DatagramPacket(d.getBuffer(), MAX_RECEIVE_SIZE);
+			while (_active) {
+				try {
+					if(realRun(packet, d)) {
+						// The dispatcher owns the old buffer now.
+						packet.setData(d.getBuffer());
+					}
+				} catch (Throwable t) {
+					System.err.println("Caught "+t);
+					t.printStackTrace(System.err);
+					Logger.error(this, "Caught " + t, t);
+				}
 			}
+		} finally {
+			d.stop();
 		}
 	}
 
-	private void realRun(DatagramPacket packet) {
+	/** Receive a packet and pass it to the dispatcher.
+	 * @return True if the packet's buffer was passed to the dispatcher. */
+	private boolean realRun(DatagramPacket packet, IncomingPacketDispatcher d) {
 		// Single receiving thread
 		boolean gotPacket = getPacket(packet);
 		long now = System.currentTimeMillis();
@@ -160,29 +207,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
+			d.dispatch(packet.getData(), packet.getLength(), peer, now);
+			return true;
 		} else {
 			if(logDEBUG) Logger.debug(this, "No packet received");
+			return false;
 		}
 	}
 
@@ -240,25 +269,80 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+
+		if(Thread.currentThread() == batchThread && blockToSend.length <= sendBatch.maxPacketSize()) {
+			synchronized(sendBatch) {
+				if(sendBatch.isFull())
+					flushBatchLocked();
+				sendBatch.add(blockToSend, 0, blockToSend.length, new InetSocketAddress(address, port), destination, isLocal);
+			}
+			if(logMINOR) Logger.minor(this, "Queued packet length "+blockToSend.length+" to "+address+':'+port);
+			return;
+		}
+
 		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
 		packet.setAddress(address);
 		packet.setPort(port);
 
 		try {
 			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			sentPacket(destination, address, port, blockToSend.length, isLocal);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
-			}
+			sendFailed(destination, address, e);
+		}
+	}
+
+	private void sentPacket(Peer destination, InetAddress address, int port, int length, boolean isLocal) {
+		tracker.sentPacketTo(destination);
+		collector.addInfo(address, port, 0, getHeadersLength(address) + length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+address+':'+port);
+	}
+
+	private void sendFailed(Peer destination, InetAddress address, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
+		}
+	}
+
+	/** Maximum number of packets queued by startBatch() before they are sent anyway. */
+	public static final int MAX_BATCH_PACKETS = 64;
+
+	/**
+	 * Until flushBatch() is called, packets sent by the calling thread are copied into a
+	 * ring of buffers rather than sent immediately. Packets sent by other threads are not
+	 * affected.
+	 */
+	public void startBatch() {
+		synchronized(sendBatch) {
+			if(batchThread != null && batchThread != Thread.currentThread())
+				flushBatchLocked();
+			batchThread = Thread.currentThread();
 		}
 	}
 
+	/** Send the packets queued since startBatch(), and stop batching. */
+	public void flushBatch() {
+		synchronized(sendBatch) {
+			flushBatchLocked();
+			batchThread = null;
+		}
+	}
+
+	private void flushBatchLocked() {
+		if(sendBatch.size() == 0) return;
+		if(!_active) {
+			// See sendPacket(): nothing may be sent after shutdown.
+			Logger.error(this, "Discarding "+sendBatch.size()+" batched packets: no longer active");
+			sendBatch.clear();
+			return;
+		}
+		int packets = sendBatch.flush(_channel, batchListener);
+		collector.addBatchInfo(packets);
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
@@ -387,4 +471,30 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return startTime;
 	}
 
+	/** @return The number of threads decrypting and dispatching received packets, 0 if
+	 * this is done on the receiving thread. */
+	public int getReceiveWorkerCount() {
+		IncomingPacketDispatcher d = dispatcher;
+		return d == null ? 0 : d.workerCount();
+	}
+
+	/** @return The number of received packets waiting to be decrypted. */
+	public int getReceiveQueueDepth() {
+		IncomingPacketDispatcher d = dispatcher;
+		return d == null ? 0 : d.queueDepth();
+	}
+
+	/** @return The largest number of received packets which have been waiting to be decrypted. */
+	public int getPeakReceiveQueueDepth() {
+		IncomingPacketDispatcher d = dispatcher;
+		return d == null ? 0 : d.peakQueueDepth();
+	}
+
+	/** @return The number of received packets dropped because the decrypting threads
+	 * could not keep up. */
+	public long getDroppedReceivedPackets() {
+		IncomingPacketDispatcher d = dispatcher;
+		return d == null ? 0 : d.droppedPackets();
+	}
+
 }
@@ -0,0 +1,138 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.io.comm.MessageFilterIndex.Key;
+
+/**
+ * The messages which arrived before anything was waiting for them, oldest first, indexed
+ * by type and UID so that a new filter only has to look at the messages it could match.
+ * The source isn't part of the key, so the index doesn't keep disconnected peers alive.
+ *
+ * Not thread-safe: MessageCore holds its lock while using it.
+ */
+class UnclaimedMessages {
+
+	private static final class Entry {
+		final Message message;
+		final long sequence;
+		final Key[] keys;
+
+		Entry(Message message, long sequence, Key[] keys) {
+			this.message = message;
+			this.sequence = sequence;
+			this.keys = keys;
+		}
+	}
+
+	/** All the messages, oldest first. */
+	private final LinkedHashSet<Entry> fifo = new LinkedHashSet<Entry>();
+	private final IdentityHashMap<Message, Entry> entries = new IdentityHashMap<Message, Entry>();
+	private final HashMap<Key, LinkedHashSet<Entry>> buckets = new HashMap<Key, LinkedHashSet<Entry>>();
+	private long sequence;
+
+	int size() {
+		return fifo.size();
+	}
+
+	/** Add a message at the end of the queue. */
+	void add(Message m) {
+		if(entries.containsKey(m)) return;
+		MessageType type = m.getSpec();
+		Key[] keys;
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		if(uid instanceof Long)
+			keys = new Key[] { new Key(type, null, null), new Key(type, null, (Long) uid) };
+		else
+			keys = new Key[] { new Key(type, null, null) };
+		Entry e = new Entry(m, sequence++, keys);
+		fifo.add(e);
+		entries.put(m, e);
+		for(Key key : keys) {
+			LinkedHashSet<Entry> bucket = buckets.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Entry>();
+				buckets.put(key, bucket);
+			}
+			bucket.add(e);
+		}
+	}
+
+	/** @return The oldest message, or null if there are none. */
+	Message oldest() {
+		if(fifo.isEmpty()) return null;
+		return fifo.iterator().next().message;
+	}
+
+	/** Remove a message. */
+	boolean remove(Message m) {
+		Entry e = entries.remove(m);
+		if(e == null) return false;
+		fifo.remove(e);
+		for(Key key : e.keys) {
+			LinkedHashSet<Entry> bucket = buckets.get(key);
+			bucket.remove(e);
+			if(bucket.isEmpty()) buckets.remove(key);
+		}
+		return true;
+	}
+
+	/**
+	 * Find the oldest message which a filter matches, ignoring the filter's timeout since the
+	 * messages have already arrived. Does not remove it.
+	 * @return The message, or null.
+	 */
+	Message find(MessageFilter filter, long now) {
+		Entry best = null;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Iterable<Entry> candidates;
+			MessageType type = f.getType();
+			if(type == null) {
+				// Matches any type. Rare.
+				candidates = fifo;
+			} else {
+				candidates = buckets.get(new Key(type, null, f.getUID()));
+				if(candidates == null) continue;
+			}
+			for(Entry e : candidates) {
+				if(best != null && e.sequence > best.sequence) break;
+				if(filter.match(e.message, true, now) == MATCHED.MATCHED) {
+					best = e;
+					break;
+				}
+			}
+		}
+		return best == null ? null : best.message;
+	}
+
+	/** @return All the messages, oldest first. Must not be used after the index is changed. */
+	Iterator<Message> iterator() {
+		final Iterator<Entry> it = fifo.iterator();
+		return new Iterator<Message>() {
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Message next() {
+				return it.next().message;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+}
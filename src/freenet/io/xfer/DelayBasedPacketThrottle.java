@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A delay-based congestion window, along the lines of LEDBAT (RFC 6817). The round trip
+ * times we already measure for each acknowledged packet give us the queueing delay: the
+ * current delay less the lowest delay seen recently. The window grows while the queueing
+ * delay is below TARGET_DELAY and shrinks in proportion once it is above it, so we fill a
+ * high-latency link without needing to lose packets first, and back off before the queue at
+ * the bottleneck gets long. Losses still shrink the window, but at most once per round trip,
+ * so a burst of losses doesn't collapse it, and only by as much as PacketThrottle does if
+ * there is little queueing, since then the loss is probably not caused by congestion.
+ */
+public class DelayBasedPacketThrottle extends PacketThrottle {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** The queueing delay we aim for, in milliseconds. */
+	static final long TARGET_DELAY = 100;
+	/** How many packets the window grows by per round trip when there is no queueing. */
+	static final double GAIN = 1.0;
+	/** The current delay is the lowest of this many recent samples, to filter out acks that
+	 * were held back to be sent with others. */
+	static final int CURRENT_FILTER = 4;
+	/** The base delay is the lowest over this many intervals, so it follows route changes. */
+	static final int BASE_HISTORY = 10;
+	static final long BASE_INTERVAL = 60*1000;
+	static final double LOSS_DECREASE_MULTIPLE = 0.5;
+
+	private final long[] currentDelays = new long[CURRENT_FILTER];
+	private int currentDelayCount;
+	private int currentDelayIndex;
+	private final long[] baseDelays = new long[BASE_HISTORY];
+	private int baseDelayIndex;
+	private long baseIntervalStart = -1;
+	private long lastDecrease = -1;
+
+	public DelayBasedPacketThrottle(int packetSize) {
+		super(packetSize);
+	}
+
+	/** The current time. Overridden by simulations which run on their own clock. */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void setRoundTripTime(long rtt) {
+		super.setRoundTripTime(rtt);
+		long now = now();
+		currentDelays[currentDelayIndex] = rtt;
+		currentDelayIndex = (currentDelayIndex + 1) % CURRENT_FILTER;
+		if(currentDelayCount < CURRENT_FILTER) currentDelayCount++;
+		if(baseIntervalStart < 0) {
+			baseIntervalStart = now;
+			for(int i=0;i<BASE_HISTORY;i++)
+				baseDelays[i] = Long.MAX_VALUE;
+		} else if(now - baseIntervalStart >= BASE_INTERVAL) {
+			baseIntervalStart = now;
+			baseDelayIndex = (baseDelayIndex + 1) % BASE_HISTORY;
+			baseDelays[baseDelayIndex] = Long.MAX_VALUE;
+		}
+		if(rtt < baseDelays[baseDelayIndex])
+			baseDelays[baseDelayIndex] = rtt;
+	}
+
+	/** @return The current queueing delay estimate, or -1 if we have no samples yet. */
+	public synchronized long getQueueingDelay() {
+		if(currentDelayCount == 0) return -1;
+		long current = Long.MAX_VALUE;
+		for(int i=0;i<currentDelayCount;i++)
+			current = Math.min(current, currentDelays[i]);
+		long base = Long.MAX_VALUE;
+		for(long l : baseDelays)
+			base = Math.min(base, l);
+		return Math.max(0, current - base);
+	}
+
+	@Override
+	public synchronized void notifyOfPacketLost() {
+		_droppedPackets++;
+		_totalPackets++;
+		slowStart = false;
+		long now = now();
+		if(lastDecrease < 0 || now - lastDecrease >= _roundTripTime) {
+			lastDecrease = now;
+			long queueingDelay = getQueueingDelay();
+			if(queueingDelay >= 0 && queueingDelay < TARGET_DELAY / 2)
+				_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
+			else
+				_windowSize *= LOSS_DECREASE_MULTIPLE;
+			if(_windowSize < 1.0F) _windowSize = 1.0F;
+		}
+		if(logMINOR)
+			Logger.minor(this, "notifyOfPacketLost(): "+this);
+	}
+
+	@Override
+	public synchronized void notifyOfPacketAcknowledged(double maxWindowSize) {
+		_totalPackets++;
+		int windowSize = (int)getWindowSize();
+		long queueingDelay = getQueueingDelay();
+		if(queueingDelay < 0) queueingDelay = 0;
+		if(slowStart && queueingDelay > TARGET_DELAY / 2) {
+			if(logMINOR) Logger.minor(this, "Leaving slow start, queueing delay "+queueingDelay);
+			slowStart = false;
+		}
+		if(slowStart) {
+			// Double the window every round trip.
+			_windowSize += 1.0F;
+			if(_windowSize > maxWindowSize) slowStart = false;
+		} else {
+			double offTarget = (TARGET_DELAY - queueingDelay) / (double) TARGET_DELAY;
+			if(offTarget < -1.0) offTarget = -1.0;
+			_windowSize += (GAIN * offTarget / _windowSize);
+		}
+		if(_windowSize > maxWindowSize)
+			_windowSize = (float) maxWindowSize;
+		if(_windowSize < 1.0F) _windowSize = 1.0F;
+		if(_windowSize > (windowSize + 1))
+			notifyAll();
+		if(logMINOR)
+			Logger.minor(this, "notifyOfPacketAcked(): queueing delay "+queueingDelay+" : "+this);
+	}
+
+}
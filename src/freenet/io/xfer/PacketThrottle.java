@@ -22,6 +22,11 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
+/**
+ * The congestion window for a peer: how many packets may be in flight at once. This is the
+ * loss-based AIMD controller, with slow start. Subclasses may use other signals to size the
+ * window, see DelayBasedPacketThrottle.
+ */
 public class PacketThrottle {
 
 	private static volatile boolean logMINOR;
@@ -42,13 +47,13 @@ public class PacketThrottle {
 	protected static final long MIN_DELAY = 1;
 	public static final String VERSION = "$Id: PacketThrottle.java,v 1.3 2005/08/25 17:28:19 amphibian Exp $";
 	public static final long DEFAULT_DELAY = 200;
-	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
+	protected long _roundTripTime = 500, _totalPackets, _droppedPackets;
 	/** The size of the window, in packets.
 	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
 	 * But mostly it is because of the non-slow-start division by _windowSize! */
-	private float _windowSize = 2;
+	protected float _windowSize = 2;
 	private final int PACKET_SIZE;
-	private boolean slowStart = true;
+	protected boolean slowStart = true;
 	
 	public PacketThrottle(int packetSize) {
 		PACKET_SIZE = packetSize;
@@ -38,6 +38,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void wakeUpSender();
 
+	/** Make sure the PacketSender looks at this peer no later than the given time. */
+	void wakeUpSenderAt(long time);
+
 	int getMaxPacketSize();
 
 	PeerMessageQueue getMessageQueue();
@@ -54,6 +57,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void onNotificationOnlyPacketSent(int length);
 
+	/** Report the acks included in a packet we have sent, and how many bytes they took up. */
+	void sentAcks(int acks, int bytes);
+
 	void resentBytes(int bytesToResend);
 
 	Random paddingGen();
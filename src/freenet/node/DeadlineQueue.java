@@ -0,0 +1,146 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A binary min-heap of items, each with the time by which it must next be looked at. An
+ * item is in the queue at most once, with its earliest deadline: scheduling it again for an
+ * earlier time moves it up, scheduling it for a later time does nothing. The PacketSender
+ * uses this to only visit the peers which need attention.
+ *
+ * Items are compared by identity. All methods are synchronized.
+ */
+class DeadlineQueue<T> {
+
+	private Object[] items;
+	private long[] times;
+	private int size;
+	/** Position of each item in the heap. */
+	private final IdentityHashMap<T, Integer> positions = new IdentityHashMap<T, Integer>();
+
+	DeadlineQueue() {
+		items = new Object[16];
+		times = new long[16];
+	}
+
+	/**
+	 * Make sure the item is looked at no later than the given time.
+	 * @return True if this made the earliest deadline in the queue earlier.
+	 */
+	synchronized boolean schedule(T item, long time) {
+		if(time == Long.MAX_VALUE) return false;
+		long oldEarliest = size == 0 ? Long.MAX_VALUE : times[0];
+		Integer pos = positions.get(item);
+		if(pos == null) {
+			if(size == items.length) {
+				Object[] newItems = new Object[size * 2];
+				System.arraycopy(items, 0, newItems, 0, size);
+				items = newItems;
+				long[] newTimes = new long[size * 2];
+				System.arraycopy(times, 0, newTimes, 0, size);
+				times = newTimes;
+			}
+			set(size, item, time);
+			siftUp(size++);
+		} else {
+			int i = pos;
+			if(time >= times[i]) return false;
+			times[i] = time;
+			siftUp(i);
+		}
+		return times[0] < oldEarliest;
+	}
+
+	/** Remove an item, if it is queued. */
+	synchronized void remove(T item) {
+		Integer pos = positions.remove(item);
+		if(pos == null) return;
+		int i = pos;
+		size--;
+		if(i == size) {
+			items[size] = null;
+			return;
+		}
+		@SuppressWarnings("unchecked")
+		T last = (T) items[size];
+		long lastTime = times[size];
+		items[size] = null;
+		set(i, last, lastTime);
+		siftDown(i);
+		siftUp(positions.get(last));
+	}
+
+	/** @return The earliest deadline, or Long.MAX_VALUE if the queue is empty. */
+	synchronized long earliest() {
+		return size == 0 ? Long.MAX_VALUE : times[0];
+	}
+
+	/**
+	 * Remove every item whose deadline is at or before now, earliest first.
+	 * @param out The items removed are added to this list.
+	 * @return The number of items removed.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized int pollExpired(long now, List<T> out) {
+		int count = 0;
+		while(size > 0 && times[0] <= now) {
+			T item = (T) items[0];
+			remove(item);
+			out.add(item);
+			count++;
+		}
+		return count;
+	}
+
+	synchronized void clear() {
+		for(int i=0;i<size;i++)
+			items[i] = null;
+		size = 0;
+		positions.clear();
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private void set(int i, T item, long time) {
+		items[i] = item;
+		times[i] = time;
+		positions.put(item, i);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void swap(int i, int j) {
+		T a = (T) items[i];
+		long ta = times[i];
+		set(i, (T) items[j], times[j]);
+		set(j, a, ta);
+	}
+
+	private void siftUp(int i) {
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(times[parent] <= times[i]) return;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while(true) {
+			int left = 2 * i + 1;
+			if(left >= size) return;
+			int smallest = left;
+			int right = left + 1;
+			if(right < size && times[right] < times[left]) smallest = right;
+			if(times[i] <= times[smallest]) return;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+}
@@ -0,0 +1,267 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.io.comm.Peer;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * Node-wide index from the encrypted sequence number at the start of a packet (after the
+ * HMAC) to the SessionKey and sequence number it was computed for. Every entry in every
+ * SessionKey's watch list (see NewPacketFormatKeyContext.seqNumWatchList) is indexed, so
+ * an incoming packet can usually be matched to its peer and key with one hash lookup and
+ * one HMAC verify, rather than by trying every peer, every key and every watch list entry.
+ *
+ * The encrypted sequence number is only 4 bytes, so there can be collisions; all
+ * candidates are tried and the HMAC decides. Entries for keys which are no longer in use
+ * are removed when the key is replaced, or failing that when the index next fills up.
+ *
+ * Open addressing with linear probing, so the index costs about 12 bytes per slot and
+ * does no allocation on lookup.
+ */
+public class EncryptedSeqNumIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(EncryptedSeqNumIndex.class);
+	}
+
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/** Used to check whether keys are still in use. May be null for tests. */
+	private final PeerManager peers;
+
+	/** The encrypted sequence numbers. */
+	private int[] hashes;
+	/** The key for each slot, null if the slot is empty. */
+	private SessionKey[] keys;
+	/** The plaintext sequence number for each slot. */
+	private int[] seqNums;
+	private int size;
+	/** When size reaches this, look for entries for keys which are no longer in use
+	 * before growing the table. */
+	private int purgeAt;
+	private boolean purging;
+
+	EncryptedSeqNumIndex(PeerManager peers) {
+		this.peers = peers;
+		allocate(INITIAL_CAPACITY);
+		purgeAt = INITIAL_CAPACITY / 2;
+	}
+
+	private void allocate(int capacity) {
+		hashes = new int[capacity];
+		keys = new SessionKey[capacity];
+		seqNums = new int[capacity];
+		size = 0;
+	}
+
+	static int toInt(byte[] buf, int offset) {
+		return Fields.bytesToInt(buf, offset);
+	}
+
+	private static int spread(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/** Index an encrypted sequence number. */
+	synchronized void add(byte[] encrypted, SessionKey key, int seqNum) {
+		int hash = toInt(encrypted, 0);
+		int mask = keys.length - 1;
+		int i = spread(hash) & mask;
+		while(keys[i] != null) {
+			if(hashes[i] == hash && keys[i] == key) {
+				seqNums[i] = seqNum;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		hashes[i] = hash;
+		keys[i] = key;
+		seqNums[i] = seqNum;
+		size++;
+		if(size * 2 > keys.length) resize(keys.length * 2);
+	}
+
+	/** Remove an encrypted sequence number for a specific key. */
+	synchronized void remove(byte[] encrypted, SessionKey key) {
+		int hash = toInt(encrypted, 0);
+		int mask = keys.length - 1;
+		int i = spread(hash) & mask;
+		while(keys[i] != null) {
+			if(hashes[i] == hash && keys[i] == key) {
+				deleteSlot(i);
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/** Remove a slot, moving later entries in the probe sequence back so they can still be
+	 * found. */
+	private void deleteSlot(int i) {
+		int mask = keys.length - 1;
+		keys[i] = null;
+		size--;
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(keys[j] == null) return;
+			int home = spread(hashes[j]) & mask;
+			// Can the entry at j move to i? Only if its home is not cyclically in (i, j].
+			if(i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+			hashes[i] = hashes[j];
+			keys[i] = keys[j];
+			seqNums[i] = seqNums[j];
+			keys[j] = null;
+			i = j;
+		}
+	}
+
+	private void resize(int capacity) {
+		int[] oldHashes = hashes;
+		SessionKey[] oldKeys = keys;
+		int[] oldSeqNums = seqNums;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for(int j=0;j<oldKeys.length;j++) {
+			if(oldKeys[j] == null) continue;
+			int i = spread(oldHashes[j]) & mask;
+			while(keys[i] != null)
+				i = (i + 1) & mask;
+			hashes[i] = oldHashes[j];
+			keys[i] = oldKeys[j];
+			seqNums[i] = oldSeqNums[j];
+			size++;
+		}
+	}
+
+	/** Remove all the entries for a key which is no longer in use. */
+	void removeAll(SessionKey key) {
+		NewPacketFormatKeyContext keyContext = key.packetContext;
+		synchronized(keyContext) {
+			if(keyContext.seqNumWatchList == null) return;
+			for(byte[] encrypted : keyContext.seqNumWatchList)
+				remove(encrypted, key);
+		}
+	}
+
+	/** @return The sequence number indexed for the given encrypted sequence number and key,
+	 * or -1 if there isn't one. */
+	synchronized int get(byte[] encrypted, SessionKey key) {
+		int hash = toInt(encrypted, 0);
+		int mask = keys.length - 1;
+		int i = spread(hash) & mask;
+		while(keys[i] != null) {
+			if(hashes[i] == hash && keys[i] == key)
+				return seqNums[i];
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * If the index has grown a lot, remove entries for keys which are no longer in use by
+	 * their PeerNode, or whose PeerNode has been removed. These should mostly have been
+	 * removed already by removeAll(), but e.g. a dropped unverified key may not be. Must
+	 * be called without holding any locks.
+	 */
+	void maybePurge() {
+		if(peers == null) return;
+		IdentityHashMap<SessionKey, Boolean> inUse = new IdentityHashMap<SessionKey, Boolean>();
+		synchronized(this) {
+			if(size < purgeAt || purging) return;
+			purging = true;
+			for(SessionKey key : keys)
+				if(key != null) inUse.put(key, Boolean.TRUE);
+		}
+		try {
+			List<SessionKey> dead = new ArrayList<SessionKey>();
+			for(SessionKey key : inUse.keySet()) {
+				PeerNode pn = key.pn;
+				if(pn == null) continue;
+				if(peers.havePeer(pn) && (key == pn.getCurrentKeyTracker() ||
+						key == pn.getPreviousKeyTracker() || key == pn.getUnverifiedKeyTracker()))
+					continue;
+				dead.add(key);
+			}
+			for(SessionKey key : dead)
+				inUse.put(key, Boolean.FALSE);
+			synchronized(this) {
+				if(!dead.isEmpty()) {
+					int removed = 0;
+					for(int i=0;i<keys.length;i++) {
+						if(keys[i] != null && inUse.get(keys[i]) == Boolean.FALSE) {
+							keys[i] = null;
+							removed++;
+						}
+					}
+					// Reinsert everything so the probe sequences are intact.
+					resize(keys.length);
+					if(logMINOR) Logger.minor(this, "Purged "+removed+" entries for "+dead.size()+" old keys, "+size+" left");
+				}
+				purgeAt = Math.max(INITIAL_CAPACITY / 2, size * 2);
+			}
+		} finally {
+			synchronized(this) {
+				purging = false;
+			}
+		}
+	}
+
+	/**
+	 * Try to decode a packet using the index.
+	 * @param buf The buffer containing the packet.
+	 * @param offset The offset of the packet in the buffer.
+	 * @param length The length of the packet.
+	 * @param now The time at which the packet was received.
+	 * @param replyTo The address the packet came from.
+	 * @param mangler Only consider peers using this mangler i.e. on the port on which the
+	 * packet was received.
+	 * @return The PeerNode which the packet was decoded for, or null if it wasn't.
+	 */
+	public PeerNode handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo, OutgoingPacketMangler mangler) {
+		if(length < NewPacketFormat.HMAC_LENGTH + 4) return null;
+		int hash = toInt(buf, offset + NewPacketFormat.HMAC_LENGTH);
+		int probed = 0;
+		while(true) {
+			SessionKey key;
+			int seqNum;
+			synchronized(this) {
+				// Find the next candidate, skipping the ones already tried.
+				int mask = keys.length - 1;
+				int i = spread(hash) & mask;
+				int skip = probed;
+				key = null;
+				seqNum = 0;
+				while(keys[i] != null) {
+					if(hashes[i] == hash && skip-- == 0) {
+						key = keys[i];
+						seqNum = seqNums[i];
+						break;
+					}
+					i = (i + 1) & mask;
+				}
+			}
+			if(key == null) return null;
+			probed++;
+			PeerNode pn = key.pn;
+			if(pn == null || pn.getOutgoingMangler() != mangler) continue;
+			if(pn.handleReceivedPacket(buf, offset, length, now, replyTo, key, seqNum))
+				return pn;
+		}
+	}
+
+}
@@ -41,6 +41,16 @@ class NPFPacket {
 	private int length = 5; //Sequence number (4), numAcks(1)
 	private int ackRangeCount = 0;
 	private int ackBlockByteSize = 0;
+	/** The last range of acks, so adding acks in order doesn't need to look at the others. */
+	private int lastRangeStart = -1;
+	private int lastRangeEnd = -1;
+	/** The most acks in a range. The length is one byte. */
+	static final int MAX_ACK_RANGE = 255;
+	/** The most ranges in a packet. The count is one byte. */
+	static final int MAX_ACK_RANGES = 254;
+	/** Ranges which start at least this far from the end of the previous one are given as a
+	 * full sequence number. */
+	static final int FAR_ACK_DISTANCE = 254;
 	private boolean useCumulativeAcks = true;
 
 	public void setAcknowledgeType(boolean useCumulativeAcks) {
@@ -48,13 +58,20 @@ class NPFPacket {
 	}
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(plaintext, 0, plaintext.length, pn);
+	}
+
+	/** Parse a decrypted packet from part of a buffer. The buffer is not referenced after this
+	 * returns, so it can be reused. */
+	public static NPFPacket create(byte[] plaintext, int start, int length, BasePeerNode pn) {
 		NPFPacket packet = new NPFPacket();
 		if (pn == null) throw new IllegalArgumentException("Can't estimate an ack type of received packet");
 		boolean useCumAcks = pn.isUseCumulativeAcksSet();
 		packet.setAcknowledgeType(useCumAcks);
-		int offset = 0;
+		int offset = start;
+		final int end = start + length;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(end < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
@@ -68,48 +85,43 @@ class NPFPacket {
 		//Process received acks
 		if (useCumAcks) {
 			int numAckRanges = plaintext[offset++] & 0xFF;
-			if (numAckRanges > 0) {
-				try {
-					int ack, prevAck = 0;
-					
-					for(int i = 0; i < numAckRanges; i++) {
-						if (i == 0) {
-							ack = ((plaintext[offset] & 0xFF) << 24)
-						               | ((plaintext[offset + 1] & 0xFF) << 16)
-						               | ((plaintext[offset + 2] & 0xFF) << 8)
-						               | (plaintext[offset + 3] & 0xFF);
-							offset += 4;
-						} else {
-							int distanceFromPrevious = (plaintext[offset++] & 0xFF);
-							if (distanceFromPrevious != 0) {
-								ack = prevAck + distanceFromPrevious;
-							} else {
-								// Far offset
-								ack = ((plaintext[offset] & 0xFF) << 24)
-							               | ((plaintext[offset + 1] & 0xFF) << 16)
-							               | ((plaintext[offset + 2] & 0xFF) << 8)
-							               | (plaintext[offset + 3] & 0xFF);
-								offset += 4;
-							}
-						}
-						
-						int rangeSize = (plaintext[offset++] & 0xFF);
-						for (int j = 1; j <= rangeSize; j++) {
-							packet.acks.add(ack++);
-						}
-						
-						prevAck = ack-1;
+			int prevAck = 0;
+			for(int i = 0; i < numAckRanges; i++) {
+				int ack;
+				int distanceFromPrevious = 0;
+				if(i != 0) {
+					if(end < offset + 2) {
+						packet.error = true;
+						return packet;
 					}
-				} catch (ArrayIndexOutOfBoundsException e) {
-					// The packet's length is not big enough
-					packet.error = true;
-					return packet;
+					distanceFromPrevious = (plaintext[offset++] & 0xFF);
 				}
+				if(distanceFromPrevious != 0) {
+					ack = prevAck + distanceFromPrevious;
+				} else {
+					// The first range, or a far offset
+					if(end < offset + 5) {
+						packet.error = true;
+						return packet;
+					}
+					ack = ((plaintext[offset] & 0xFF) << 24)
+					               | ((plaintext[offset + 1] & 0xFF) << 16)
+					               | ((plaintext[offset + 2] & 0xFF) << 8)
+					               | (plaintext[offset + 3] & 0xFF);
+					offset += 4;
+				}
+
+				int rangeSize = (plaintext[offset++] & 0xFF);
+				for (int j = 1; j <= rangeSize; j++) {
+					packet.acks.add(ack++);
+				}
+
+				prevAck = ack-1;
 			}
 		} else {
 			// Old format for compatibility
 			int numAcks = plaintext[offset++] & 0xFF;
-			if(plaintext.length < (offset + numAcks + (numAcks > 0 ? 3 : 0))) {
+			if(end < (offset + numAcks + (numAcks > 0 ? 3 : 0))) {
 				packet.error = true;
 				return packet;
 			}
@@ -134,20 +146,20 @@ class NPFPacket {
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
+		while(offset < end) {
 			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
 			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
 			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
-				offset = tryParseLossyMessages(packet, plaintext, offset);
+				offset = tryParseLossyMessages(packet, plaintext, offset, end);
 				break;
 			}
 
 			int messageID = -1;
 			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+				if(end < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
@@ -158,7 +170,7 @@ class NPFPacket {
 				                | (plaintext[offset + 3] & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(end < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -177,7 +189,7 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(end < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
@@ -214,8 +226,8 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > end) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
@@ -226,33 +238,33 @@ class NPFPacket {
 			                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
 		}
 		
-		packet.length = offset;
+		packet.length = offset - start;
 
 		return packet;
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			byte[] plaintext, int offset, int end) {
 		int origOffset = offset;
 		while(true) {
 			if(plaintext[offset] != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= end) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			int len = plaintext[offset] & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > end - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			byte[] fragment = Arrays.copyOfRange(plaintext, offset, offset + len);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == end) return offset;
 		}
 	}
 
@@ -267,54 +279,20 @@ class NPFPacket {
 		//Add acks
 		if (useCumulativeAcks) {
 			buf[offset++] = (byte) (ackRangeCount);
-			Iterator<Integer> acksIterator = acks.iterator();
-			if(acksIterator.hasNext()) {
-				int startRange = 0, endRange = -1;
-				int nextAck = acksIterator.next();
-				for (int i = 0; acksIterator.hasNext(); i++) {
-				    assert(nextAck - endRange >= 0);
-					if (i == 0 || (nextAck - endRange >= 254)) {
-					    if(i != 0)
-					        buf[offset++] = (byte) 0; // Mark a far offset
-						buf[offset] = (byte) (nextAck >>> 24);
-						buf[offset + 1] = (byte) (nextAck >>> 16);
-						buf[offset + 2] = (byte) (nextAck >>> 8);
-						buf[offset + 3] = (byte) (nextAck);
-						offset += 4;
-					} else {
-						assert(nextAck - endRange < 254);
-						buf[offset++] = (byte) (nextAck - endRange);
-					}
-					
-					endRange = startRange = nextAck;
-					
-					while(acksIterator.hasNext() &&  ((nextAck = acksIterator.next()) - endRange == 1) &&  (endRange - startRange < 254)) {
-						endRange++;
-					}
-					
-					byte rangeSize = (byte) (endRange - startRange + 1);
-					buf[offset++] = rangeSize;
-					
-					// TODO: Add zero-cost dub-acks if any
+			int prevEnd = -1, startRange = -1, endRange = -1;
+			for(int ack : acks) {
+				if(startRange != -1 && ack == endRange + 1 && endRange - startRange < MAX_ACK_RANGE - 1) {
+					endRange = ack;
+					continue;
 				}
-				if (nextAck != endRange) { // Edge-case when the last ack does not fit into previous range
-                    assert(nextAck - endRange >= 0);
-					if (nextAck - endRange >= 254 && endRange != -1) {
-						buf[offset++] = (byte) 0; // Mark a far offset
-					}
-					if (ackRangeCount == 1 || (nextAck - endRange >= 254)) {
-						buf[offset] = (byte) (nextAck >>> 24);
-						buf[offset + 1] = (byte) (nextAck >>> 16);
-						buf[offset + 2] = (byte) (nextAck >>> 8);
-						buf[offset + 3] = (byte) (nextAck);
-						offset += 4;
-						buf[offset++] = (byte) 1;
-					} else {
-						buf[offset++] = (byte) (nextAck - endRange);
-						buf[offset++] = (byte) 1;
-					}
+				if(startRange != -1) {
+					offset = writeAckRange(buf, offset, prevEnd, startRange, endRange);
+					prevEnd = endRange;
 				}
+				startRange = endRange = ack;
 			}
+			if(startRange != -1)
+				offset = writeAckRange(buf, offset, prevEnd, startRange, endRange);
 		} else {
 			// Use old format
 			buf[offset++] = (byte) (acks.size());
@@ -408,50 +386,84 @@ class NPFPacket {
 		return offset;
 	}
 
+	/** Write a range of acks: the offset from the end of the previous range if it is close
+	 * enough, otherwise the full sequence number, then the number of acks in the range. */
+	private static int writeAckRange(byte[] buf, int offset, int prevEnd, int startRange, int endRange) {
+		if(prevEnd != -1 && startRange - prevEnd < FAR_ACK_DISTANCE) {
+			buf[offset++] = (byte) (startRange - prevEnd);
+		} else {
+			if(prevEnd != -1)
+				buf[offset++] = (byte) 0; // Mark a far offset
+			buf[offset] = (byte) (startRange >>> 24);
+			buf[offset + 1] = (byte) (startRange >>> 16);
+			buf[offset + 2] = (byte) (startRange >>> 8);
+			buf[offset + 3] = (byte) (startRange);
+			offset += 4;
+		}
+		buf[offset++] = (byte) (endRange - startRange + 1);
+		return offset;
+	}
+
+	/** @return The size of a range of acks, not counting the acks it follows on from. */
+	private static int ackRangeSize(int prevEnd, int startRange) {
+		if(prevEnd == -1) return 5; // Sequence number and length
+		if(startRange - prevEnd < FAR_ACK_DISTANCE) return 2; // Offset and length
+		return 6; // Far offset marker, sequence number and length
+	}
+
+	/** Recompute the ack ranges after an ack was added out of order. */
+	private void recomputeAckRanges() {
+		int count = 0, blockSize = 0;
+		int prevEnd = -1, startRange = -1, endRange = -1;
+		for(int ack : acks) {
+			if(startRange != -1 && ack == endRange + 1 && endRange - startRange < MAX_ACK_RANGE - 1) {
+				endRange = ack;
+				continue;
+			}
+			if(startRange != -1) prevEnd = endRange;
+			blockSize += ackRangeSize(prevEnd, ack);
+			count++;
+			startRange = endRange = ack;
+		}
+		ackRangeCount = count;
+		ackBlockByteSize = blockSize;
+		lastRangeStart = startRange;
+		lastRangeEnd = endRange;
+	}
+
 	public boolean addAck(int ack, int maxPacketSize) {
 		if(ack < 0) throw new IllegalArgumentException("Got negative ack: " + ack);
 		if(acks.contains(ack)) return true;
 		
 		if (useCumulativeAcks) {
-			acks.add(ack);
-			int nearRangeCount = 0, farRangeCount = 0;
-	
-			Iterator<Integer> acksIterator = acks.iterator();
-			int startRange = 0, endRange = -1;
-			int nextAck = acksIterator.next();
-			while (acksIterator.hasNext()) {
-				if (nextAck - endRange > 254 && endRange != -1) {
-					farRangeCount++;
-				} else {
-					nearRangeCount++;
-				}
-				endRange = startRange = nextAck;
-				while(acksIterator.hasNext() && ((nextAck = acksIterator.next()) - endRange == 1) && (endRange - startRange < 254)) {
-					endRange++;
-				}
-				// TODO: Add zero-cost dub-acks if any
-			}
-			if (nextAck != endRange) {
-				if (nextAck - endRange < 254 || endRange == -1) {
-					nearRangeCount++;
+			int oldRangeCount = ackRangeCount;
+			int oldBlockSize = ackBlockByteSize;
+			int oldRangeStart = lastRangeStart;
+			int oldRangeEnd = lastRangeEnd;
+			if(acks.isEmpty() || ack > lastRangeEnd) {
+				// Acks are normally added in order, so we only need to look at the last range.
+				if(!acks.isEmpty() && ack == lastRangeEnd + 1 && lastRangeEnd - lastRangeStart < MAX_ACK_RANGE - 1) {
+					lastRangeEnd = ack;
 				} else {
-					farRangeCount++;
+					ackBlockByteSize += ackRangeSize(acks.isEmpty() ? -1 : lastRangeEnd, ack);
+					ackRangeCount++;
+					lastRangeStart = lastRangeEnd = ack;
 				}
+				acks.add(ack);
+			} else {
+				acks.add(ack);
+				recomputeAckRanges();
 			}
-			if (nearRangeCount + farRangeCount > 254) {
+			int finalLength = length + ackBlockByteSize - oldBlockSize;
+			if(ackRangeCount > MAX_ACK_RANGES || finalLength > maxPacketSize) {
 				acks.remove(ack);
+				ackRangeCount = oldRangeCount;
+				ackBlockByteSize = oldBlockSize;
+				lastRangeStart = oldRangeStart;
+				lastRangeEnd = oldRangeEnd;
 				return false;
 			}
-			//              (start + offset) + (rangeCount-1)    *(1byte deltaFromPrevios + length) + farRangeCount*(flag + 4byte packetSequenceNumber + length)
-			int blockSize = 5                + (nearRangeCount-1)*2                                 + farRangeCount*6;
-			int finalLength = length + blockSize - ackBlockByteSize;
-			if(finalLength > maxPacketSize) {
-			    acks.remove(ack);
-			    return false;
-			}
 			length = finalLength;
-			ackBlockByteSize = blockSize;
-			ackRangeCount = farRangeCount + nearRangeCount;
 		} else {
 			// Use old format
 			if(acks.size() >= 255) return false;
@@ -581,6 +593,13 @@ class NPFPacket {
 		return acks.size();
 	}
 
+	/** @return The number of bytes used for acks, including the count. */
+	public int getAckBytes() {
+		if(useCumulativeAcks) return 1 + ackBlockByteSize;
+		if(acks.isEmpty()) return 1;
+		return 1 + 4 + (acks.size() - 1);
+	}
+
 	/**
 	 * @return True if there are no MessageFragment's to send.
 	 */
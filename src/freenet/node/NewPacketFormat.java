@@ -12,9 +12,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
-import freenet.crypt.BlockCipher;
-import freenet.crypt.HMAC;
-import freenet.crypt.PCFBMode;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
@@ -30,7 +27,7 @@ import freenet.support.SparseBitmap;
 public class NewPacketFormat implements PacketFormat {
 
 	private final int hmacLength;
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -57,6 +54,8 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	private final BasePeerNode pn;
+	/** Index of our keys' watch lists, or null if we don't have one, e.g. in tests. */
+	private final EncryptedSeqNumIndex seqNumIndex;
 
 	/** The actual buffer of outgoing messages that have not yet been acked.
 	 * LOCKING: Protected by sendBufferLock. */
@@ -101,7 +100,12 @@ public class NewPacketFormat implements PacketFormat {
 	private long timeLastSentPayload;
 
 	public NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID) {
+		this(pn, ourInitialMsgID, theirInitialMsgID, null);
+	}
+
+	public NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID, EncryptedSeqNumIndex seqNumIndex) {
 		this.pn = pn;
+		this.seqNumIndex = seqNumIndex;
 
 		startedByPrio = new ArrayList<HashMap<Integer, MessageWrapper>>(DMT.NUM_PRIORITIES);
 		for(int i = 0; i < DMT.NUM_PRIORITIES; i++) {
@@ -142,6 +146,28 @@ public class NewPacketFormat implements PacketFormat {
 			return false;
 		}
 
+		handleDecipheredPacket(packet, s, length);
+		return true;
+	}
+
+	/**
+	 * Handle a packet which the EncryptedSeqNumIndex says was sent with the given key and
+	 * sequence number.
+	 * @return True if the packet was decrypted and handled.
+	 */
+	boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo, SessionKey s, int sequenceNumber) {
+		if(s != pn.getCurrentKeyTracker() && s != pn.getPreviousKeyTracker() && s != pn.getUnverifiedKeyTracker())
+			return false;
+		NPFPacket packet = decipherFromSeqnum(buf, offset, length, s, sequenceNumber);
+		if(packet == null) return false;
+		if(logMINOR) Logger.minor(this, "Received packet " + packet.getSequenceNumber()+" on "+s+" (indexed)");
+		// Keep the watch list (and the index) moving.
+		updateWatchList(s);
+		handleDecipheredPacket(packet, s, length);
+		return true;
+	}
+
+	private void handleDecipheredPacket(NPFPacket packet, SessionKey s, int length) {
 		pn.receivedPacket(false, true);
 		pn.verified(s);
 		pn.maybeRekey();
@@ -155,8 +181,6 @@ public class NewPacketFormat implements PacketFormat {
 			group.processDecryptedMessage(buffer, 0, buffer.length, 0);
 		}
 		group.complete();
-
-		return true;
 	}
 
 	List<byte[]> handleDecryptedPacket(NPFPacket packet, SessionKey sessionKey) {
@@ -166,6 +190,10 @@ public class NewPacketFormat implements PacketFormat {
 		for(int ack : packet.getAcks()) {
 			keyContext.ack(ack, pn, sessionKey);
 		}
+		if(!packet.getAcks().isEmpty()) {
+			// We may be able to send more now.
+			pn.wakeUpSender();
+		}
 		
 		boolean dontAck = false;
 		boolean wakeUp = false;
@@ -306,6 +334,8 @@ public class NewPacketFormat implements PacketFormat {
 				}
 				if(wakeUp)
 					pn.wakeUpSender();
+				else
+					pn.wakeUpSenderAt(System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
 			}
 		}
 
@@ -313,8 +343,17 @@ public class NewPacketFormat implements PacketFormat {
 		return fullyReceived;
 	}
 
-	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
+	/** Create the watch list for a key if necessary, and move it forward if we have received
+	 * packets past the middle of it, keeping the EncryptedSeqNumIndex up to date. */
+	private void updateWatchList(SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		synchronized(keyContext) {
+			updateWatchList(sessionKey, keyContext);
+		}
+		if(seqNumIndex != null) seqNumIndex.maybePurge();
+	}
+
+	private void updateWatchList(SessionKey sessionKey, NewPacketFormatKeyContext keyContext) {
 		// Create the watchlist if the key has changed
 		if(keyContext.seqNumWatchList == null) {
 			if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
@@ -323,7 +362,9 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = keyContext.watchListOffset;
 			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
+				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum, sessionKey);
+				if(seqNumIndex != null) seqNumIndex.add(keyContext.seqNumWatchList[i], sessionKey, seqNum);
+				seqNum++;
 				if(seqNum < 0) seqNum = 0;
 			}
 		}
@@ -354,13 +395,23 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
 			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
+				int index = i % keyContext.seqNumWatchList.length;
+				if(seqNumIndex != null) seqNumIndex.remove(keyContext.seqNumWatchList[index], sessionKey);
+				// Reuse the array, the entry has been removed from the index.
+				sessionKey.incomingCrypto().encryptSequenceNumber(seqNum, keyContext.seqNumWatchList[index]);
+				if(seqNumIndex != null) seqNumIndex.add(keyContext.seqNumWatchList[index], sessionKey, seqNum);
+				seqNum++;
 				if(seqNum < 0) seqNum = 0;
 			}
 
 			keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % keyContext.seqNumWatchList.length;
 			keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
 		}
+	}
+
+	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
+		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		updateWatchList(sessionKey);
 
 		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
 			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
@@ -382,28 +433,13 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
-	/** Must NOT modify buf contents. */
+	/** Check the HMAC and if it matches, decrypt the packet in place and parse it. If it
+	 * doesn't match, buf is not modified. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
-
-		byte[] payload = Arrays.copyOfRange(buf, offset + hmacLength, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + hmacLength);
-
-		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, payload, hash)) return null;
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+		if(!sessionKey.incomingCrypto().verifyAndDecrypt(buf, offset, length, hmacLength, sequenceNumber))
+			return null;
 
-		NPFPacket p = NPFPacket.create(payload, pn);
+		NPFPacket p = NPFPacket.create(buf, offset + hmacLength, length - hmacLength, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -425,21 +461,7 @@ public class NewPacketFormat implements PacketFormat {
 
 	static byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
 		byte[] seqNumBytes = new byte[4];
-		seqNumBytes[0] = (byte) (seqNum >>> 24);
-		seqNumBytes[1] = (byte) (seqNum >>> 16);
-		seqNumBytes[2] = (byte) (seqNum >>> 8);
-		seqNumBytes[3] = (byte) (seqNum);
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
-
+		sessionKey.incomingCrypto().encryptSequenceNumber(seqNum, seqNumBytes);
 		return seqNumBytes;
 	}
 
@@ -492,24 +514,8 @@ public class NewPacketFormat implements PacketFormat {
 		byte[] data = new byte[paddedLen];
 		packet.toBytes(data, hmacLength, pn.paddingGen());
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - hmacLength];
-		System.arraycopy(data, hmacLength, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, hmacLength);
-
-		System.arraycopy(hash, 0, data, 0, hmacLength);
+		// Encrypt in place and add the hash.
+		sessionKey.outgoingCrypto().encryptAndMac(data, 0, paddedLen, hmacLength);
 
 		try {
 			if(logMINOR) {
@@ -545,6 +551,9 @@ public class NewPacketFormat implements PacketFormat {
 		if(packet.getFragments().size() == 0) {
 			pn.onNotificationOnlyPacketSent(data.length);
 		}
+		if(packet.countAcks() > 0) {
+			pn.sentAcks(packet.countAcks(), packet.getAckBytes());
+		}
 		
 		synchronized(this) {
 			if(timeLastSentPacket < now) timeLastSentPacket = now;
@@ -1015,8 +1024,8 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 		// Check for acks.
 		ret = Math.min(ret, timeCheckForAcks());
 		
-		// Always wake up after half an RTT, check whether stuff is lost or needs ack'ing.
-		ret = Math.min(ret, System.currentTimeMillis() + Math.min(100, (long)averageRTT()/2));
+		// Lost packets are checked for at timeCheckForLostPackets(), and we are woken up when
+		// acks arrive, so there is no need to poll.
 		return ret;
 	}
 	
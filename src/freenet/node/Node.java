@@ -87,6 +87,8 @@ import freenet.io.comm.Peer;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.DelayBasedPacketThrottle;
+import freenet.io.xfer.PacketThrottle;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
@@ -145,6 +147,7 @@ import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.BandwidthClass;
 import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
@@ -158,7 +161,6 @@ import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.SizeUtil;
 import freenet.support.Ticker;
-import freenet.support.TokenBucket;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -168,6 +170,7 @@ import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.MersenneTwister;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
@@ -452,6 +455,31 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	private class CongestionControlCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			return congestionControl;
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			for(String p : getPossibleValues()) {
+				if(p.equals(val)) {
+					// Only affects peers added after this.
+					congestionControl = p;
+					return;
+				}
+			}
+			throw new InvalidConfigValueException(l10n("invalidCongestionControl"));
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return new String[] { CONGESTION_CONTROL_AIMD, CONGESTION_CONTROL_LEDBAT };
+		}
+	}
+
 	private static class L10nCallback extends StringCallback implements EnumerableOptionCallback {
 		@Override
 		public String get() {
@@ -696,7 +724,7 @@ public class Node implements TimeSkewDetectorCallback {
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
-	public final TokenBucket outputThrottle;
+	public final BandwidthClass outputThrottle;
 	public boolean throttleLocalData;
 	private int outputBandwidthLimit;
 	private int inputBandwidthLimit;
@@ -709,6 +737,12 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	/** Number of threads decrypting and dispatching received packets for each socket. */
+	private int packetReceiveThreads;
+	/** The congestion controller for new peers: loss-based AIMD, or delay-based LEDBAT. */
+	private volatile String congestionControl;
+	static final String CONGESTION_CONTROL_AIMD = "aimd";
+	static final String CONGESTION_CONTROL_LEDBAT = "ledbat";
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -794,6 +828,10 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private boolean storePreallocate;
 	
+	private boolean storeSaltHashMemoryMapped;
+	
+	private int storeSaltHashWriteQueueSize;
+	
 	private boolean enableRoutedPing;
 
 	/**
@@ -1563,6 +1601,28 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("packetReceiveThreads", Math.max(0, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), sortOrder++, true, false, "Node.packetReceiveThreads", "Node.packetReceiveThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetReceiveThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0 || val > 64) throw new InvalidConfigValueException(l10n("invalidPacketReceiveThreads"));
+				packetReceiveThreads = val;
+				throw new NodeNeedRestartException("Packet receive threads cannot be changed on the fly");
+			}
+		}, false);
+		packetReceiveThreads = nodeConfig.getInt("packetReceiveThreads");
+		if(packetReceiveThreads < 0 || packetReceiveThreads > 64)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("invalidPacketReceiveThreads"));
+
+		nodeConfig.register("congestionControl", CONGESTION_CONTROL_AIMD, sortOrder++, true, false, "Node.congestionControl", "Node.congestionControlLong", new CongestionControlCallback());
+		congestionControl = nodeConfig.getString("congestionControl");
+		if(!CONGESTION_CONTROL_LEDBAT.equals(congestionControl))
+			congestionControl = CONGESTION_CONTROL_AIMD;
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1615,7 +1675,7 @@ public class Node implements TimeSkewDetectorCallback {
 			public void set(Integer obwLimit) throws InvalidConfigValueException {
 				checkOutputBandwidthLimit(obwLimit);
 				try {
-					outputThrottle.changeNanosAndBucketSize(SECONDS.toNanos(1) / obwLimit, obwLimit/2);
+					outputThrottle.setRate(obwLimit, Math.max(obwLimit/2, 2048));
 					nodeStats.setOutputLimit(obwLimit);
 				} catch (IllegalArgumentException e) {
 					throw new InvalidConfigValueException(e);
@@ -1643,7 +1703,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// FIXME: make compatible with alternate transports.
 		bucketSize = Math.max(bucketSize, 2048);
 		try {
-		outputThrottle = new TokenBucket(bucketSize, SECONDS.toNanos(1) / obwLimit, obwLimit/2);
+		outputThrottle = new BandwidthClass("output", obwLimit, bucketSize, obwLimit/2);
 		} catch (IllegalArgumentException e) {
 			throw new NodeInitException(NodeInitException.EXIT_BAD_BWLIMIT, e.getMessage());
 		}
@@ -2137,6 +2197,70 @@ public class Node implements TimeSkewDetectorCallback {
 		);
 		storePreallocate = nodeConfig.getBoolean("storePreallocate");
 
+		nodeConfig.register("storeSaltHashMemoryMapped", false, sortOrder++, true, false,
+				"Node.storeSaltHashMemoryMapped", "Node.storeSaltHashMemoryMappedLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeSaltHashMemoryMapped;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				storeSaltHashMemoryMapped = val;
+				if (storeType.equals("salt-hash")) {
+					setMemoryMapped(chkDatastore, val);
+					setMemoryMapped(chkDatacache, val);
+					setMemoryMapped(pubKeyDatastore, val);
+					setMemoryMapped(pubKeyDatacache, val);
+					setMemoryMapped(sskDatastore, val);
+					setMemoryMapped(sskDatacache, val);
+				}
+			}
+
+			private void setMemoryMapped(StoreCallback<?> datastore, boolean val) throws InvalidConfigValueException {
+				FreenetStore<?> store = datastore.getStore().getUnderlyingStore();
+				if(store instanceof SaltedHashFreenetStore) {
+					try {
+						((SaltedHashFreenetStore<?>)store).setMemoryMapped(val);
+					} catch (IOException e) {
+						throw new InvalidConfigValueException(e.getMessage());
+					}
+				}
+			}
+		});
+		storeSaltHashMemoryMapped = nodeConfig.getBoolean("storeSaltHashMemoryMapped");
+
+		nodeConfig.register("storeSaltHashWriteQueueSize", 0, sortOrder++, true, false,
+				"Node.storeSaltHashWriteQueueSize", "Node.storeSaltHashWriteQueueSizeLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return storeSaltHashWriteQueueSize;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				storeSaltHashWriteQueueSize = val;
+				if (storeType.equals("salt-hash")) {
+					setWriteQueueSize(chkDatastore, val);
+					setWriteQueueSize(chkDatacache, val);
+					setWriteQueueSize(pubKeyDatastore, val);
+					setWriteQueueSize(pubKeyDatacache, val);
+					setWriteQueueSize(sskDatastore, val);
+					setWriteQueueSize(sskDatacache, val);
+				}
+			}
+
+			private void setWriteQueueSize(StoreCallback<?> datastore, int val) {
+				FreenetStore<?> store = datastore.getStore().getUnderlyingStore();
+				if(store instanceof SaltedHashFreenetStore)
+					((SaltedHashFreenetStore<?>)store).setWriteQueueSize(val);
+			}
+		}, false);
+		storeSaltHashWriteQueueSize = nodeConfig.getInt("storeSaltHashWriteQueueSize");
+		if(storeSaltHashWriteQueueSize < 0)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("mustBePositive"));
+
 		if(File.separatorChar == '/' && System.getProperty("os.name").toLowerCase().indexOf("mac os") < 0) {
 			securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<SecurityLevels.PHYSICAL_THREAT_LEVEL>() {
 
@@ -2321,6 +2445,7 @@ public class Node implements TimeSkewDetectorCallback {
 							chkClientcache.setMaxKeys(maxClientCacheKeys, storeForceBigShrinks);
 							pubKeyClientcache.setMaxKeys(maxClientCacheKeys, storeForceBigShrinks);
 							sskClientcache.setMaxKeys(maxClientCacheKeys, storeForceBigShrinks);
+							setRAMClientCacheMaxBytes();
 						} catch (IOException e) {
 							// FIXME we need to be able to tell the user.
 							Logger.error(this, "Caught "+e+" resizing the clientcache", e);
@@ -3399,12 +3524,30 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	private void initRAMClientCacheFS() {
+		int keys = (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys);
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<CHKBlock>(chkClientcache, keys, maxClientCacheKeys * CHK_BLOCK_SIZE);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, keys, maxClientCacheKeys * DSAPublicKey.PADDED_SIZE);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<SSKBlock>(sskClientcache, keys, maxClientCacheKeys * SSK_BLOCK_SIZE);
+	}
+
+	private static final int CHK_BLOCK_SIZE = CHKBlock.DATA_LENGTH + CHKBlock.TOTAL_HEADERS_LENGTH;
+	private static final int SSK_BLOCK_SIZE = SSKBlock.DATA_LENGTH + SSKBlock.TOTAL_HEADERS_LENGTH;
+
+	/** The RAM client cache is also limited by bytes, so it uses no more than clientCacheSize
+	 * including the overhead for each block. */
+	private void setRAMClientCacheMaxBytes() {
+		setRAMMaxBytes(chkClientcache, maxClientCacheKeys * CHK_BLOCK_SIZE);
+		setRAMMaxBytes(pubKeyClientcache, maxClientCacheKeys * DSAPublicKey.PADDED_SIZE);
+		setRAMMaxBytes(sskClientcache, maxClientCacheKeys * SSK_BLOCK_SIZE);
+	}
+
+	private static void setRAMMaxBytes(StoreCallback<?> cache, long maxBytes) {
+		FreenetStore<?> store = cache.getStore();
+		if(store instanceof RAMFreenetStore)
+			((RAMFreenetStore<?>) store).setMaxBytes(maxBytes);
 	}
 
 	private void initNoClientCacheFS() {
@@ -3631,6 +3774,10 @@ public class Node implements TimeSkewDetectorCallback {
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
 		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		if(storeSaltHashMemoryMapped)
+			fs.setMemoryMapped(true);
+		if(storeSaltHashWriteQueueSize > 0)
+			fs.setWriteQueueSize(storeSaltHashWriteQueueSize);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, fs, ticker);
@@ -4158,6 +4305,147 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch several keys at once, looking in the same stores in the same order as fetch(). Each
+	 * store is asked for all the keys not found so far in one call, so the on-disk stores can
+	 * check them against the slot filter in bulk and read the rest in disk order.
+	 * @return The blocks, in the same order as the keys, with null for keys not found.
+	 */
+	public KeyBlock[] fetch(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		int chkCount = 0;
+		for(Key key : keys) {
+			if(key instanceof NodeCHK) chkCount++;
+			else if(!(key instanceof NodeSSK)) throw new IllegalArgumentException();
+		}
+		NodeCHK[] chks = new NodeCHK[chkCount];
+		NodeSSK[] ssks = new NodeSSK[keys.length - chkCount];
+		int c = 0, s = 0;
+		for(Key key : keys) {
+			if(key instanceof NodeCHK) chks[c++] = (NodeCHK) key;
+			else ssks[s++] = (NodeSSK) key;
+		}
+		CHKBlock[] chkBlocks = fetch(chks, false, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR);
+		SSKBlock[] sskBlocks = fetch(ssks, false, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR);
+		KeyBlock[] blocks = new KeyBlock[keys.length];
+		c = 0;
+		s = 0;
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i] instanceof NodeCHK) blocks[i] = chkBlocks[c++];
+			else blocks[i] = sskBlocks[s++];
+		}
+		return blocks;
+	}
+
+	/** Fetch several CHKs at once. See fetch(Key[], ...).
+	 * @return The blocks, in the same order as the keys, with null for keys not found. */
+	public CHKBlock[] fetch(NodeCHK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		CHKBlock[] blocks = new CHKBlock[keys.length];
+		if(keys.length == 0) return blocks;
+		boolean[] reported = new boolean[keys.length];
+		int found = 0;
+		if(canReadClientCache) {
+			try {
+				found += chkClientcache.fetch(keys, blocks, dontPromote || !canWriteClientCache, false);
+				nodeStats.furthestClientCacheCHKSuccess = reportFound(keys, blocks, reported, nodeStats.avgClientCacheCHKSuccess, nodeStats.furthestClientCacheCHKSuccess);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+		}
+		if(found < keys.length && (forULPR || useSlashdotCache || canReadClientCache)) {
+			try {
+				found += chkSlashdotcache.fetch(keys, blocks, dontPromote, false);
+				nodeStats.furthestSlashdotCacheCHKSuccess = reportFound(keys, blocks, reported, nodeStats.avgSlashdotCacheCHKSucess, nodeStats.furthestSlashdotCacheCHKSuccess);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+		}
+		if(found == keys.length) return blocks;
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<keys.length;i++)
+				if(blocks[i] == null) nodeStats.avgRequestLocation.report(keys[i].toNormalizedDouble());
+			found += chkDatastore.fetch(keys, blocks, dontPromote || !canWriteDatastore, ignoreOldBlocks);
+			CHKStore store = oldCHK;
+			if(store != null && found < keys.length)
+				found += store.fetch(keys, blocks, dontPromote || !canWriteDatastore, ignoreOldBlocks);
+			nodeStats.furthestStoreCHKSuccess = reportFound(keys, blocks, reported, nodeStats.avgStoreCHKSuccess, nodeStats.furthestStoreCHKSuccess);
+			if(found == keys.length) return blocks;
+			found += chkDatacache.fetch(keys, blocks, dontPromote || !canWriteDatastore, ignoreOldBlocks);
+			store = oldCHKCache;
+			if(store != null && found < keys.length)
+				found += store.fetch(keys, blocks, dontPromote || !canWriteDatastore, ignoreOldBlocks);
+			nodeStats.furthestCacheCHKSuccess = reportFound(keys, blocks, reported, nodeStats.avgCacheCHKSuccess, nodeStats.furthestCacheCHKSuccess);
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		return blocks;
+	}
+
+	/** Fetch several SSKs at once. See fetch(Key[], ...).
+	 * @return The blocks, in the same order as the keys, with null for keys not found. */
+	public SSKBlock[] fetch(NodeSSK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		SSKBlock[] blocks = new SSKBlock[keys.length];
+		if(keys.length == 0) return blocks;
+		boolean[] reported = new boolean[keys.length];
+		int found = 0;
+		if(canReadClientCache) {
+			try {
+				found += sskClientcache.fetch(keys, blocks, dontPromote || !canWriteClientCache, canReadClientCache, forULPR, false);
+				nodeStats.furthestClientCacheSSKSuccess = reportFound(keys, blocks, reported, nodeStats.avgClientCacheSSKSuccess, nodeStats.furthestClientCacheSSKSuccess);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+		}
+		if(found < keys.length && (forULPR || useSlashdotCache || canReadClientCache)) {
+			try {
+				found += sskSlashdotcache.fetch(keys, blocks, dontPromote, canReadClientCache, forULPR, false);
+				nodeStats.furthestSlashdotCacheSSKSuccess = reportFound(keys, blocks, reported, nodeStats.avgSlashdotCacheSSKSuccess, nodeStats.furthestSlashdotCacheSSKSuccess);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+		}
+		if(found == keys.length) return blocks;
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<keys.length;i++)
+				if(blocks[i] == null) nodeStats.avgRequestLocation.report(keys[i].toNormalizedDouble());
+			found += sskDatastore.fetch(keys, blocks, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+			SSKStore store = oldSSK;
+			if(store != null && found < keys.length)
+				found += store.fetch(keys, blocks, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+			nodeStats.furthestStoreSSKSuccess = reportFound(keys, blocks, reported, nodeStats.avgStoreSSKSuccess, nodeStats.furthestStoreSSKSuccess);
+			if(found == keys.length) return blocks;
+			found += sskDatacache.fetch(keys, blocks, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+			store = oldSSKCache;
+			if(store != null && found < keys.length)
+				found += store.fetch(keys, blocks, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks);
+			nodeStats.furthestCacheSSKSuccess = reportFound(keys, blocks, reported, nodeStats.avgCacheSSKSuccess, nodeStats.furthestCacheSSKSuccess);
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		return blocks;
+	}
+
+	/** Report the location of each block found since the last call to the average for the store
+	 * it was found in.
+	 * @return The new distance of the furthest success from our location. */
+	private double reportFound(Key[] keys, KeyBlock[] blocks, boolean[] reported, DecayingKeyspaceAverage average, double furthest) {
+		double myLoc = lm.getLocation();
+		for(int i=0;i<keys.length;i++) {
+			if(blocks[i] == null || reported[i]) continue;
+			reported[i] = true;
+			double loc = keys[i].toNormalizedDouble();
+			average.report(loc);
+			double dist = Location.distance(myLoc, loc);
+			if(dist > furthest) furthest = dist;
+		}
+		return furthest;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -5020,6 +5308,20 @@ public class Node implements TimeSkewDetectorCallback {
 		return System.currentTimeMillis() - usm.getStartedTime();
 	}
 
+	/** @return The number of threads to decrypt and dispatch received packets for each
+	 * socket, or 0 to do it on the receiving thread. */
+	public int getPacketReceiveThreads() {
+		return packetReceiveThreads;
+	}
+
+	/** @return A new congestion window for a peer, of the type set by the congestionControl
+	 * option. */
+	PacketThrottle makeThrottle() {
+		if(CONGESTION_CONTROL_LEDBAT.equals(congestionControl))
+			return new DelayBasedPacketThrottle(PACKET_SIZE);
+		return new PacketThrottle(PACKET_SIZE);
+	}
+
 	public synchronized UdpSocketHandler[] getPacketSocketHandlers() {
 		// FIXME better way to get these!
 		if(opennet != null) {
@@ -85,6 +85,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.StringArrCallback;
 import freenet.support.compress.Compressor;
+import freenet.support.compress.ParallelBlockCompressor;
 import freenet.support.compress.RealCompressor;
 import freenet.support.io.FileUtil;
 import freenet.support.io.FilenameGenerator;
@@ -197,6 +198,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, ExecutorIdleCal
 		byte[] pwdBuf = new byte[16];
 		random.nextBytes(pwdBuf);
 		compressor = new RealCompressor(node.executor);
+		ParallelBlockCompressor.setExecutor(node.executor);
 		this.formPassword = Base64.encode(pwdBuf);
 		alerts = new UserAlertManager(this);
 		if(container != null)
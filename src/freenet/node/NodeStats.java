@@ -9,6 +9,7 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
@@ -29,18 +30,20 @@ import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreLocationStats;
 import freenet.store.StoreCallback;
+import freenet.support.BandwidthClass;
 import freenet.support.HTMLNode;
 import freenet.support.Histogram2;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
+import freenet.support.SizeUtil;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
-import freenet.support.TokenBucket;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
+import freenet.support.api.StringCallback;
 import freenet.support.io.NativeThread;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.DecayingKeyspaceAverage;
@@ -221,10 +224,11 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	/** Node I/O stats update interval (milliseconds) */
 	private static final long nodeIOStatsUpdateInterval = 2000;
 
-	/** Token bucket for output bandwidth used by requests */
-	final TokenBucket requestOutputThrottle;
-	/** Token bucket for input bandwidth used by requests */
-	final TokenBucket requestInputThrottle;
+	/** Bandwidth classes for output bandwidth used by requests */
+	final RequestBandwidthClasses requestOutputThrottle;
+	/** Bandwidth classes for input bandwidth used by requests */
+	final RequestBandwidthClasses requestInputThrottle;
+	private String requestBandwidthWeights;
 
 	// various metrics
 	public final RunningAverage routingMissDistanceLocal;
@@ -588,9 +592,43 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		chkSuccessRatesByLocation = new Histogram2(10, 1.0);
 
 		requestOutputThrottle =
-			new TokenBucket(Math.max(obwLimit*60, 32768*20), SECONDS.toNanos(1) / obwLimit, 0);
+			new RequestBandwidthClasses("requestOutput", obwLimit, Math.max(obwLimit*60, 32768*20));
 		requestInputThrottle =
-			new TokenBucket(Math.max(ibwLimit*60, 32768*20), SECONDS.toNanos(1) / ibwLimit, 0);
+			new RequestBandwidthClasses("requestInput", ibwLimit, Math.max(ibwLimit*60, 32768*20));
+
+		statsConfig.register("requestBandwidthWeights", RequestBandwidthClasses.DEFAULT_WEIGHTS, sortOrder++, true, false, "NodeStat.requestBandwidthWeights", "NodeStat.requestBandwidthWeightsLong",
+				new StringCallback() {
+					@Override
+					public String get() {
+						synchronized(NodeStats.this) {
+							return requestBandwidthWeights;
+						}
+					}
+					@Override
+					public void set(String val) throws InvalidConfigValueException {
+						HashMap<String, Integer> weights = RequestBandwidthClasses.parseWeights(val);
+						synchronized(NodeStats.this) {
+							requestBandwidthWeights = val;
+						}
+						requestOutputThrottle.setWeights(weights);
+						requestInputThrottle.setWeights(weights);
+					}
+		});
+		requestBandwidthWeights = statsConfig.getString("requestBandwidthWeights");
+		HashMap<String, Integer> weights;
+		try {
+			weights = RequestBandwidthClasses.parseWeights(requestBandwidthWeights);
+		} catch (InvalidConfigValueException e) {
+			Logger.error(this, "Bad request bandwidth weights, using the defaults: "+e);
+			requestBandwidthWeights = RequestBandwidthClasses.DEFAULT_WEIGHTS;
+			try {
+				weights = RequestBandwidthClasses.parseWeights(requestBandwidthWeights);
+			} catch (InvalidConfigValueException e1) {
+				throw new Error("Impossible: default weights are invalid: " + e1, e1);
+			}
+		}
+		requestOutputThrottle.setWeights(weights);
+		requestInputThrottle.setWeights(weights);
 
 		double nodeLoc=node.lm.getLocation();
 		this.avgCacheCHKLocation   = new DecayingKeyspaceAverage(nodeLoc, 10000, throttleFS == null ? null : throttleFS.subset("AverageCacheCHKLocation"));
@@ -1293,7 +1331,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		int expectedSent = (int)Math.max(expected / nonOverheadFraction, 0);
 		if(logMINOR)
 			Logger.minor(this, "Expected sent bytes: "+expected+" -> "+expectedSent);
-		if(!requestOutputThrottle.instantGrab(expectedSent)) {
+		BandwidthClass outputClass = requestOutputThrottle.get(realTimeFlag, isInsert, isSSK);
+		if(!outputClass.instantGrab(expectedSent)) {
 			rejected("Insufficient output bandwidth", isLocal, isInsert, isSSK, isOfferReply, realTimeFlag);
 			return new RejectReason("Insufficient output bandwidth", false);
 			// FIXME slowDown?
@@ -1302,8 +1341,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		int expectedReceived = (int)Math.max(expected, 0);
 		if(logMINOR)
 			Logger.minor(this, "Expected received bytes: "+expectedReceived);
-		if(!requestInputThrottle.instantGrab(expectedReceived)) {
-			requestOutputThrottle.recycle(expectedSent);
+		if(!requestInputThrottle.get(realTimeFlag, isInsert, isSSK).instantGrab(expectedReceived)) {
+			outputClass.recycle(expectedSent);
 			rejected("Insufficient input bandwidth", isLocal, isInsert, isSSK, isOfferReply, realTimeFlag);
 			return new RejectReason("Insufficient input bandwidth", false);
 			// FIXME slowDown?
@@ -2259,14 +2298,14 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void setOutputLimit(int obwLimit) {
-		requestOutputThrottle.changeNanosAndBucketSize(SECONDS.toNanos(1) / obwLimit, Math.max(obwLimit*60, 32768*20));
+		requestOutputThrottle.setRate(obwLimit, Math.max(obwLimit*60, 32768*20));
 		if(node.inputLimitDefault) {
 			setInputLimit(obwLimit * 4);
 		}
 	}
 
 	public void setInputLimit(int ibwLimit) {
-		requestInputThrottle.changeNanosAndBucketSize(SECONDS.toNanos(1) / ibwLimit, Math.max(ibwLimit*60, 32768*20));
+		requestInputThrottle.setRate(ibwLimit, Math.max(ibwLimit*60, 32768*20));
 	}
 
 	public boolean isTestnetEnabled() {
@@ -3100,6 +3139,29 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		row.addChild("td", TimeUtil.formatTime((long)localSSKFetchTimeAverageRT.currentValue(), 2, true));
 	}
 
+	public void fillRequestBandwidthClassesBox(HTMLNode html) {
+		HTMLNode table = html.addChild("table");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("bandwidthClassHeader"));
+		row.addChild("th", l10n("bandwidthClassRateHeader"));
+		row.addChild("th", l10n("bandwidthClassBytesHeader"));
+		row.addChild("th", l10n("bandwidthClassBorrowedHeader"));
+		fillBandwidthClassRows(table, requestOutputThrottle.root, "");
+		fillBandwidthClassRows(table, requestInputThrottle.root, "");
+	}
+
+	private void fillBandwidthClassRows(HTMLNode table, BandwidthClass c, String prefix) {
+		String name = prefix + c.getName();
+		HTMLNode row = table.addChild("tr");
+		row.addChild("td", name);
+		row.addChild("td", SizeUtil.formatSize(c.getRate())+"/s");
+		row.addChild("td", SizeUtil.formatSize(c.getBytes()));
+		long bytes = c.getBytes();
+		row.addChild("td", bytes <= 0 ? "0%" : fix3p3pct.format(((double) c.getBorrowedBytes()) / bytes));
+		for(BandwidthClass child : c.getChildren())
+			fillBandwidthClassRows(table, child, name + "/");
+	}
+
 	private HourlyStats hourlyStatsRT;
 	private HourlyStats hourlyStatsBulk;
 
@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.security.MessageDigest;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.SHA256;
+
+/**
+ * Reusable state for encrypting, decrypting and authenticating NewPacketFormat packets in one
+ * direction of a SessionKey: the IV buffer, the PCFB register and a private SHA-256 digest for
+ * the HMAC. Everything is done in place on slices of the packet buffer, so there is no heap
+ * allocation per packet.
+ *
+ * Each SessionKey has one for each direction, created on first use. The methods are
+ * synchronized, so in the unlikely event of two threads using the same key at once, one
+ * waits.
+ */
+final class PacketCryptoContext {
+
+	private final SessionKey key;
+	private final BlockCipher ivCipher;
+	private final byte[] iv;
+	private final PCFBMode cipher;
+	private HMAC hmac;
+	private final byte[] seqNumBuffer = new byte[4];
+
+	/**
+	 * @param key The SessionKey.
+	 * @param cipher The payload cipher, either the incoming or the outgoing one.
+	 */
+	PacketCryptoContext(SessionKey key, BlockCipher cipher) {
+		this.key = key;
+		this.ivCipher = key.ivCipher;
+		iv = new byte[ivCipher.getBlockSize() / 8];
+		this.cipher = PCFBMode.create(cipher, iv);
+	}
+
+	/** Compute the IV for a packet from the nonce and its sequence number. */
+	private void setIV(int sequenceNumber) {
+		System.arraycopy(key.ivNonce, 0, iv, 0, iv.length);
+		iv[iv.length - 4] = (byte) (sequenceNumber >>> 24);
+		iv[iv.length - 3] = (byte) (sequenceNumber >>> 16);
+		iv[iv.length - 2] = (byte) (sequenceNumber >>> 8);
+		iv[iv.length - 1] = (byte) (sequenceNumber);
+		ivCipher.encipher(iv, iv);
+		cipher.reset(iv);
+	}
+
+	private HMAC hmac() {
+		if(hmac == null) {
+			// Kept for the lifetime of the key, so not returned to the pool.
+			MessageDigest md = SHA256.getMessageDigest();
+			hmac = new HMAC(md);
+		}
+		return hmac;
+	}
+
+	/**
+	 * Check the HMAC of a received packet and, if it matches, decrypt the payload in place.
+	 * @param buf The buffer containing the packet.
+	 * @param offset The offset of the packet, i.e. of the HMAC.
+	 * @param length The length of the packet, including the HMAC.
+	 * @param hmacLength The length of the HMAC.
+	 * @param sequenceNumber The sequence number we think the packet has.
+	 * @return False if the HMAC is wrong, in which case the buffer is unchanged.
+	 */
+	synchronized boolean verifyAndDecrypt(byte[] buf, int offset, int length, int hmacLength, int sequenceNumber) {
+		if(!hmac().verify(key.hmacKey, buf, offset + hmacLength, length - hmacLength, buf, offset, hmacLength))
+			return false;
+		setIV(sequenceNumber);
+		cipher.blockDecipher(buf, offset + hmacLength, length - hmacLength);
+		return true;
+	}
+
+	/**
+	 * Encrypt a packet in place and write its HMAC.
+	 * @param buf The buffer containing the packet. The plaintext, starting with the
+	 * sequence number, starts after the space for the HMAC.
+	 * @param offset The offset of the packet, i.e. of the HMAC.
+	 * @param length The length of the packet, including the HMAC.
+	 * @param hmacLength The length of the HMAC.
+	 */
+	synchronized void encryptAndMac(byte[] buf, int offset, int length, int hmacLength) {
+		int p = offset + hmacLength;
+		int sequenceNumber = ((buf[p] & 0xFF) << 24) | ((buf[p + 1] & 0xFF) << 16)
+				| ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+		setIV(sequenceNumber);
+		cipher.blockEncipher(buf, p, length - hmacLength);
+		hmac().mac(key.hmacKey, buf, p, length - hmacLength, buf, offset, hmacLength);
+	}
+
+	/**
+	 * Encrypt a sequence number as it will appear at the start of a packet's payload.
+	 * @param out The buffer to write the 4 bytes to.
+	 */
+	synchronized void encryptSequenceNumber(int sequenceNumber, byte[] out) {
+		byte[] seqNumBytes = seqNumBuffer;
+		seqNumBytes[0] = (byte) (sequenceNumber >>> 24);
+		seqNumBytes[1] = (byte) (sequenceNumber >>> 16);
+		seqNumBytes[2] = (byte) (sequenceNumber >>> 8);
+		seqNumBytes[3] = (byte) (sequenceNumber);
+		setIV(sequenceNumber);
+		cipher.blockEncipher(seqNumBytes, 0, 4);
+		System.arraycopy(seqNumBytes, 0, out, 0, 4);
+	}
+
+}
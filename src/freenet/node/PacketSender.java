@@ -10,6 +10,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 
+import freenet.io.comm.UdpSocketHandler;
 import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -59,12 +60,26 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final long MIN_OLD_OPENNET_CONNECT_DELAY = SECONDS.toMillis(60);
+	/** Every peer is visited at least this often, even if it hasn't asked to be. This catches
+	 * the things which are not scheduled, such as timeouts and handshakes for peers which
+	 * have just been added, and drops peers which have been removed from the queue. */
+	static final long FULL_SCAN_INTERVAL = SECONDS.toMillis(1);
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
 	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
+	/** The peers which need to be visited, by the time at which they need it. */
+	private final DeadlineQueue<PeerNode> deadlines = new DeadlineQueue<PeerNode>();
+	private final ArrayList<PeerNode> expiredPeers = new ArrayList<PeerNode>();
+	private long nextFullScan;
+	/** The time we will wake up at if nothing is scheduled sooner. Protected by this. */
+	private long sleepingUntil;
+	/** Statistics. Protected by this. */
+	private long wakeups;
+	private long fullScans;
+	private long peersVisited;
 
 	PacketSender(Node node) {
 		this.node = node;
@@ -120,7 +135,6 @@ public class PacketSender implements Runnable {
 		 * ran out of bandwidth. We start the loop from here next time.
 		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(Throwable t) {
@@ -151,23 +165,42 @@ public class PacketSender implements Runnable {
 		PeerNode[] nodes;
 
         pm = node.peers;
-        nodes = pm.myPeers();
+		boolean fullScan = now >= nextFullScan;
+		if(fullScan) {
+			// Rebuild the queue from scratch. This also drops any peers which have been removed.
+			deadlines.clear();
+			nodes = pm.myPeers();
+			nextFullScan = now + FULL_SCAN_INTERVAL;
+			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
+		} else {
+			// Only visit the peers whose deadline has passed.
+			expiredPeers.clear();
+			deadlines.pollExpired(now, expiredPeers);
+			nodes = expiredPeers.toArray(new PeerNode[expiredPeers.size()]);
+		}
+		synchronized(this) {
+			wakeups++;
+			if(fullScan) fullScans++;
+			peersVisited += nodes.length;
+		}
 
 		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
 		final boolean canSendThrottled;
+		/** If we can't send throttled packets now, when we will be able to. */
+		long canSendThrottledTime = now;
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
-		long count = node.outputThrottle.getCount();
-		if(count > MAX_PACKET_SIZE)
+		long canSendAt = node.outputThrottle.timeUntilAvailable(MAX_PACKET_SIZE);
+		if(canSendAt == 0)
 			canSendThrottled = true;
 		else {
-			long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
 			canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			canSendThrottledTime = now + canSendAt;
+			nextActionTime = Math.min(nextActionTime, canSendThrottledTime);
 			canSendThrottled = false;
 		}
 		
@@ -177,6 +210,8 @@ public class PacketSender implements Runnable {
 		long lowestUrgentSendTime = Long.MAX_VALUE;
 		/** The peer(s) which lowestUrgentSendTime is referring to */
 		ArrayList<PeerNode> urgentSendPeers = null;
+		/** All the peers which have an urgent packet to send, i.e. before now. */
+		ArrayList<PeerNode> overduePeers = null;
 		/** The earliest time at which a peer needs to send a packet, which is after
 		 * now, where there is a full packet's worth of data to send. 
 		 * Throttled if canSendThrottled, otherwise not throttled. */
@@ -194,6 +229,9 @@ public class PacketSender implements Runnable {
 
 		for(PeerNode pn: nodes) {
 			now = System.currentTimeMillis();
+			if(!fullScan && pn.cachedRemoved()) continue;
+			// When we next need to look at this peer.
+			long peerDeadline = Long.MAX_VALUE;
 			
 			// Basic peer maintenance.
 			
@@ -213,6 +251,7 @@ public class PacketSender implements Runnable {
 				boolean shouldThrottle = pn.shouldThrottle();
 				
 				pn.checkForLostPackets();
+				peerDeadline = pn.timeCheckForLostPackets();
 
 				// Is the node dead?
 				// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
@@ -258,6 +297,9 @@ public class PacketSender implements Runnable {
 							}
 							if(sendTime <= lowestUrgentSendTime)
 								urgentSendPeers.add(pn);
+							if(overduePeers == null)
+								overduePeers = new ArrayList<PeerNode>();
+							overduePeers.add(pn);
 						} else if(pn.fullPacketQueued()) {
 							if(sendTime < lowestFullPacketSendTime) {
 								lowestFullPacketSendTime = sendTime;
@@ -284,7 +326,12 @@ public class PacketSender implements Runnable {
 							if(ackTime <= lowestAckTime)
 								ackPeers.add(pn);
 						}
+						peerDeadline = Math.min(peerDeadline, ackTime);
 					}
+					// Look again when we have the bandwidth to send its data.
+					long urgentTime = pn.getNextUrgentTime(now);
+					if(urgentTime != Long.MAX_VALUE)
+						peerDeadline = Math.min(peerDeadline, Math.max(urgentTime, canSendThrottledTime));
 				}
 				
 				if(canSendThrottled || !shouldThrottle) {
@@ -293,6 +340,7 @@ public class PacketSender implements Runnable {
 					if(urgentTime < Long.MAX_VALUE && logMINOR)
 						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
 					nextActionTime = Math.min(nextActionTime, urgentTime);
+					peerDeadline = Math.min(peerDeadline, urgentTime);
 				} else {
 					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
 				}
@@ -313,7 +361,9 @@ public class PacketSender implements Runnable {
 				}
 				if(handshakeTime <= lowestHandshakeTime)
 					handshakePeers.add(pn);
+				peerDeadline = Math.min(peerDeadline, handshakeTime);
 			}
+			deadlines.schedule(pn, peerDeadline);
 			
 			long tempNow = System.currentTimeMillis();
 			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
@@ -348,26 +398,50 @@ public class PacketSender implements Runnable {
 			toSendAckOnly = null;
 		}
 		
-		if(toSendPacket != null) {
-			try {
-				if(toSendPacket.maybeSendPacket(now, false)) {
+		UdpSocketHandler[] sockets = startBatch();
+		try {
+			if(toSendPacket != null) {
+				if(sendPacket(toSendPacket, now, false)) {
 					// Round-robin over the loop to update nextActionTime appropriately
 					nextActionTime = now;
+					// The other peers with a full packet were not scheduled for now, but should
+					// get their turn on the next loop.
+					if(urgentFullPacketPeers != null)
+						for(PeerNode pn : urgentFullPacketPeers)
+							deadlines.schedule(pn, now);
 				}
-			} catch (BlockedTooLongException e) {
-				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
-				toSendPacket.forceDisconnect();
-			}
-		} else if(toSendAckOnly != null) {
-			try {
-				if(toSendAckOnly.maybeSendPacket(now, true)) {
-                    // Round-robin over the loop to update nextActionTime appropriately
-                    nextActionTime = now;
+				if(lowestUrgentSendTime <= now && overduePeers.size() > 1) {
+					// Every other peer with an overdue packet can go in the same batch.
+					int start = localRandom.nextInt(overduePeers.size());
+					int sent = 1;
+					for(int i=0;i<overduePeers.size() && sent < UdpSocketHandler.MAX_BATCH_PACKETS;i++) {
+						PeerNode pn = overduePeers.get((start + i) % overduePeers.size());
+						if(pn == toSendPacket) continue;
+						if(pn.shouldThrottle() && node.outputThrottle.getCount() < MAX_PACKET_SIZE)
+							continue;
+						if(sendPacket(pn, now, false)) {
+							nextActionTime = now;
+							sent++;
+						}
+					}
+				}
+			} else if(toSendAckOnly != null) {
+				if(sendPacket(toSendAckOnly, now, true)) {
+					// Round-robin over the loop to update nextActionTime appropriately
+					nextActionTime = now;
 				}
-			} catch (BlockedTooLongException e) {
-				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
-				toSendAckOnly.forceDisconnect();
 			}
+
+			if(toSendHandshake != null) {
+				// Send handshake if necessary
+				long beforeHandshakeTime = System.currentTimeMillis();
+				toSendHandshake.getOutgoingMangler().sendHandshake(toSendHandshake, false);
+				long afterHandshakeTime = System.currentTimeMillis();
+				if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
+					Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
+			}
+		} finally {
+			flushBatch(sockets);
 		}
 		
 		/* Estimating of nextActionTime logic:
@@ -385,15 +459,6 @@ public class PacketSender implements Runnable {
 		*  -->> timeCheckForLostPackets 
 		*/
 		
-		if(toSendHandshake != null) {
-			// Send handshake if necessary
-			long beforeHandshakeTime = System.currentTimeMillis();
-			toSendHandshake.getOutgoingMangler().sendHandshake(toSendHandshake, false);
-			long afterHandshakeTime = System.currentTimeMillis();
-			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
-				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
-		}
-		
 		// All of these take into account whether the data can be sent already.
 		// So we can include them in nextActionTime.
 		nextActionTime = Math.min(nextActionTime, lowestUrgentSendTime);
@@ -410,7 +475,7 @@ public class PacketSender implements Runnable {
 		 * Well worth it to allow us to reconnect more quickly. */
 
 		OpennetManager om = node.getOpennet();
-		if(om != null && node.getUptime() > SECONDS.toMillis(30)) {
+		if(fullScan && om != null && node.getUptime() > SECONDS.toMillis(30)) {
 			OpennetPeerNode[] peers = om.getOldPeers();
 
 			for(OpennetPeerNode pn : peers) {
@@ -448,12 +513,13 @@ public class PacketSender implements Runnable {
 		if((now - oldNow) > SECONDS.toMillis(10))
 			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
 
+		// Peers we didn't visit this time, and the periodic full scan.
+		nextActionTime = Math.min(nextActionTime, deadlines.earliest());
+		nextActionTime = Math.min(nextActionTime, nextFullScan);
+
 		long sleepTime = nextActionTime - now;
-		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
 
-		if(now - node.startupTime > MINUTES.toMillis(5))
+		if(fullScan && now - node.startupTime > MINUTES.toMillis(5))
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
@@ -465,7 +531,13 @@ public class PacketSender implements Runnable {
 				if(logMINOR)
 					Logger.minor(this, "Sleeping for " + sleepTime);
 				synchronized(this) {
-					wait(sleepTime);
+					// Something may have been scheduled since we looked.
+					sleepTime = Math.min(sleepTime, deadlines.earliest() - now);
+					if(sleepTime > 0) {
+						sleepingUntil = now + sleepTime;
+						wait(sleepTime);
+					}
+					sleepingUntil = 0;
 				}
 			} catch(InterruptedException e) {
 			// Ignore, just wake up. Probably we got interrupt()ed
@@ -477,14 +549,66 @@ public class PacketSender implements Runnable {
 		}
 	}
 
-	/** Wake up, and send any queued packets. */
-	void wakeUp() {
-		// Wake up if needed
+	/**
+	 * Send a packet to a peer if it has anything to send.
+	 * @return True if a packet was sent.
+	 */
+	private boolean sendPacket(PeerNode pn, long now, boolean ackOnly) {
+		try {
+			if(pn.maybeSendPacket(now, ackOnly)) {
+				// It may have more to send.
+				deadlines.schedule(pn, now);
+				return true;
+			}
+			return false;
+		} catch (BlockedTooLongException e) {
+			Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+pn+" : "+("(new packet format)")+" (version "+pn.getVersionNumber()+") - DISCONNECTING!");
+			pn.forceDisconnect();
+			return false;
+		}
+	}
+
+	/** Queue the packets sent by this thread, until flushBatch(), so that the packets for
+	 * one round are sent together. */
+	private UdpSocketHandler[] startBatch() {
+		OpennetManager om = node.getOpennet();
+		UdpSocketHandler[] sockets;
+		if(om == null)
+			sockets = new UdpSocketHandler[] { node.darknetCrypto.socket };
+		else
+			sockets = new UdpSocketHandler[] { node.darknetCrypto.socket, om.crypto.socket };
+		for(UdpSocketHandler socket : sockets)
+			socket.startBatch();
+		return sockets;
+	}
+
+	private void flushBatch(UdpSocketHandler[] sockets) {
+		for(UdpSocketHandler socket : sockets)
+			socket.flushBatch();
+	}
+
+	/** Wake up and visit a peer, e.g. because it has a packet's worth of data queued. */
+	void wakeUp(PeerNode pn) {
+		schedule(pn, System.currentTimeMillis());
+	}
+
+	/** Make sure we visit a peer no later than the given time, e.g. because a message or an
+	 * ack has been queued which must be sent by then. Cheap if it is already scheduled
+	 * sooner. */
+	void schedule(PeerNode pn, long time) {
+		deadlines.schedule(pn, time);
 		synchronized(this) {
-			notifyAll();
+			if(time < sleepingUntil)
+				notifyAll();
 		}
 	}
 
+	/** @return The number of times the send loop has run, how many of those visited every
+	 * peer, and the total number of peers visited. */
+	public synchronized long[] getSchedulerStats() {
+		return new long[] { wakeups, fullScans, peersVisited };
+	}
+
 	protected String l10n(String key, String[] patterns, String[] values) {
 		return NodeL10n.getBase().getString("PacketSender."+key, patterns, values);
 	}
@@ -156,6 +156,10 @@ public class PeerManager {
 	 * */
 	private List<PeerStatusChangeListener> listeners=new CopyOnWriteArrayList<PeerStatusChangeListener>();
 
+	/** Maps the encrypted sequence numbers our peers' keys are watching for to the key, so
+	 * we can find which peer an incoming packet belongs to without trying all of them. */
+	public final EncryptedSeqNumIndex seqNumIndex = new EncryptedSeqNumIndex(this);
+
 	/**
 	 * Create a PeerManager by reading a list of peers from
 	 * a file.
@@ -5,6 +5,9 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
@@ -17,6 +20,13 @@ import freenet.support.MutableBoolean;
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
  * Will soon be round-robin between different transfers/UIDs/clients too.
+ * 
+ * LOCKING: Queueing a message does not take any lock: it is added to a concurrent queue
+ * for its priority, and the total size is kept in atomic counters. The round-robin
+ * structures are only used by the PacketSender side (grabbing messages, requeueing them,
+ * removing them), under the lock on the PeerMessageQueue, which moves the newly queued
+ * messages across first. The next urgent time of each priority is cached, so the
+ * PacketSender polling getNextUrgentTime() usually doesn't need the lock either.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -36,9 +46,18 @@ public class PeerMessageQueue {
 
 	private final PrioQueue[] queuesByPriority;
 	
+	/** Protected by the lock on the PeerMessageQueue. */
 	private boolean mustSendLoadRT;
 	private boolean mustSendLoadBulk;
 	
+	/** Total length of the queued messages, and number of them, including those which have
+	 * not been moved into the round-robin structures yet. */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicInteger queuedItems = new AtomicInteger();
+	
+	/** Value of PrioQueue.cachedUrgentTime when it needs to be recomputed. */
+	private static final long URGENT_TIME_UNKNOWN = Long.MIN_VALUE;
+	
 	private class PrioQueue {
 		
 		// FIXME refactor into PrioQueue and RoundRobinByUIDPrioQueue
@@ -98,6 +117,48 @@ public class PeerMessageQueue {
 		 * the beginning. */
 		LinkedList<MessageItem> itemsNonUrgent;
 		// Construct structures lazily, we're protected by the overall synchronized.
+		
+		/** Messages which have been queued but not yet added to the structures above. 
+		 * Queueing a message only adds it here, so it never waits for the lock. */
+		final ConcurrentLinkedQueue<MessageItem> incoming = new ConcurrentLinkedQueue<MessageItem>();
+		/** getNextUrgentTime() for the structures above, or URGENT_TIME_UNKNOWN. It is
+		 * reset before they are changed, under the lock, so can be read without it. */
+		private volatile long cachedUrgentTime = Long.MAX_VALUE;
+		
+		/** Move the messages from incoming into the round-robin structures.
+		 * LOCKING: Caller must synchronize on PeerMessageQueue.this. */
+		void drainIncoming() {
+			if(incoming.isEmpty()) return;
+			// Must be reset before the messages leave incoming, see urgentTime().
+			cachedUrgentTime = URGENT_TIME_UNKNOWN;
+			MessageItem item;
+			while((item = incoming.poll()) != null) {
+				addLast(item);
+				if(item.sendLoadRT)
+					mustSendLoadRT = true;
+				if(item.sendLoadBulk)
+					mustSendLoadBulk = true;
+			}
+		}
+		
+		/** @return The next urgent time for this priority. Doesn't take the lock unless 
+		 * messages have been queued or sent since it was last called. */
+		long urgentTime() {
+			// Check incoming first: if it has been drained, the cache has already been reset.
+			if(incoming.isEmpty()) {
+				long t = cachedUrgentTime;
+				if(t != URGENT_TIME_UNKNOWN) return t;
+			}
+			synchronized(PeerMessageQueue.this) {
+				drainIncoming();
+				long t = cachedUrgentTime;
+				if(t == URGENT_TIME_UNKNOWN) {
+					t = getNextUrgentTime(Long.MAX_VALUE, Long.MIN_VALUE);
+					cachedUrgentTime = t;
+				}
+				return t;
+			}
+		}
 
 		/** Add a new message. For a normal priority level, we just add it to the end of the list.
 		 * It will be sent after the messages that are already queued, and its deadline is effectively
@@ -281,6 +342,7 @@ public class PeerMessageQueue {
 		/** Add a new message to the beginning i.e. send it as soon as possible (e.g. if
 		 * we tried to send it and failed); it is assumed to already be urgent. */
 		public void addFirst(MessageItem item) {
+			cachedUrgentTime = URGENT_TIME_UNKNOWN;
 			// Keep the old deadline for the item.
 			if(!roundRobinBetweenUIDs) {
 				addToNonUrgent(item);
@@ -413,34 +475,6 @@ public class PeerMessageQueue {
 			return t;
 		}
 
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
-				}
-			}
-			return length;
-		}
-		
 		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return null;
@@ -591,6 +625,7 @@ public class PeerMessageQueue {
 		 * @return
 		 */
 		MessageItem addPriorityMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
+			cachedUrgentTime = URGENT_TIME_UNKNOWN;
 			// Urgent messages first.
 			if(logMINOR) {
 				int nonEmpty = nonEmptyItemsWithID == null ? 0 : nonEmptyItemsWithID.size();
@@ -648,6 +683,7 @@ public class PeerMessageQueue {
 		}
 
 		public void clear() {
+			cachedUrgentTime = URGENT_TIME_UNKNOWN;
 			emptyItemsWithID = null;
 			nonEmptyItemsWithID = null;
 			itemsByID = null;
@@ -656,6 +692,7 @@ public class PeerMessageQueue {
 		}
 
 		public boolean removeMessage(MessageItem item) {
+			cachedUrgentTime = URGENT_TIME_UNKNOWN;
 			if(logMINOR) checkOrder();
 			long id = item.getID();
 			Items list;
@@ -680,6 +717,7 @@ public class PeerMessageQueue {
 		}
 		
 		public void removeUIDs(Long[] list) {
+			cachedUrgentTime = URGENT_TIME_UNKNOWN;
 			if(logMINOR) checkOrder();
 			if(itemsByID == null) return;
 			for(Long l : list) {
@@ -728,53 +766,35 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue. Does not wait for
+	 * the PacketSender.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
-	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
+	public int queueAndEstimateSize(MessageItem item) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
-		}
-		return x;
+		return (int) Math.min(Integer.MAX_VALUE, getMessageQueueLengthBytes());
 	}
 
-	public synchronized long getMessageQueueLengthBytes() {
-		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.nonEmptyItemsWithID != null)
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items)
-						x += it.getLength() + 2;
-		}
-		return x;
+	/** @return The bytes needed to send everything queued, including messages which are
+	 * still in the incoming queues. Does not take the lock. */
+	public long getMessageQueueLengthBytes() {
+		return queuedBytes.get() + 2L * queuedItems.get();
 	}
 
-	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
+	private void enqueuePrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the end, both the common case
 		short prio = addMe.getPriority();
-		queuesByPriority[prio].addLast(addMe);
-		if(addMe.sendLoadRT)
-			mustSendLoadRT = true;
-		if(addMe.sendLoadBulk)
-			mustSendLoadBulk = true;
+		// Count it first, so the counters never go negative when it is grabbed.
+		queuedBytes.addAndGet(addMe.getLength());
+		queuedItems.incrementAndGet();
+		queuesByPriority[prio].incoming.offer(addMe);
+	}
+	
+	/** Update the counters for a message which is no longer queued. */
+	private void dequeued(MessageItem item) {
+		queuedBytes.addAndGet(-item.getLength());
+		queuedItems.decrementAndGet();
 	}
 
 	/**
@@ -786,6 +806,8 @@ public class PeerMessageQueue {
 	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the front
 		short prio = addMe.getPriority();
+		queuedBytes.addAndGet(addMe.getLength());
+		queuedItems.incrementAndGet();
 		queuesByPriority[prio].addFirst(addMe);
 		if(addMe.sendLoadRT)
 			mustSendLoadRT = true;
@@ -795,14 +817,18 @@ public class PeerMessageQueue {
 
 	public synchronized MessageItem[] grabQueuedMessageItems() {
 		int size = 0;
-		for(PrioQueue queue : queuesByPriority)
+		for(PrioQueue queue : queuesByPriority) {
+			queue.drainIncoming();
 			size += queue.size();
+		}
 		MessageItem[] output = new MessageItem[size];
 		int ptr = 0;
 		for(PrioQueue queue : queuesByPriority) {
 			ptr = queue.addTo(output, ptr);
 			queue.clear();
 		}
+		for(MessageItem item : output)
+			dequeued(item);
 		return output;
 	}
 
@@ -817,9 +843,9 @@ public class PeerMessageQueue {
 	 * Set to Long.MAX_VALUE if you want an accurate value.
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
-	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
+	public long getNextUrgentTime(long t, long returnIfBefore) {
 		for(PrioQueue queue: queuesByPriority) {
-			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
+			t = Math.min(t, queue.urgentTime());
 			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
 		}
 		return t;
@@ -844,13 +870,8 @@ public class PeerMessageQueue {
 	 * @return <code>true</code> if <code>minSize</code> + the length of all
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
-	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
-		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
-			if(length > maxSize) return true;
-		}
-		return false;
+	public boolean mustSendSize(int minSize, int maxSize) {
+		return minSize + queuedBytes.get() > maxSize;
 	}
 
 	/** Grab a message to send. WARNING: PeerMessageQueue not only removes the message,
@@ -858,6 +879,14 @@ public class PeerMessageQueue {
 	 * not to call this function if you are not going to be able to send the message: 
 	 * check in advance if possible. */
 	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
+		for(PrioQueue queue : queuesByPriority)
+			queue.drainIncoming();
+		MessageItem item = grabPriorityMessageItem(minPriority);
+		if(item != null) dequeued(item);
+		return item;
+	}
+	
+	private MessageItem grabPriorityMessageItem(int minPriority) {
 		long now = System.currentTimeMillis();
 		
 		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
@@ -922,7 +951,9 @@ public class PeerMessageQueue {
 	public boolean removeMessage(MessageItem message) {
 		synchronized(this) {
 			short prio = message.getPriority();
+			queuesByPriority[prio].drainIncoming();
 			if(!queuesByPriority[prio].removeMessage(message)) return false;
+			dequeued(message);
 		}
 		message.onFailed();
 		return true;
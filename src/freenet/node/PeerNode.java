@@ -460,6 +460,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(mangler == null) throw new NullPointerException();
 		this.outgoingMangler = mangler;
 		this.node = node2;
+		this._lastThrottle = node2.makeThrottle();
 		this.crypto = crypto;
 		assert(crypto.isOpennet == (isOpennet() || isSeed()));
 		this.peers = peers;
@@ -1131,21 +1132,26 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		long now = System.currentTimeMillis();
 		reportBackoffStatus(now);
 		int maxSize = getMaxPacketSize();
-		int x = messageQueue.queueAndEstimateSize(item, maxSize);
+		int x = messageQueue.queueAndEstimateSize(item);
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise it only needs to look at us before the maximum coalescing delay.
+			wakeUpSenderAt(now + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	@Override
+	public void wakeUpSenderAt(long time) {
+		node.ps.schedule(this, time);
 	}
 
 	@Override
@@ -2202,7 +2208,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				Logger.error(this, "previousTracker key equals unverifiedTracker key: prev "+previousTracker+" unv "+unverifiedTracker);
 			timeLastSentPacket = now;
 			if(packetFormat == null) {
-				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID);
+				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID, node.peers.seqNumIndex);
 			}
 			// Completed setup counts as received data packet, for purposes of avoiding spurious disconnections.
 			timeLastReceivedPacket = now;
@@ -2220,8 +2226,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			node.usm.onRestart(this);
 			node.tracker.onRestartOrDisconnect(this);
 		}
-		if(oldPrev != null) oldPrev.disconnected();
-		if(oldCur != null) oldCur.disconnected();
+		if(oldPrev != null) discardKey(oldPrev);
+		if(oldCur != null) discardKey(oldCur);
 		if(oldPacketFormat != null) {
 			List<MessageItem> tellDisconnect = oldPacketFormat.onDisconnect();
 			if(tellDisconnect != null)
@@ -2248,6 +2254,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		
 		crypto.maybeBootConnection(this, replyTo.getFreenetAddress());
 
+		// We may have acks, or messages queued while we were disconnected, to send.
+		wakeUpSender();
+
 		return trackerID;
 	}
 
@@ -2393,10 +2402,16 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		node.peers.addConnectedPeer(this);
 		maybeOnConnect();
 		if(completelyDeprecatedTracker != null) {
-			completelyDeprecatedTracker.disconnected();
+			discardKey(completelyDeprecatedTracker);
 		}
 	}
 
+	/** Called when a key has been replaced and will not be used again. */
+	private void discardKey(SessionKey key) {
+		key.disconnected();
+		node.peers.seqNumIndex.removeAll(key);
+	}
+
 	private synchronized boolean invalidVersion() {
 		return bogusNoderef || forwardInvalidVersion() || reverseInvalidVersion();
 	}
@@ -3781,7 +3796,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return Version.getArbitraryBuildNumber(getVersion(), -1);
 	}
 
-	private final PacketThrottle _lastThrottle = new PacketThrottle(Node.PACKET_SIZE);
+	private final PacketThrottle _lastThrottle;
 
 	@Override
 	public PacketThrottle getThrottle() {
@@ -5448,6 +5463,17 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
 	}
 
+	/** Handle a packet which the EncryptedSeqNumIndex matched to one of our keys.
+	 * @return True if the packet was decrypted and handled. */
+	boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo, SessionKey key, int seqNum) {
+		PacketFormat pf;
+		synchronized(this) {
+			pf = packetFormat;
+		}
+		if(!(pf instanceof NewPacketFormat)) return false;
+		return ((NewPacketFormat)pf).handleReceivedPacket(buf, offset, length, now, replyTo, key, seqNum);
+	}
+
 	public void checkForLostPackets() {
 		PacketFormat pf;
 		synchronized(this) {
@@ -5521,6 +5547,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void onNotificationOnlyPacketSent(int length) {
 		node.nodeStats.reportNotificationOnlyPacketSent(length);
 	}
+
+	@Override
+	public void sentAcks(int acks, int bytes) {
+		node.collector.addAckInfo(acks, bytes);
+	}
 	
 	@Override
 	public void resentBytes(int length) {
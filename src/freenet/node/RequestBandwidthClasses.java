@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.HashMap;
+
+import freenet.config.InvalidConfigValueException;
+import freenet.l10n.NodeL10n;
+import freenet.support.BandwidthClass;
+
+/**
+ * The bandwidth classes used to decide whether we have the bandwidth to accept a request.
+ * Realtime and bulk requests share the node's limit by weight, and within each of those,
+ * CHK and SSK requests and inserts share by weight too. A class which isn't using its share
+ * leaves it for the others.
+ */
+class RequestBandwidthClasses {
+
+	static final String REALTIME = "realtime";
+	static final String BULK = "bulk";
+	static final String CHK_REQUEST = "chkRequest";
+	static final String CHK_INSERT = "chkInsert";
+	static final String SSK_REQUEST = "sskRequest";
+	static final String SSK_INSERT = "sskInsert";
+	static final String[] NAMES = new String[] { REALTIME, BULK, CHK_REQUEST, CHK_INSERT, SSK_REQUEST, SSK_INSERT };
+	static final String DEFAULT_WEIGHTS = "realtime:1,bulk:3,chkRequest:4,chkInsert:2,sskRequest:1,sskInsert:1";
+
+	final BandwidthClass root;
+	private final BandwidthClass realTime;
+	private final BandwidthClass bulk;
+	/** Indexed by realtime, insert, SSK. */
+	private final BandwidthClass[] leaves = new BandwidthClass[8];
+
+	RequestBandwidthClasses(String name, long rate, long burst) {
+		root = new BandwidthClass(name, rate, burst, 0);
+		realTime = root.addChild(REALTIME, 1);
+		bulk = root.addChild(BULK, 1);
+		for(BandwidthClass parent : new BandwidthClass[] { realTime, bulk }) {
+			boolean isRealTime = parent == realTime;
+			leaves[index(isRealTime, false, false)] = parent.addChild(CHK_REQUEST, 1);
+			leaves[index(isRealTime, true, false)] = parent.addChild(CHK_INSERT, 1);
+			leaves[index(isRealTime, false, true)] = parent.addChild(SSK_REQUEST, 1);
+			leaves[index(isRealTime, true, true)] = parent.addChild(SSK_INSERT, 1);
+		}
+	}
+
+	private static int index(boolean realTime, boolean isInsert, boolean isSSK) {
+		return (realTime ? 4 : 0) + (isInsert ? 2 : 0) + (isSSK ? 1 : 0);
+	}
+
+	BandwidthClass get(boolean realTime, boolean isInsert, boolean isSSK) {
+		return leaves[index(realTime, isInsert, isSSK)];
+	}
+
+	void setRate(long rate, long burst) {
+		root.setRate(rate, burst);
+	}
+
+	/** Parse weights in the form name:weight,name:weight...
+	 * @throws InvalidConfigValueException If a name is unknown, a weight isn't a positive
+	 * integer, or a class is missing. */
+	static HashMap<String, Integer> parseWeights(String weights) throws InvalidConfigValueException {
+		HashMap<String, Integer> ret = new HashMap<String, Integer>();
+		for(String s : weights.split(",")) {
+			s = s.trim();
+			if(s.length() == 0) continue;
+			int i = s.indexOf(':');
+			if(i == -1) throw new InvalidConfigValueException(l10n("badWeight", s));
+			String name = s.substring(0, i).trim();
+			int weight;
+			try {
+				weight = Integer.parseInt(s.substring(i+1).trim());
+			} catch (NumberFormatException e) {
+				throw new InvalidConfigValueException(l10n("badWeight", s));
+			}
+			if(weight <= 0 || weight > 1000) throw new InvalidConfigValueException(l10n("badWeight", s));
+			boolean found = false;
+			for(String n : NAMES)
+				if(n.equals(name)) found = true;
+			if(!found) throw new InvalidConfigValueException(l10n("badWeight", s));
+			ret.put(name, weight);
+		}
+		for(String n : NAMES)
+			if(!ret.containsKey(n)) throw new InvalidConfigValueException(l10n("missingWeight", n));
+		return ret;
+	}
+
+	void setWeights(HashMap<String, Integer> weights) {
+		realTime.setWeight(weights.get(REALTIME));
+		bulk.setWeight(weights.get(BULK));
+		for(boolean isRealTime : new boolean[] { false, true }) {
+			get(isRealTime, false, false).setWeight(weights.get(CHK_REQUEST));
+			get(isRealTime, true, false).setWeight(weights.get(CHK_INSERT));
+			get(isRealTime, false, true).setWeight(weights.get(SSK_REQUEST));
+			get(isRealTime, true, true).setWeight(weights.get(SSK_INSERT));
+		}
+	}
+
+	private static String l10n(String key, String name) {
+		return NodeL10n.getBase().getString("RequestBandwidthClasses."+key, "name", name);
+	}
+
+}
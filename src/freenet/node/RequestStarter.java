@@ -14,11 +14,11 @@ import freenet.client.async.HasCooldownCacheItem;
 import freenet.client.async.TransientChosenBlock;
 import freenet.keys.Key;
 import freenet.node.NodeStats.RejectReason;
+import freenet.support.BandwidthClass;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.RandomGrabArrayItem;
 import freenet.support.RandomGrabArrayItemExclusionList;
-import freenet.support.TokenBucket;
 import freenet.support.Logger.LogLevel;
 import freenet.support.math.RunningAverage;
 
@@ -69,8 +69,8 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	}
 	
 	final BaseRequestThrottle throttle;
-	final TokenBucket inputBucket;
-	final TokenBucket outputBucket;
+	final BandwidthClass inputBucket;
+	final BandwidthClass outputBucket;
 	final RunningAverage averageInputBytesPerRequest;
 	final RunningAverage averageOutputBytesPerRequest;
 	RequestScheduler sched;
@@ -82,7 +82,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	static final int MAX_WAITING_FOR_SLOTS = 50;
 	
-	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, TokenBucket outputBucket, TokenBucket inputBucket,
+	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, BandwidthClass outputBucket, BandwidthClass inputBucket,
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
 		this.core = node;
 		this.stats = core.nodeStats;
@@ -145,8 +145,12 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 					if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle);
 					long sleepUntil = cycleTime + delay;
 					if(!LOCAL_REQUESTS_COMPETE_FAIRLY) {
-						inputBucket.blockingGrab((int)(Math.max(0, averageInputBytesPerRequest.currentValue())));
-						outputBucket.blockingGrab((int)(Math.max(0, averageOutputBytesPerRequest.currentValue())));
+						try {
+							inputBucket.blockingGrab((int)(Math.max(0, averageInputBytesPerRequest.currentValue())));
+							outputBucket.blockingGrab((int)(Math.max(0, averageOutputBytesPerRequest.currentValue())));
+						} catch (InterruptedException e) {
+							// Ignore
+						}
 					}
 					long now;
 					do {
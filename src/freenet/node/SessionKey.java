@@ -46,6 +46,23 @@ public class SessionKey {
 		this.trackerID = trackerID;
 	}
 	
+	/** Crypto state for decrypting incoming packets. Created on demand. */
+	private PacketCryptoContext incomingCrypto;
+	/** Crypto state for encrypting outgoing packets. Created on demand. */
+	private PacketCryptoContext outgoingCrypto;
+
+	synchronized PacketCryptoContext incomingCrypto() {
+		if(incomingCrypto == null)
+			incomingCrypto = new PacketCryptoContext(this, incommingCipher);
+		return incomingCrypto;
+	}
+
+	synchronized PacketCryptoContext outgoingCrypto() {
+		if(outgoingCrypto == null)
+			outgoingCrypto = new PacketCryptoContext(this, outgoingCipher);
+		return outgoingCrypto;
+	}
+
 	public void disconnected() {
 		packetContext.disconnected();
 	}
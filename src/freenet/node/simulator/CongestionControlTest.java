@@ -0,0 +1,163 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import freenet.io.xfer.DelayBasedPacketThrottle;
+import freenet.io.xfer.PacketThrottle;
+import freenet.node.Node;
+
+/**
+ * Compares the congestion controllers which can be chosen with node.congestionControl, by
+ * running each of them over a simulated bottleneck link with a drop-tail queue. The sender
+ * does what NewPacketFormat does: it keeps as many packets in flight as the window allows,
+ * reports the round trip time of every acked packet, and decides a packet is lost when it
+ * hasn't been acked within the round trip time plus the maximum ack delay. It is also limited
+ * by the node's output bandwidth limit, which we assume is set to twice what the bottleneck
+ * can carry, e.g. because other traffic shares it. Prints the goodput and the queueing delay
+ * at the bottleneck for each link.
+ *
+ * The simulation runs on its own clock, in milliseconds, so it doesn't take long.
+ */
+public class CongestionControlTest {
+
+	static final long DURATION = 120*1000;
+	/** Acks are held back for up to this long to go with other packets. */
+	static final int ACK_JITTER = 30;
+	/** The output bandwidth limit, relative to the bottleneck. */
+	static final double OUTPUT_LIMIT_FACTOR = 2.0;
+	/** As in NewPacketFormatKeyContext. */
+	static final int MAX_ACK_DELAY = 200;
+
+	static class Link {
+		final String name;
+		/** Bottleneck bandwidth in bytes per second. */
+		final int bandwidth;
+		/** One way delay in milliseconds, not counting the queue. */
+		final int delay;
+		/** How many packets the bottleneck can queue. */
+		final int buffer;
+		/** Probability of losing a packet other than by overflowing the queue. */
+		final double loss;
+
+		Link(String name, int bandwidth, int delay, int buffer, double loss) {
+			this.name = name;
+			this.bandwidth = bandwidth;
+			this.delay = delay;
+			this.buffer = buffer;
+			this.loss = loss;
+		}
+	}
+
+	static final Link[] LINKS = new Link[] {
+		new Link("DSL, 64KiB/s, 40ms RTT", 64*1024, 20, 100, 0.0),
+		new Link("Long fat pipe, 1MiB/s, 400ms RTT", 1024*1024, 200, 400, 0.0),
+		new Link("Lossy, 256KiB/s, 100ms RTT, 1% loss", 256*1024, 50, 100, 0.01),
+		new Link("Shallow buffer, 256KiB/s, 100ms RTT", 256*1024, 50, 20, 0.0),
+	};
+
+	private static final Comparator<long[]> BY_TIME = new Comparator<long[]>() {
+		@Override
+		public int compare(long[] a, long[] b) {
+			return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+		}
+	};
+
+	static class Result {
+		long acked;
+		long lost;
+		long totalQueueDelay;
+		long maxQueueDelay;
+		long dequeued;
+	}
+
+	/** The simulated clock, for the delay-based controller. */
+	private long now;
+
+	PacketThrottle makeThrottle(String type) {
+		if(type.equals("ledbat")) {
+			return new DelayBasedPacketThrottle(Node.PACKET_SIZE) {
+				@Override
+				protected long now() {
+					return now;
+				}
+			};
+		}
+		return new PacketThrottle(Node.PACKET_SIZE);
+	}
+
+	Result run(Link link, String type, long seed) {
+		Random random = new Random(seed);
+		PacketThrottle throttle = makeThrottle(type);
+		Result result = new Result();
+		double packetsPerMs = link.bandwidth / 1000.0 / Node.PACKET_SIZE;
+		// Time each packet joined the bottleneck queue.
+		ArrayDeque<Long> queue = new ArrayDeque<Long>();
+		// { time the ack arrives, time the packet was sent }
+		PriorityQueue<long[]> acks = new PriorityQueue<long[]>(64, BY_TIME);
+		// { time the packet is declared lost }
+		PriorityQueue<long[]> losses = new PriorityQueue<long[]>(64, BY_TIME);
+		int inFlight = 0;
+		int maxSeenInFlight = 0;
+		double credit = 0;
+		double sendCredit = 0;
+		for(now = 0; now < DURATION; now++) {
+			while(!acks.isEmpty() && acks.peek()[0] <= now) {
+				long[] ack = acks.poll();
+				inFlight--;
+				throttle.setRoundTripTime(now - ack[1]);
+				throttle.notifyOfPacketAcknowledged(maxSeenInFlight * 2 + 10);
+				result.acked++;
+			}
+			while(!losses.isEmpty() && losses.peek()[0] <= now) {
+				losses.poll();
+				inFlight--;
+				throttle.notifyOfPacketLost();
+				result.lost++;
+			}
+			sendCredit = Math.min(sendCredit + packetsPerMs * OUTPUT_LIMIT_FACTOR, OUTPUT_LIMIT_FACTOR);
+			while(sendCredit >= 1.0 && inFlight < (int) throttle.getWindowSize()) {
+				sendCredit -= 1.0;
+				inFlight++;
+				if(inFlight > maxSeenInFlight) maxSeenInFlight = inFlight;
+				if(queue.size() >= link.buffer || random.nextDouble() < link.loss)
+					losses.add(new long[] { now + throttle.getRoundTripTime() + (long) (MAX_ACK_DELAY * 1.1) });
+				else
+					queue.add(now);
+			}
+			credit += packetsPerMs;
+			while(credit >= 1.0 && !queue.isEmpty()) {
+				credit -= 1.0;
+				long sent = queue.poll();
+				long queueDelay = now - sent;
+				result.totalQueueDelay += queueDelay;
+				result.maxQueueDelay = Math.max(result.maxQueueDelay, queueDelay);
+				result.dequeued++;
+				acks.add(new long[] { now + 2 * link.delay + random.nextInt(ACK_JITTER + 1), sent });
+			}
+			if(queue.isEmpty() && credit > 1.0) credit = 1.0;
+		}
+		return result;
+	}
+
+	public static void main(String[] args) {
+		CongestionControlTest test = new CongestionControlTest();
+		for(Link link : LINKS) {
+			System.out.println(link.name + ":");
+			for(String type : new String[] { "aimd", "ledbat" }) {
+				Result r = test.run(link, type, 0);
+				double goodput = r.acked * Node.PACKET_SIZE / (DURATION / 1000.0);
+				System.out.println("  " + type + ": goodput " + (int) (goodput / 1024) + "KiB/s (" +
+						(int) (goodput * 100 / link.bandwidth) + "% of the link), queueing delay " +
+						(r.dequeued == 0 ? 0 : r.totalQueueDelay / r.dequeued) + "ms average, " +
+						r.maxQueueDelay + "ms max, " + r.lost + " packets lost");
+			}
+		}
+	}
+
+}
@@ -36,6 +36,75 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** Maximum number of slots which can be waiting to be written, or 0 if writes are
+	 * synchronous. The write queue stats are all 0 if writes are synchronous. */
+	public long writeQueueCapacity() {
+		return 0;
+	}
+
+	/** Number of slots waiting to be written. */
+	public long writeQueueLength() {
+		return 0;
+	}
+
+	/** Number of writes merged with an earlier write to the same slot before reaching the disk. */
+	public long coalescedWrites() {
+		return 0;
+	}
+
+	/** Number of times a write had to wait because the write queue was full. */
+	public long writeQueueStalls() {
+		return 0;
+	}
+
+	/** Total time writes have spent waiting because the write queue was full, in milliseconds. */
+	public long writeQueueStallTime() {
+		return 0;
+	}
+
+	/** Number of queued writes which could not be written to disk and were lost. */
+	public long writeQueueFailures() {
+		return 0;
+	}
+
+	/** Maximum size of the in-memory cache in front of the store, in bytes, or 0 if there is
+	 * none. The cache stats are all 0 if there is no cache. */
+	public long cacheCapacity() {
+		return 0;
+	}
+
+	/** Current size of the in-memory cache, in bytes. */
+	public long cacheSize() {
+		return 0;
+	}
+
+	/** Number of reads answered by the cache. Included in hits(). */
+	public long cacheHits() {
+		return 0;
+	}
+
+	/** Number of reads which were not in the cache, and so went to the store. */
+	public long cacheMisses() {
+		return 0;
+	}
+
+	public double cacheHitRate() throws StatsNotAvailableException {
+		long reads = cacheHits() + cacheMisses();
+		if (reads > 0)
+			return (100.0 * cacheHits() / reads);
+		else
+			throw new StatsNotAvailableException();
+	}
+
+	/** Success rate for the reads which were not answered by the cache. */
+	public double storeHitRate() throws StatsNotAvailableException {
+		long reads = readRequests() - cacheHits();
+		if (reads > 0)
+			return (100.0 * (hits() - cacheHits()) / reads);
+		else
+			throw new StatsNotAvailableException();
+	}
+
 
 
 
@@ -28,6 +28,22 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta);
 	}
 	
+	/**
+	 * Fetch several blocks at once. See FreenetStore.fetchMultiple().
+	 * @param blocks The same length as chks. Keys whose block is already set are skipped, the
+	 * blocks found are filled in.
+	 * @return The number of blocks found.
+	 */
+	public int fetch(NodeCHK[] chks, CHKBlock[] blocks, boolean dontPromote, boolean ignoreOldBlocks) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		byte[][] fullKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++) {
+			routingKeys[i] = chks[i].getRoutingKey();
+			fullKeys[i] = chks[i].getFullKey();
+		}
+		return store.fetchMultiple(routingKeys, fullKeys, dontPromote, false, false, ignoreOldBlocks, blocks);
+	}
+	
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
 			store.put(b, b.getRawData(), b.getRawHeaders(), false, isOldBlock);
@@ -36,6 +52,16 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		}
 	}
 	
+	@Override
+	public byte[] getData(CHKBlock block) {
+		return block.getRawData();
+	}
+	
+	@Override
+	public byte[] getHeaders(CHKBlock block) {
+		return block.getRawHeaders();
+	}
+	
 	@Override
 	public int dataLength() {
 		return CHKBlock.DATA_LENGTH;
@@ -1,7 +1,10 @@
 package freenet.store;
 
 import java.io.IOException;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -17,6 +20,16 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * In-memory cache in front of another store, usually a SaltedHashFreenetStore. Writes are kept
+ * here and written to the underlying store in bulk, after a delay or when the cache is full.
+ * Blocks read from the underlying store are also kept, if there is room. Once written, the
+ * cache's copy of a block is clean and can be evicted.
+ * 
+ * The cache is limited to maxSize bytes. Eviction uses the second chance algorithm, in order of
+ * insertion. A block read from the underlying store is only cached at the expense of another
+ * block if it has been used more often recently, according to a FrequencySketch (TinyLFU). So
+ * a one-off scan of many blocks will not push out the blocks which are used all the time.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
@@ -24,26 +37,38 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
     private static volatile boolean logMINOR;
     
 	private long size;
+	private int dirtyCount;
 	private boolean startJob;
 	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
 	
 	private final long maxSize;
 	private final long period;
-	private final TreeMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	/** Clean and dirty blocks, in the order they were added or last survived eviction. */
+	private final LinkedHashMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	private final FrequencySketch sketch;
 	private final StoreCallback<T> callback;
 	private final FreenetStore<T> backDatastore;
 	private final Ticker ticker;
 	private final boolean collisionPossible;
 	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
 	
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
 	private final static class Block<T> {
+		ByteArrayWrapper key;
 		T block;
 		byte[] data;
 		byte[] header;
 		boolean overwrite;
 		boolean isOldBlock;
+		long size;
+		/** Not yet written to the underlying store. Protected by configLock. */
+		boolean dirty;
+		/** Fetched since the last time we looked at it for eviction. */
+		volatile boolean referenced;
 	}
 
 	public CachingFreenetStore(StoreCallback<T> callback, long maxSize, long period, FreenetStore<T> backDatastore, Ticker ticker) {
@@ -54,7 +79,8 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		this.period = period;
 		this.backDatastore = backDatastore;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = new TreeMap<ByteArrayWrapper, Block<T>>(ByteArrayWrapper.FAST_COMPARATOR);
+		this.blocksByRoutingKey = new LinkedHashMap<ByteArrayWrapper, Block<T>>();
+		this.sketch = new FrequencySketch(maxSize / Math.max(1, callback.dataLength() + callback.headerLength()));
 		this.ticker = ticker;
 		this.size = 0;
 		this.startJob = false;
@@ -87,15 +113,111 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 			configLock.readLock().unlock();
 		}
 		
+		sketch.increment(key);
+		
 		if(block != null) {
 			try {
-				return this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				if(ignoreOldBlocks && block.isOldBlock) {
+					Logger.normal(this, "Ignoring old block");
+					cacheMisses.incrementAndGet();
+					return null;
+				}
+				T ret = this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				cacheHits.incrementAndGet();
+				if(!dontPromote)
+					block.referenced = true;
+				if(meta != null && block.isOldBlock)
+					meta.setOldBlock();
+				return ret;
 			} catch (KeyVerifyException e) {
 				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
+				remove(key, block);
+			}
+		}
+		
+		cacheMisses.incrementAndGet();
+		if(meta == null)
+			meta = new BlockMetadata(); // So we know whether to cache it as an old block.
+		T ret = backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		if(ret != null && !dontPromote)
+			admit(key, ret, meta.isOldBlock());
+		return ret;
+	}
+	
+	/** Blocks in the cache are fetched one at a time, and the rest are passed to the underlying
+	 * store in one batch. A batch is usually a scan (e.g. the DatastoreChecker), so the blocks
+	 * found on disk are not added to the cache. */
+	@Override
+	public int fetchMultiple(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, T[] blocks) throws IOException {
+		int found = 0;
+		int missed = 0;
+		for(int i=0;i<routingKeys.length;i++) {
+			if(blocks[i] != null) continue;
+			ByteArrayWrapper key = new ByteArrayWrapper(routingKeys[i]);
+			boolean cached;
+			configLock.readLock().lock();
+			try {
+				cached = blocksByRoutingKey.containsKey(key);
+			} finally {
+				configLock.readLock().unlock();
+			}
+			if(cached) {
+				blocks[i] = fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null);
+				if(blocks[i] != null) found++;
+			} else {
+				sketch.increment(key);
+				missed++;
 			}
 		}
+		if(missed == 0) return found;
+		cacheMisses.addAndGet(missed);
+		return found + backDatastore.fetchMultiple(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, blocks);
+	}
+	
+	/** Remove a block which could not be decoded, unless it has been replaced already. */
+	private void remove(ByteArrayWrapper key, Block<T> block) {
+		configLock.writeLock().lock();
+		try {
+			// A dirty block will still be written, and the underlying store will reject it.
+			if(!block.dirty && blocksByRoutingKey.get(key) == block)
+				removeBlock(block);
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+	
+	/** Cache a block read from the underlying store, if there is room for it, or if it is used
+	 * more often than the block we would evict to make room. */
+	private void admit(ByteArrayWrapper key, T block, boolean isOldBlock) {
+		byte[] data = callback.getData(block);
+		byte[] header = callback.getHeaders(block);
+		if(data == null || header == null) return;
+		Block<T> storeBlock = new Block<T>();
+		storeBlock.key = key;
+		storeBlock.block = block;
+		storeBlock.data = data;
+		storeBlock.header = header;
+		storeBlock.isOldBlock = isOldBlock;
+		storeBlock.size = sizeOf(block, data, header);
+		if(storeBlock.size >= maxSize) return;
 		
-		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);	
+		configLock.writeLock().lock();
+		try {
+			if(shuttingDown || blocksByRoutingKey.containsKey(key)) return;
+			if(size + storeBlock.size > maxSize) {
+				int frequency = sketch.frequency(key);
+				while(size + storeBlock.size > maxSize) {
+					Block<T> victim = findVictim();
+					if(victim == null) return; // All dirty.
+					if(sketch.frequency(victim.key) >= frequency) return;
+					removeBlock(victim);
+				}
+			}
+			addBlock(storeBlock);
+		} finally {
+			configLock.writeLock().unlock();
+		}
 	}
 
 	@Override
@@ -110,7 +232,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 
 	@Override
 	public long hits() {
-		return backDatastore.hits();
+		return cacheHits.get() + backDatastore.hits();
 	}
 
 	@Override
@@ -145,14 +267,19 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		byte[] routingKey = block.getRoutingKey();
 		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		
+		sketch.increment(key);
+		
 		Block<T> storeBlock = new Block<T>();
+		storeBlock.key = key;
 		storeBlock.block = block;
 		storeBlock.data = data;
 		storeBlock.header = header;
 		storeBlock.overwrite = overwrite;
 		storeBlock.isOldBlock = isOldBlock;
+		storeBlock.dirty = true;
 		
-		long sizeBlock = data.length+header.length+block.getFullKey().length+routingKey.length;	
+		long sizeBlock = sizeOf(block, data, header);
+		storeBlock.size = sizeBlock;
 		boolean cacheIt = true;
 		
 		//Case cache it
@@ -163,11 +290,9 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 				Block<T> previousBlock = blocksByRoutingKey.get(key);
 			
 				if(!collisionPossible || overwrite) {
-					blocksByRoutingKey.put(key, storeBlock);
-					
-					if(previousBlock == null) {
-						size += sizeBlock;
-					}
+					if(previousBlock != null)
+						removeBlock(previousBlock);
+					addBlock(storeBlock);
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
 					if(previousBlock != null) {
@@ -180,17 +305,15 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 					if(backDatastore.probablyInStore(routingKey)) {
 						cacheIt = false;
 					} else {
-						blocksByRoutingKey.put(key, storeBlock);
-						size += sizeBlock;
+						addBlock(storeBlock);
 					}
 				}
 				
-				//Check max size
-				if(size > maxSize) {
-					pushAll();
-				} else {
+				if(cacheIt) {
+					//Check max size
+					makeRoom();
 					//Check period
-					if(!blocksByRoutingKey.isEmpty() && !startJob) {
+					if(dirtyCount > 0 && !startJob) {
 						startJob = true;
 						this.ticker.queueTimedJob(new Runnable() {
 							@Override
@@ -220,21 +343,93 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		}
 	}
 	
+	private static <T extends StorableBlock> long sizeOf(T block, byte[] data, byte[] header) {
+		byte[] fullKey = block.getFullKey();
+		return data.length+header.length+(fullKey == null ? 0 : fullKey.length)+block.getRoutingKey().length;
+	}
+	
+	/** Caller must hold the write lock. */
+	private void addBlock(Block<T> block) {
+		blocksByRoutingKey.put(block.key, block);
+		size += block.size;
+		if(block.dirty) dirtyCount++;
+	}
+	
+	/** Caller must hold the write lock. */
+	private void removeBlock(Block<T> block) {
+		blocksByRoutingKey.remove(block.key);
+		size -= block.size;
+		if(block.dirty) dirtyCount--;
+	}
+	
+	/** Find the next clean block to evict. Blocks which have been fetched since we last looked are
+	 * moved to the end instead. Caller must hold the write lock.
+	 * @return Null if there are no clean blocks. */
+	private Block<T> findVictim() {
+		// After one pass every flag is clear.
+		for(int pass=0;pass<2;pass++) {
+			ArrayList<Block<T>> secondChance = null;
+			Block<T> victim = null;
+			for(Iterator<Block<T>> it = blocksByRoutingKey.values().iterator();it.hasNext();) {
+				Block<T> block = it.next();
+				if(block.dirty) continue;
+				if(block.referenced) {
+					block.referenced = false;
+					it.remove();
+					if(secondChance == null) secondChance = new ArrayList<Block<T>>();
+					secondChance.add(block);
+					continue;
+				}
+				victim = block;
+				break;
+			}
+			if(secondChance != null) {
+				for(Block<T> block : secondChance)
+					blocksByRoutingKey.put(block.key, block);
+			}
+			if(victim != null || secondChance == null) return victim;
+		}
+		return null;
+	}
+	
+	/** Evict clean blocks until we are within maxSize, writing the dirty blocks if necessary.
+	 * Caller must hold the write lock. */
+	private void makeRoom() {
+		while(size > maxSize) {
+			Block<T> victim = findVictim();
+			if(victim == null) {
+				if(dirtyCount == 0) return;
+				pushAll();
+			} else {
+				removeBlock(victim);
+			}
+		}
+	}
+	
+	/** Write all the dirty blocks to the underlying store. They stay in the cache, but can now be
+	 * evicted. */
 	private void pushAll() {
 		configLock.writeLock().lock();
 		try
 		{
-			for(Block<T> block : blocksByRoutingKey.values()) {
-					try {
-						backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
-					} catch (IOException e) {
-						Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
-					} catch (KeyCollisionException e) {
-						if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
-					}
+			for(Iterator<Block<T>> it = blocksByRoutingKey.values().iterator();it.hasNext();) {
+				Block<T> block = it.next();
+				if(!block.dirty) continue;
+				block.dirty = false;
+				try {
+					backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
+				} catch (IOException e) {
+					Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+					it.remove();
+					size -= block.size;
+				} catch (KeyCollisionException e) {
+					if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+					// The underlying store has a different block, so ours is wrong.
+					it.remove();
+					size -= block.size;
 				}
-			blocksByRoutingKey.clear();
-			size = 0;
+			}
+			dirtyCount = 0;
 		} finally {
 			configLock.writeLock().unlock();
 		}
@@ -251,9 +446,92 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		return backDatastore.writes();
 	}
 
+	/** Current size of the cached blocks, in bytes. */
+	public long cacheSize() {
+		configLock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
 	@Override
 	public StoreAccessStats getSessionAccessStats() {
-		return backDatastore.getSessionAccessStats();
+		final StoreAccessStats backStats = backDatastore.getSessionAccessStats();
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return cacheHits.get() + backStats.hits();
+			}
+
+			@Override
+			public long misses() {
+				return backStats.misses();
+			}
+
+			@Override
+			public long falsePos() {
+				return backStats.falsePos();
+			}
+
+			@Override
+			public long writes() {
+				return backStats.writes();
+			}
+
+			@Override
+			public long cacheHits() {
+				return cacheHits.get();
+			}
+
+			@Override
+			public long cacheMisses() {
+				return cacheMisses.get();
+			}
+
+			@Override
+			public long cacheCapacity() {
+				return maxSize;
+			}
+
+			@Override
+			public long cacheSize() {
+				return CachingFreenetStore.this.cacheSize();
+			}
+
+			@Override
+			public long writeQueueCapacity() {
+				return backStats.writeQueueCapacity();
+			}
+
+			@Override
+			public long writeQueueLength() {
+				return backStats.writeQueueLength();
+			}
+
+			@Override
+			public long coalescedWrites() {
+				return backStats.coalescedWrites();
+			}
+
+			@Override
+			public long writeQueueStalls() {
+				return backStats.writeQueueStalls();
+			}
+
+			@Override
+			public long writeQueueStallTime() {
+				return backStats.writeQueueStallTime();
+			}
+
+			@Override
+			public long writeQueueFailures() {
+				return backStats.writeQueueFailures();
+			}
+
+		};
 	}
 
 	@Override
@@ -29,6 +29,20 @@ public interface FreenetStore<T extends StorableBlock> {
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
 	
+	/**
+	 * Retrieve several blocks at once. The result is the same as calling fetch() for each key,
+	 * but the store may check all the keys against its filters first, and then read the rest in
+	 * the order they are stored on disk.
+	 * @param routingKeys The routing keys to look up.
+	 * @param fullKeys The full keys, in the same order, or null if the store doesn't need them.
+	 * @param blocks The same length as routingKeys. Keys whose block is already set are
+	 * skipped, so the same array can be passed to several stores in turn. The blocks found are
+	 * filled in, and the rest are left null.
+	 * @return The number of blocks found.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	int fetchMultiple(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, T[] blocks) throws IOException;
+	
 	/**
 	 * Store a block.
 	 * 
@@ -0,0 +1,97 @@
+package freenet.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.support.ByteArrayWrapper;
+
+/**
+ * Approximate count of how often each key has been used recently, for cache admission (TinyLFU).
+ * A count-min sketch of 4-bit counters: each key increments four counters, and its frequency is
+ * the smallest of them. After a sample of about 10 times the number of keys we expect to cache,
+ * all the counters are halved, so keys which were popular a long time ago are forgotten.
+ *
+ * Lock-free, and small: 2 bytes per expected key.
+ */
+class FrequencySketch {
+
+	static final int MAX_FREQUENCY = 15;
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int[] SEEDS = { 0x97cb3127, 0xb7ec6f3b, 0x5b1a2e4d, 0xe2c6a5f9 };
+
+	/** 16 counters per long. */
+	private final AtomicLongArray table;
+	private final int counterMask;
+	private final int sampleSize;
+	private final AtomicInteger additions = new AtomicInteger();
+
+	/** @param expectedKeys The number of keys we expect to cache. */
+	FrequencySketch(long expectedKeys) {
+		int counters = 64;
+		while(counters < expectedKeys * 4 && counters < (1 << 26))
+			counters <<= 1;
+		table = new AtomicLongArray(counters / 16);
+		counterMask = counters - 1;
+		sampleSize = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(expectedKeys, 16) * 10);
+	}
+
+	/** Record a use of the key. */
+	void increment(ByteArrayWrapper key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for(int seed : SEEDS)
+			added |= incrementAt(indexOf(hash, seed));
+		if(added && additions.incrementAndGet() >= sampleSize)
+			reset();
+	}
+
+	/** @return An estimate of how many times the key has been used recently, at most
+	 * MAX_FREQUENCY. */
+	int frequency(ByteArrayWrapper key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_FREQUENCY;
+		for(int seed : SEEDS)
+			frequency = Math.min(frequency, counterAt(indexOf(hash, seed)));
+		return frequency;
+	}
+
+	private boolean incrementAt(int index) {
+		int word = index >>> 4;
+		int shift = (index & 15) << 2;
+		while(true) {
+			long value = table.get(word);
+			if(((value >>> shift) & 0xF) == MAX_FREQUENCY) return false;
+			if(table.compareAndSet(word, value, value + (1L << shift))) return true;
+		}
+	}
+
+	private int counterAt(int index) {
+		return (int) ((table.get(index >>> 4) >>> ((index & 15) << 2)) & 0xF);
+	}
+
+	/** Halve all the counters. Racing increments may be lost, which doesn't matter. */
+	private void reset() {
+		int old = additions.get();
+		if(old < sampleSize || !additions.compareAndSet(old, old / 2)) return;
+		for(int i=0;i<table.length();i++) {
+			long value = table.get(i);
+			table.set(i, (value >>> 1) & RESET_MASK);
+		}
+	}
+
+	private int indexOf(int hash, int seed) {
+		int h = (hash ^ seed) * 0x9e3779b9;
+		h ^= h >>> 15;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h & counterMask;
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
@@ -20,6 +20,12 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public int fetchMultiple(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, T[] blocks) {
+		return 0;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
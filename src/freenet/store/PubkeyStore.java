@@ -40,6 +40,16 @@ public class PubkeyStore extends StoreCallback<DSAPublicKey> {
 		}
 	}
 	
+	@Override
+	public byte[] getData(DSAPublicKey block) {
+		return block.asPaddedBytes();
+	}
+	
+	@Override
+	public byte[] getHeaders(DSAPublicKey block) {
+		return empty;
+	}
+	
 	@Override
 	public int dataLength() {
 		return DSAPublicKey.PADDED_SIZE;
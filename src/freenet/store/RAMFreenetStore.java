@@ -1,55 +1,126 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 
 /**
- * LRU in memory store.
- * 
- * For debugging / simulation only
+ * In memory store, with approximately LRU eviction.
+ *
+ * Used for the client cache, and for debugging / simulation.
+ *
+ * Lookups go straight to a ConcurrentHashMap, and a hit only sets a flag on the block, so fetch()
+ * does not lock anything. Eviction uses the CLOCK algorithm: the blocks are split into shards, by
+ * routing key, each with its own lock and its own clock hand. The hand sweeps past blocks which
+ * have been used since it last passed, clearing the flag, and evicts the first block which has
+ * not. We take a block from each shard in turn, so the store as a whole is limited to maxKeys
+ * blocks and maxBytes bytes.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Rough size of the objects and map entry for a block, on top of the arrays. */
+	static final int BLOCK_OVERHEAD = 128;
+	/** Maximum number of shards. Enough that many request threads don't contend. */
+	static final int MAX_SHARDS = 64;
+	/** Don't have shards smaller than this, or eviction isn't very LRU. */
+	static final int MIN_KEYS_PER_SHARD = 64;
+
+	/** The contents never change, so a concurrent fetch() sees either the old or the new block,
+	 * never a mixture. */
 	private final static class Block {
-		byte[] header;
-		byte[] data;
-		byte[] fullKey;
-		boolean oldBlock;
-	}
-	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
-	
+		final ByteArrayWrapper key;
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		final int size;
+		volatile boolean oldBlock;
+		/** Used since the clock hand last passed. */
+		volatile boolean referenced;
+		/** Position in the shard's clock. Protected by the shard. */
+		int index;
+
+		Block(ByteArrayWrapper key, byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.key = key;
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+			size = BLOCK_OVERHEAD + key.get().length + (header == null ? 0 : header.length) +
+				(data == null ? 0 : data.length) + (fullKey == null ? 0 : fullKey.length);
+		}
+	}
+
+	/** A group of blocks with one lock and one clock. Changes to the map for any key in the
+	 * shard are only made while holding it. */
+	private final static class Shard {
+		final ArrayList<Block> clock = new ArrayList<Block>();
+		int hand;
+	}
+
+	private final ConcurrentHashMap<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final Shard[] shards;
+	private final int shardMask;
+	/** Next shard to evict from. */
+	private final AtomicInteger evictShard = new AtomicInteger();
+
 	private final StoreCallback<T> callback;
-	
-	private int maxKeys;
-	
-	private long hits;
-	private long misses;
-	private long writes;
-	
+
+	private volatile int maxKeys;
+	private volatile long maxBytes;
+	private final AtomicInteger keyCount = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this(callback, maxKeys, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxKeys The maximum number of blocks to keep.
+	 * @param maxBytes The maximum total size of the blocks, including an estimate of the
+	 * overhead for each block.
+	 */
+	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys, long maxBytes) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
 		this.maxKeys = maxKeys;
+		this.maxBytes = maxBytes;
+		int shardCount = 1;
+		while(shardCount < MAX_SHARDS && shardCount * 2 * MIN_KEYS_PER_SHARD <= maxKeys)
+			shardCount *= 2;
+		shards = new Shard[shardCount];
+		for(int i=0;i<shardCount;i++)
+			shards[i] = new Shard();
+		shardMask = shardCount - 1;
+		this.blocksByRoutingKey = new ConcurrentHashMap<ByteArrayWrapper, Block>(16, 0.75f, shardCount);
 		callback.setStore(this);
 	}
-	
+
+	private Shard shardFor(ByteArrayWrapper key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return shards[h & shardMask];
+	}
+
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		Block block = blocksByRoutingKey.get(key);
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
 			return null;
 		}
 		if(ignoreOldBlocks && block.oldBlock) {
@@ -59,106 +130,191 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		try {
 			T ret =
 				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
+			hits.incrementAndGet();
 			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
+				block.referenced = true;
 			if(meta != null && block.oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			Shard shard = shardFor(key);
+			synchronized(shard) {
+				if(blocksByRoutingKey.get(key) == block)
+					remove(shard, block);
+			}
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
 	@Override
-	public synchronized long getMaxKeys() {
+	public int fetchMultiple(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, T[] blocks) throws IOException {
+		int found = 0;
+		for(int i=0;i<routingKeys.length;i++) {
+			if(blocks[i] != null) continue;
+			blocks[i] = fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null);
+			if(blocks[i] != null) found++;
+		}
+		return found;
+	}
+
+	@Override
+	public long getMaxKeys() {
 		return maxKeys;
 	}
 
+	/** Maximum total size of the blocks, including overheads, in bytes. */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Current total size of the blocks, including overheads, in bytes. */
+	public long bytesUsed() {
+		return bytes.get();
+	}
+
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
-		return blocksByRoutingKey.size();
+	public long keyCount() {
+		return keyCount.get();
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
-		
-		writes++;
+
+		writes.incrementAndGet();
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
 		boolean storeFullKeys = callback.storeFullKeys();
-		if(oldBlock != null) {
-			if(callback.collisionPossible()) {
-				boolean equals = Arrays.equals(oldBlock.data, data) &&
-					Arrays.equals(oldBlock.header, header) &&
-					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
-				if(equals) {
+		Shard shard = shardFor(key);
+		synchronized(shard) {
+			Block oldBlock = blocksByRoutingKey.get(key);
+			if(oldBlock != null) {
+				if(callback.collisionPossible()) {
+					boolean equals = Arrays.equals(oldBlock.data, data) &&
+						Arrays.equals(oldBlock.header, header) &&
+						(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
+					if(equals) {
+						if(!isOldBlock)
+							oldBlock.oldBlock = false;
+						return;
+					}
+					if(overwrite) {
+						Block newBlock = new Block(key, header, data, storeFullKeys ? fullKey : null, isOldBlock);
+						remove(shard, oldBlock);
+						add(shard, newBlock);
+					} else {
+						throw new KeyCollisionException();
+					}
+				} else {
 					if(!isOldBlock)
 						oldBlock.oldBlock = false;
 					return;
 				}
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
-				} else {
-					throw new KeyCollisionException();
-				}
-				return;
 			} else {
-				if(!isOldBlock)
-					oldBlock.oldBlock = false;
-				return;
+				add(shard, new Block(key, header, data, storeFullKeys ? fullKey : null, isOldBlock));
 			}
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+		shrink();
+	}
+
+	/** Caller must hold the shard. */
+	private void add(Shard shard, Block block) {
+		block.index = shard.clock.size();
+		shard.clock.add(block);
+		blocksByRoutingKey.put(block.key, block);
+		keyCount.incrementAndGet();
+		bytes.addAndGet(block.size);
+	}
+
+	/** Caller must hold the shard. */
+	private void remove(Shard shard, Block block) {
+		ArrayList<Block> clock = shard.clock;
+		Block last = clock.remove(clock.size() - 1);
+		if(last != block) {
+			clock.set(block.index, last);
+			last.index = block.index;
+		}
+		if(shard.hand >= clock.size())
+			shard.hand = 0;
+		blocksByRoutingKey.remove(block.key, block);
+		keyCount.decrementAndGet();
+		bytes.addAndGet(-block.size);
+	}
+
+	/** Evict one block from the shard, unless it is empty. Caller must hold the shard. */
+	private boolean evictOne(Shard shard) {
+		ArrayList<Block> clock = shard.clock;
+		// After one revolution every flag is clear.
+		for(int i=0;i<=clock.size();i++) {
+			Block block = clock.get(shard.hand);
+			if(block.referenced) {
+				block.referenced = false;
+				if(++shard.hand == clock.size())
+					shard.hand = 0;
+			} else {
+				remove(shard, block);
+				// The last block was moved here. It is often the newest, so don't look at it
+				// until the next revolution.
+				if(shard.hand < clock.size() && ++shard.hand == clock.size())
+					shard.hand = 0;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Evict blocks until we are within the limits. */
+	private void shrink() {
+		int empty = 0;
+		while(keyCount.get() > maxKeys || bytes.get() > maxBytes) {
+			Shard shard = shards[evictShard.getAndIncrement() & shardMask];
+			boolean evicted;
+			synchronized(shard) {
+				evicted = !shard.clock.isEmpty() && evictOne(shard);
+			}
+			if(evicted)
+				empty = 0;
+			else if(++empty > shards.length)
+				return; // Everything is empty.
 		}
 	}
 
 	@Override
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
 		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		shrink();
+	}
+
+	/** Change the maximum total size of the blocks, including overheads. Shrinks immediately. */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		shrink();
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
 	}
-	
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
@@ -166,16 +322,18 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	}
 
 	public void clear() {
-		blocksByRoutingKey.clear();
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				while(!shard.clock.isEmpty())
+					remove(shard, shard.clock.get(shard.clock.size() - 1));
+			}
+		}
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
-			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
-			
+		for(Block block : blocksByRoutingKey.values()) {
+			byte[] routingKey = block.key.get();
+
 			T ret;
 			try {
 				ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
@@ -190,19 +348,19 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 			}
 		}
 	}
-	
+
 	@Override
 	public StoreAccessStats getSessionAccessStats() {
 		return new StoreAccessStats() {
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,9 +370,9 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
-			
+
 		};
 	}
 
@@ -232,12 +390,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	public void setUserAlertManager(UserAlertManager userAlertManager) {
 		// Do nothing
 	}
-	
+
 	@Override
 	public FreenetStore<T> getUnderlyingStore() {
 		return this;
 	}
-	
+
 	@Override
 	public void close() {
 		// Do nothing
@@ -36,10 +36,36 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	/**
+	 * Fetch several blocks at once. See FreenetStore.fetchMultiple().
+	 * @param blocks The same length as keys. Keys whose block is already set are skipped, the
+	 * blocks found are filled in.
+	 * @return The number of blocks found.
+	 */
+	public int fetch(NodeSSK[] keys, SSKBlock[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		byte[][] routingKeys = new byte[keys.length][];
+		byte[][] fullKeys = new byte[keys.length][];
+		for(int i=0;i<keys.length;i++) {
+			routingKeys[i] = keys[i].getRoutingKey();
+			fullKeys[i] = keys[i].getFullKey();
+		}
+		return store.fetchMultiple(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, blocks);
+	}
+
 	public void put(SSKBlock b, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		store.put(b, b.getRawData(), b.getRawHeaders(), overwrite, isOldBlock);
 	}
 	
+	@Override
+	public byte[] getData(SSKBlock block) {
+		return block.getRawData();
+	}
+	
+	@Override
+	public byte[] getHeaders(SSKBlock block) {
+		return block.getRawHeaders();
+	}
+	
 	@Override
 	public int dataLength() {
 		return SSKBlock.DATA_LENGTH;
@@ -150,6 +150,18 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		return -1;
 	}
 
+	@Override
+	public int fetchMultiple(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, T[] blocks) throws IOException {
+		int found = 0;
+		for(int i=0;i<routingKeys.length;i++) {
+			if(blocks[i] != null) continue;
+			blocks[i] = fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null);
+			if(blocks[i] != null) found++;
+		}
+		return found;
+	}
+
 	@Override
 	public long getMaxKeys() {
 		return maxKeys;
@@ -58,6 +58,19 @@ public abstract class StoreCallback<T extends StorableBlock> {
 	public abstract T construct(byte[] data, byte[] headers, byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownPubKey)
 	        throws KeyVerifyException;
 	
+	/** The data to store for a block, as passed to FreenetStore.put(). Used by caches to keep a
+	 * copy of blocks read from the underlying store.
+	 * @return Null if not supported. */
+	public byte[] getData(T block) {
+		return null;
+	}
+	
+	/** The headers to store for a block, as passed to FreenetStore.put().
+	 * @return Null if not supported. */
+	public byte[] getHeaders(T block) {
+		return null;
+	}
+	
 	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
 		store.setMaxKeys(maxStoreKeys, shrinkNow);
 	}
@@ -3,87 +3,172 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Offsets are mapped onto a fixed table of lock stripes, so that locking does not allocate,
+ * and threads working on different parts of the store do not contend with each other. Two
+ * offsets may share a stripe, so locking one may block the other for a short time, but this is
+ * harmless: the stripes are always taken in ascending order, so there are no deadlocks however
+ * many offsets are locked at once.
+ *
+ * Each stripe is a single int, taken with a compare-and-set. Contention is rare, so threads
+ * which have to wait all wait on one monitor. This keeps the table small enough to have many
+ * more stripes than the Cleaner locks at once, so it rarely gets in the way of requests.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+
+	/** Default number of stripes. Much more than the number of entries the Cleaner locks at
+	 * once, and than the number of threads likely to be accessing the store. */
+	static final int DEFAULT_STRIPES = 65536;
+
+	/** 1 if locked, 0 if not. */
+	private final AtomicIntegerArray stripes;
+	private final int mask;
+	/** Threads waiting for a stripe wait on this. */
+	private final Object waitLock = new Object();
+	/** Number of threads waiting on waitLock. */
+	private volatile int waiters;
 
 	LockManager() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param stripeCount Number of lock stripes. Must be a power of 2. 1 means every lock
+	 * excludes every other lock.
+	 */
+	LockManager(int stripeCount) {
+		if (stripeCount <= 0 || (stripeCount & (stripeCount - 1)) != 0)
+			throw new IllegalArgumentException("Stripe count must be a power of 2: " + stripeCount);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new AtomicIntegerArray(stripeCount);
+		mask = stripeCount - 1;
+	}
+
+	/**
+	 * A set of offsets to be locked together. Keeps the stripes covering them, sorted and
+	 * without duplicates. Reusable: call {@link #clear()} once it has been unlocked.
+	 */
+	static final class LockSet {
+		private final int[] stripes;
+		private int count;
+
+		LockSet(int maxOffsets) {
+			stripes = new int[maxOffsets];
+		}
+
+		void clear() {
+			count = 0;
+		}
+
+		int size() {
+			return count;
+		}
+	}
+
+	/** Add an offset to a LockSet. Must not be called while it is locked. */
+	void add(LockSet set, long offset) {
+		int stripe = (int) (offset & mask);
+		int[] s = set.stripes;
+		int i = set.count;
+		// Insertion sort. Sets are small, at most a few tens of entries.
+		while (i > 0 && s[i - 1] > stripe)
+			i--;
+		if (i > 0 && s[i - 1] == stripe)
+			return;
+		if (set.count == s.length)
+			throw new IllegalStateException("LockSet full");
+		System.arraycopy(s, i, s, i + 1, set.count - i);
+		s[i] = stripe;
+		set.count++;
 	}
 
 	/**
-	 * Lock the entry
-	 * 
-	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * Lock all the offsets in the set.
+	 *
+	 * This lock is <strong>not</strong> re-entrant. A thread must not lock another set while it
+	 * holds one, or deadlock may occur.
+	 *
+	 * @return <code>true</code> if all the offsets are locked. Otherwise nothing is locked,
+	 *         because we are shutting down or were interrupted.
 	 */
-	Condition lockEntry(long offset) {
+	boolean lockEntries(LockSet set) {
 		if (logDEBUG)
-			Logger.debug(this, "try locking " + offset, new Exception());
+			Logger.debug(this, "try locking " + set.count + " stripes", new Exception());
 
-		Condition condition;
-		try {
-			entryLock.lock();
+		for (int i = 0; i < set.count; i++) {
+			if (!lockStripe(set.stripes[i])) {
+				for (int j = i - 1; j >= 0; j--)
+					unlockStripe(set.stripes[j]);
+				return false;
+			}
+		}
+
+		if (logDEBUG)
+			Logger.debug(this, "locked " + set.count + " stripes", new Exception());
+		return true;
+	}
+
+	private boolean lockStripe(int stripe) {
+		if (stripes.compareAndSet(stripe, 0, 1)) {
+			if (shutdown) {
+				unlockStripe(stripe);
+				return false;
+			}
+			return true;
+		}
+		synchronized (waitLock) {
+			waiters++;
 			try {
-				do {
+				while (true) {
 					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+						return false;
+					// Must try again after incrementing waiters, see unlockStripe().
+					if (stripes.compareAndSet(stripe, 0, 1))
+						return true;
+					waitLock.wait(10 * 1000); // 10s for checking shutdown
+				}
+			} catch (InterruptedException e) {
+				Logger.error(this, "lock interrupted", e);
+				return false;
 			} finally {
-				entryLock.unlock();
+				waiters--;
 			}
-		} catch (InterruptedException e) {
-			Logger.error(this, "lock interrupted", e);
-			return null;
 		}
+	}
 
-		if (logDEBUG)
-			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+	private void unlockStripe(int stripe) {
+		stripes.set(stripe, 0);
+		// If a thread failed to get the stripe, it incremented waiters before trying again, so
+		// either we see it here or it sees the stripe is free.
+		if (waiters != 0) {
+			synchronized (waitLock) {
+				waitLock.notifyAll();
+			}
+		}
 	}
 
 	/**
-	 * Unlock the entry
+	 * Unlock all the offsets in a set locked by {@link #lockEntries(LockSet)}.
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntries(LockSet set) {
 		if (logDEBUG)
-			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
-
-		entryLock.lock();
-		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
-		} finally {
-			entryLock.unlock();
-		}
+			Logger.debug(this, "unlocking " + set.count + " stripes", new Exception("debug"));
+
+		for (int i = set.count - 1; i >= 0; i--)
+			unlockStripe(set.stripes[i]);
 	}
 
 	/**
@@ -91,14 +176,19 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		synchronized (waitLock) {
+			waitLock.notifyAll();
+			waiters++;
+			try {
+				for (int i = 0; i < stripes.length(); i++) {
+					while (stripes.get(i) != 0)
+						waitLock.wait(1000);
+				}
+			} catch (InterruptedException e) {
+				Logger.error(this, "shutdown interrupted", e);
+			} finally {
+				waiters--;
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,197 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped view of one of the salted hash store files.
+ *
+ * A single mapping cannot exceed 2GB, so the file is mapped as a series of segments, each of
+ * which holds a whole number of fixed length slots, so no slot ever spans two segments. Segments
+ * are mapped lazily on first access, and only cover the part of the file which existed when
+ * {@link #setLength(long)} was last called. Anything outside that returns false and the caller
+ * must fall back to the FileChannel.
+ *
+ * The MappedByteBuffer's are shared, so each thread reads and writes through its own duplicates.
+ * These are created once per thread per segment, so the hot path neither locks nor allocates.
+ *
+ * There is no way to unmap a MappedByteBuffer, it goes away when it is garbage collected. So the
+ * caller must make sure nobody is using the mapping when the file is truncated, by calling
+ * {@link #setLength(long)} with the new length first, with all readers locked out.
+ */
+class MappedStoreFile {
+
+	/** Maximum size of a single mapped segment, in bytes. Rounded down to a whole number of
+	 * slots. Small enough to map on 32-bit JVMs, large enough that we don't need many. */
+	static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private final String name;
+	private final FileChannel channel;
+	private final int slotLength;
+	private final int slotsPerSegment;
+	private final long segmentLength;
+
+	/** The current set of segments. Replaced, not modified, by setLength(), apart from
+	 * lazily filling in the segments. */
+	private volatile Mapping mapping;
+	/** Set if mapping failed e.g. because we ran out of address space. Once this is set we
+	 * always use the FileChannel. */
+	private volatile boolean failed;
+
+	private final ThreadLocal<View> views = new ThreadLocal<View>();
+
+	private static class Mapping {
+		/** Length of the file in bytes, rounded down to a whole number of slots. */
+		final long length;
+		final AtomicReferenceArray<MappedByteBuffer> segments;
+
+		Mapping(long length, int segmentCount) {
+			this.length = length;
+			this.segments = new AtomicReferenceArray<MappedByteBuffer>(segmentCount);
+		}
+	}
+
+	/** Per-thread duplicates of the segments of a specific Mapping. */
+	private static class View {
+		final Mapping mapping;
+		final ByteBuffer[] buffers;
+
+		View(Mapping mapping) {
+			this.mapping = mapping;
+			this.buffers = new ByteBuffer[mapping.segments.length()];
+		}
+	}
+
+	/**
+	 * @param name Name of the store, for logging.
+	 * @param channel The file to map. Must have been opened read-write.
+	 * @param slotLength The length of a single slot in bytes.
+	 */
+	MappedStoreFile(String name, FileChannel channel, int slotLength) throws IOException {
+		if(slotLength <= 0 || slotLength > SEGMENT_SIZE)
+			throw new IllegalArgumentException("Bad slot length "+slotLength);
+		this.name = name;
+		this.channel = channel;
+		this.slotLength = slotLength;
+		this.slotsPerSegment = SEGMENT_SIZE / slotLength;
+		this.segmentLength = (long)slotsPerSegment * slotLength;
+		setLength(channel.size());
+	}
+
+	/** Change the region of the file which may be mapped. When shrinking the file, this must be
+	 * called <b>before</b> truncating it, while holding a lock which excludes all readers and
+	 * writers, otherwise they may touch a page which no longer exists. When growing, it must be
+	 * called after the file has been extended. */
+	void setLength(long length) {
+		length -= length % slotLength;
+		int segmentCount = (int) ((length + segmentLength - 1) / segmentLength);
+		mapping = new Mapping(length, segmentCount);
+	}
+
+	/**
+	 * Copy dst.remaining() bytes, starting at the beginning of the given slot, into dst.
+	 * @return False if the range is not mapped, in which case nothing has been read and the
+	 * caller should read from the FileChannel instead.
+	 */
+	boolean read(long slot, ByteBuffer dst) {
+		int length = dst.remaining();
+		ByteBuffer buf = getView(slot, length);
+		if(buf == null) return false;
+		if(dst.hasArray()) {
+			// Bulk copy. Older JVMs copy ByteBuffer to ByteBuffer one byte at a time.
+			buf.get(dst.array(), dst.arrayOffset() + dst.position(), length);
+			dst.position(dst.position() + length);
+		} else
+			dst.put(buf);
+		return true;
+	}
+
+	/**
+	 * Copy src.remaining() bytes from src to the file, starting at the beginning of the given
+	 * slot.
+	 * @return False if the range is not mapped, in which case nothing has been written and the
+	 * caller should write to the FileChannel instead.
+	 */
+	boolean write(long slot, ByteBuffer src) {
+		int length = src.remaining();
+		ByteBuffer buf = getView(slot, length);
+		if(buf == null) return false;
+		if(src.hasArray()) {
+			buf.put(src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.position() + length);
+		} else
+			buf.put(src);
+		return true;
+	}
+
+	/** Get this thread's view of the segment containing the slot, with position and limit set
+	 * to the requested range, or null if it is not mapped. */
+	private ByteBuffer getView(long slot, int length) {
+		if(failed) return null;
+		Mapping m = mapping;
+		long start = slot * slotLength;
+		if(start < 0 || start + length > m.length) return null;
+		int segment = (int) (slot / slotsPerSegment);
+		int pos = (int) (start - segment * segmentLength);
+		if(pos + length > segmentLength) return null; // Spans segments.
+		View view = views.get();
+		if(view == null || view.mapping != m) {
+			view = new View(m);
+			views.set(view);
+		}
+		ByteBuffer buf = view.buffers[segment];
+		if(buf == null) {
+			MappedByteBuffer mapped = m.segments.get(segment);
+			if(mapped == null) {
+				mapped = map(m, segment);
+				if(mapped == null) return null;
+			}
+			buf = view.buffers[segment] = mapped.duplicate();
+		}
+		buf.limit(pos + length);
+		buf.position(pos);
+		return buf;
+	}
+
+	private synchronized MappedByteBuffer map(Mapping m, int segment) {
+		MappedByteBuffer mapped = m.segments.get(segment);
+		if(mapped != null) return mapped;
+		if(failed) return null;
+		long start = segment * segmentLength;
+		long length = Math.min(segmentLength, m.length - start);
+		try {
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+		} catch (IOException e) {
+			// Probably out of address space. Not fatal, the FileChannel still works.
+			Logger.error(this, "Unable to map "+length+" bytes at "+start+" of "+name+", disabling memory mapping: "+e, e);
+			System.err.println("Unable to memory map datastore "+name+", falling back to normal I/O: "+e);
+			failed = true;
+			return null;
+		}
+		m.segments.set(segment, mapped);
+		return mapped;
+	}
+
+	/** Write any changes made through the mapping to disk. */
+	void force() {
+		Mapping m = mapping;
+		for(int i=0;i<m.segments.length();i++) {
+			MappedByteBuffer mapped = m.segments.get(i);
+			if(mapped != null) mapped.force();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name;
+	}
+
+}
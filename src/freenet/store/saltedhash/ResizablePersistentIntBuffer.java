@@ -4,8 +4,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -15,27 +18,54 @@ import freenet.support.Ticker;
 
 /** A large resizable block of int's, which is persisted to disk with a specific policy,
  * which is either to write it on shutdown, immediately, or every X millis.
- * 
- * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately
- * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
- * is no way to unmap, and it is likely there will never be, so resizing would be very
- * messy and expensive.
+ *
+ * The int's are kept off the Java heap, in direct ByteBuffer's, so a large store does not need
+ * a huge heap. A single ByteBuffer can't be more than 2GB, so the buffer is split into segments.
+ * We don't memory map the file: there is no way to unmap, so resizing would be very messy, and
+ * the OS would write pages back whenever it likes, rather than following the persistence policy.
+ *
+ * The buffer is divided into pages, and only the pages which have changed are written. Whenever
+ * a page changes for the first time since it was last written, its number is appended to a
+ * journal file. So after an unclean shutdown, {@link #getJournalledPages()} tells the caller
+ * which pages may be out of date, and it can recompute just those, rather than everything.
+ * The journal is not fsync'ed: it only needs to be as durable as the data the buffer describes.
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
-	
+
+	/** Number of int's in a page. We write whole pages, and journal page numbers. One disk
+	 * sector: small, because after a crash the caller must recompute every journalled page. */
+	static final int PAGE_INTS = 128;
+	private static final int PAGE_SHIFT = 7;
+	/** Number of int's in a segment, i.e. in a single ByteBuffer. A multiple of PAGE_INTS. */
+	private static final int SEGMENT_INTS = 1 << 24;
+	private static final int SEGMENT_SHIFT = 24;
+	private static final int SEGMENT_MASK = SEGMENT_INTS - 1;
+
 	private final File filename;
+	private final File journalFile;
 	private final RandomAccessFile raf;
 	private final FileChannel channel;
+	private final RandomAccessFile journalRAF;
+	private final FileChannel journal;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
-	private int[] buffer;
+	/** The buffer, as bytes for I/O. When we resize we write-lock and replace this. */
+	private ByteBuffer[] segments;
+	/** The same buffer, as int's. Replaced along with segments. */
+	private IntBuffer[] ints;
+	/** One bit per page, set if the page has changed since it was last written. Replaced on
+	 * resize. Only set or cleared while holding (this), but may be read without it. */
+	private AtomicLongArray dirtyPages;
+	/** Pages listed in the journal when we opened the buffer, or null if there was no journal. */
+	private final int[] journalledPages;
+	/** Length of the journal. Protected by (this). */
+	private long journalLength;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
-	// But it does not damage the store: We recover from it transparently.
-	// Note also that any value other than -1 will trigger a bloom filter rebuild after an unclean shutdown, which arguably is the opposite of what we want... :|
+	// But it does not damage the store: We recover from it transparently, by recomputing the
+	// pages listed in the journal.
 	// FIXME make that configurable.
 	public static final int DEFAULT_PERSISTENCE_TIME = 300000;
 	// FIXME is static the best way to do this? It seems simplest at least...
@@ -46,67 +76,155 @@ public class ResizablePersistentIntBuffer {
 	private boolean dirty;
 	/** Is the writer job scheduled? Protected by (this). */
 	private boolean scheduled;
-	/** Is the writer job running? So we can wait for it to complete on shutdown e.g. 
+	/** Is the writer job running? So we can wait for it to complete on shutdown e.g.
 	 * Protected by (this). */
 	private boolean writing;
 	private boolean closed;
-	
+
 	public static synchronized void setPersistenceTime(int val) {
 		globalPersistenceTime = val;
 	}
-	
+
 	public static synchronized int getPersistenceTime() {
 		return globalPersistenceTime;
 	}
-	
+
 	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
-	 * its size.
+	 * its size. Also open the journal, and read the pages which were changed but not written
+	 * if we were not shut down cleanly.
 	 * @param f The filename.
 	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
-	 * @throws IOException 
+	 * @throws IOException
 	 */
 	public ResizablePersistentIntBuffer(File f, int size) throws IOException {
 		this.filename = f;
+		this.journalFile = new File(f.getPath() + ".journal");
 		isNew = !f.exists();
 		this.raf = new RandomAccessFile(f, "rw");
+		this.channel = raf.getChannel();
 		this.lock = new ReentrantReadWriteLock();
 		this.size = size;
-		buffer = new int[size];
+		allocate(size);
 		long expectedLength = ((long)size)*4;
 		long realLength = raf.length();
 		if(realLength > expectedLength)
 			raf.setLength(expectedLength);
-		readBuffer((int)Math.min(size, realLength/4));
+		readBuffer(Math.min(expectedLength, realLength));
 		if(realLength < expectedLength)
 			raf.setLength(expectedLength);
-		channel = raf.getChannel();
+		boolean journalExists = journalFile.exists();
+		journalRAF = new RandomAccessFile(journalFile, "rw");
+		journal = journalRAF.getChannel();
+		if(journalExists && !isNew) {
+			journalledPages = readJournal();
+			if(journalledPages.length > 0)
+				Logger.normal(this, "Journal for "+this+" lists "+journalledPages.length+" pages changed since last written");
+		} else {
+			journalledPages = null;
+			journal.truncate(0);
+		}
+		// Keep the old entries until we have written the buffer, in case we crash again.
+		journalLength = journal.size();
+	}
+
+	private void allocate(int size) {
+		int count = (int) ((((long)size) + SEGMENT_INTS - 1) >> SEGMENT_SHIFT);
+		segments = new ByteBuffer[count];
+		ints = new IntBuffer[count];
+		for(int i=0;i<count;i++) {
+			int length = (int) Math.min(SEGMENT_INTS, ((long)size) - ((long)i << SEGMENT_SHIFT));
+			ByteBuffer buf;
+			try {
+				buf = ByteBuffer.allocateDirect(length * 4);
+			} catch (OutOfMemoryError e) {
+				// Direct memory is limited by -XX:MaxDirectMemorySize. Not fatal.
+				Logger.error(this, "Unable to allocate "+(length*4)+" bytes of direct memory for "+filename+", using the heap: "+e, e);
+				buf = ByteBuffer.allocate(length * 4);
+			}
+			// Same byte order as Fields.intsToBytes(), for back compatibility.
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			segments[i] = buf;
+			ints[i] = buf.asIntBuffer();
+		}
+		dirtyPages = new AtomicLongArray((pageCount(size) + 63) >> 6);
+	}
+
+	private static int pageCount(int size) {
+		return (int) ((((long)size) + PAGE_INTS - 1) >> PAGE_SHIFT);
 	}
-	
-	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
+
+	/** Should be called during startup to fill in an appropriate default value e.g. if the store
 	 * is completely new. */
 	public void fill(int value) {
-		for(int i=0;i<buffer.length;i++)
-			buffer[i] = value;
+		for(IntBuffer buf : ints) {
+			for(int i=0;i<buf.capacity();i++)
+				buf.put(i, value);
+		}
+		synchronized(this) {
+			AtomicLongArray bits = dirtyPages;
+			for(int i=0;i<bits.length();i++)
+				bits.set(i, -1L);
+			dirty = true;
+			try {
+				rewriteJournal();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write journal "+journalFile+" : "+e, e);
+			}
+		}
 	}
 
-	private void readBuffer(int size) throws IOException {
-		raf.seek(0);
-		byte[] buf = new byte[32768];
-		int read = 0;
-		while(read < size) {
-			int toRead = Math.min(buf.length, (size - read) * 4);
-			raf.readFully(buf, 0, toRead);
-			int[] data = Fields.bytesToInts(buf, 0, toRead);
-			System.arraycopy(data, 0, buffer, read, data.length);
-			read += data.length;
+	private void readBuffer(long length) throws IOException {
+		for(int i=0;i<segments.length;i++) {
+			long start = ((long)i << SEGMENT_SHIFT) * 4;
+			if(start >= length) break;
+			ByteBuffer buf = segments[i].duplicate();
+			buf.limit((int) Math.min(buf.capacity(), length - start));
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, start + buf.position()) == -1)
+					throw new IOException("Unexpected end of file reading "+filename);
+			}
 		}
 	}
-	
+
+	/** Read the journal, ignoring anything which doesn't make sense, e.g. a partial entry at the
+	 * end. @return The pages listed, sorted and without duplicates. */
+	private int[] readJournal() throws IOException {
+		long length = journal.size();
+		if(length > ((long)pageCount(size)) * 4 * 16) {
+			// Lots of duplicates, or garbage. Can't be trusted.
+			Logger.error(this, "Journal "+journalFile+" is too long: "+length);
+			int[] all = new int[pageCount(size)];
+			for(int i=0;i<all.length;i++) all[i] = i;
+			return all;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) (length & ~3));
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		while(buf.hasRemaining()) {
+			if(journal.read(buf, buf.position()) == -1) break;
+		}
+		buf.flip();
+		int pages = pageCount(size);
+		int[] list = new int[buf.remaining() / 4];
+		int count = 0;
+		while(buf.remaining() >= 4) {
+			int page = buf.getInt();
+			if(page >= 0 && page < pages)
+				list[count++] = page;
+		}
+		Arrays.sort(list, 0, count);
+		int unique = 0;
+		for(int i=0;i<count;i++) {
+			if(unique == 0 || list[unique-1] != list[i])
+				list[unique++] = list[i];
+		}
+		return Arrays.copyOf(list, unique);
+	}
+
 	public void start(Ticker ticker) {
 		synchronized(this) {
 			this.ticker = ticker;
-			if(dirty) {
-				int persistenceTime = getPersistenceTime();
+			int persistenceTime = getPersistenceTime();
+			if(dirty && ticker != null && persistenceTime > 0 && !scheduled) {
 				Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
 				ticker.queueTimedJob(writer, persistenceTime);
 				scheduled = true;
@@ -116,49 +234,64 @@ public class ResizablePersistentIntBuffer {
 
 	public int get(int offset) {
 		lock.readLock().lock();
-		if(closed) throw new IllegalStateException("Already shut down");
 		try {
-			return buffer[offset];
+			if(closed) throw new IllegalStateException("Already shut down");
+			return ints[offset >>> SEGMENT_SHIFT].get(offset & SEGMENT_MASK);
 		} finally {
 			lock.readLock().unlock();
 		}
 	}
-	
+
 	public void put(int offset, int value) throws IOException {
 		put(offset, value, false);
 	}
 
 	public void put(int offset, int value, boolean noWrite) throws IOException {
 		lock.readLock().lock(); // Only resize needs write lock because it creates a new buffer.
-		if(closed) throw new IllegalStateException("Already shut down");
 		try {
-			int persistenceTime = getPersistenceTime();
-			buffer[offset] = value;
-			if(persistenceTime == -1 && !noWrite) {
+			if(closed) throw new IllegalStateException("Already shut down");
+			ints[offset >>> SEGMENT_SHIFT].put(offset & SEGMENT_MASK, value);
+			if(getPersistenceTime() == -1 && !noWrite) {
 				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
-			} else if(persistenceTime > 0) {
-				synchronized(this) {
-					dirty = true;
-					if(ticker != null) {
-						if(!scheduled) {
-							Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
-							ticker.queueTimedJob(writer, persistenceTime);
-							scheduled = true;
-						}
-					} else {
-						Logger.normal(this, "Will scheduling write of slot cache after startup: "+this+" in "+persistenceTime);
-					}
-				}
 			} else {
-				synchronized(this) {
-					dirty = true;
-				}
+				markDirty(offset >>> PAGE_SHIFT);
 			}
 		} finally {
 			lock.readLock().unlock();
 		}
 	}
-	
+
+	/** Mark a page as dirty, journalling it first if it was clean. Caller must hold the read
+	 * lock, and must have changed the page already. */
+	private void markDirty(int page) throws IOException {
+		AtomicLongArray bits = dirtyPages;
+		int word = page >>> 6;
+		long bit = 1L << (page & 63);
+		// Already dirty and already journalled.
+		if((bits.get(word) & bit) != 0) return;
+		synchronized(this) {
+			long old = bits.get(word);
+			if((old & bit) != 0) return;
+			// Journal it before setting the bit, so nobody can skip the journal.
+			journal.write(ByteBuffer.wrap(Fields.intToBytes(page)), journalLength);
+			journalLength += 4;
+			bits.set(word, old | bit);
+			dirty = true;
+			int persistenceTime = getPersistenceTime();
+			if(persistenceTime > 0) {
+				if(ticker != null) {
+					if(!scheduled) {
+						Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
+						ticker.queueTimedJob(writer, persistenceTime);
+						scheduled = true;
+					}
+				} else {
+					Logger.normal(this, "Will scheduling write of slot cache after startup: "+this+" in "+persistenceTime);
+				}
+			}
+		}
+	}
+
 	private Runnable writer = new Runnable() {
 
 		public void run() {
@@ -171,65 +304,74 @@ public class ResizablePersistentIntBuffer {
 						return;
 					}
 					scheduled = false;
-					dirty = false;
 					writing = true;
 				}
 				try {
-					writeBuffer();
+					writeDirtyPages();
 				} catch (IOException e) {
-					Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
+					Logger.error(this, "Write failed: "+e+" on "+filename, e);
+				} finally {
+					synchronized(ResizablePersistentIntBuffer.this) {
+						writing = false;
+						ResizablePersistentIntBuffer.this.notifyAll();
+					}
 				}
 			} finally {
-				synchronized(ResizablePersistentIntBuffer.this) {
-					writing = false;
-					ResizablePersistentIntBuffer.this.notifyAll();
-				}
 				lock.readLock().unlock();
 			}
 			Logger.normal(this, "Written slot cache "+ResizablePersistentIntBuffer.this);
 		}
-		
+
 	};
-	
+
 	public void shutdown() {
 		lock.writeLock().lock();
 		try {
 			synchronized(this) {
 				if(closed) return;
 				closed = true;
-				if(writing) {
-					// Wait for write to finish.
-					while(writing) {
-						try {
-							wait();
-						} catch (InterruptedException e) {
-							// Ignore.
-						}
+				// Wait for write to finish.
+				while(writing) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore.
 					}
-					if(!dirty) return;
 				}
 				writing = true;
 			}
+			boolean written = false;
 			try {
 				Logger.normal(this, "Writing slot cache on shutdown: "+this);
-				writeBuffer();
+				writeDirtyPages();
+				written = true;
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
 			synchronized(this) {
 				writing = false;
+				notifyAll();
 			}
 			try {
 				raf.close();
 			} catch (IOException e) {
 				Logger.error(this, "Close failed during shutdown: "+e+" on "+filename, e);
 			}
+			try {
+				journalRAF.close();
+			} catch (IOException e) {
+				Logger.error(this, "Close failed during shutdown: "+e+" on "+journalFile, e);
+			}
+			// Clean shutdown, nothing to recover. Delete it, so that if an older build which
+			// doesn't maintain the journal crashes, the next start doesn't trust a stale one.
+			if(written)
+				journalFile.delete();
 		} finally {
 			lock.writeLock().unlock();
 		}
-		
+
 	}
-	
+
 	public void abort() {
 		lock.writeLock().lock();
 		try {
@@ -242,33 +384,138 @@ public class ResizablePersistentIntBuffer {
 			} catch (IOException e) {
 				Logger.error(this, "Close failed during shutdown: "+e+" on "+filename, e);
 			}
+			// Keep the journal, we haven't written the buffer.
+			try {
+				journalRAF.close();
+			} catch (IOException e) {
+				Logger.error(this, "Close failed during shutdown: "+e+" on "+journalFile, e);
+			}
 		} finally {
 			lock.writeLock().unlock();
 		}
 	}
 
-	private void writeBuffer() throws IOException {
-		// FIXME do we need to do partial writes?
-		raf.seek(0);
-		int written = 0;
-		while(written < size) {
-			int toWrite = Math.min(32768, size - written);
-			byte[] buf = Fields.intsToBytes(buffer, written, toWrite);
-			raf.write(buf);
-			written += toWrite;
+	/** Write the pages which have changed, then rewrite the journal to list only the pages
+	 * changed since. Caller must hold the read or write lock, and must have set writing. */
+	private void writeDirtyPages() throws IOException {
+		AtomicLongArray bits = dirtyPages;
+		long[] toWrite = new long[bits.length()];
+		synchronized(this) {
+			for(int i=0;i<toWrite.length;i++) {
+				toWrite[i] = bits.get(i);
+				bits.set(i, 0);
+			}
+			dirty = false;
+		}
+		boolean success = false;
+		try {
+			int pages = pageCount(size);
+			int written = 0;
+			int page = 0;
+			while(page < pages) {
+				if(!isSet(toWrite, page)) {
+					page++;
+					continue;
+				}
+				// Write a run of dirty pages at once, but don't cross a segment boundary.
+				int start = page++;
+				while(page < pages && isSet(toWrite, page) && (((long)page << PAGE_SHIFT) & SEGMENT_MASK) != 0)
+					page++;
+				writePages(start, page);
+				written += page - start;
+			}
+			channel.force(false);
+			if(written > 0)
+				Logger.normal(this, "Written "+written+" of "+pages+" pages of "+this);
+			success = true;
+		} finally {
+			synchronized(this) {
+				if(success) {
+					rewriteJournal();
+				} else {
+					// Try again next time.
+					for(int i=0;i<toWrite.length;i++)
+						bits.set(i, bits.get(i) | toWrite[i]);
+					dirty = true;
+				}
+			}
 		}
 	}
-	
+
+	private static boolean isSet(long[] bits, int page) {
+		return (bits[page >>> 6] & (1L << (page & 63))) != 0;
+	}
+
+	/** Write pages from start inclusive to end exclusive, which must be in the same segment. */
+	private void writePages(int start, int end) throws IOException {
+		long startInt = (long)start << PAGE_SHIFT;
+		long endInt = Math.min((long)end << PAGE_SHIFT, size);
+		int segment = (int) (startInt >> SEGMENT_SHIFT);
+		long segmentStart = (long)segment << SEGMENT_SHIFT;
+		ByteBuffer buf = segments[segment].duplicate();
+		buf.limit((int) (endInt - segmentStart) * 4);
+		buf.position((int) (startInt - segmentStart) * 4);
+		long pos = startInt * 4;
+		while(buf.hasRemaining())
+			pos += channel.write(buf, pos);
+	}
+
+	/** Replace the journal with the list of pages which are currently dirty. Overwrite then
+	 * truncate, so if we crash half way through we still have every dirty page, plus a few
+	 * which have been written. Caller must hold (this). */
+	private void rewriteJournal() throws IOException {
+		AtomicLongArray bits = dirtyPages;
+		int pages = pageCount(size);
+		int count = 0;
+		for(int i=0;i<bits.length();i++)
+			count += Long.bitCount(bits.get(i));
+		ByteBuffer buf = ByteBuffer.allocate(count * 4);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		for(int i=0;i<bits.length();i++) {
+			long word = bits.get(i);
+			while(word != 0) {
+				int page = (i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				if(page < pages) buf.putInt(page);
+			}
+		}
+		buf.flip();
+		int length = buf.remaining();
+		long pos = 0;
+		while(buf.hasRemaining())
+			pos += journal.write(buf, pos);
+		journal.truncate(length);
+		journalLength = length;
+	}
+
 	public void resize(int size) {
 		lock.writeLock().lock();
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			// Anything dirty is written below.
+			ByteBuffer[] oldSegments = segments;
+			int oldSize = this.size;
+			allocate(size);
 			this.size = size;
-			buffer = Arrays.copyOf(buffer, size);
+			long copy = Math.min(oldSize, size);
+			for(int i=0;((long)i << SEGMENT_SHIFT) < copy;i++) {
+				ByteBuffer src = oldSegments[i].duplicate();
+				src.clear();
+				src.limit((int) Math.min(src.capacity(), (copy - ((long)i << SEGMENT_SHIFT)) * 4));
+				ByteBuffer dst = segments[i].duplicate();
+				dst.clear();
+				dst.put(src);
+			}
 			try {
-				raf.setLength(size * 4);
-				writeBuffer();
+				raf.setLength(((long)size) * 4);
+				// Write everything, which also empties the journal. We have the write lock,
+				// so the writer job can't be running.
+				synchronized(this) {
+					for(int i=0;i<dirtyPages.length();i++)
+						dirtyPages.set(i, -1L);
+				}
+				writeDirtyPages();
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
 			}
@@ -283,29 +530,27 @@ public class ResizablePersistentIntBuffer {
 		try {
 			synchronized(this) {
 				if(closed) return;
-				dirty = false;
-				if(writing) {
-					// Wait for write to finish.
-					while(writing) {
-						try {
-							wait();
-						} catch (InterruptedException e) {
-							// Ignore.
-						}
+				// Wait for write to finish.
+				while(writing) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore.
 					}
-					if(!dirty) return;
 				}
 				writing = true;
 			}
 			try {
-				writeBuffer();
+				writeDirtyPages();
 			} catch (IOException e) {
-				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
+				Logger.error(this, "Write failed: "+e+" on "+filename, e);
+			} finally {
+				synchronized(this) {
+					writing = false;
+					notifyAll();
+				}
 			}
 		} finally {
-			synchronized(this) {
-				writing = false;
-			}
 			lock.readLock().unlock();
 		}
 	}
@@ -313,19 +558,31 @@ public class ResizablePersistentIntBuffer {
 	public boolean isNew() {
 		return isNew;
 	}
-	
+
+	/** Pages which may have changed since they were last written, if we were not shut down
+	 * cleanly. A page covers PAGE_INTS int's. The journal is kept until the next write, so if
+	 * the caller recomputes these pages with put(), it should call forceWrite() afterwards.
+	 * @return The page numbers, sorted, or null if there was no journal, e.g. because the
+	 * buffer is new or was last used by an older build. In that case any part of it may be
+	 * out of date. */
+	public int[] getJournalledPages() {
+		return journalledPages;
+	}
+
 	public String toString() {
 		return filename.getPath();
 	}
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
-		for(int i=0;i<buffer.length;i++)
-			if(buffer[i] == key) buffer[i] = value;
+		for(IntBuffer buf : ints) {
+			for(int i=0;i<buf.capacity();i++)
+				if(buf.get(i) == key) buf.put(i, value);
+		}
 	}
-	
+
 	public int size() {
 		return size;
 	}
-	
+
 }
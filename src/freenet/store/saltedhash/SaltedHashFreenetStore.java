@@ -12,14 +12,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.Random;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -55,6 +54,7 @@ import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
+import freenet.support.TimeUtil;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
@@ -215,8 +215,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			slotFilter = null;
 		}
 
-		if ((flags & FLAG_DIRTY) != 0)
+		if ((flags & FLAG_DIRTY) != 0) {
 			System.err.println("Datastore(" + name + ") is dirty.");
+			if (slotFilterDisabled || !recoverSlotFilter()) {
+				// The slot filter can't be trusted, so a rebuild must start again from the
+				// beginning.
+				if (ResizablePersistentIntBuffer.getPersistenceTime() != -1)
+					flags |= FLAG_REBUILD_BLOOM;
+				rebuildCheckpoint = 0;
+			}
+		}
 
 		flags |= FLAG_DIRTY; // datastore is now dirty until flushAndClose()
 		writeConfigFile();
@@ -240,6 +248,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(((!slotFilterDisabled) && slotFilter.isNew()) && !newStore) {
 			flags |= FLAG_REBUILD_BLOOM;
+			rebuildCheckpoint = 0;
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
@@ -321,14 +330,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
-			if (lockMap == null) {
+			LockManager.LockSet lockSet = lockDigestedKey(digestedKey, true);
+			if (lockSet == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return null;
 			}
 			try {
-				Entry entry = probeEntry(digestedKey, routingKey, true);
+				Entry entry = probeEntry(digestedKey, routingKey, true, probeBuffers.get().recycledEntry());
 				if (entry == null) {
 					misses.incrementAndGet();
 					return null;
@@ -357,13 +366,129 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				unlockDigestedKey(lockSet);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/** Number of slots fetchMultiple() locks and reads at a time. */
+	private static final int FETCH_MULTIPLE_LOCK_BATCH = 32;
+
+	/**
+	 * Check all the keys against the slot filter first, and then read the slots which might hold
+	 * them in offset order, under a single read lock. So checking a large batch of keys, e.g.
+	 * when resuming a download, is one sweep across the store file rather than a random read
+	 * for every slot of every key. The slots are locked a few at a time, so we don't hold up
+	 * other requests for the whole sweep.
+	 */
+	@Override
+	public int fetchMultiple(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, T[] blocks) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Fetch " + routingKeys.length + " keys for " + callback);
+
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return 0;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		try {
+			int count = routingKeys.length;
+			byte[][] digestedKeys = new byte[count][];
+			// Offset in the high half, index of the key in the low half, so sorting gives disk order.
+			long[] candidates = new long[count * OPTION_MAX_PROBE * (prevStoreSize != 0 ? 2 : 1)];
+			int candidateCount = 0;
+			long[] offsets = probeBuffers.get().offsets;
+			for (int i = 0; i < count; i++) {
+				if (blocks[i] != null) continue;
+				byte[] digestedKey = cipherManager.getDigestedKey(routingKeys[i]);
+				digestedKeys[i] = digestedKey;
+				candidateCount = addCandidateSlots(digestedKey, i, storeSize, offsets, candidates, candidateCount);
+				if (prevStoreSize != 0)
+					candidateCount = addCandidateSlots(digestedKey, i, prevStoreSize, offsets, candidates, candidateCount);
+			}
+			Arrays.sort(candidates, 0, candidateCount);
+
+			int found = 0;
+			boolean[] ignored = new boolean[count];
+			LockManager.LockSet lockSet = new LockManager.LockSet(FETCH_MULTIPLE_LOCK_BATCH);
+			for (int start = 0; start < candidateCount; start += FETCH_MULTIPLE_LOCK_BATCH) {
+				int end = Math.min(candidateCount, start + FETCH_MULTIPLE_LOCK_BATCH);
+				lockSet.clear();
+				for (int j = start; j < end; j++)
+					lockManager.add(lockSet, candidates[j] >>> 32);
+				if (!lockManager.lockEntries(lockSet)) {
+					if (logDEBUG)
+						Logger.debug(this, "cannot lock slots, shutting down?");
+					return found;
+				}
+				try {
+					for (int j = start; j < end; j++) {
+						int i = (int) candidates[j];
+						if (blocks[i] != null || ignored[i]) continue;
+						long offset = candidates[j] >>> 32;
+						Entry entry;
+						try {
+							entry = readEntry(offset, digestedKeys[i], routingKeys[i], true, probeBuffers.get().recycledEntry());
+						} catch (EOFException e) {
+							if (prevStoreSize == 0) // may occur on store shrinking
+								Logger.error(this, "EOFException on fetchMultiple", e);
+							continue;
+						}
+						if (entry == null) continue;
+						if ((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && ignoreOldBlocks) {
+							Logger.normal(this, "Ignoring old block");
+							ignored[i] = true;
+							continue;
+						}
+						try {
+							T block = entry.getStorableBlock(routingKeys[i], fullKeys == null ? null : fullKeys[i], canReadClientCache, canReadSlashdotCache, null, null);
+							if (block != null) {
+								blocks[i] = block;
+								found++;
+							}
+						} catch (KeyVerifyException e) {
+							Logger.minor(this, "key verification exception", e);
+						}
+					}
+				} finally {
+					unlockDigestedKey(lockSet);
+				}
 			}
+
+			hits.addAndGet(found);
+			for (int i = 0; i < count; i++) {
+				if (digestedKeys[i] != null && blocks[i] == null && !ignored[i])
+					misses.incrementAndGet();
+			}
+			return found;
 		} finally {
 			configLock.readLock().unlock();
 		}
 	}
 
+	/** Add the slots which might hold a key to the list of slots to read, leaving out those which
+	 * the slot filter says don't. */
+	private int addCandidateSlots(byte[] digestedKey, int index, long probeStoreSize, long[] offsets, long[] candidates, int candidateCount) {
+		getOffsetFromDigestedKey(digestedKey, probeStoreSize, offsets);
+		for (long offset : offsets) {
+			if (storeFileOffsetReady != -1 && offset >= storeFileOffsetReady) continue;
+			if (USE_SLOT_FILTER && !slotFilterDisabled && offset < Integer.MAX_VALUE) {
+				int cache = slotFilter.get((int) offset);
+				if ((cache & SLOT_CHECKED) != 0 && !slotCacheLikelyMatch(cache, digestedKey)) continue;
+			}
+			candidates[candidateCount++] = (offset << 32) | index;
+		}
+		return candidateCount;
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -374,18 +499,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private Entry probeEntry(byte[] digestedKey, byte[] routingKey, boolean withData) throws IOException {
+		return probeEntry(digestedKey, routingKey, withData, null);
+	}
+
+	/**
+	 * @param reuse If not null, the Entry to load into rather than allocating one.
+	 */
+	private Entry probeEntry(byte[] digestedKey, byte[] routingKey, boolean withData, Entry reuse) throws IOException {
 		
-		Entry entry = probeEntry0(digestedKey, routingKey, storeSize, withData);
+		Entry entry = probeEntry0(digestedKey, routingKey, storeSize, withData, reuse);
 
 		if (entry == null && prevStoreSize != 0)
-			entry = probeEntry0(digestedKey, routingKey, prevStoreSize, withData);
+			entry = probeEntry0(digestedKey, routingKey, prevStoreSize, withData, reuse);
 
 		return entry;
 	}
 
-	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData) throws IOException {
+	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData, Entry reuse) throws IOException {
 		Entry entry = null;
-		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize);
+		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize, probeBuffers.get().offsets);
 
 		for (int i = 0; i < offset.length; i++) {
 			if (logDEBUG)
@@ -393,7 +525,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			try {
 				if(storeFileOffsetReady == -1 || offset[i] < this.storeFileOffsetReady) {
-					entry = readEntry(offset[i], digestedKey, routingKey, withData);
+					entry = readEntry(offset[i], digestedKey, routingKey, withData, reuse);
 					if (entry != null)
 						return entry;
 				}
@@ -431,8 +563,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
-			if (lockMap == null) {
+			LockManager.LockSet lockSet = lockDigestedKey(digestedKey, false);
+			if (lockSet == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
@@ -548,7 +680,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				onWrite();
 				return true;
 			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+				unlockDigestedKey(lockSet);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -569,6 +701,48 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	/** Memory mapped views of the metadata and header+data files, if enabled.
+	 * Only changed while holding the configLock write lock. */
+	private volatile MappedStoreFile metaMap;
+	private volatile MappedStoreFile hdMap;
+	/** Queue of writes not yet on disk, if write-behind is enabled.
+	 * Only changed while holding the configLock write lock. */
+	private volatile WriteBehindQueue writeQueue;
+
+	/**
+	 * Per-thread scratch space for reading and writing entries. Every fetch goes through
+	 * here, so on a large store allocating fresh buffers for each probe adds up to a lot of
+	 * garbage.
+	 *
+	 * The header and data buffer is direct. A FileChannel reads into or writes from a heap
+	 * buffer by way of a temporary direct buffer, so this saves copying the whole block once
+	 * on every read and write. The block is copied once more, into the Entry, because it
+	 * must be decrypted and outlive the buffer.
+	 */
+	private final class ProbeBuffers {
+		final ByteBuffer meta = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+		final ByteBuffer hd = ByteBuffer.allocateDirect(headerBlockLength + dataBlockLength + hdPadding);
+		final long[] offsets = new long[OPTION_MAX_PROBE];
+		/** Stripes locked by lockDigestedKey(), for the current and previous store size. */
+		final LockManager.LockSet lockSet = new LockManager.LockSet(OPTION_MAX_PROBE * 2);
+		private final Entry entry = new Entry();
+		private final byte[] digestedRoutingKey = new byte[0x20];
+		private final byte[] dataEncryptIV = new byte[0x10];
+
+		/** Get the recycled Entry for this thread. Only valid until the next call. */
+		Entry recycledEntry() {
+			entry.digestedRoutingKey = digestedRoutingKey;
+			entry.dataEncryptIV = dataEncryptIV;
+			return entry;
+		}
+	}
+
+	private final ThreadLocal<ProbeBuffers> probeBuffers = new ThreadLocal<ProbeBuffers>() {
+		@Override
+		protected ProbeBuffers initialValue() {
+			return new ProbeBuffers();
+		}
+	};
 
 	/**
 	 * Data entry
@@ -609,6 +783,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		/** Control block length */
 		private static final int METADATA_LENGTH = 0x80;
+		/** Position of the flags within the control block */
+		private static final int FLAG_POSITION = 0x30;
 
 		byte[] plainRoutingKey;
 		byte[] digestedRoutingKey;
@@ -626,12 +802,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		private Entry(ByteBuffer metaDataBuf, ByteBuffer hdBuf) {
+			digestedRoutingKey = new byte[0x20];
+			dataEncryptIV = new byte[0x10];
+			load(metaDataBuf);
+
+			if (hdBuf != null)
+				setHD(hdBuf);
+		}
+
+		/**
+		 * (Re)initialise from a metadata block, reusing the digestedRoutingKey and
+		 * dataEncryptIV arrays. Used directly to recycle the per-thread Entry on the
+		 * fetch path.
+		 */
+		private void load(ByteBuffer metaDataBuf) {
 			assert metaDataBuf.remaining() == METADATA_LENGTH;
+			int start = metaDataBuf.position();
 
-			digestedRoutingKey = new byte[0x20];
 			metaDataBuf.get(digestedRoutingKey);
-
-			dataEncryptIV = new byte[0x10];
 			metaDataBuf.get(dataEncryptIV);
 
 			flag = metaDataBuf.getLong();
@@ -640,15 +828,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if ((flag & ENTRY_FLAG_PLAINKEY) != 0) {
 				plainRoutingKey = new byte[0x20];
 				metaDataBuf.get(plainRoutingKey);
-			}
+			} else
+				plainRoutingKey = null;
 
-			metaDataBuf.position(0x60);
+			metaDataBuf.position(start + 0x60);
 			generation = metaDataBuf.getInt();
 
+			header = null;
+			data = null;
 			isEncrypted = true;
-
-			if (hdBuf != null)
-				setHD(hdBuf);
+			curOffset = -1;
 		}
 
 		/**
@@ -698,8 +887,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			isEncrypted = false;
 		}
 
+		/**
+		 * Serialise the metadata block. The returned buffer is per-thread scratch
+		 * space, so it must be consumed before anything else reads or writes an entry.
+		 */
 		private ByteBuffer toMetaDataBuffer() {
-			ByteBuffer out = ByteBuffer.allocate(METADATA_LENGTH);
+			ByteBuffer out = probeBuffers.get().meta;
+			out.clear();
 			cipherManager.encrypt(this, random);
 
 			out.put(getDigestedRoutingKey());
@@ -712,13 +906,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				out.put(plainRoutingKey);
 			}
 
-			out.position(0x60);
+			while (out.position() < 0x60)
+				out.put((byte) 0);
 			out.putInt(generation);
+			while (out.hasRemaining())
+				out.put((byte) 0);
 
 			out.position(0);
 			return out;
 		}
 
+		/**
+		 * Serialise the header and data. As with toMetaDataBuffer(), the returned buffer
+		 * is per-thread scratch space.
+		 */
 		private ByteBuffer toHDBuffer() {
 			assert isEncrypted; // should have encrypted to get dataEncryptIV in control buffer
 			assert header.length == headerBlockLength;
@@ -727,9 +928,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if (header == null || data == null)
 				return null;
 
-			ByteBuffer out = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+			ByteBuffer out = probeBuffers.get().hd;
+			out.clear();
 			out.put(header);
 			out.put(data);
+			// Don't write whatever was read last into the padding.
+			while (out.hasRemaining())
+				out.put((byte) 0);
 
 			out.position(0);
 			return out;
@@ -773,16 +978,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		public int getSlotFilterEntry(byte[] digestedRoutingKey, long flags) {
-			int value = (digestedRoutingKey[2] & 0xFF) + ((digestedRoutingKey[1] & 0xFF) << 8) +
-				((digestedRoutingKey[0] & 0xFF) << 16);
-			value |= SLOT_CHECKED;
-			if((flags & ENTRY_FLAG_OCCUPIED) != 0)
-				value |= SLOT_OCCUPIED;
-			if((flags & ENTRY_NEW_BLOCK) != 0)
-				value |= SLOT_NEW_BLOCK;
-			if((flags & ENTRY_WRONG_STORE) != 0)
-				value |= SLOT_WRONG_STORE;
-			return value;
+			return SaltedHashFreenetStore.this.getSlotFilterEntry(digestedRoutingKey[0], digestedRoutingKey[1],
+					digestedRoutingKey[2], flags);
 		}
 		
 		public int getSlotFilterEntry() {
@@ -842,6 +1039,61 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return newStore;
 	}
 
+	/** Maximum number of slots to re-read at startup after an unclean shutdown. */
+	private static final int MAX_BLOCKING_RECOVERY = 65536;
+
+	/**
+	 * After an unclean shutdown, the slot filter may be missing changes made since it was last
+	 * written. Its journal tells us which pages may be out of date, so re-read the metadata for
+	 * just those slots, rather than rebuilding the whole filter. Called from the constructor, so
+	 * no locking is needed.
+	 *
+	 * @return <code>false</code> if there is no journal, or it lists so much of the store that
+	 *         a full rebuild in the background is better than holding up startup.
+	 */
+	private boolean recoverSlotFilter() {
+		int[] pages = slotFilter.getJournalledPages();
+		if(pages == null) return false;
+		int pageSize = ResizablePersistentIntBuffer.PAGE_INTS;
+		int filterSize = slotFilter.size();
+		// Reading the metadata is quick for a small store, but otherwise a quarter of it at
+		// startup is too slow, the rebuild can do it in the background.
+		if((long)pages.length * pageSize > Math.max(filterSize / 4, MAX_BLOCKING_RECOVERY)) {
+			System.err.println("Too much of the slot filter for " + name + " was not written, rebuilding it");
+			return false;
+		}
+		try {
+			long metaSlots = metaFC.size() / Entry.METADATA_LENGTH;
+			ByteBuffer buf = ByteBuffer.allocate(Entry.METADATA_LENGTH * pageSize);
+			for(int page : pages) {
+				long start = (long)page * pageSize;
+				int count = (int)Math.min(pageSize, filterSize - start);
+				int onDisk = (int)Math.max(0, Math.min(count, metaSlots - start));
+				buf.clear();
+				buf.limit(onDisk * Entry.METADATA_LENGTH);
+				while(buf.hasRemaining()) {
+					if(metaFC.read(buf, start * Entry.METADATA_LENGTH + buf.position()) == -1)
+						throw new EOFException();
+				}
+				for(int i = 0; i < count; i++) {
+					int cache = SLOT_CHECKED; // Past the end of the file, so free.
+					if(i < onDisk) {
+						int pos = i * Entry.METADATA_LENGTH;
+						cache = getSlotFilterEntry(buf.get(pos), buf.get(pos + 1), buf.get(pos + 2),
+						        buf.getLong(pos + Entry.FLAG_POSITION));
+					}
+					slotFilter.put((int)(start + i), cache, true);
+				}
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Unable to recover slot filter for " + name + ": " + e, e);
+			return false;
+		}
+		slotFilter.forceWrite();
+		System.err.println("Recovered slot filter for " + name + " from its journal (" + pages.length + " pages)");
+		return true;
+	}
+
 	/**
 	 * Read entry from disk. Before calling this function, you should acquire all required locks.
 	 *
@@ -849,6 +1101,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *         the key does not match the entry.
 	 */
 	private Entry readEntry(long offset, byte[] digestedRoutingKey, byte[] routingKey, boolean withData) throws IOException {
+		return readEntry(offset, digestedRoutingKey, routingKey, withData, null);
+	}
+
+	/**
+	 * Read entry from disk. Before calling this function, you should acquire all required locks.
+	 *
+	 * The key is compared against the metadata in the per-thread buffer, so a slot which does
+	 * not match does not allocate anything.
+	 *
+	 * @param reuse If not null, load the entry into this object rather than allocating a new
+	 *        one. See {@link ProbeBuffers#recycledEntry()}.
+	 * @return <code>null</code> if and only if <code>routingKey</code> is not <code>null</code> and
+	 *         the key does not match the entry.
+	 */
+	private Entry readEntry(long offset, byte[] digestedRoutingKey, byte[] routingKey, boolean withData, Entry reuse) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		int cache = 0;
 		boolean validCache = false;
@@ -865,22 +1132,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+		ByteBuffer mbf = probeBuffers.get().meta;
+		mbf.clear();
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
+		WriteBehindQueue queue = writeQueue;
+		MappedStoreFile map = metaMap;
+		if((queue == null || !queue.readMetaData(offset, mbf)) && (map == null || !map.read(offset, mbf))) {
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+		}
 		mbf.flip();
 
-		Entry entry = new Entry(mbf, null);
-		entry.curOffset = offset;
-
-		byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
-		int trueCache = entry.getSlotFilterEntry();
+		long entryFlag = mbf.getLong(Entry.FLAG_POSITION);
+		int trueCache = getSlotFilterEntry(mbf, entryFlag);
 		if(trueCache != cache && !slotFilterDisabled) {
 			if(validCache)
 				Logger.error(this, "Slot cache has changed for slot "+offset+" from "+cache+" to "+trueCache);
@@ -888,7 +1157,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		
 		if (routingKey != null) {
-			if (entry.isFree()) {
+			if ((entryFlag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
 				if(validCache && !likelyMatch && !slotCacheIsFree(cache)) {
 					Logger.error(this, "Slot falsely identified as non-free on slot "+offset+" cache was "+cache);
 					bloomFalsePos.incrementAndGet();
@@ -896,7 +1165,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					Logger.minor(this, "True negative!");
 				return null;
 			}
-			if (!Arrays.equals(digestedRoutingKey, slotDigestedRoutingKey)) {
+			if (!digestedKeyEquals(mbf, digestedRoutingKey)) {
 				if(validCache && likelyMatch) {
 					Logger.normal(this, "False positive from slot cache on slot "+offset+" cache was "+cache);
 					bloomFalsePos.incrementAndGet();
@@ -909,40 +1178,80 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				Logger.error(this, "False NEGATIVE from slot cache on slot "+offset+" cache was "+cache);
 				bloomFalsePos.incrementAndGet();
 			}
+		}
 
-			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
-				boolean decrypted = cipherManager.decrypt(entry, routingKey);
-				if (!decrypted) {
-					if(logMINOR && validCache && likelyMatch)
-						Logger.minor(this, "True positive but decrypt failed on slot "+offset+" cache was "+cache);
-					return null;
-				} else {
-					if(logMINOR && validCache && likelyMatch)
-						Logger.minor(this, "True positive!");
-				}
+		Entry entry;
+		if(reuse != null) {
+			entry = reuse;
+			entry.load(mbf);
+		} else
+			entry = new Entry(mbf, null);
+		entry.curOffset = offset;
+
+		if (routingKey != null && withData) {
+			ByteBuffer hdBuf = readHD(offset);
+			entry.setHD(hdBuf);
+			boolean decrypted = cipherManager.decrypt(entry, routingKey);
+			if (!decrypted) {
+				if(logMINOR && validCache && likelyMatch)
+					Logger.minor(this, "True positive but decrypt failed on slot "+offset+" cache was "+cache);
+				return null;
+			} else {
+				if(logMINOR && validCache && likelyMatch)
+					Logger.minor(this, "True positive!");
 			}
 		}
 
 		return entry;
 	}
 
+	/** Compare the digested routing key at the start of a metadata block with the given
+	 * key, without copying it out of the buffer. */
+	private static boolean digestedKeyEquals(ByteBuffer metaDataBuf, byte[] digestedRoutingKey) {
+		if(digestedRoutingKey.length != 0x20) return false;
+		for(int i=0;i<0x20;i++)
+			if(metaDataBuf.get(i) != digestedRoutingKey[i]) return false;
+		return true;
+	}
+
+	/** Compute the slot filter entry for a metadata block, without decoding it. */
+	private int getSlotFilterEntry(ByteBuffer metaDataBuf, long flags) {
+		return getSlotFilterEntry(metaDataBuf.get(0), metaDataBuf.get(1), metaDataBuf.get(2), flags);
+	}
+
+	private int getSlotFilterEntry(byte b0, byte b1, byte b2, long flags) {
+		int value = (b2 & 0xFF) + ((b1 & 0xFF) << 8) + ((b0 & 0xFF) << 16);
+		value |= SLOT_CHECKED;
+		if((flags & Entry.ENTRY_FLAG_OCCUPIED) != 0)
+			value |= SLOT_OCCUPIED;
+		if((flags & Entry.ENTRY_NEW_BLOCK) != 0)
+			value |= SLOT_NEW_BLOCK;
+		if((flags & Entry.ENTRY_WRONG_STORE) != 0)
+			value |= SLOT_WRONG_STORE;
+		return value;
+	}
+
 	/**
-	 * Read header + data from disk
+	 * Read header + data from disk. The returned buffer is per-thread scratch space, so it
+	 * must be consumed (e.g. by Entry.setHD()) before reading anything else.
 	 *
 	 * @param offset
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
-
-		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-		do {
-			int status = hdFC.read(buf, pos + buf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (buf.hasRemaining());
+		ByteBuffer buf = probeBuffers.get().hd;
+		buf.clear();
+
+		WriteBehindQueue queue = writeQueue;
+		MappedStoreFile map = hdMap;
+		if((queue == null || !queue.readHD(offset, buf)) && (map == null || !map.read(offset, buf))) {
+			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+			do {
+				int status = hdFC.read(buf, pos + buf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (buf.hasRemaining());
+		}
 		buf.flip();
 
 		return buf;
@@ -1001,27 +1310,97 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
-
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null) {
+			queue.add(offset, bf, entry.toHDBuffer());
+			entry.curOffset = offset;
+			return;
+		}
+		MappedStoreFile map = metaMap;
+		if (map == null || !map.write(offset, bf)) {
 			do {
-				int status = hdFC.write(bf, pos + bf.position());
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 				if (status == -1)
 					throw new EOFException();
 			} while (bf.hasRemaining());
 		}
 
+		bf = entry.toHDBuffer();
+		if (bf != null) {
+			map = hdMap;
+			if (map == null || !map.write(offset, bf)) {
+				long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+				do {
+					int status = hdFC.write(bf, pos + bf.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (bf.hasRemaining());
+			}
+		}
+
 		entry.curOffset = offset;
 	}
 
+	/** Writes the slots queued by the write-behind queue. Runs of slots are written with a
+	 * single gathering write, or through the memory mapping if there is one. */
+	private final class QueuedSlotWriter implements WriteBehindQueue.SlotWriter {
+
+		@Override
+		public void writeMetaData(long firstSlot, ByteBuffer[] bufs, int count) throws IOException {
+			write(metaMap, metaFC, Entry.METADATA_LENGTH, firstSlot, bufs, count);
+		}
+
+		@Override
+		public void writeHD(long firstSlot, ByteBuffer[] bufs, int count) throws IOException {
+			write(hdMap, hdFC, headerBlockLength + dataBlockLength + hdPadding, firstSlot, bufs, count);
+		}
+
+		private void write(MappedStoreFile map, FileChannel fc, long slotLength, long firstSlot, ByteBuffer[] bufs, int count) throws IOException {
+			if (map != null) {
+				int i = 0;
+				while (i < count && map.write(firstSlot + i, bufs[i]))
+					i++;
+				if (i == count)
+					return;
+				// Not mapped, e.g. beyond the end of the mapping. Write the rest normally.
+				firstSlot += i;
+				System.arraycopy(bufs, i, bufs, 0, count - i);
+				count -= i;
+			}
+			long remaining = 0;
+			for (int i = 0; i < count; i++)
+				remaining += bufs[i].remaining();
+			// Only the writer thread uses the channel position, all other I/O is positional.
+			synchronized (fc) {
+				fc.position(firstSlot * slotLength);
+				while (remaining > 0) {
+					long written = fc.write(bufs, 0, count);
+					if (written < 0)
+						throw new EOFException();
+					remaining -= written;
+				}
+			}
+		}
+	}
+
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if (writeQueue != null) {
+			writeQueue.close();
+			writeQueue = null;
+		}
+		if (metaMap != null || hdMap != null) {
+			try {
+				if (metaMap != null)
+					metaMap.force();
+				if (hdMap != null)
+					hdMap.force();
+			} catch (Exception e) {
+				Logger.error(this, "error flushing memory mapped store", e);
+			}
+			metaMap = null;
+			hdMap = null;
+		}
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1050,6 +1429,101 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.preallocate = preallocate;
 	}
 
+	/**
+	 * Access the store files through memory mappings rather than read/write calls. This
+	 * avoids a system call and a buffer copy on every probe, but uses a lot of address space
+	 * (the whole store eventually), so should only be used on 64-bit JVMs.
+	 * @param memoryMapped
+	 */
+	public void setMemoryMapped(boolean memoryMapped) throws IOException {
+		configLock.writeLock().lock();
+		try {
+			if (shutdown || memoryMapped == (metaMap != null))
+				return;
+			if (memoryMapped) {
+				metaMap = new MappedStoreFile(name + ".metadata", metaFC, Entry.METADATA_LENGTH);
+				hdMap = new MappedStoreFile(name + ".hd", hdFC, headerBlockLength + dataBlockLength + hdPadding);
+			} else {
+				metaMap.force();
+				hdMap.force();
+				metaMap = null;
+				hdMap = null;
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
+	public boolean isMemoryMapped() {
+		return metaMap != null;
+	}
+
+	/**
+	 * Queue writes and write them to disk on a separate thread, so put() doesn't have to wait
+	 * for the disk. Writes to the same slot are merged, and they are written in batches in
+	 * file order. If the queue is full, put() will wait.
+	 * @param maxQueuedSlots The maximum number of slots waiting to be written. 0 to write
+	 * synchronously.
+	 */
+	public void setWriteQueueSize(int maxQueuedSlots) {
+		configLock.writeLock().lock();
+		try {
+			WriteBehindQueue queue = writeQueue;
+			if (shutdown || (queue == null ? 0 : queue.capacity()) == maxQueuedSlots)
+				return;
+			if (queue != null) {
+				writeQueue = null;
+				queue.close();
+			}
+			if (maxQueuedSlots > 0) {
+				queue = new WriteBehindQueue(name, new QueuedSlotWriter(), maxQueuedSlots);
+				queue.start();
+				writeQueue = queue;
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Set the length of the store files, dropping any memory mappings beyond the new length
+	 * first, since touching a mapped page beyond the end of the file would crash the JVM.
+	 */
+	private void setFileLengths(long newMetaLen, long newHdLen) throws IOException {
+		boolean shrinking = newMetaLen < metaRAF.length() || newHdLen < hdRAF.length();
+		if (shrinking)
+			configLock.writeLock().lock();
+		try {
+			MappedStoreFile meta = metaMap;
+			MappedStoreFile hd = hdMap;
+			if (shrinking) {
+				// Nobody else can be queueing writes while we hold the write lock, but the
+				// write-behind thread doesn't take it. Drop the writes to the slots we are about to
+				// remove and write the rest now, so that it can't extend the files again or write to
+				// a mapping we are about to drop.
+				WriteBehindQueue queue = writeQueue;
+				if (queue != null) {
+					queue.dropFrom(newMetaLen / Entry.METADATA_LENGTH);
+					queue.flush();
+				}
+				// Nobody else can be accessing the store while we hold the write lock.
+				if (meta != null)
+					meta.setLength(Math.min(newMetaLen, metaRAF.length()));
+				if (hd != null)
+					hd.setLength(Math.min(newHdLen, hdRAF.length()));
+			}
+			metaRAF.setLength(newMetaLen);
+			hdRAF.setLength(newHdLen);
+			if (meta != null)
+				meta.setLength(newMetaLen);
+			if (hd != null)
+				hd.setLength(newHdLen);
+		} finally {
+			if (shrinking)
+				configLock.writeLock().unlock();
+		}
+	}
+
 	/**
 	 * Change on disk store file size
 	 *
@@ -1115,8 +1589,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
-			hdRAF.setLength(newHdLen);
+			setFileLengths(newMetaLen, newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1212,12 +1685,6 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
-					if (((flags & FLAG_DIRTY) != 0) && 
-							// FIXME figure out a way to do this consistently!
-							// Not critical as a few blocks wrong is something we can handle.
-							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
-						flags |= FLAG_REBUILD_BLOOM;
-
 					try {
 						raf.readInt(); // bloomFilterK
 						raf.readInt(); // reserved
@@ -1232,6 +1699,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						initialMisses = misses.get();
 						bloomFalsePos.set(raf.readLong());
 						initialBloomFalsePos = bloomFalsePos.get();
+						resizeCheckpoint = raf.readLong();
+						rebuildCheckpoint = raf.readLong();
 					} catch (EOFException e) {
 						// Ignore, back compatibility.
 					}
@@ -1281,6 +1750,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeLong(hits.get());
 			raf.writeLong(misses.get());
 			raf.writeLong(bloomFalsePos.get());
+			raf.writeLong(resizeCheckpoint);
+			raf.writeLong(rebuildCheckpoint);
 
 			raf.getFD().sync();
 			raf.close();
@@ -1295,6 +1766,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Store resizing
 	private long prevStoreSize = 0;
+	/** Entries from here to prevStoreSize have been resized, or -1 if the resize hasn't
+	 * started. Saved so an interrupted resize can carry on where it stopped. */
+	private long resizeCheckpoint = -1;
+	/** Entries before here have been processed by the slot filter rebuild in progress. */
+	private long rebuildCheckpoint = 0;
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
@@ -1303,11 +1779,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private final Entry NOT_MODIFIED = new Entry();
 
+	/**
+	 * Processes the entries in the store. Several threads may be calling process() and batch()
+	 * at the same time, on different parts of the store.
+	 */
 	private interface BatchProcessor<T extends StorableBlock> {
-		// initialize
-		void init();
+		// initialize. If resuming, part of the store was processed before a restart.
+		void init(boolean resuming);
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// call this after reading RESIZE_MEMORY_ENTRIES entries, from the same thread
+		// entriesLeft is the number of entries which have not been processed yet, not
+		// counting those processed out of order.
 		// return false to abort
 		boolean batch(long entriesLeft);
 
@@ -1322,6 +1804,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		/** Does this batch processor want to see free entries? */
 		boolean wantFreeEntries();
+
+		/** Called before progress is saved to the config file. */
+		void checkpoint();
 	}
 
 	private class Cleaner extends NativeThread {
@@ -1412,19 +1897,23 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Resizing datastore "+name);
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
-				Deque<Entry> oldEntryList = new LinkedList<Entry>();
+				/** Entries removed from their old slots but not yet put back. Shared between
+				 * the workers, which come and go, so that finish() sees whatever is left. */
+				final Deque<Entry> oldEntryList = new LinkedList<Entry>();
 
 				@Override
-				public void init() {
+				public void init(boolean resuming) {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize, false);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resuming) {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1457,48 +1946,74 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.poll();
+						synchronized (oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * MAX_WORKERS)
+								oldEntryList.poll();
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
 					return null;
 				}
 
-				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
-						writeConfigFile();
-
 					// shrink data file to current size
-					if (storeSize < _prevStoreSize)
-						setStoreFileSize(Math.max(storeSize, entriesLeft), false);
-
-					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
-					while (it.hasNext())
-						if (resolveOldEntry(it.next()))
-							it.remove();
+					if (storeSize < _prevStoreSize) {
+						synchronized (this) {
+							setStoreFileSize(Math.max(storeSize, entriesLeft), false);
+						}
+					}
 
+					resolveOldEntries();
 					return _prevStoreSize == prevStoreSize;
 				}
 
+				/** Try to put back the entries waiting in oldEntryList.
+				 * @return The number which still could not be placed. */
+				private int resolveOldEntries() {
+					List<Entry> entries;
+					synchronized (oldEntryList) {
+						entries = new ArrayList<Entry>(oldEntryList);
+						oldEntryList.clear();
+					}
+					int left = 0;
+					for (Entry entry : entries) {
+						if (!resolveOldEntry(entry)) {
+							left++;
+							synchronized (oldEntryList) {
+								oldEntryList.add(entry);
+							}
+						}
+					}
+					return left;
+				}
+
 				@Override
 				public void abort() {
 					// Do nothing
 				}
 
+				@Override
+				public void checkpoint() {
+					// Nothing to do. Entries waiting to be put back are lost on restart anyway.
+				}
+
 				@Override
 				public void finish() {
+					// Every worker has finished, so nothing else touches oldEntryList now.
+					int left = resolveOldEntries();
+					if (left > 0)
+						Logger.normal(this, "Dropped " + left + " entries which could not be placed after resizing " + name);
 					configLock.writeLock().lock();
 					try {
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						prevStoreSize = 0;
+						resizeCheckpoint = -1;
 						if(!slotFilterDisabled) {
 							if(slotFilter.size() != (int)storeSize)
 								slotFilter.resize((int)storeSize);
@@ -1520,7 +2035,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, resizeCheckpoint);
 		}
 		
 		/**
@@ -1532,12 +2047,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
-				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+				public void init(boolean resuming) {
+					if (!resuming) {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1564,20 +2081,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 				
-				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
-
-					if (i++ % 16 == 0)
-						writeConfigFile();
-					if (i++ % 1024 == 0) {
-						if(!slotFilterDisabled)
-							slotFilter.forceWrite();
-					}
-					
 					return prevStoreSize == 0;
 				}
+
+				@Override
+				public void checkpoint() {
+					// The checkpoint is only valid if the slot filter is on disk.
+					if(!slotFilterDisabled)
+						slotFilter.forceWrite();
+				}
 				
 				@Override
 				public void abort() {
@@ -1590,6 +2105,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						rebuildCheckpoint = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1603,59 +2119,257 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, rebuildCheckpoint);
 		}
 
 
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		/** The resize or rebuild in progress, if any. */
+		private volatile BatchRun currentRun;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			
-			entriesLeft = entriesTotal = storeSize;
+		/** Number of entries handed to a worker thread at a time. Each worker reads its chunk
+		 * in order, so the disk sees a few long sequential runs rather than random reads. */
+		private static final int CHUNK_ENTRIES = RESIZE_MEMORY_ENTRIES * 16;
+		/** Maximum number of threads to resize or rebuild with. */
+		private static final int MAX_WORKERS = 4;
+		/** How often to save progress to the config file. */
+		private static final long CHECKPOINT_PERIOD = 30 * 1000; // 30 seconds
 
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+		/**
+		 * Process every entry in the store, splitting the work between several threads.
+		 *
+		 * @param storeSize Number of entries to process.
+		 * @param reverse Process from the end of the store down to the beginning, so that it
+		 *        can be truncated as we go.
+		 * @param sleep Pause between chunks so as not to slow down the node too much.
+		 * @param checkpoint Where we got to before the last restart, as saved by
+		 *        {@link BatchRun#saveCheckpoint()}, or -1 to start from the beginning.
+		 */
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, long checkpoint) {
+			BatchRun run = new BatchRun(processor, storeSize, reverse, sleep, checkpoint);
+			currentRun = run;
+			try {
+				run.run();
+			} finally {
+				currentRun = null;
 			}
+		}
 
-			int i = 0;
-			processor.init();
-			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
-					}
+		/**
+		 * One pass over the store. The store is split into chunks which are handed out to the
+		 * workers in order. Progress is saved as the point up to which every chunk has been
+		 * processed, so if we are restarted, anything which was in progress is done again.
+		 */
+		private final class BatchRun {
+			private final BatchProcessor<T> processor;
+			private final long size;
+			private final boolean reverse;
+			private final boolean sleep;
+			private final long chunkCount;
+			/** Chunks which were processed before a restart. */
+			private final long firstChunk;
+			/** Next chunk to give to a worker. Chunks are counted in processing order. */
+			private long nextChunk;
+			/** Chunks being processed or which failed. */
+			private final SortedSet<Long> unfinished = new TreeSet<Long>();
+			private long entriesDone;
+			private boolean failed;
+			private long lastCheckpoint;
+			private int chunksSinceStatus;
+			private final long startTime;
+			/** Entries processed since we started, not counting those done before a restart. */
+			private final AtomicLong entriesProcessed = new AtomicLong();
+
+			BatchRun(BatchProcessor<T> processor, long size, boolean reverse, boolean sleep, long checkpoint) {
+				this.processor = processor;
+				this.size = size;
+				this.reverse = reverse;
+				this.sleep = sleep;
+				this.chunkCount = (size + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES;
+				long first = 0;
+				if (checkpoint >= 0 && checkpoint <= size) {
+					// Round towards doing more work, in case CHUNK_ENTRIES has changed.
+					if (reverse)
+						first = chunkCount - (checkpoint + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES;
+					else
+						first = checkpoint / CHUNK_ENTRIES;
+				}
+				firstChunk = nextChunk = first;
+				entriesDone = reverse ? size - boundary(first) : boundary(first);
+				startTime = lastCheckpoint = System.currentTimeMillis();
+			}
 
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+			void run() {
+				entriesTotal = size;
+				entriesLeft = size - entriesDone;
+				if (firstChunk > 0) {
+					Logger.normal(this, "Resuming " + name + " cleaner at " + entriesDone + "/" + size);
+					System.err.println("Resuming " + name + " cleaner at " + entriesDone + "/" + size);
+				}
+				try {
+					processor.init(firstChunk > 0);
+					saveCheckpoint();
+
+					int workers = (int) Math.max(1, Math.min(chunkCount - firstChunk, MAX_WORKERS));
+					Thread[] threads = new Thread[workers - 1];
+					for (int i = 0; i < threads.length; i++) {
+						threads[i] = new NativeThread("Store-" + name + "-Cleaner-" + (i + 1), NativeThread.LOW_PRIORITY, false) {
+							@Override
+							public void realRun() {
+								runWorker();
+							}
+						};
+						threads[i].setDaemon(true);
+						threads[i].start();
+					}
+					runWorker();
+					for (Thread t : threads) {
+						while (t.isAlive()) {
+							try {
+								t.join();
+							} catch (InterruptedException e) {
+								// Workers will notice shutdown.
+							}
+						}
+					}
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
+					if (shutdown || hasFailed()) {
+						saveCheckpoint();
 						processor.abort();
 						return;
 					}
+					processor.finish();
+				} catch (Exception e) {
+					Logger.error(this, "Caught: "+e+" while shrinking", e);
+					processor.abort();
+				}
+			}
 
+			private void runWorker() {
+				while (true) {
+					long chunk;
+					synchronized (this) {
+						if (failed || shutdown || nextChunk >= chunkCount)
+							return;
+						chunk = nextChunk++;
+						unfinished.add(chunk);
+					}
+					boolean success;
+					try {
+						success = processChunk(chunk);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught " + t + " in cleaner for " + name, t);
+						success = false;
+					}
+					boolean checkpoint;
+					synchronized (this) {
+						if (!success) {
+							// Leave it in unfinished so the checkpoint doesn't go past it.
+							failed = true;
+							return;
+						}
+						unfinished.remove(chunk);
+						entriesDone += chunkLength(chunk);
+						entriesLeft = size - entriesDone;
+						long now = System.currentTimeMillis();
+						checkpoint = now - lastCheckpoint > CHECKPOINT_PERIOD;
+						if (checkpoint)
+							lastCheckpoint = now;
+						if (chunksSinceStatus++ % 8 == 0)
+							System.err.println(name + " cleaner in progress: " + entriesDone + "/" + size
+							        + " (" + entriesPerSecond() + " entries/second)");
+					}
+					if (checkpoint)
+						saveCheckpoint();
 					try {
 						if (sleep)
 							Thread.sleep(100);
 					} catch (InterruptedException e) {
-						processor.abort();
+						synchronized (this) {
+							failed = true;
+						}
 						return;
 					}
 				}
-				processor.finish();
-			} catch (Exception e) {
-				Logger.error(this, "Caught: "+e+" while shrinking", e);
-				processor.abort();
+			}
+
+			/** First entry in a chunk. */
+			private long chunkStart(long chunk) {
+				return (reverse ? chunkCount - 1 - chunk : chunk) * CHUNK_ENTRIES;
+			}
+
+			private long chunkLength(long chunk) {
+				return Math.min(CHUNK_ENTRIES, size - chunkStart(chunk));
+			}
+
+			private boolean processChunk(long chunk) {
+				long start = chunkStart(chunk);
+				long end = start + chunkLength(chunk);
+				long step = reverse ? -RESIZE_MEMORY_ENTRIES : RESIZE_MEMORY_ENTRIES;
+				long first = reverse ? ((end - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES : start;
+				for (long curOffset = first; curOffset >= start && curOffset < end; curOffset += step) {
+					if (shutdown)
+						return false;
+					int length = (int) Math.min(RESIZE_MEMORY_ENTRIES, end - curOffset);
+					batchProcessEntries(curOffset, length, processor);
+					entriesProcessed.addAndGet(length);
+					long boundary = getBoundary();
+					if (!processor.batch(reverse ? boundary : size - boundary))
+						return false;
+				}
+				return true;
+			}
+
+			/**
+			 * Everything before (or, if reverse, from) this offset has been processed, once the
+			 * given number of chunks have been completed in order.
+			 */
+			private long boundary(long chunks) {
+				if (reverse)
+					return Math.max(0, Math.min(size, (chunkCount - chunks) * CHUNK_ENTRIES));
+				else
+					return Math.min(size, chunks * CHUNK_ENTRIES);
+			}
+
+			/** Everything before (or, if reverse, from) this offset has been processed. */
+			private synchronized long getBoundary() {
+				return boundary(unfinished.isEmpty() ? nextChunk : unfinished.first());
+			}
+
+			/** Save progress to the config file. */
+			private void saveCheckpoint() {
+				processor.checkpoint();
+				long boundary = getBoundary();
+				configLock.writeLock().lock();
+				try {
+					if (reverse)
+						resizeCheckpoint = boundary;
+					else
+						rebuildCheckpoint = boundary;
+					writeConfigFile();
+				} finally {
+					configLock.writeLock().unlock();
+				}
+			}
+
+			private synchronized boolean hasFailed() {
+				return failed;
+			}
+
+			/** Average speed since we started. */
+			long entriesPerSecond() {
+				long elapsed = System.currentTimeMillis() - startTime;
+				if (elapsed <= 0) return 0;
+				return entriesProcessed.get() * 1000 / elapsed;
+			}
+
+			/** Estimated time to finish, in milliseconds, or -1 if we don't know yet. */
+			long eta() {
+				long rate = entriesPerSecond();
+				if (rate <= 0) return -1;
+				return entriesLeft * 1000 / rate;
 			}
 		}
 
@@ -1674,14 +2388,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			LockManager.LockSet locked = new LockManager.LockSet(length);
+			for (int i = 0; i < length; i++)
+				lockManager.add(locked, offset + i);
+			// acquire all locks in the region, will unlock in the finally block
+			if (!lockManager.lockEntries(locked))
+				return false;
 			try {
-				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
-						return false;
-				}
+				// The batch is read and written directly, so any queued writes must be on disk.
+				WriteBehindQueue queue = writeQueue;
+				if (queue != null)
+					queue.flushRange(offset, length);
+
 
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
@@ -1689,11 +2407,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
 				boolean dirty = false;
+				MappedStoreFile map = metaMap;
 				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+					if (map == null || !map.read(offset, buf)) {
+						while (buf.hasRemaining()) {
+							int status = metaFC.read(buf, startFileOffset + buf.position());
+							if (status == -1)
+								break;
+						}
 					}
 				} catch (IOException ioe) {
 					if (shutdown)
@@ -1759,8 +2480,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+							if (map == null || !map.write(offset, buf)) {
+								while (buf.hasRemaining()) {
+									metaFC.write(buf, startFileOffset + buf.position());
+								}
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -1770,10 +2493,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				return true;
 			} finally {
-				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				lockManager.unlockEntries(locked);
 			}
 		}
 
@@ -1784,8 +2504,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
-			if (lockMap == null)
+			LockManager.LockSet lockSet = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			if (lockSet == null)
 				return false;
 			try {
 				entry.storeSize = storeSize;
@@ -1819,7 +2539,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				unlockDigestedKey(lockSet);
 			}
 		}
 	}
@@ -1867,16 +2587,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		@Override
 		public String getText() {
+			String text;
 			if (cleaner.isResizing)
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
+				text = NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
 				                String.valueOf(cleaner.entriesTotal)  });
 			else
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
+				text = NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
 				        new String[] { "name", "processed", "total" },
 				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
 				                String.valueOf(cleaner.entriesTotal)  });
+			Cleaner.BatchRun run = cleaner.currentRun;
+			long eta = run == null ? -1 : run.eta();
+			if (eta >= 0)
+				text += " " + NodeL10n.getBase().getString("SaltedHashFreenetStore.cleanerSpeed",
+				        new String[] { "rate", "eta" },
+				        new String[] { String.valueOf(run.entriesPerSecond()), TimeUtil.formatTime(eta) });
+			return text;
 		}
 
 		@Override
@@ -1943,6 +2671,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			resizeCheckpoint = -1;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
@@ -1980,55 +2709,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The locked offsets, to be passed to {@link #unlockDigestedKey(LockManager.LockSet)},
+	 *         or <code>null</code> if locking failed. This is per-thread and reused.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
+	private LockManager.LockSet lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		ProbeBuffers buffers = probeBuffers.get();
+		LockManager.LockSet lockSet = buffers.lockSet;
+		lockSet.clear();
+		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize, buffers.offsets);
 		for (long offset : offsetArray)
-			offsets.add(offset);
+			lockManager.add(lockSet, offset);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize, buffers.offsets);
 			for (long offset : offsetArray)
-				offsets.add(offset);
+				lockManager.add(lockSet, offset);
 		}
 
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
+		if (lockManager.lockEntries(lockSet))
+			return lockSet;
+		else
 			return null;
-		}
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	private void unlockDigestedKey(LockManager.LockSet lockSet) {
+		lockManager.unlockEntries(lockSet);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -2088,8 +2792,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @return
 	 */
 	private long[] getOffsetFromDigestedKey(byte[] digestedKey, long storeSize) {
+		return getOffsetFromDigestedKey(digestedKey, storeSize, new long[OPTION_MAX_PROBE]);
+	}
+
+	/**
+	 * Get offset in the hash table, given a digested routing key.
+	 *
+	 * @param offsets Array of length OPTION_MAX_PROBE to fill in and return.
+	 */
+	private long[] getOffsetFromDigestedKey(byte[] digestedKey, long storeSize, long[] offsets) {
 		long keyValue = Fields.bytesToLong(digestedKey);
-		long[] offsets = new long[OPTION_MAX_PROBE];
 
 		for (int i = 0; i < OPTION_MAX_PROBE; i++) {
 			// h + 141 i^2 + 13 i
@@ -2244,6 +2956,42 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public long writeQueueCapacity() {
+				WriteBehindQueue queue = writeQueue;
+				return queue == null ? 0 : queue.capacity();
+			}
+
+			@Override
+			public long writeQueueLength() {
+				WriteBehindQueue queue = writeQueue;
+				return queue == null ? 0 : queue.size();
+			}
+
+			@Override
+			public long coalescedWrites() {
+				WriteBehindQueue queue = writeQueue;
+				return queue == null ? 0 : queue.coalesced();
+			}
+
+			@Override
+			public long writeQueueStalls() {
+				WriteBehindQueue queue = writeQueue;
+				return queue == null ? 0 : queue.stalls();
+			}
+
+			@Override
+			public long writeQueueStallTime() {
+				WriteBehindQueue queue = writeQueue;
+				return queue == null ? 0 : queue.stallTime();
+			}
+
+			@Override
+			public long writeQueueFailures() {
+				WriteBehindQueue queue = writeQueue;
+				return queue == null ? 0 : queue.failed();
+			}
 			
 		};
 	}
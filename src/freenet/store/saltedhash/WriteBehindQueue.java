@@ -0,0 +1,402 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Write-behind queue for the salted hash store.
+ *
+ * put() has already chosen the slot and encrypted the entry by the time it gets here, so all we
+ * keep is the raw bytes of the slot. Writing the same slot again replaces the queued write. A
+ * separate thread writes the queued slots in offset order, with runs of consecutive slots written
+ * in a single gathering write.
+ *
+ * Reads must check the queue before going to disk. A queued write stays in the queue until it has
+ * been written, so a read which misses the queue will find it on disk. Callers must hold the slot
+ * lock for the slot they are reading or writing, as usual.
+ *
+ * When the queue is full, put() blocks until there is space. This is deliberate: we want to slow
+ * down writers rather than use unbounded memory. The stalls are counted, so the user can see if
+ * the disk can't keep up.
+ */
+class WriteBehindQueue {
+	private static volatile boolean logMINOR;
+	static { Logger.registerClass(WriteBehindQueue.class); }
+
+	/** How long to wait for more writes before flushing a partial batch. */
+	static final int FLUSH_DELAY = 100; // ms
+
+	/** Writes the slots to disk. */
+	interface SlotWriter {
+		/** Write the metadata for consecutive slots, starting at firstSlot. */
+		void writeMetaData(long firstSlot, ByteBuffer[] bufs, int count) throws IOException;
+		/** Write the header and data for consecutive slots, starting at firstSlot. */
+		void writeHD(long firstSlot, ByteBuffer[] bufs, int count) throws IOException;
+	}
+
+	private static final class PendingWrite {
+		final long offset;
+		final byte[] meta;
+		/** Null if only the metadata has changed. */
+		final byte[] hd;
+
+		PendingWrite(long offset, byte[] meta, byte[] hd) {
+			this.offset = offset;
+			this.meta = meta;
+			this.hd = hd;
+		}
+	}
+
+	private static final Comparator<PendingWrite> BY_OFFSET = new Comparator<PendingWrite>() {
+		@Override
+		public int compare(PendingWrite a, PendingWrite b) {
+			return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+		}
+	};
+
+	private final String name;
+	private final SlotWriter writer;
+	private final int capacity;
+	private final ConcurrentHashMap<Long, PendingWrite> pending;
+
+	/** Held while writing to disk. Only one flush at a time, so a stale write from the
+	 * flusher can't land on top of a newer one from flushRange(). */
+	private final ReentrantLock flushLock = new ReentrantLock();
+	/** Protects the wait for space and the wait for work. */
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private final Condition notFull = queueLock.newCondition();
+	private final Condition notEmpty = queueLock.newCondition();
+
+	private volatile boolean closed;
+	private final NativeThread flusher;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+	private final AtomicLong stallTime = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param name Name of the store, for logging and the thread name.
+	 * @param writer Writes slots to disk.
+	 * @param capacity Maximum number of slots waiting to be written.
+	 */
+	WriteBehindQueue(String name, SlotWriter writer, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException();
+		this.name = name;
+		this.writer = writer;
+		this.capacity = capacity;
+		this.pending = new ConcurrentHashMap<Long, PendingWrite>(capacity * 2);
+		flusher = new NativeThread("Store-" + name + "-Writer", NativeThread.HIGH_PRIORITY, false) {
+			@Override
+			public void realRun() {
+				runFlusher();
+			}
+		};
+		flusher.setDaemon(true);
+	}
+
+	void start() {
+		flusher.start();
+	}
+
+	/**
+	 * Queue a write. Copies the buffers, so they can be reused as soon as this returns. Blocks
+	 * if the queue is full.
+	 * @param meta The metadata for the slot.
+	 * @param hd The header and data for the slot, or null if they have not changed.
+	 */
+	void add(long offset, ByteBuffer meta, ByteBuffer hd) throws IOException {
+		byte[] metaBytes = new byte[meta.remaining()];
+		meta.get(metaBytes);
+		byte[] hdBytes = null;
+		if (hd != null) {
+			hdBytes = new byte[hd.remaining()];
+			hd.get(hdBytes);
+		}
+		Long key = offset;
+		if (!pending.containsKey(key) && pending.size() >= capacity)
+			waitForSpace(key);
+		PendingWrite old = pending.get(key);
+		if (hdBytes == null && old != null)
+			hdBytes = old.hd; // Only the metadata has changed.
+		pending.put(key, new PendingWrite(offset, metaBytes, hdBytes));
+		queued.incrementAndGet();
+		if (old != null)
+			coalesced.incrementAndGet();
+		if (pending.size() >= capacity / 2) {
+			queueLock.lock();
+			try {
+				notEmpty.signal();
+			} finally {
+				queueLock.unlock();
+			}
+		}
+	}
+
+	private void waitForSpace(Long key) throws IOException {
+		long start = System.currentTimeMillis();
+		stalls.incrementAndGet();
+		queueLock.lock();
+		try {
+			notEmpty.signal();
+			while (!pending.containsKey(key) && pending.size() >= capacity) {
+				if (closed)
+					throw new IOException("Write queue closed");
+				try {
+					notFull.await(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted: " + e);
+				}
+			}
+		} finally {
+			queueLock.unlock();
+			stallTime.addAndGet(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * If the slot has a queued write, copy its metadata into dst.
+	 * @return False if there is no queued write for the slot.
+	 */
+	boolean readMetaData(long offset, ByteBuffer dst) {
+		if (pending.isEmpty()) return false;
+		PendingWrite write = pending.get(offset);
+		if (write == null) return false;
+		dst.put(write.meta, 0, dst.remaining());
+		return true;
+	}
+
+	/**
+	 * If the slot has a queued write including the header and data, copy them into dst.
+	 * @return False if there is no such write queued.
+	 */
+	boolean readHD(long offset, ByteBuffer dst) {
+		if (pending.isEmpty()) return false;
+		PendingWrite write = pending.get(offset);
+		if (write == null || write.hd == null) return false;
+		dst.put(write.hd, 0, dst.remaining());
+		return true;
+	}
+
+	/** Write everything now. */
+	void flush() {
+		flush(0, Long.MAX_VALUE);
+	}
+
+	/** Write any queued slots in the given range now. The caller should hold the locks for the
+	 * range, otherwise more may be queued as soon as we return. */
+	void flushRange(long offset, int length) {
+		if (pending.isEmpty()) return;
+		flush(offset, offset + length);
+	}
+
+	private void flush(long start, long end) {
+		PendingWrite[] writes;
+		int count = 0;
+		flushLock.lock();
+		try {
+			writes = new PendingWrite[pending.size()];
+			for (PendingWrite write : pending.values()) {
+				if (write.offset < start || write.offset >= end)
+					continue;
+				if (count == writes.length)
+					writes = Arrays.copyOf(writes, count * 2 + 1);
+				writes[count++] = write;
+			}
+			if (count == 0)
+				return;
+			Arrays.sort(writes, 0, count, BY_OFFSET);
+			try {
+				write(writes, count);
+				flushed.addAndGet(count);
+			} catch (IOException e) {
+				// We can't retry forever, so the writes are lost. Readers may already have been
+				// given them from the queue, so make sure the user can see it.
+				failed.addAndGet(count);
+				Logger.error(this, "LOST " + count + " queued writes to " + name + " (" + failed.get()
+						+ " so far): " + e, e);
+			}
+			// Only remove them once they are on disk, or lost. If they have been replaced in
+			// the meantime, keep the newer write.
+			for (int i = 0; i < count; i++)
+				pending.remove(writes[i].offset, writes[i]);
+			batches.incrementAndGet();
+		} finally {
+			flushLock.unlock();
+		}
+		if (logMINOR)
+			Logger.minor(this, "Wrote " + count + " slots to " + name);
+		queueLock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/** Write sorted slots, one gathering write per run of consecutive slots. */
+	private void write(PendingWrite[] writes, int count) throws IOException {
+		ByteBuffer[] bufs = new ByteBuffer[count];
+		int runStart = 0;
+		for (int i = 1; i <= count; i++) {
+			if (i == count || writes[i].offset != writes[i - 1].offset + 1) {
+				for (int j = runStart; j < i; j++)
+					bufs[j - runStart] = ByteBuffer.wrap(writes[j].meta);
+				writer.writeMetaData(writes[runStart].offset, bufs, i - runStart);
+				runStart = i;
+			}
+		}
+		// Some writes only change the metadata, so the header/data runs may be shorter.
+		runStart = -1;
+		for (int i = 0; i <= count; i++) {
+			boolean hasHD = i < count && writes[i].hd != null;
+			if (runStart >= 0 && (!hasHD || writes[i].offset != writes[i - 1].offset + 1)) {
+				for (int j = runStart; j < i; j++)
+					bufs[j - runStart] = ByteBuffer.wrap(writes[j].hd);
+				writer.writeHD(writes[runStart].offset, bufs, i - runStart);
+				runStart = -1;
+			}
+			if (hasHD && runStart < 0)
+				runStart = i;
+		}
+	}
+
+	private void runFlusher() {
+		while (true) {
+			queueLock.lock();
+			try {
+				if (pending.isEmpty() && !closed)
+					notEmpty.await(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+				else if (pending.size() < capacity / 2 && !closed)
+					// Wait a little so we can sort and merge more writes.
+					notEmpty.await(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// Ignore
+			} finally {
+				queueLock.unlock();
+			}
+			try {
+				flush();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " flushing " + name, t);
+			}
+			if (closed && pending.isEmpty())
+				return;
+		}
+	}
+
+	/**
+	 * Drop any queued writes to slots at or beyond firstSlot, and wait for any write in
+	 * progress to finish. Called before the store files are truncated, with the store locked
+	 * so that nothing more can be queued; the slots are about to disappear anyway.
+	 * @return The number of writes dropped.
+	 */
+	int dropFrom(long firstSlot) {
+		int dropped = 0;
+		flushLock.lock();
+		try {
+			for (PendingWrite write : pending.values()) {
+				if (write.offset >= firstSlot && pending.remove(write.offset, write))
+					dropped++;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+		if (dropped > 0) {
+			if (logMINOR)
+				Logger.minor(this, "Dropped " + dropped + " queued writes beyond slot " + firstSlot + " on " + name);
+			queueLock.lock();
+			try {
+				notFull.signalAll();
+			} finally {
+				queueLock.unlock();
+			}
+		}
+		return dropped;
+	}
+
+	/** Flush everything and stop the writer thread. Callers must have stopped adding writes. */
+	void close() {
+		closed = true;
+		queueLock.lock();
+		try {
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			queueLock.unlock();
+		}
+		flush();
+		if (flusher.isAlive()) {
+			try {
+				flusher.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+
+	int size() {
+		return pending.size();
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	/** Number of writes queued, including those which replaced an earlier write. */
+	long queued() {
+		return queued.get();
+	}
+
+	/** Number of writes which replaced a write to the same slot which had not been written yet. */
+	long coalesced() {
+		return coalesced.get();
+	}
+
+	/** Number of slots written to disk. */
+	long flushed() {
+		return flushed.get();
+	}
+
+	/** Number of batches written to disk. */
+	long batches() {
+		return batches.get();
+	}
+
+	/** Number of times a put() had to wait because the queue was full. */
+	long stalls() {
+		return stalls.get();
+	}
+
+	/** Total time put()s spent waiting because the queue was full, in milliseconds. */
+	long stallTime() {
+		return stallTime.get();
+	}
+
+	/** Number of queued writes which could not be written to disk and were lost. */
+	long failed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ":" + name;
+	}
+}
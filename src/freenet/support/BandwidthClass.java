@@ -0,0 +1,317 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class in a hierarchical token bucket tree, like Linux's HTB. The root class has the
+ * overall rate. Each child is guaranteed a share of its parent's rate in proportion to its
+ * weight, and can borrow more from its parent when the parent has tokens to spare. Tokens a
+ * class uses within its own share are always taken from its parent too, even if that leaves
+ * the parent short, so classes within their share come before classes borrowing.
+ *
+ * Unlike TokenBucket, grabbing tokens doesn't take a lock: each bucket is a single AtomicLong,
+ * the time at which it would be empty (as in the generic cell rate algorithm), which is
+ * updated with compareAndSet. Nothing sleeps while holding a lock either. Changing the rate,
+ * the weights or the tree does lock the root, and may lose tokens grabbed at the same time.
+ */
+public class BandwidthClass {
+
+	private final String name;
+	private final BandwidthClass parent;
+	private final BandwidthClass root;
+	/** Only changed with the root locked. */
+	private volatile BandwidthClass[] children = new BandwidthClass[0];
+	private volatile int weight;
+	/** Bytes per second. */
+	private volatile long rate;
+	/** The most tokens the bucket can hold. */
+	private volatile long burst;
+	private volatile long nanosPerToken;
+	/** The time at which the bucket would be empty. Tokens are added as time passes, so if
+	 * it is in the past, the bucket has (now - empty) / nanosPerToken tokens, up to burst. */
+	private final AtomicLong empty;
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong borrowedBytes = new AtomicLong();
+
+	/**
+	 * Create the root of a tree.
+	 * @param rate The number of tokens (bytes) added per second.
+	 * @param burst The maximum size of the bucket.
+	 * @param initialValue The number of tokens in the bucket to start with.
+	 */
+	public BandwidthClass(String name, long rate, long burst, long initialValue) {
+		if(rate <= 0) throw new IllegalArgumentException();
+		if(burst <= 0) throw new IllegalArgumentException();
+		this.name = name;
+		this.parent = null;
+		this.root = this;
+		this.weight = 1;
+		this.rate = rate;
+		this.burst = burst;
+		this.nanosPerToken = nanosPerToken(rate);
+		this.empty = new AtomicLong(nanoTime() - Math.min(initialValue, burst) * nanosPerToken);
+	}
+
+	private BandwidthClass(String name, BandwidthClass parent, int weight) {
+		this.name = name;
+		this.parent = parent;
+		this.root = parent.root;
+		this.weight = weight;
+		this.rate = 1;
+		this.burst = 1;
+		this.nanosPerToken = nanosPerToken(1);
+		this.empty = new AtomicLong(now());
+	}
+
+	private static long nanosPerToken(long rate) {
+		return Math.max(1, SECONDS.toNanos(1) / rate);
+	}
+
+	/** The clock. Only called on the root; overridden by tests. */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	private long now() {
+		return root.nanoTime();
+	}
+
+	/**
+	 * Add a child class, which starts with an empty bucket.
+	 * @param weight The child's share of this class's rate, relative to its siblings.
+	 */
+	public BandwidthClass addChild(String name, int weight) {
+		if(weight <= 0) throw new IllegalArgumentException();
+		synchronized(root) {
+			BandwidthClass child = new BandwidthClass(name, this, weight);
+			BandwidthClass[] c = Arrays.copyOf(children, children.length + 1);
+			c[children.length] = child;
+			children = c;
+			shareRate();
+			return child;
+		}
+	}
+
+	/** Change the weight of this class relative to its siblings. */
+	public void setWeight(int weight) {
+		if(weight <= 0) throw new IllegalArgumentException();
+		if(parent == null) return;
+		synchronized(root) {
+			this.weight = weight;
+			parent.shareRate();
+		}
+	}
+
+	/** Change the rate and bucket size of the root class. Children get their share. */
+	public void setRate(long rate, long burst) {
+		if(rate <= 0) throw new IllegalArgumentException();
+		if(burst <= 0) throw new IllegalArgumentException();
+		if(parent != null) throw new IllegalStateException("Only the root has a rate of its own");
+		synchronized(root) {
+			applyRate(rate, burst);
+		}
+	}
+
+	/** Caller must hold the root's lock. */
+	private void applyRate(long rate, long burst) {
+		long now = now();
+		long tokens = tokens(now);
+		this.rate = rate;
+		this.burst = burst;
+		this.nanosPerToken = nanosPerToken(rate);
+		// Keep the same number of tokens, or debt.
+		empty.set(now - Math.min(tokens, burst) * nanosPerToken);
+		shareRate();
+	}
+
+	/** Caller must hold the root's lock. */
+	private void shareRate() {
+		long totalWeight = 0;
+		for(BandwidthClass child : children)
+			totalWeight += child.weight;
+		for(BandwidthClass child : children) {
+			child.applyRate(Math.max(1, rate * child.weight / totalWeight),
+					Math.max(1, burst * child.weight / totalWeight));
+		}
+	}
+
+	/** @return The tokens in this class's own bucket, which may be negative. */
+	private long tokens(long now) {
+		long npt = nanosPerToken;
+		long e = Math.max(empty.get(), now - burst * npt);
+		return (now - e) / npt;
+	}
+
+	/** Take tokens from this class's own bucket if it has enough. */
+	private boolean take(long tokens, long now) {
+		while(true) {
+			long npt = nanosPerToken;
+			long e = empty.get();
+			long next = Math.max(e, now - burst * npt) + tokens * npt;
+			if(next > now) return false;
+			if(empty.compareAndSet(e, next)) return true;
+		}
+	}
+
+	/** Take tokens from this class's own bucket even if it goes into debt. */
+	private void force(long tokens, long now) {
+		while(true) {
+			long npt = nanosPerToken;
+			long e = empty.get();
+			long next = Math.max(e, now - burst * npt) + tokens * npt;
+			if(empty.compareAndSet(e, next)) return;
+		}
+	}
+
+	private void give(long tokens, long now) {
+		while(true) {
+			long npt = nanosPerToken;
+			long e = empty.get();
+			long next = Math.max(e - tokens * npt, now - burst * npt);
+			if(empty.compareAndSet(e, next)) return;
+		}
+	}
+
+	/** Take tokens from this class and everything above it, even if they go into debt. */
+	private void forceUp(long tokens, long now) {
+		for(BandwidthClass c = this; c != null; c = c.parent) {
+			c.force(tokens, now);
+			c.bytes.addAndGet(tokens);
+		}
+	}
+
+	private boolean grab(long tokens, long now) {
+		if(take(tokens, now)) {
+			bytes.addAndGet(tokens);
+			if(parent != null) parent.forceUp(tokens, now);
+			return true;
+		}
+		if(parent != null && parent.grab(tokens, now)) {
+			bytes.addAndGet(tokens);
+			borrowedBytes.addAndGet(tokens);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Either grab a bunch of tokens, from this class's share or borrowed from its parent, or
+	 * don't. Never block.
+	 * @return True if we could acquire the tokens.
+	 */
+	public boolean instantGrab(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
+		return grab(tokens, now());
+	}
+
+	/**
+	 * Remove tokens from this class and everything above it, without blocking, even if it
+	 * causes the balance to go negative. Used for bytes which have already been sent.
+	 */
+	public void forceGrab(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
+		forceUp(tokens, now());
+	}
+
+	/** Give back tokens which were grabbed but not used. */
+	public void recycle(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't recycle negative tokens: "+tokens);
+		long now = now();
+		for(BandwidthClass c = this; c != null; c = c.parent) {
+			c.give(tokens, now);
+			c.bytes.addAndGet(-tokens);
+		}
+	}
+
+	/**
+	 * Grab tokens, sleeping until they are available if necessary. Does not hold any locks
+	 * while sleeping.
+	 */
+	public void blockingGrab(long tokens) throws InterruptedException {
+		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
+		long maxBurst = 0;
+		for(BandwidthClass c = this; c != null; c = c.parent)
+			maxBurst = Math.max(maxBurst, c.burst);
+		while(tokens > 0) {
+			long grab = Math.min(tokens, maxBurst);
+			while(!instantGrab(grab)) {
+				long wait = Math.max(1, timeUntilAvailable(grab));
+				Thread.sleep(NANOSECONDS.toMillis(wait), (int) (wait % 1000000));
+			}
+			tokens -= grab;
+		}
+	}
+
+	/** @return The number of tokens this class can grab now, from its own share or by
+	 * borrowing. May be negative. */
+	public long getCount() {
+		long now = now();
+		long count = Long.MIN_VALUE;
+		for(BandwidthClass c = this; c != null; c = c.parent)
+			count = Math.max(count, c.tokens(now));
+		return count;
+	}
+
+	/** @return How long until instantGrab(tokens) may succeed, in nanoseconds. 0 if it
+	 * may succeed now. */
+	public long timeUntilAvailable(long tokens) {
+		long now = now();
+		long wait = Long.MAX_VALUE;
+		for(BandwidthClass c = this; c != null; c = c.parent) {
+			if(tokens > c.burst) continue;
+			long npt = c.nanosPerToken;
+			long next = Math.max(c.empty.get(), now - c.burst * npt) + tokens * npt;
+			wait = Math.min(wait, Math.max(0, next - now));
+		}
+		return wait;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public BandwidthClass getParent() {
+		return parent;
+	}
+
+	public BandwidthClass[] getChildren() {
+		return children.clone();
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/** @return The rate guaranteed to this class, in tokens per second. */
+	public long getRate() {
+		return rate;
+	}
+
+	public long getBurst() {
+		return burst;
+	}
+
+	/** @return The total number of tokens used by this class and its children. */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/** @return The number of tokens this class used beyond its own share, borrowed from its
+	 * parent. */
+	public long getBorrowedBytes() {
+		return borrowedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name+" rate="+rate+" burst="+burst+" weight="+weight;
+	}
+
+}
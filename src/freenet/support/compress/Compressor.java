@@ -27,7 +27,11 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// Split into blocks compressed in parallel. Not used by default, as older nodes can't
+		// decompress them.
+		BZIP2_BLOCKS("BZIP2_BLOCKS", new ParallelBlockCompressor(new Bzip2Compressor(), 900*1000), (short)4),
+		LZMA_BLOCKS("LZMA_BLOCKS", new ParallelBlockCompressor(new NewLZMACompressor(), 2*1024*1024), (short)5);
 
 		public final String name;
 		public final Compressor compressor;
@@ -96,14 +100,14 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor, boolean pre1254) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
 					if((v == LZMA) && !pre1254) continue;
 					if((v == LZMA_NEW) && pre1254) continue;
-					ret[x++] = v;
+					if(v == BZIP2_BLOCKS || v == LZMA_BLOCKS) continue;
+					ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
@@ -182,6 +186,8 @@ public interface Compressor {
 			if(name.equals("LZMA_OLD")) return LZMA;
 			if(name.equals("LZMA_NEW")) return LZMA_NEW;
 			if(name.equals("LZMA")) return LZMA_NEW;
+			if(name.equals("BZIP2_BLOCKS")) return BZIP2_BLOCKS;
+			if(name.equals("LZMA_BLOCKS")) return LZMA_BLOCKS;
 			return null;
 		}
 
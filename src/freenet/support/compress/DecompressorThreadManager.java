@@ -5,13 +5,14 @@ package freenet.support.compress;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.TimeUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -19,19 +20,22 @@ import java.util.Queue;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+import freenet.support.io.RingBufferPipe;
 
 /** Creates and manages decompressor threads. This class is 
  * given all decompressors which should be applied to an
  * InputStream via addDecompressor. The decompressors will be
  * strung together and executed when the execute method is called.
+ * Each one runs as a job on the executor, connected to the next
+ * by a RingBufferPipe.
  * This class also stores any errors which may arise.
  * @author sajack
 */
 public class DecompressorThreadManager {
 
 	final Queue<DecompressorThread> threads;
-	PipedInputStream input;
-	PipedOutputStream output = new PipedOutputStream();
+	InputStream input;
 	final long maxLen;
 	private boolean finished = false;
 	private Throwable error = null;
@@ -50,7 +54,7 @@ public class DecompressorThreadManager {
 	 * @param inputStream The stream that will be decompressed, if compressed
 	 * @param maxLen The maximum number of bytes to extract
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
+	public DecompressorThreadManager(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
 		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
 		this.maxLen = maxLen;
 		if(inputStream == null) {
@@ -62,18 +66,18 @@ public class DecompressorThreadManager {
 		while(!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size()-1);
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
-			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
+			RingBufferPipe pipe = new RingBufferPipe();
+			DecompressorThread thread = new DecompressorThread(compressor, this, input, pipe.getOutputStream(), maxLen);
 			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			input = pipe.getInputStream();
 		}
 	}
 
-	/** Creates and executes a new thread for each decompressor,
+	/** Runs each decompressor on the executor,
 	 * chaining the output of the previous to the next.
 	 * @return An InputStream from which uncompressed data may be read from
 	 */
-	public synchronized PipedInputStream execute() throws Throwable {
+	public synchronized InputStream execute(Executor executor) throws Throwable {
 		if(error != null) throw error;
 		if(threads.isEmpty()) {
 			onFinish();
@@ -85,17 +89,13 @@ public class DecompressorThreadManager {
 				if(getError() != null) throw getError();
 				DecompressorThread threadRunnable = threads.remove();
 				if(threads.isEmpty()) threadRunnable.setLast();
-				Thread t = new Thread(threadRunnable, "DecompressorThread"+count);
-				t.start();
-				if(logMINOR) Logger.minor(this, "Started decompressor thread "+t);
+				executor.execute(threadRunnable, "DecompressorThread"+count);
+				if(logMINOR) Logger.minor(this, "Started decompressor thread "+threadRunnable);
 				count++;
 			}
-			output.close();
 		} catch(Throwable t) {
 			onFailure(t);
 			throw t;
-		} finally {
-			Closer.close(output);
 		}
 		return input;
 		
@@ -148,14 +148,14 @@ public class DecompressorThreadManager {
 	 * <code>DecompressorThreadManager</code>
 	 * @author sajack
 	 */
-	class DecompressorThread implements Runnable {
+	class DecompressorThread implements PrioRunnable {
 
 		/**The compressor whose decompress method will be invoked*/
 		final Compressor compressor;
 		/**The stream compressed data will be read from*/
 		private InputStream input;
 		/**The stream decompressed data will be written*/
-		private PipedOutputStream output;
+		private OutputStream output;
 		/**A upper limit to how much data may be decompressed. This is passed to the decompressor*/
 		final long maxLen;
 		/**The manager which created the thread*/
@@ -163,7 +163,7 @@ public class DecompressorThreadManager {
 		/**Whether or not this thread should signal the manager that decompression has finished*/
 		boolean isLast = false;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, PipedOutputStream output, long maxLen) {
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, OutputStream output, long maxLen) {
 			this.compressor = compressor;
 			this.input = input;
 			this.output = output;
@@ -199,5 +199,10 @@ public class DecompressorThreadManager {
 		public void setLast() {
 			isLast = true;
 		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
 	}
 }
\ No newline at end of file
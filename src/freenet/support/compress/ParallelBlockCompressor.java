@@ -0,0 +1,367 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Splits the data into blocks and compresses each block independently with another codec,
+ * several blocks at once on the executor set by setExecutor(). Decompression is also done
+ * several blocks at once. Compresses slightly worse than the underlying codec, since
+ * nothing is shared between blocks, but a large file is compressed using all the cores
+ * rather than one.
+ *
+ * The format is a version byte, then for each block, the length of the block before and
+ * after compression as 4-byte integers followed by the compressed block, and finally a 0.
+ * Each block is in the underlying codec's format.
+ */
+// WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
+public class ParallelBlockCompressor implements Compressor {
+
+	static final int VERSION = 1;
+	/** The largest block we will decompress, to limit memory usage. */
+	static final int MAX_BLOCK_SIZE = 4*1024*1024;
+	/** How many blocks to compress or decompress at once. Each needs a block of input and
+	 * output in memory, plus whatever the codec needs, which is around 16MB for LZMA. */
+	static final int THREADS = getMaxThreads();
+
+	private static volatile Executor executor;
+
+	private final Compressor compressor;
+	private final int blockSize;
+
+	ParallelBlockCompressor(Compressor compressor, int blockSize) {
+		if(blockSize > MAX_BLOCK_SIZE) throw new IllegalArgumentException();
+		this.compressor = compressor;
+		this.blockSize = blockSize;
+	}
+
+	/** Set the executor to run blocks on. Until this is called, blocks are processed one at a
+	 * time on the calling thread. */
+	public static void setExecutor(Executor e) {
+		executor = e;
+	}
+
+	private static int getMaxThreads() {
+		Runtime r = Runtime.getRuntime();
+		int max = r.availableProcessors();
+		return (int) Math.max(1, Math.min(max, r.maxMemory() / (64 * 1024 * 1024)));
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = output.getOutputStream();
+			compress(is, os, maxReadLength, maxWriteLength);
+			// It is essential that the close()'s throw if there is any problem.
+			is.close(); is = null;
+			os.close(); os = null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeByte(VERSION);
+		long written = 1;
+		long read = 0;
+		LinkedList<BlockJob> jobs = new LinkedList<BlockJob>();
+		try {
+			while(true) {
+				BlockJob job = null;
+				if(read < maxReadLength) {
+					byte[] buf = new byte[(int) Math.min(blockSize, maxReadLength - read)];
+					int length = readFully(is, buf);
+					if(length > 0) {
+						read += length;
+						job = new CompressJob(buf, length, maxWriteLength);
+						jobs.add(job);
+						start(job);
+					}
+				}
+				if(jobs.isEmpty()) break;
+				if(job != null && jobs.size() < THREADS) continue;
+				BlockJob done = jobs.removeFirst();
+				byte[] compressed = done.waitFor();
+				written += 8 + compressed.length;
+				if(written > maxWriteLength)
+					throw new CompressionOutputSizeException();
+				dos.writeInt(done.length);
+				dos.writeInt(compressed.length);
+				dos.write(compressed);
+			}
+		} finally {
+			// Don't leave jobs running if we failed.
+			for(BlockJob job : jobs)
+				job.cancel();
+		}
+		dos.writeInt(0);
+		written += 4;
+		dos.flush();
+		if(written > maxWriteLength)
+			throw new CompressionOutputSizeException();
+		return written;
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxEstimateSizeLength) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		int version = dis.readUnsignedByte();
+		if(version != VERSION)
+			throw new InvalidCompressedDataException("Unknown block format version "+version);
+		long total = 0;
+		LinkedList<BlockJob> jobs = new LinkedList<BlockJob>();
+		try {
+			boolean finished = false;
+			while(true) {
+				BlockJob job = null;
+				if(!finished) {
+					int length = dis.readInt();
+					if(length == 0) {
+						finished = true;
+					} else {
+						int compressedLength = dis.readInt();
+						checkBlockLengths(length, compressedLength);
+						total += length;
+						if(total > maxLength) {
+							if(maxEstimateSizeLength > 0)
+								total = estimateSize(dis, compressedLength, total, maxEstimateSizeLength);
+							throw new CompressionOutputSizeException(total);
+						}
+						byte[] buf = new byte[compressedLength];
+						dis.readFully(buf);
+						job = new DecompressJob(buf, length);
+						jobs.add(job);
+						start(job);
+					}
+				}
+				if(jobs.isEmpty()) break;
+				if(job != null && jobs.size() < THREADS) continue;
+				os.write(jobs.removeFirst().waitFor());
+			}
+		} finally {
+			for(BlockJob job : jobs)
+				job.cancel();
+		}
+		os.flush();
+		return total;
+	}
+
+	private static void checkBlockLengths(int length, int compressedLength) throws InvalidCompressedDataException {
+		if(length < 0 || length > MAX_BLOCK_SIZE)
+			throw new InvalidCompressedDataException("Invalid block length "+length);
+		// Generous: no codec expands incompressible data by more than a few percent.
+		if(compressedLength <= 0 || compressedLength > length + length / 4 + 1024)
+			throw new InvalidCompressedDataException("Invalid compressed block length "+compressedLength+" for block of "+length);
+	}
+
+	/** Read the headers of the following blocks, without decompressing them, to find out how
+	 * big the data is. */
+	private static long estimateSize(DataInputStream dis, int toSkip, long total, long maxEstimateSizeLength) throws IOException {
+		long read = 0;
+		try {
+			while(true) {
+				read += toSkip;
+				if(read > maxEstimateSizeLength) return total;
+				skipFully(dis, toSkip);
+				int length = dis.readInt();
+				if(length == 0) return total;
+				toSkip = dis.readInt();
+				checkBlockLengths(length, toSkip);
+				total += length;
+				read += 8;
+			}
+		} catch (EOFException e) {
+			return total;
+		}
+	}
+
+	private static void skipFully(InputStream is, long length) throws IOException {
+		while(length > 0) {
+			long skipped = is.skip(length);
+			if(skipped <= 0) {
+				if(is.read() == -1) throw new EOFException();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Corrupt data, we don't do I/O here.
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+	/** @return The number of bytes read, which is only less than buf.length at the end of the
+	 * stream. */
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int read = 0;
+		while(read < buf.length) {
+			int x = is.read(buf, read, buf.length - read);
+			if(x == -1) break;
+			read += x;
+		}
+		return read;
+	}
+
+	private static void start(BlockJob job) {
+		Executor e = executor;
+		if(e == null)
+			job.run();
+		else
+			e.execute(job, "Block compression for "+job);
+	}
+
+	private abstract class BlockJob implements PrioRunnable {
+
+		final byte[] input;
+		/** The length of the block uncompressed. */
+		final int length;
+		private byte[] output;
+		private IOException failure;
+		private RuntimeException error;
+		private boolean started;
+		private boolean done;
+
+		BlockJob(byte[] input, int length) {
+			this.input = input;
+			this.length = length;
+		}
+
+		abstract byte[] process() throws IOException;
+
+		@Override
+		public void run() {
+			synchronized(this) {
+				if(done) return; // Cancelled.
+				started = true;
+			}
+			byte[] out = null;
+			IOException f = null;
+			RuntimeException e = null;
+			try {
+				out = process();
+			} catch (IOException ex) {
+				f = ex;
+			} catch (RuntimeException ex) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Block codec failed: "+ex, ex);
+				e = ex;
+			} finally {
+				synchronized(this) {
+					output = out;
+					failure = f;
+					error = e;
+					if(out == null && f == null && e == null)
+						failure = new IOException("Block codec failed");
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized byte[] waitFor() throws IOException {
+			while(!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(failure != null) throw failure;
+			if(error != null) throw error;
+			return output;
+		}
+
+		/** Don't run if we haven't started yet. */
+		synchronized void cancel() {
+			if(!started) {
+				done = true;
+				failure = new IOException("Cancelled");
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+
+	}
+
+	private class CompressJob extends BlockJob {
+
+		private final long maxWriteLength;
+
+		CompressJob(byte[] input, int length, long maxWriteLength) {
+			super(input, length);
+			this.maxWriteLength = maxWriteLength;
+		}
+
+		@Override
+		byte[] process() throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+			compressor.compress(new ByteArrayInputStream(input, 0, length), baos, length, maxWriteLength);
+			return baos.toByteArray();
+		}
+
+	}
+
+	private class DecompressJob extends BlockJob {
+
+		DecompressJob(byte[] input, int length) {
+			super(input, length);
+		}
+
+		@Override
+		byte[] process() throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+			compressor.decompress(new ByteArrayInputStream(input), baos, length, -1);
+			if(baos.size() != length)
+				throw new InvalidCompressedDataException("Block decompressed to "+baos.size()+" bytes, should be "+length);
+			return baos.toByteArray();
+		}
+
+	}
+
+}
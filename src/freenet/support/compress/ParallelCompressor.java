@@ -0,0 +1,379 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Try several codecs on the same data at once, to find which compresses it best. The data is
+ * read only once, and each chunk is handed to every codec, each running on its own thread. As
+ * soon as one codec finishes, any other codec whose output is already bigger is stopped, and
+ * if one gets the data down to stopAtSize, all the codecs after it in the list are stopped. So
+ * the result is the same as trying the codecs one at a time in order, however the threads are
+ * scheduled. Each codec can lag behind the reader by at most QUEUE_CHUNKS chunks, so the
+ * slowest codec sets the pace.
+ *
+ * Each instance can only be used once.
+ */
+public class ParallelCompressor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int CHUNK_SIZE = 32768;
+	/** How many chunks each codec can have waiting. */
+	static final int QUEUE_CHUNKS = 16;
+	/** How much of the data skipUnlikelyCodecs() compresses. */
+	static final int SAMPLE_SIZE = 128*1024;
+	/** Don't bother sampling data smaller than this. */
+	static final long MIN_SAMPLED_SIZE = 1024*1024;
+	/** If the first codec can't get the sample below this fraction of its size, the data is
+	 * probably already compressed. */
+	static final double INCOMPRESSIBLE_RATIO = 0.98;
+
+	private static final byte[] END = new byte[0];
+	private static final byte[] ABORT = new byte[0];
+
+	public static class Result {
+		public final COMPRESSOR_TYPE codec;
+		/** The compressed data. The caller must free it. */
+		public final Bucket data;
+		public final long size;
+
+		Result(COMPRESSOR_TYPE codec, Bucket data, long size) {
+			this.codec = codec;
+			this.data = data;
+			this.size = size;
+		}
+	}
+
+	private final COMPRESSOR_TYPE[] codecs;
+	private final BucketFactory bf;
+	private final Executor executor;
+	private final Trial[] trials;
+	/** Codecs whose output is bigger than this, and than stopAtSize, are stopped. */
+	private volatile long best;
+	private long maxOutputSize;
+	private long stopAtSize;
+	private long origSize;
+	private int running;
+
+	public ParallelCompressor(COMPRESSOR_TYPE[] codecs, BucketFactory bf, Executor executor) {
+		this.codecs = codecs;
+		this.bf = bf;
+		this.executor = executor;
+		this.trials = new Trial[codecs.length];
+	}
+
+	/**
+	 * Compress the data with all the codecs.
+	 * @param is The data. Read to the end unless all the codecs have stopped, but not closed.
+	 * @param origSize The length of the data.
+	 * @param maxOutputSize Codecs whose output is bigger than this are stopped.
+	 * @param stopAtSize If a codec's output is this small or smaller, stop the codecs after it
+	 * in the list.
+	 * @return The output of the first codec in the list which got down to stopAtSize. If none
+	 * did, the smallest output, with ties going to the codec first in the list. Null if no codec
+	 * produced output of maxOutputSize or less.
+	 * @throws IOException If we can't read the data or create the output buckets. Codecs
+	 * failing is only logged.
+	 */
+	public Result compress(InputStream is, long origSize, long maxOutputSize, long stopAtSize) throws IOException {
+		this.origSize = origSize;
+		this.best = maxOutputSize;
+		this.maxOutputSize = maxOutputSize;
+		this.stopAtSize = stopAtSize;
+		try {
+			for(int i=0;i<codecs.length;i++)
+				trials[i] = new Trial(i, codecs[i], bf.makeBucket(-1));
+		} catch (IOException e) {
+			for(Trial t : trials)
+				if(t != null) t.output.free();
+			throw e;
+		}
+		synchronized(this) {
+			running = trials.length;
+		}
+		for(Trial t : trials)
+			executor.execute(t, "Compressing with "+t.codec);
+		try {
+			feed(is);
+		} catch (IOException e) {
+			for(Trial t : trials)
+				t.abort();
+			waitForTrials();
+			for(Trial t : trials)
+				t.output.free();
+			throw e;
+		}
+		waitForTrials();
+		Trial winner = null;
+		for(Trial t : trials) {
+			if(t.size >= 0 && t.size <= stopAtSize) {
+				winner = t;
+				break;
+			}
+			if(t.size >= 0 && (winner == null || t.size < winner.size))
+				winner = t;
+		}
+		for(Trial t : trials) {
+			if(t != winner) t.output.free();
+		}
+		if(winner == null) return null;
+		if(logMINOR) Logger.minor(this, "Best codec was "+winner.codec+" : "+winner.size+" bytes from "+origSize);
+		return new Result(winner.codec, winner.output, winner.size);
+	}
+
+	private void feed(InputStream is) throws IOException {
+		long read = 0;
+		while(read < origSize) {
+			byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, origSize - read)];
+			int x = is.read(buf);
+			if(x == -1) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			if(x < buf.length) buf = Arrays.copyOf(buf, x);
+			read += x;
+			boolean any = false;
+			for(Trial t : trials)
+				if(t.feed(buf)) any = true;
+			if(!any) {
+				if(logMINOR) Logger.minor(this, "All codecs have stopped after "+read+" bytes");
+				return;
+			}
+		}
+		for(Trial t : trials)
+			t.feed(END);
+	}
+
+	private synchronized void waitForTrials() {
+		while(running > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private synchronized void onFinished(Trial t) {
+		if(t.size >= 0) {
+			if(t.size < best) best = t.size;
+			if(t.size <= stopAtSize) {
+				// The codecs before this one may still fit, and would win if they do.
+				if(logMINOR) Logger.minor(this, t.codec+" fits in "+stopAtSize+" bytes, stopping the codecs after it");
+				for(int i=t.index+1;i<trials.length;i++)
+					if(!trials[i].finished) trials[i].abort();
+			}
+		}
+		running--;
+		notifyAll();
+	}
+
+	/** A codec whose output gets bigger than this can't win. One which gets down to stopAtSize
+	 * can still win if it is earlier in the list, even if a later one was smaller. */
+	private long limit() {
+		return Math.min(maxOutputSize, Math.max(best, stopAtSize));
+	}
+
+	/**
+	 * Compress the start of the data with the first (cheapest) codec. If it barely shrinks,
+	 * the data is probably already compressed, and the other codecs are unlikely to do much
+	 * better than the first, so only try that one.
+	 * @return The codecs worth trying.
+	 */
+	public static COMPRESSOR_TYPE[] skipUnlikelyCodecs(COMPRESSOR_TYPE[] codecs, Bucket data) throws IOException {
+		if(codecs.length < 2 || data.size() < MIN_SAMPLED_SIZE) return codecs;
+		InputStream is = null;
+		try {
+			is = data.getInputStream();
+			long maxSize = (long) (SAMPLE_SIZE * INCOMPRESSIBLE_RATIO);
+			long size;
+			try {
+				size = codecs[0].compress(is, new NullOutputStream(), SAMPLE_SIZE, maxSize);
+			} catch (CompressionOutputSizeException e) {
+				size = Long.MAX_VALUE;
+			} catch (RuntimeException e) {
+				Logger.error(ParallelCompressor.class, "Compressing sample failed with codec "+codecs[0]+" : "+e, e);
+				return codecs;
+			}
+			if(size <= maxSize) return codecs;
+			if(logMINOR) Logger.minor(ParallelCompressor.class, "Data looks incompressible, only trying "+codecs[0]);
+			return new COMPRESSOR_TYPE[] { codecs[0] };
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	private class Trial implements PrioRunnable {
+
+		/** Position in the list of codecs. */
+		final int index;
+		final COMPRESSOR_TYPE codec;
+		final Bucket output;
+		private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CHUNKS);
+		/** Set when the codec stops reading, so the reader doesn't wait for it. */
+		private volatile boolean finished;
+		/** Set when a codec before this one has got down to stopAtSize. */
+		private volatile boolean aborted;
+		/** The size of the output, or -1 if the codec failed or was stopped. */
+		long size = -1;
+
+		Trial(int index, COMPRESSOR_TYPE codec, Bucket output) {
+			this.index = index;
+			this.codec = codec;
+			this.output = output;
+		}
+
+		/** @return False if the codec has stopped. */
+		boolean feed(byte[] buf) throws IOException {
+			try {
+				while(!finished && !aborted) {
+					if(queue.offer(buf, 100, MILLISECONDS)) return true;
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			return false;
+		}
+
+		/** Make the codec stop the next time it reads. */
+		void abort() {
+			aborted = true;
+			while(!queue.offer(ABORT))
+				queue.clear();
+		}
+
+		@Override
+		public void run() {
+			OutputStream os = null;
+			long sz = -1;
+			try {
+				os = new LimitedOutputStream(output.getOutputStream());
+				codec.compress(new QueueInputStream(), os, origSize, limit());
+				os.close();
+				os = null;
+				sz = output.size();
+				if(logMINOR) Logger.minor(this, "Compressed with "+codec+" to "+sz);
+			} catch (CompressionOutputSizeException e) {
+				if(logMINOR) Logger.minor(this, "Stopped "+codec+" : can't win");
+			} catch (IOException e) {
+				if(!(e instanceof AbortedException))
+					Logger.error(this, "Compression failed with codec "+codec+" : "+e, e);
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+codec+" : "+e, e);
+			} finally {
+				finished = true;
+				Closer.close(os);
+				size = sz;
+				onFinished(this);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+
+		/** Reads the chunks handed to this codec. */
+		private class QueueInputStream extends InputStream {
+
+			private byte[] buf;
+			private int offset;
+
+			private boolean next() throws IOException {
+				if(buf == END) return false;
+				if(buf != null && offset < buf.length) return true;
+				try {
+					buf = queue.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				offset = 0;
+				if(buf == ABORT) throw new AbortedException();
+				return buf != END;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if(!next()) return -1;
+				return buf[offset++] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len == 0) return 0;
+				if(!next()) return -1;
+				int x = Math.min(len, buf.length - offset);
+				System.arraycopy(buf, offset, b, off, x);
+				offset += x;
+				return x;
+			}
+
+		}
+
+		/** Stops the codec once its output is bigger than the best so far. */
+		private class LimitedOutputStream extends FilterOutputStream {
+
+			private long written;
+
+			LimitedOutputStream(OutputStream os) {
+				super(os);
+			}
+
+			private void check() throws IOException {
+				if(aborted) throw new AbortedException();
+				if(written > limit()) throw new CompressionOutputSizeException();
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				written++;
+				check();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				written += len;
+				check();
+			}
+
+		}
+
+	}
+
+	private static class AbortedException extends IOException {
+		private static final long serialVersionUID = -1;
+	}
+
+}
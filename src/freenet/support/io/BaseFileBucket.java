@@ -149,6 +149,42 @@ public abstract class BaseFileBucket implements Bucket {
 		length = 0;
 	}
 
+	/**
+	 * Create an empty file in the same directory as this bucket, which the caller may fill
+	 * in place and then make the content of the bucket with adoptFile(). Used to decode a
+	 * splitfile straight into its destination directory.
+	 */
+	public synchronized File makeAdoptableFile() throws IOException {
+		if(freed)
+			throw new IOException("File already freed: "+this);
+		if(isReadOnly())
+			throw new IOException("Bucket is read-only: "+this);
+		return getTempfile();
+	}
+
+	/**
+	 * Replace the content of the bucket with a file created by makeAdoptableFile(). The file
+	 * is deleted on failure. Follows the same rules as closing an output stream: if
+	 * createFileOnly is set, we won't overwrite an existing file.
+	 */
+	public synchronized void adoptFile(File tempfile) throws IOException {
+		File file = getFile();
+		if(freed) {
+			tempfile.delete();
+			throw new IOException("File already freed: "+this);
+		}
+		if(createFileOnly() && file.exists()) {
+			tempfile.delete();
+			throw new FileExistsException(file);
+		}
+		if(!FileUtil.renameTo(tempfile, file)) {
+			tempfile.delete();
+			throw new IOException("Cannot rename file");
+		}
+		length = file.length();
+		fileRestartCounter++;
+	}
+
 	/**
 	 * Internal OutputStream impl.
 	 * If createFileOnly is set, we won't overwrite an existing file, and we write to a temp file
@@ -0,0 +1,175 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.support.api.Bucket;
+
+/**
+ * A Bucket stored in a fixed region of a RandomAccessThing. Used to put splitfile blocks
+ * straight into their final place in the output file, so they never need to be copied out of
+ * separate buckets. Freeing it does nothing: the RandomAccessThing belongs to whoever created
+ * the slices, and is closed by them.
+ */
+public class RandomAccessThingSliceBucket implements NotPersistentBucket {
+
+	private final RandomAccessThing data;
+	private final long offset;
+	private final long length;
+	/** Number of bytes written to the slice so far. */
+	private long size;
+	private boolean readOnly;
+
+	/**
+	 * @param data The underlying storage.
+	 * @param offset Where the slice starts.
+	 * @param length The maximum size of the bucket.
+	 * @param size How many bytes of the slice already hold valid data, e.g. 0 for an empty
+	 * bucket, or length if the region has already been written.
+	 */
+	public RandomAccessThingSliceBucket(RandomAccessThing data, long offset, long length, long size) {
+		if(offset < 0 || length < 0 || size < 0 || size > length)
+			throw new IllegalArgumentException("offset "+offset+" length "+length+" size "+size);
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.size = size;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		synchronized(this) {
+			if(readOnly) throw new IOException("Read only");
+			size = 0;
+		}
+		return new SliceOutputStream();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new SliceInputStream(size());
+	}
+
+	private class SliceOutputStream extends OutputStream {
+
+		private long ptr;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			if(closed) throw new IOException("Already closed");
+			if(ptr + len > length)
+				throw new IOException("Writing "+len+" bytes at "+ptr+" would overflow slice of "+length+" bytes");
+			data.pwrite(offset + ptr, buf, off, len);
+			ptr += len;
+			synchronized(RandomAccessThingSliceBucket.this) {
+				size = ptr;
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private class SliceInputStream extends InputStream {
+
+		private final long end;
+		private long ptr;
+		private boolean closed;
+
+		SliceInputStream(long end) {
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			if(read(buf, 0, 1) < 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(closed) throw new IOException("Already closed");
+			if(ptr >= end) return -1;
+			len = (int) Math.min(len, end - ptr);
+			data.pread(offset + ptr, buf, off, len);
+			ptr += len;
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			if(n <= 0) return 0;
+			n = Math.min(n, end - ptr);
+			ptr += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - ptr);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "RATSlice:"+offset+":"+length;
+	}
+
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	@Override
+	public void free() {
+		// The region is part of a bigger structure, which is freed by its owner.
+	}
+
+	@Override
+	public void storeTo(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		// Valid no-op since we are never stored.
+	}
+
+	@Override
+	public synchronized Bucket createShadow() {
+		RandomAccessThingSliceBucket shadow = new RandomAccessThingSliceBucket(data, offset, length, size);
+		shadow.setReadOnly();
+		return shadow;
+	}
+
+}
@@ -0,0 +1,193 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * A pipe between two threads, replacing PipedInputStream/PipedOutputStream. The buffer is
+ * much bigger (DEFAULT_SIZE rather than 1KB), so the two sides don't have to hand over
+ * every kilobyte, and the reader and writer are woken as soon as there is data or space
+ * rather than polling once a second. Either side may be used from any thread. The writer
+ * blocks when the buffer is full. Closing the output gives the reader EOF once it has read
+ * everything; closing the input makes further writes throw. Buffers are reused once both
+ * sides are closed.
+ */
+public class RingBufferPipe {
+
+	public static final int DEFAULT_SIZE = 64*1024;
+	/** How many free buffers of the default size to keep. */
+	private static final int MAX_POOLED = 16;
+	private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+
+	private byte[] buf;
+	/** Where the next byte will be read from. */
+	private int readPos;
+	/** How many bytes are waiting to be read. */
+	private int count;
+	private boolean writerClosed;
+	private boolean readerClosed;
+
+	private final PipeInputStream input = new PipeInputStream();
+	private final PipeOutputStream output = new PipeOutputStream();
+
+	public RingBufferPipe() {
+		this(DEFAULT_SIZE);
+	}
+
+	public RingBufferPipe(int size) {
+		if(size <= 0) throw new IllegalArgumentException();
+		buf = size == DEFAULT_SIZE ? allocate() : new byte[size];
+	}
+
+	private static byte[] allocate() {
+		synchronized(pool) {
+			byte[] b = pool.poll();
+			if(b != null) return b;
+		}
+		return new byte[DEFAULT_SIZE];
+	}
+
+	private static void release(byte[] b) {
+		if(b.length != DEFAULT_SIZE) return;
+		synchronized(pool) {
+			if(pool.size() < MAX_POOLED) pool.add(b);
+		}
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/** Caller must hold the lock. */
+	private void maybeRelease() {
+		if(writerClosed && readerClosed && buf != null) {
+			release(buf);
+			buf = null;
+		}
+	}
+
+	private synchronized int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		while(count == 0) {
+			if(readerClosed) throw new IOException("Pipe closed");
+			if(writerClosed) return -1;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+		if(readerClosed) throw new IOException("Pipe closed");
+		int x = Math.min(len, count);
+		int first = Math.min(x, buf.length - readPos);
+		System.arraycopy(buf, readPos, b, off, first);
+		if(first < x)
+			System.arraycopy(buf, 0, b, off + first, x - first);
+		readPos = (readPos + x) % buf.length;
+		count -= x;
+		if(count == 0) readPos = 0;
+		notifyAll();
+		return x;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(writerClosed) throw new IOException("Pipe closed");
+			if(readerClosed) throw new IOException("Read end closed");
+			if(count == buf.length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				continue;
+			}
+			int writePos = (readPos + count) % buf.length;
+			int x = Math.min(len, buf.length - count);
+			int first = Math.min(x, buf.length - writePos);
+			System.arraycopy(b, off, buf, writePos, first);
+			if(first < x)
+				System.arraycopy(b, off + first, buf, 0, x - first);
+			count += x;
+			off += x;
+			len -= x;
+			notifyAll();
+		}
+	}
+
+	private synchronized int available() throws IOException {
+		if(readerClosed) throw new IOException("Pipe closed");
+		return count;
+	}
+
+	private synchronized void closeReader() {
+		readerClosed = true;
+		count = 0;
+		notifyAll();
+		maybeRelease();
+	}
+
+	private synchronized void closeWriter() {
+		writerClosed = true;
+		notifyAll();
+		maybeRelease();
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int x = RingBufferPipe.this.read(b, 0, 1);
+			if(x == -1) return -1;
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+			return RingBufferPipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return RingBufferPipe.this.available();
+		}
+
+		@Override
+		public void close() {
+			closeReader();
+		}
+
+	}
+
+	private class PipeOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			RingBufferPipe.this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+			RingBufferPipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			closeWriter();
+		}
+
+	}
+
+}
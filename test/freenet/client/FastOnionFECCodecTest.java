@@ -0,0 +1,147 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.TestProperty;
+
+public class FastOnionFECCodecTest extends TestCase {
+
+	private static final int[][] SEGMENTS = { { 1, 2 }, { 3, 5 }, { 32, 33 }, { 64, 128 }, { 100, 201 }, { 128, 256 } };
+
+	private final Random random = new Random(1234);
+
+	private static Buffer[] buffers(byte[] buf, int count, int length) {
+		Buffer[] buffers = new Buffer[count];
+		for(int i = 0; i < count; i++)
+			buffers[i] = new Buffer(buf, i * length, length);
+		return buffers;
+	}
+
+	private static int[] checkIndexes(int k, int n) {
+		int[] index = new int[n - k];
+		for(int i = 0; i < index.length; i++)
+			index[i] = k + i;
+		return index;
+	}
+
+	/** The check blocks must be exactly those of the onion code, or old splitfiles break. */
+	public void testEncodeMatchesOnionCode() {
+		for(int[] segment : SEGMENTS) {
+			int k = segment[0], n = segment[1];
+			// Odd length to exercise the partial last word.
+			int length = 1021;
+			byte[] data = new byte[k * length];
+			random.nextBytes(data);
+			byte[] expected = new byte[(n - k) * length];
+			byte[] actual = new byte[(n - k) * length];
+			new PureCode(k, n).encode(buffers(data, k, length), buffers(expected, n - k, length), checkIndexes(k, n));
+			new FastOnionFECCodec(k, n).encodeStripe(buffers(data, k, length), buffers(actual, n - k, length), checkIndexes(k, n));
+			assertTrue("k="+k+" n="+n, Arrays.equals(expected, actual));
+		}
+	}
+
+	public void testDecodeAnyKBlocks() {
+		for(int[] segment : SEGMENTS) {
+			int k = segment[0], n = segment[1];
+			int length = 1024;
+			FastOnionFECCodec codec = new FastOnionFECCodec(k, n);
+			byte[] data = new byte[k * length];
+			random.nextBytes(data);
+			byte[] check = new byte[(n - k) * length];
+			codec.encodeStripe(buffers(data, k, length), buffers(check, n - k, length), checkIndexes(k, n));
+			for(int attempt = 0; attempt < 5; attempt++) {
+				// Pick k distinct blocks, in random order.
+				int[] all = new int[n];
+				for(int i = 0; i < n; i++) all[i] = i;
+				for(int i = n - 1; i > 0; i--) {
+					int j = random.nextInt(i + 1);
+					int t = all[i]; all[i] = all[j]; all[j] = t;
+				}
+				int[] index = Arrays.copyOf(all, k);
+				byte[] buf = new byte[k * length];
+				for(int i = 0; i < k; i++) {
+					if(index[i] < k)
+						System.arraycopy(data, index[i] * length, buf, i * length, length);
+					else
+						System.arraycopy(check, (index[i] - k) * length, buf, i * length, length);
+				}
+				codec.decodeStripe(buffers(buf, k, length), index);
+				assertTrue("k="+k+" n="+n, Arrays.equals(data, buf));
+				for(int i = 0; i < k; i++)
+					assertEquals(i, index[i]);
+			}
+		}
+	}
+
+	public void testDuplicateIndex() {
+		FastOnionFECCodec codec = new FastOnionFECCodec(2, 4);
+		byte[] buf = new byte[16];
+		try {
+			codec.decodeStripe(buffers(buf, 2, 8), new int[] { 3, 3 });
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	public void testGetCodec() {
+		assertTrue(FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, 128, 128) instanceof FastOnionFECCodec);
+		assertTrue(FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, 128, 129) instanceof StandardOnionFECCodec);
+	}
+
+	/** Encode and decode throughput of the onion code and this one, per segment size. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int length = 32768;
+		int[] sizes = { 16, 32, 64, 128 };
+		for(int k : sizes) {
+			int n = 2 * k;
+			byte[] data = new byte[k * length];
+			random.nextBytes(data);
+			byte[] check = new byte[k * length];
+			FECCode onion = new PureCode(k, n);
+			FastOnionFECCodec fast = new FastOnionFECCodec(k, n);
+			// Warm up.
+			for(int i = 0; i < 3; i++) {
+				onion.encode(buffers(data, k, length), buffers(check, k, length), checkIndexes(k, n));
+				fast.encodeStripe(buffers(data, k, length), buffers(check, k, length), checkIndexes(k, n));
+			}
+			int rounds = 5;
+			long t1 = System.nanoTime();
+			for(int i = 0; i < rounds; i++)
+				onion.encode(buffers(data, k, length), buffers(check, k, length), checkIndexes(k, n));
+			long t2 = System.nanoTime();
+			for(int i = 0; i < rounds; i++)
+				fast.encodeStripe(buffers(data, k, length), buffers(check, k, length), checkIndexes(k, n));
+			long t3 = System.nanoTime();
+			// Worst case decode: all the data blocks are missing.
+			byte[] buf = new byte[k * length];
+			long onionDecode = 0, fastDecode = 0;
+			for(int i = 0; i < rounds; i++) {
+				System.arraycopy(check, 0, buf, 0, buf.length);
+				long start = System.nanoTime();
+				onion.decode(buffers(buf, k, length), checkIndexes(k, n));
+				onionDecode += System.nanoTime() - start;
+				System.arraycopy(check, 0, buf, 0, buf.length);
+				start = System.nanoTime();
+				fast.decodeStripe(buffers(buf, k, length), checkIndexes(k, n));
+				fastDecode += System.nanoTime() - start;
+			}
+			assertTrue(Arrays.equals(data, buf));
+			long bytes = (long) rounds * k * length;
+			System.out.println("Segment "+k+"+"+k+": encode onion "+mbps(bytes, t2 - t1)+"MB/s fast "+mbps(bytes, t3 - t2)+
+					"MB/s, decode onion "+mbps(bytes, onionDecode)+"MB/s fast "+mbps(bytes, fastDecode)+"MB/s");
+		}
+	}
+
+	private static long mbps(long bytes, long nanos) {
+		return bytes * 1000 / Math.max(1, nanos);
+	}
+}
@@ -0,0 +1,440 @@
+package freenet.client.async;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FECCallback;
+import freenet.client.FECCodec;
+import freenet.client.FECJob;
+import freenet.client.FECQueue;
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.Metadata;
+import freenet.client.SplitfileBlock;
+import freenet.client.events.SimpleEventProducer;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.support.PooledExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/**
+ * Decode a small transient splitfile straight into the client's file, feeding the blocks to the
+ * segments directly rather than fetching them.
+ */
+public class SplitFileFetcherDecodeInPlaceTest extends TestCase {
+
+	private static final int BLOCK = CHKBlock.DATA_LENGTH;
+	private static final int DATA_BLOCKS = 7;
+	private static final int SEGMENT_SIZE = 4;
+	private static final long TIMEOUT = 60 * 1000;
+	private static final short PRIORITY = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
+
+	private final Random random = new Random(1234);
+	private File tempDir;
+	private PooledExecutor executor;
+	private TestContext context;
+	private FetchContext fetchContext;
+
+	/** The data, the same data padded to whole blocks, and the check blocks. */
+	private byte[] data;
+	private byte[][] dataBlocks;
+	private byte[][] checkBlocks;
+	private ClientCHKBlock[] dataKeys;
+	private ClientCHKBlock[] checkKeys;
+	private Metadata metadata;
+
+	private File out;
+	private TestCallback callback;
+	private ClientGetter getter;
+	private TestFetcher fetcher;
+
+	@Override
+	protected void setUp() throws Exception {
+		tempDir = new File("tmp-splitfilefetcherdecodeinplacetest");
+		FileUtil.removeAll(tempDir);
+		tempDir.mkdir();
+		executor = new PooledExecutor();
+		executor.start();
+		fetchContext = new FetchContext(Long.MAX_VALUE, Long.MAX_VALUE, 4096, 10, 5, 5, false, 10, 0, 0,
+				true, true, false, false, 256, 256, new ArrayBucketFactory(), new SimpleEventProducer(),
+				false, false, null, null);
+		context = new TestContext(executor, fetchContext);
+		makeSplitfile();
+		out = new File(tempDir, "out");
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testDecodeInPlace() throws Exception {
+		startFetch();
+		assertEquals(1, tempFiles().length);
+		// Segment 0 is missing data blocks 1 and 3, segment 1 data blocks 0 and 1.
+		feedData(0, 0);
+		feedData(0, 2);
+		feedCheck(0, 0);
+		feedCheck(0, 3);
+		// The last data block is truncated by the data length.
+		feedData(1, 2);
+		feedCheck(1, 0);
+		feedCheck(1, 2);
+		fetcher.waitForSegments();
+		callback.waitFinished();
+		assertNull(callback.failure);
+		assertTrue(fetcher.encodedBeforeFinish);
+		assertTrue(fetcher.tempFileBeforeFinish);
+		assertEquals(0, tempFiles().length);
+		assertTrue(Arrays.equals(data, readFile(out)));
+	}
+
+	public void testBadHashesDeleteTempFile() throws Exception {
+		startFetch();
+		byte[] wrong = sha256(data);
+		wrong[0] ^= 1;
+		getter.onHashes(new HashResult[] { new HashResult(HashType.SHA256, wrong) }, null, context);
+		feedData(0, 0);
+		feedData(0, 1);
+		feedData(0, 2);
+		feedData(0, 3);
+		feedData(1, 0);
+		feedCheck(1, 1);
+		feedData(1, 2);
+		fetcher.waitForSegments();
+		callback.waitFinished();
+		assertNotNull(callback.failure);
+		assertEquals(FetchException.CONTENT_HASH_FAILED, callback.failure.mode);
+		assertEquals(0, tempFiles().length);
+		assertFalse(out.exists());
+	}
+
+	public void testSegmentFailureDeletesTempFile() throws Exception {
+		startFetch();
+		assertEquals(1, tempFiles().length);
+		feedData(0, 0);
+		feedCheck(0, 1);
+		feedCheck(0, 2);
+		feedCheck(0, 3);
+		// Segment 1 fails once more blocks have failed than it has check blocks.
+		for(int blockNo : new int[] { 0, 1, 3, 4 })
+			failBlock(1, blockNo);
+		fetcher.waitForSegments();
+		callback.waitFinished();
+		assertNotNull(callback.failure);
+		assertEquals(FetchException.ALL_DATA_NOT_FOUND, callback.failure.mode);
+		assertEquals(0, tempFiles().length);
+		assertFalse(out.exists());
+	}
+
+	private void makeSplitfile() throws Exception {
+		data = new byte[DATA_BLOCKS * BLOCK - 1000];
+		random.nextBytes(data);
+		dataBlocks = new byte[DATA_BLOCKS][];
+		for(int i=0;i<DATA_BLOCKS;i++) {
+			// The last block is padded with zeros.
+			dataBlocks[i] = new byte[BLOCK];
+			System.arraycopy(data, i * BLOCK, dataBlocks[i], 0, Math.min(BLOCK, data.length - i * BLOCK));
+		}
+		checkBlocks = new byte[DATA_BLOCKS][];
+		for(int seg=0;seg<2;seg++) {
+			int first = seg * SEGMENT_SIZE;
+			int count = Math.min(SEGMENT_SIZE, DATA_BLOCKS - first);
+			byte[][] check = encode(Arrays.copyOfRange(dataBlocks, first, first + count));
+			System.arraycopy(check, 0, checkBlocks, first, count);
+		}
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		byte cryptoAlgorithm = Key.ALGO_AES_CTR_256_SHA256;
+		dataKeys = new ClientCHKBlock[DATA_BLOCKS];
+		checkKeys = new ClientCHKBlock[DATA_BLOCKS];
+		ClientCHK[] dataURIs = new ClientCHK[DATA_BLOCKS];
+		ClientCHK[] checkURIs = new ClientCHK[DATA_BLOCKS];
+		for(int i=0;i<DATA_BLOCKS;i++) {
+			dataKeys[i] = ClientCHKBlock.encodeSplitfileBlock(dataBlocks[i], cryptoKey, cryptoAlgorithm);
+			dataURIs[i] = dataKeys[i].getClientKey();
+			checkKeys[i] = ClientCHKBlock.encodeSplitfileBlock(checkBlocks[i], cryptoKey, cryptoAlgorithm);
+			checkURIs[i] = checkKeys[i].getClientKey();
+		}
+		Metadata m = new Metadata(Metadata.SPLITFILE_ONION_STANDARD, dataURIs, checkURIs, SEGMENT_SIZE, SEGMENT_SIZE, 0,
+				new ClientMetadata(), data.length, null, null, -1, false, null, null, 0, 0, 0, 0, false, (short)0,
+				cryptoAlgorithm, cryptoKey, true, 0);
+		// The fetcher needs the keys in the parsed form.
+		metadata = Metadata.construct(m.writeToByteArray());
+	}
+
+	/** Compute the check blocks for a segment, as the inserter does. */
+	private byte[][] encode(byte[][] blocks) throws Exception {
+		FECCodec codec = FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, blocks.length, blocks.length);
+		Bucket[] dataBuckets = new Bucket[blocks.length];
+		for(int i=0;i<blocks.length;i++)
+			dataBuckets[i] = new ArrayBucket(blocks[i]);
+		EncodeCallback cb = new EncodeCallback();
+		FECJob job = new FECJob(codec, context.fecQueue, dataBuckets, new Bucket[blocks.length], BLOCK,
+				new ArrayBucketFactory(), cb, false, PRIORITY, false);
+		codec.addToQueue(job, context.fecQueue, null);
+		Bucket[] checkBuckets = cb.waitEncoded();
+		byte[][] check = new byte[checkBuckets.length][];
+		for(int i=0;i<checkBuckets.length;i++)
+			check[i] = readBucket(checkBuckets[i]);
+		return check;
+	}
+
+	private void startFetch() throws Exception {
+		callback = new TestCallback();
+		FileBucket returnBucket = new FileBucket(out, false, false, false, false, true);
+		getter = new ClientGetter(callback, dataKeys[0].getClientKey().getURI(), fetchContext, PRIORITY,
+				new TestRequestClient(), returnBucket);
+		fetcher = new TestFetcher(metadata, getter, fetchContext, context, tempDir);
+		assertEquals(2, fetcher.segments.length);
+	}
+
+	private void feedData(int seg, int blockNo) {
+		int i = seg * SEGMENT_SIZE + blockNo;
+		fetcher.segments[seg].onSuccess(new ArrayBucket(dataBlocks[i].clone()), blockNo, dataKeys[i], null, context, null);
+	}
+
+	private void feedCheck(int seg, int checkNo) {
+		int i = seg * SEGMENT_SIZE + checkNo;
+		int dataCount = fetcher.segments[seg].dataBuckets.length;
+		fetcher.segments[seg].onSuccess(new ArrayBucket(checkBlocks[i].clone()), dataCount + checkNo, checkKeys[i], null, context, null);
+	}
+
+	/** A block has run out of retries, as reported by SplitFileFetcherSegmentGet. */
+	private void failBlock(int seg, int blockNo) {
+		SplitFileFetcherSegment segment = fetcher.segments[seg];
+		segment.errors.inc(FetchException.DATA_NOT_FOUND);
+		segment.onFatalFailure(new FetchException(FetchException.DATA_NOT_FOUND), blockNo, null, context);
+	}
+
+	private File[] tempFiles() {
+		List<File> files = new ArrayList<File>();
+		for(File f : tempDir.listFiles())
+			if(f.getName().endsWith(".freenet-tmp")) files.add(f);
+		return files.toArray(new File[files.size()]);
+	}
+
+	private static byte[] readBucket(Bucket bucket) throws IOException {
+		byte[] buf = new byte[(int) bucket.size()];
+		InputStream is = bucket.getInputStream();
+		try {
+			new DataInputStream(is).readFully(buf);
+		} finally {
+			is.close();
+		}
+		return buf;
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] buf = new byte[(int) f.length()];
+		InputStream is = new FileInputStream(f);
+		try {
+			new DataInputStream(is).readFully(buf);
+		} finally {
+			is.close();
+		}
+		return buf;
+	}
+
+	private static byte[] sha256(byte[] buf) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(buf);
+	}
+
+	/** Records whether the healing encode had finished, and the file being decoded into still
+	 * existed, each time a segment finished. */
+	private static class TestFetcher extends SplitFileFetcher {
+
+		private boolean encodedBeforeFinish = true;
+		private boolean tempFileBeforeFinish = true;
+		private int segmentsFinished;
+		private final File dir;
+
+		TestFetcher(Metadata metadata, ClientGetter getter, FetchContext ctx, TestContext context, File dir) throws Exception {
+			super(metadata, getter, getter, ctx, false, false, new ArrayList<Compressor>(), new ClientMetadata(),
+					null, 0, 0, false, (short)0, null, context);
+			this.dir = dir;
+		}
+
+		@Override
+		public void segmentFinished(SplitFileFetcherSegment segment, ObjectContainer container, ClientContext context) {
+			boolean encoded = true;
+			synchronized(segment) {
+				for(MinimalSplitfileBlock block : segment.checkBuckets)
+					if(block != null) encoded = false;
+			}
+			boolean tempFile = false;
+			for(File f : dir.listFiles())
+				if(f.getName().endsWith(".freenet-tmp")) tempFile = true;
+			synchronized(this) {
+				encodedBeforeFinish &= encoded;
+				tempFileBeforeFinish &= tempFile;
+			}
+			super.segmentFinished(segment, container, context);
+			synchronized(this) {
+				segmentsFinished++;
+				notifyAll();
+			}
+		}
+
+		synchronized void waitForSegments() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(segmentsFinished < segments.length) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out waiting for the segments", wait > 0);
+				wait(wait);
+			}
+		}
+	}
+
+	private static class TestCallback implements ClientGetCallback {
+
+		private boolean finished;
+		private FetchException failure;
+
+		@Override
+		public synchronized void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {
+			finished = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {
+			failure = e;
+			finished = true;
+			notifyAll();
+		}
+
+		@Override
+		public void onMajorProgress(ObjectContainer container) {
+			// Ignore
+		}
+
+		synchronized void waitFinished() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(!finished) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out waiting for the fetch", wait > 0);
+				wait(wait);
+			}
+		}
+	}
+
+	private static class EncodeCallback implements FECCallback {
+
+		private Bucket[] checkBuckets;
+		private Throwable failure;
+
+		@Override
+		public synchronized void onEncodedSegment(ObjectContainer container, ClientContext context, FECJob job, Bucket[] dataBuckets, Bucket[] checkBuckets, SplitfileBlock[] dataBlocks, SplitfileBlock[] checkBlocks) {
+			this.checkBuckets = checkBuckets;
+			notifyAll();
+		}
+
+		@Override
+		public void onDecodedSegment(ObjectContainer container, ClientContext context, FECJob job, Bucket[] dataBuckets, Bucket[] checkBuckets, SplitfileBlock[] dataBlocks, SplitfileBlock[] checkBlocks) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized void onFailed(Throwable t, ObjectContainer container, ClientContext context) {
+			failure = t;
+			notifyAll();
+		}
+
+		synchronized Bucket[] waitEncoded() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(checkBuckets == null && failure == null) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out encoding", wait > 0);
+				wait(wait);
+			}
+			assertNull(failure);
+			return checkBuckets;
+		}
+	}
+
+	private static class TestRequestClient implements RequestClient {
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public boolean realTimeFlag() {
+			return false;
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** There is no database, so the FEC queue's persistent job cache is never filled. */
+	private static class NoDatabaseJobRunner extends TrivialDBJobRunner {
+
+		NoDatabaseJobRunner() {
+			super(null);
+		}
+
+		@Override
+		public void queue(DBJob job, int priority, boolean checkDupes) throws DatabaseDisabledException {
+			throw new DatabaseDisabledException();
+		}
+	}
+
+	/** Just enough of a client layer for a transient fetch, with no node. */
+	private static class TestContext extends ClientContext {
+
+		private final ClientRequestScheduler chkFetchScheduler;
+
+		TestContext(PooledExecutor executor, FetchContext fetchContext) {
+			super(0, 0, new NoDatabaseJobRunner(), new FECQueue(0), executor, null, null, null,
+					new ArrayBucketFactory(), null, new NullHealingQueue(), new USKManager(fetchContext, executor),
+					new DummyRandomSource(), new Random(), null, null, null, null, new DatastoreChecker(null), null);
+			fecQueue.init(RequestStarter.NUMBER_OF_PRIORITY_CLASSES, 100, jobRunner, executor, this);
+			chkFetchScheduler = new ClientRequestScheduler(false, false, false, random, null, null, null, checker, "CHK fetches", this);
+		}
+
+		@Override
+		public ClientRequestScheduler getChkFetchScheduler(boolean realTime) {
+			return chkFetchScheduler;
+		}
+	}
+
+	private static class NullHealingQueue implements HealingQueue {
+
+		@Override
+		public void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
+			data.free();
+		}
+	}
+
+}
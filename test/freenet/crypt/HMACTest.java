@@ -0,0 +1,54 @@
+package freenet.crypt;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.HexUtil;
+
+public class HMACTest extends TestCase {
+
+	// RFC 4231 test case 2
+	byte[] KEY = "Jefe".getBytes();
+	String TEXT = "what do ya want for nothing?";
+	byte[] MAC = HexUtil
+			.hexToBytes("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+
+	public void testSHA256() throws UnsupportedEncodingException {
+		byte[] text = TEXT.getBytes("UTF-8");
+		assertTrue(Arrays.equals(MAC, HMAC.macWithSHA256(KEY, text, 32)));
+		assertTrue(HMAC.verifyWithSHA256(KEY, text, MAC));
+	}
+
+	public void testSlices() throws UnsupportedEncodingException {
+		byte[] text = TEXT.getBytes("UTF-8");
+		byte[] buf = new byte[text.length + 50];
+		System.arraycopy(text, 0, buf, 40, text.length);
+		HMAC hmac = new HMAC(SHA256.getMessageDigest());
+		byte[] out = new byte[20];
+		hmac.mac(KEY, buf, 40, text.length, out, 5, 10);
+		assertTrue(Arrays.equals(Arrays.copyOf(MAC, 10), Arrays.copyOfRange(out, 5, 15)));
+		assertTrue(hmac.verify(KEY, buf, 40, text.length, MAC, 0, 32));
+		assertTrue(hmac.verify(KEY, buf, 40, text.length, out, 5, 10));
+		out[14] ^= 1;
+		assertFalse(hmac.verify(KEY, buf, 40, text.length, out, 5, 10));
+	}
+
+	public void testSlicesMatchWholeArrays() {
+		Random r = new Random(1234);
+		HMAC hmac = new HMAC(SHA256.getMessageDigest());
+		for(int i=0;i<100;i++) {
+			byte[] key = new byte[r.nextInt(100) + 1];
+			r.nextBytes(key);
+			byte[] text = new byte[r.nextInt(2000)];
+			r.nextBytes(text);
+			byte[] expected = HMAC.macWithSHA256(key, text, 32);
+			byte[] out = new byte[32];
+			hmac.mac(key, text, 0, text.length, out, 0, 32);
+			assertTrue(Arrays.equals(expected, out));
+		}
+	}
+
+}
@@ -3,8 +3,13 @@ package freenet.io;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.support.Serializer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
@@ -73,4 +78,154 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/**
+	 * Test that a message with sub-messages survives encoding and decoding, and that encoding
+	 * it again gives the same bytes.
+	 */
+	public void testEncodeDecode() {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)1);
+		msg.set(SHORT, (short)2);
+		msg.set(INT, 3);
+		msg.set(LONG, 4L);
+		msg.set(DOUBLE, 5.0);
+		msg.set(FLOAT, 6.0f);
+		msg.set(DOUBLE_ARRAY, new double[] { 7.0 });
+		msg.set(FLOAT_ARRAY, new float[1000]); // Bigger than the initial encoding buffer.
+		Message sub = new Message(test);
+		sub.set(BOOLEAN, false);
+		sub.set(BYTE, (byte)11);
+		sub.set(SHORT, (short)12);
+		sub.set(INT, 13);
+		sub.set(LONG, 14L);
+		sub.set(DOUBLE, 15.0);
+		sub.set(FLOAT, 16.0f);
+		sub.set(DOUBLE_ARRAY, new double[0]);
+		sub.set(FLOAT_ARRAY, new float[] { 17.0f });
+		msg.addSubMessage(sub);
+
+		byte[] encoded = msg.encodeToPacket();
+		assertTrue(Arrays.equals(encoded, msg.encodeToPacket()));
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertNotNull(decoded);
+		assertEquals(3, decoded.getInt(INT));
+		assertEquals(1000, decoded.getFloatArray(FLOAT_ARRAY).length);
+		Message decodedSub = decoded.getSubMessage(test);
+		assertNotNull(decodedSub);
+		assertEquals(13, decodedSub.getInt(INT));
+		assertTrue(Arrays.equals(new float[] { 17.0f }, decodedSub.getFloatArray(FLOAT_ARRAY)));
+	}
+
+	/**
+	 * Test that the encoding is the same as writing each field in order with the Serializer,
+	 * which is how messages were encoded before they had typed fields.
+	 */
+	public void testEncodingMatchesSerializer() throws IOException {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)-1);
+		msg.set(SHORT, (short)-2);
+		msg.set(INT, -3);
+		msg.set(LONG, Long.MIN_VALUE);
+		msg.set(DOUBLE, -0.0);
+		msg.set(FLOAT, Float.NaN);
+		msg.set(DOUBLE_ARRAY, new double[] { 1.0, 2.0 });
+		msg.set(FLOAT_ARRAY, new float[] { 3.0f });
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(test.getName().hashCode());
+		for (String name : test.getOrderedFields())
+			Serializer.writeToDataOutputStream(msg.getObject(name), dos);
+		dos.flush();
+		assertTrue(Arrays.equals(baos.toByteArray(), msg.encodeToPacket()));
+
+		Message routed = DMT.createFNPSwapRequest(1234, new byte[16], 10);
+		baos.reset();
+		dos.writeInt(DMT.FNPSwapRequest.getName().hashCode());
+		for (String name : DMT.FNPSwapRequest.getOrderedFields())
+			Serializer.writeToDataOutputStream(routed.getObject(name), dos);
+		dos.flush();
+		assertTrue(Arrays.equals(baos.toByteArray(), routed.encodeToPacket()));
+	}
+
+	/**
+	 * Test the boxed and unboxed accessors agree, and that the mistakes which failed before
+	 * typed fields still fail.
+	 */
+	public void testAccessors() {
+		Message msg = new Message(test);
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		try {
+			msg.getLong(LONG);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+		msg.set(LONG, Long.valueOf(5));
+		assertTrue(msg.isSet(LONG));
+		assertEquals(5L, msg.getLong(LONG));
+		assertEquals(Long.valueOf(5), msg.getFromPayload(LONG));
+		msg.set(SHORT, (short)7);
+		assertEquals(Short.valueOf((short)7), msg.getObject(SHORT));
+		try {
+			msg.getInt(SHORT);
+			fail();
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+		try {
+			msg.set(LONG, 1);
+			fail();
+		} catch (RuntimeException e) {
+			// Expected: wrong type.
+		}
+		assertEquals(5L, msg.getLong(LONG));
+		assertFalse(msg.isSet("nonexistent"));
+		try {
+			msg.getFromPayload(INT);
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		Message copy = msg.cloneAndDropSubMessages();
+		assertEquals(5L, copy.getLong(LONG));
+		assertFalse(copy.isSet(INT));
+	}
+
+	/** Encodes and decodes per second for some common DMT messages. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Message[] messages = new Message[] {
+				DMT.createFNPAccepted(1),
+				DMT.createFNPRejectedLoop(2),
+				DMT.createFNPSwapRequest(3, new byte[32], 10),
+				DMT.createFNPSwapComplete(4, new byte[32]),
+		};
+		int iterations = 1000000;
+		for(int round=0;round<3;round++) { // First round is warmup.
+			long start = System.nanoTime();
+			int total = 0;
+			for(int i=0;i<iterations;i++)
+				total += messages[i % messages.length].encodeToPacket().length;
+			long elapsed = System.nanoTime() - start;
+			System.out.println("Message encode: " + (iterations * 1000000000L / elapsed) +
+					" messages/sec (" + total + " bytes)");
+			byte[][] encoded = new byte[messages.length][];
+			for(int i=0;i<messages.length;i++)
+				encoded[i] = messages[i].encodeToPacket();
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				byte[] buf = encoded[i % encoded.length];
+				Message m = Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0);
+				total += m.getLong(DMT.UID) == i ? 1 : 0;
+			}
+			elapsed = System.nanoTime() - start;
+			System.out.println("Message decode: " + (iterations * 1000000000L / elapsed) +
+					" messages/sec");
+		}
+	}
 }
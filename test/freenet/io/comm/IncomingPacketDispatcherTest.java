@@ -0,0 +1,95 @@
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+
+public class IncomingPacketDispatcherTest extends TestCase {
+
+	/** Records the first byte of each packet, by peer. */
+	private static class RecordingFilter implements IncomingPacketFilter {
+
+		final Map<Peer, List<Integer>> received = new HashMap<Peer, List<Integer>>();
+		int count;
+
+		@Override
+		public synchronized DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			List<Integer> list = received.get(peer);
+			if(list == null) {
+				list = new ArrayList<Integer>();
+				received.put(peer, list);
+			}
+			list.add(buf[offset] & 0xFF);
+			count++;
+			notifyAll();
+			return DECODED.DECODED;
+		}
+
+		synchronized void waitFor(int packets) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(count < packets) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out waiting for packets", wait > 0);
+				wait(wait);
+			}
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+	}
+
+	public void testInline() throws Exception {
+		RecordingFilter filter = new RecordingFilter();
+		IncomingPacketDispatcher dispatcher = new IncomingPacketDispatcher(filter, 16, 0, new PooledExecutor(), "test");
+		Peer peer = new Peer(InetAddress.getByName("127.0.0.1"), 1234);
+		byte[] buf = dispatcher.getBuffer();
+		for(int i=0;i<10;i++) {
+			buf[0] = (byte) i;
+			dispatcher.dispatch(buf, 1, peer, 0);
+			// Processed on this thread, so the buffer is reused.
+			assertSame(buf, dispatcher.getBuffer());
+		}
+		assertEquals(10, filter.count);
+		assertEquals(10, dispatcher.processedPackets());
+		assertEquals(0, dispatcher.workerCount());
+	}
+
+	public void testOrderingPerPeer() throws Exception {
+		RecordingFilter filter = new RecordingFilter();
+		IncomingPacketDispatcher dispatcher = new IncomingPacketDispatcher(filter, 16, 4, new PooledExecutor(), "test");
+		Peer[] peers = new Peer[10];
+		for(int i=0;i<peers.length;i++)
+			peers[i] = new Peer(InetAddress.getByName("127.0.0."+(i+1)), 1000+i);
+		int total = 0;
+		for(int i=0;i<100;i++) {
+			for(Peer peer : peers) {
+				byte[] buf = dispatcher.getBuffer();
+				buf[0] = (byte) i;
+				dispatcher.dispatch(buf, 1, peer, 0);
+				total++;
+				// Don't overflow the queues.
+				if(total % 100 == 0) filter.waitFor(total);
+			}
+		}
+		filter.waitFor(total);
+		dispatcher.stop();
+		assertEquals(0, dispatcher.droppedPackets());
+		assertEquals(total, dispatcher.processedPackets());
+		assertTrue(dispatcher.peakQueueDepth() > 0);
+		for(Peer peer : peers) {
+			List<Integer> list = filter.received.get(peer);
+			assertEquals(100, list.size());
+			for(int i=0;i<100;i++)
+				assertEquals(i, (int) list.get(i));
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MessageFilterIndexTest extends TestCase {
+
+	private static MessageFilter filter(MessageType type, long uid, long timeout) {
+		MessageFilter f = MessageFilter.create().setType(type).setField(DMT.UID, uid);
+		if(timeout == Long.MAX_VALUE)
+			f.setNoTimeout();
+		else
+			f.setTimeout(timeout);
+		return f;
+	}
+
+	public void testMatch() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter accepted1 = filter(DMT.FNPAccepted, 1, 10000);
+		MessageFilter accepted2 = filter(DMT.FNPAccepted, 2, 10000);
+		MessageFilter loop1 = filter(DMT.FNPRejectedLoop, 1, 10000);
+		assertTrue(index.add(accepted1, now));
+		assertTrue(index.add(accepted2, now));
+		assertTrue(index.add(loop1, now));
+		assertFalse(index.add(loop1, now));
+		assertEquals(3, index.size());
+
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertSame(accepted2, index.match(DMT.createFNPAccepted(2), now, timedOut));
+		assertNull(index.match(DMT.createFNPAccepted(2), now, timedOut));
+		assertNull(index.match(DMT.createFNPAccepted(3), now, timedOut));
+		assertSame(loop1, index.match(DMT.createFNPRejectedLoop(1), now, timedOut));
+		assertEquals(1, index.size());
+		assertTrue(index.contains(accepted1));
+		assertTrue(index.remove(accepted1));
+		assertFalse(index.remove(accepted1));
+		assertEquals(0, index.size());
+		assertTrue(timedOut.isEmpty());
+	}
+
+	public void testEarliestTimeoutWins() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter late = filter(DMT.FNPAccepted, 1, 20000);
+		MessageFilter early = filter(DMT.FNPAccepted, 1, 10000);
+		// Any type, so in a different bucket.
+		MessageFilter any = MessageFilter.create().setField(DMT.UID, 1L).setTimeout(15000);
+		index.add(late, now);
+		index.add(any, now);
+		index.add(early, now);
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertSame(early, index.match(DMT.createFNPAccepted(1), now, timedOut));
+		assertSame(any, index.match(DMT.createFNPAccepted(1), now, timedOut));
+		assertSame(late, index.match(DMT.createFNPAccepted(1), now, timedOut));
+	}
+
+	public void testOr() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter f = filter(DMT.FNPAccepted, 1, 10000).or(filter(DMT.FNPRejectedLoop, 1, 10000));
+		index.add(f, now);
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertSame(f, index.match(DMT.createFNPRejectedLoop(1), now, timedOut));
+		assertEquals(0, index.size());
+		// Removing it removes it from both buckets.
+		assertNull(index.match(DMT.createFNPAccepted(1), now, timedOut));
+	}
+
+	public void testTimeouts() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter soon = filter(DMT.FNPAccepted, 1, 500);
+		// Further away than one turn of the wheel.
+		long longTimeout = MessageFilterIndex.WHEEL_TICK * MessageFilterIndex.WHEEL_SLOTS * 2;
+		MessageFilter later = filter(DMT.FNPAccepted, 2, longTimeout);
+		MessageFilter never = filter(DMT.FNPAccepted, 3, Long.MAX_VALUE);
+		index.add(soon, now);
+		index.add(later, now);
+		index.add(never, now);
+
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		index.removeTimedOut(now + 100, false, timedOut);
+		assertTrue(timedOut.isEmpty());
+		index.removeTimedOut(now + 1000, false, timedOut);
+		assertEquals(1, timedOut.size());
+		assertSame(soon, timedOut.get(0));
+		timedOut.clear();
+		for(long t = now + 1000; t < now + longTimeout; t += 10000) {
+			index.removeTimedOut(t, false, timedOut);
+			assertTrue(timedOut.isEmpty());
+		}
+		index.removeTimedOut(now + longTimeout + 1000, false, timedOut);
+		assertEquals(1, timedOut.size());
+		assertSame(later, timedOut.get(0));
+		assertEquals(1, index.size());
+		assertTrue(index.contains(never));
+
+		// A message for a filter which has timed out but not been reaped yet times it out.
+		MessageFilter expired = filter(DMT.FNPAccepted, 4, 100);
+		index.add(expired, now + longTimeout + 1000);
+		timedOut.clear();
+		assertNull(index.match(DMT.createFNPAccepted(4), now + longTimeout + 2000, timedOut));
+		assertEquals(1, timedOut.size());
+		assertSame(expired, timedOut.get(0));
+		assertFalse(index.contains(expired));
+	}
+
+	public void testUnclaimedMessages() {
+		long now = System.currentTimeMillis();
+		UnclaimedMessages unclaimed = new UnclaimedMessages();
+		Message first = DMT.createFNPAccepted(1);
+		Message second = DMT.createFNPAccepted(1);
+		Message loop = DMT.createFNPRejectedLoop(2);
+		unclaimed.add(first);
+		unclaimed.add(loop);
+		unclaimed.add(second);
+		assertEquals(3, unclaimed.size());
+		assertSame(first, unclaimed.oldest());
+
+		assertSame(first, unclaimed.find(filter(DMT.FNPAccepted, 1, 1000), now));
+		assertNull(unclaimed.find(filter(DMT.FNPAccepted, 2, 1000), now));
+		MessageFilter either = filter(DMT.FNPAccepted, 2, 1000).or(filter(DMT.FNPRejectedLoop, 2, 1000));
+		assertSame(loop, unclaimed.find(either, now));
+		assertSame(loop, unclaimed.find(MessageFilter.create().setField(DMT.UID, 2L).setTimeout(1000), now));
+
+		assertTrue(unclaimed.remove(first));
+		assertFalse(unclaimed.remove(first));
+		assertSame(second, unclaimed.find(filter(DMT.FNPAccepted, 1, 1000), now));
+		assertSame(loop, unclaimed.oldest());
+		assertEquals(2, unclaimed.size());
+	}
+
+}
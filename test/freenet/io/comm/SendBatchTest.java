@@ -0,0 +1,84 @@
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SendBatchTest extends TestCase {
+
+	private static class RecordingListener implements SendBatch.Listener {
+
+		final List<Integer> lengths = new ArrayList<Integer>();
+		int failures;
+
+		@Override
+		public void sent(Peer peer, InetSocketAddress address, int length, boolean isLocal) {
+			lengths.add(length);
+		}
+
+		@Override
+		public void failed(Peer peer, InetSocketAddress address, IOException e) {
+			failures++;
+		}
+
+	}
+
+	public void testFlush() throws IOException {
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		DatagramChannel receiver = DatagramChannel.open();
+		DatagramChannel sender = DatagramChannel.open();
+		try {
+			receiver.socket().bind(new InetSocketAddress(localhost, 0));
+			receiver.socket().setSoTimeout(5000);
+			sender.socket().bind(new InetSocketAddress(localhost, 0));
+			InetSocketAddress address = new InetSocketAddress(localhost, receiver.socket().getLocalPort());
+			Peer peer = new Peer(localhost, address.getPort());
+
+			SendBatch batch = new SendBatch(4, 1500);
+			RecordingListener listener = new RecordingListener();
+			byte[] data = new byte[1000];
+			// More than the capacity, so the ring wraps around.
+			for(int round=0;round<3;round++) {
+				for(int i=0;i<4;i++) {
+					for(int j=0;j<data.length;j++)
+						data[j] = (byte) (round * 4 + i);
+					// The array is reused, so the batch must copy it.
+					batch.add(data, i, 100 + i, address, peer, true);
+				}
+				assertTrue(batch.isFull());
+				assertEquals(4, batch.flush(sender, listener));
+				assertEquals(0, batch.size());
+				ByteBuffer buf = ByteBuffer.allocate(1500);
+				for(int i=0;i<4;i++) {
+					buf.clear();
+					receiver.receive(buf);
+					buf.flip();
+					assertEquals(100 + i, buf.remaining());
+					while(buf.hasRemaining())
+						assertEquals((byte) (round * 4 + i), buf.get());
+				}
+			}
+			assertEquals(12, listener.lengths.size());
+			assertEquals(0, listener.failures);
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	public void testClear() {
+		SendBatch batch = new SendBatch(2, 1500);
+		batch.add(new byte[10], 0, 10, new InetSocketAddress(1234), null, false);
+		assertEquals(1, batch.size());
+		batch.clear();
+		assertEquals(0, batch.size());
+		assertEquals(0, batch.flush(null, new RecordingListener()));
+	}
+
+}
@@ -0,0 +1,90 @@
+package freenet.io.xfer;
+
+import junit.framework.TestCase;
+
+public class DelayBasedPacketThrottleTest extends TestCase {
+
+	private long now;
+
+	private DelayBasedPacketThrottle makeThrottle() {
+		return new DelayBasedPacketThrottle(1024) {
+			@Override
+			protected long now() {
+				return now;
+			}
+		};
+	}
+
+	private void ack(DelayBasedPacketThrottle throttle, long rtt) {
+		throttle.setRoundTripTime(rtt);
+		throttle.notifyOfPacketAcknowledged(1000);
+	}
+
+	public void testQueueingDelay() {
+		DelayBasedPacketThrottle throttle = makeThrottle();
+		assertEquals(-1, throttle.getQueueingDelay());
+		ack(throttle, 100);
+		assertEquals(0, throttle.getQueueingDelay());
+		// The current delay is the lowest of the last few samples.
+		ack(throttle, 300);
+		assertEquals(0, throttle.getQueueingDelay());
+		for(int i=0;i<DelayBasedPacketThrottle.CURRENT_FILTER;i++)
+			ack(throttle, 300);
+		assertEquals(200, throttle.getQueueingDelay());
+		// The base delay is forgotten after a while.
+		for(int i=0;i<DelayBasedPacketThrottle.BASE_HISTORY;i++) {
+			now += DelayBasedPacketThrottle.BASE_INTERVAL;
+			ack(throttle, 300);
+		}
+		assertEquals(0, throttle.getQueueingDelay());
+	}
+
+	public void testWindow() {
+		DelayBasedPacketThrottle throttle = makeThrottle();
+		// Slow start while there is no queueing.
+		for(int i=0;i<20;i++)
+			ack(throttle, 100);
+		assertEquals(22.0, throttle.getWindowSize(), 0.01);
+		// Leaves slow start when the queue builds up. At the target, the window stays put.
+		for(int i=0;i<DelayBasedPacketThrottle.CURRENT_FILTER;i++)
+			ack(throttle, 100 + DelayBasedPacketThrottle.TARGET_DELAY);
+		double w = throttle.getWindowSize();
+		ack(throttle, 100 + DelayBasedPacketThrottle.TARGET_DELAY);
+		assertEquals(w, throttle.getWindowSize(), 0.0001);
+		// Grows slowly below the target.
+		for(int i=0;i<DelayBasedPacketThrottle.CURRENT_FILTER;i++)
+			ack(throttle, 100 + DelayBasedPacketThrottle.TARGET_DELAY / 2);
+		assertTrue(throttle.getWindowSize() > w);
+		assertTrue(throttle.getWindowSize() < w + 1);
+		// Shrinks above it.
+		for(int i=0;i<DelayBasedPacketThrottle.CURRENT_FILTER;i++)
+			throttle.setRoundTripTime(100 + DelayBasedPacketThrottle.TARGET_DELAY * 2);
+		w = throttle.getWindowSize();
+		for(int i=0;i<DelayBasedPacketThrottle.CURRENT_FILTER;i++)
+			ack(throttle, 100 + DelayBasedPacketThrottle.TARGET_DELAY * 2);
+		assertTrue(throttle.getWindowSize() < w);
+	}
+
+	public void testLoss() {
+		DelayBasedPacketThrottle throttle = makeThrottle();
+		for(int i=0;i<30;i++)
+			ack(throttle, 100);
+		double w = throttle.getWindowSize();
+		// No queueing, so probably not congestion.
+		throttle.notifyOfPacketLost();
+		assertEquals(w * PacketThrottle.PACKET_DROP_DECREASE_MULTIPLE, throttle.getWindowSize(), 0.01);
+		// At most once per round trip.
+		w = throttle.getWindowSize();
+		throttle.notifyOfPacketLost();
+		throttle.notifyOfPacketLost();
+		assertEquals(w, throttle.getWindowSize(), 0.01);
+		// With queueing, halve it.
+		for(int i=0;i<DelayBasedPacketThrottle.CURRENT_FILTER;i++)
+			throttle.setRoundTripTime(100 + DelayBasedPacketThrottle.TARGET_DELAY);
+		now += 1000;
+		w = throttle.getWindowSize();
+		throttle.notifyOfPacketLost();
+		assertEquals(w * DelayBasedPacketThrottle.LOSS_DECREASE_MULTIPLE, throttle.getWindowSize(), 0.01);
+	}
+
+}
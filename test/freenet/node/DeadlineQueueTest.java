@@ -0,0 +1,83 @@
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DeadlineQueueTest extends TestCase {
+
+	public void testScheduleKeepsEarliest() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		assertEquals(Long.MAX_VALUE, queue.earliest());
+		assertTrue(queue.schedule("a", 100));
+		assertFalse(queue.schedule("b", 200));
+		// Later deadlines for an item already queued are ignored.
+		assertFalse(queue.schedule("a", 300));
+		assertEquals(100, queue.earliest());
+		assertTrue(queue.schedule("b", 50));
+		assertEquals(50, queue.earliest());
+		assertEquals(2, queue.size());
+		assertFalse(queue.schedule("c", Long.MAX_VALUE));
+		assertEquals(2, queue.size());
+
+		List<String> out = new ArrayList<String>();
+		assertEquals(1, queue.pollExpired(99, out));
+		assertEquals("b", out.get(0));
+		assertEquals(1, queue.pollExpired(100, out));
+		assertEquals("a", out.get(1));
+		assertEquals(0, queue.size());
+	}
+
+	public void testRandom() {
+		Random r = new Random(1234);
+		DeadlineQueue<Integer> queue = new DeadlineQueue<Integer>();
+		Map<Integer, Long> expected = new HashMap<Integer, Long>();
+		Integer[] items = new Integer[200];
+		for(int i=0;i<items.length;i++)
+			items[i] = Integer.valueOf(i);
+		long now = 0;
+		for(int op=0;op<20000;op++) {
+			Integer item = items[r.nextInt(items.length)];
+			switch(r.nextInt(4)) {
+			case 0:
+			case 1:
+				long time = now + r.nextInt(1000);
+				queue.schedule(item, time);
+				Long old = expected.get(item);
+				if(old == null || time < old) expected.put(item, time);
+				break;
+			case 2:
+				queue.remove(item);
+				expected.remove(item);
+				break;
+			case 3:
+				now += r.nextInt(100);
+				List<Integer> out = new ArrayList<Integer>();
+				queue.pollExpired(now, out);
+				long last = Long.MIN_VALUE;
+				for(Integer i : out) {
+					long t = expected.remove(i);
+					assertTrue(t <= now);
+					assertTrue(t >= last);
+					last = t;
+				}
+				for(long t : expected.values())
+					assertTrue(t > now);
+				break;
+			}
+			assertEquals(expected.size(), queue.size());
+			long min = Long.MAX_VALUE;
+			for(long t : expected.values())
+				min = Math.min(min, t);
+			assertEquals(min, queue.earliest());
+		}
+		queue.clear();
+		assertEquals(0, queue.size());
+		assertEquals(Long.MAX_VALUE, queue.earliest());
+	}
+
+}
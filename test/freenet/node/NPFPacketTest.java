@@ -471,6 +471,56 @@ public class NPFPacketTest extends TestCase {
 		checkEquals(lossyFragment2, decodedLossyMessage);
 	}
 
+	/** The length of the acks must match what is written, however they were added. */
+	public void testAckRanges() {
+		Random r = new Random(1);
+		for(int run = 0; run < 200; run++) {
+			java.util.List<Integer> acks = new java.util.ArrayList<Integer>();
+			int ack = r.nextInt(1000);
+			for(int i = 0; i < 300; i++) {
+				acks.add(ack);
+				switch(r.nextInt(4)) {
+				case 0:
+					// Gaps around the far offset threshold.
+					ack += NPFPacket.FAR_ACK_DISTANCE - 2 + r.nextInt(4);
+					break;
+				case 1:
+					ack += 2 + r.nextInt(10);
+					break;
+				default:
+					ack++;
+				}
+			}
+			if(run % 2 == 0)
+				java.util.Collections.shuffle(acks, r);
+			NPFPacket p = new NPFPacket();
+			p.setSequenceNumber(run);
+			java.util.TreeSet<Integer> added = new java.util.TreeSet<Integer>();
+			for(int a : acks) {
+				if(p.addAck(a, MAX_PACKET_SIZE))
+					added.add(a);
+			}
+			assertEquals(added, p.getAcks());
+			byte[] data = new byte[p.getLength()];
+			assertEquals(data.length, p.toBytes(data, 0, null));
+			assertEquals(p.getLength() - 4, p.getAckBytes());
+			NPFPacket received = NPFPacket.create(data, pn);
+			assertFalse(received.getError());
+			assertEquals(added, received.getAcks());
+		}
+	}
+
+	public void testReceiveTruncatedAcks() {
+		byte[] packet = new byte[] {
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, //Sequence number 0
+		                (byte)0x02, //2 ack ranges
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x05, (byte)0x01, //Ack for packet 5
+		                (byte)0x00 /*Far-range marker*/, (byte)0x00, (byte)0x0F, (byte)0x57, (byte)0xF3 /* Range size missing */,
+		                (byte)0x01, (byte)0x02 /* Not part of the packet */ };
+		NPFPacket r = NPFPacket.create(packet, 0, packet.length - 2, pn);
+		assertTrue(r.getError());
+	}
+
 	private void checkPacket(NPFPacket packet, byte[] correctData) {
 		byte[] data = new byte[packet.getLength()];
 		packet.toBytes(data, 0, null);
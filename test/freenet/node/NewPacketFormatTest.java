@@ -3,14 +3,21 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
+import freenet.io.comm.Peer.LocalAddressException;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 public class NewPacketFormatTest extends TestCase {
@@ -62,7 +69,7 @@ public class NewPacketFormatTest extends TestCase {
 		senderNode.currentKey = senderKey;
 		SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false));
 
 		NPFPacket fragment1 = sender.createPacket(512, senderQueue, senderKey, false, true);
 		assertEquals(1, fragment1.getFragments().size());
@@ -110,7 +117,7 @@ public class NewPacketFormatTest extends TestCase {
 		SessionKey senderKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 		SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false));
 
 		NPFPacket fragment1 = sender.createPacket(512, senderQueue, senderKey, false, true);
 		assertEquals(1, fragment1.getFragments().size());
@@ -135,7 +142,7 @@ public class NewPacketFormatTest extends TestCase {
 		SessionKey senderKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 		SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false));
 
 		NPFPacket fragment1 = sender.createPacket(512, senderQueue, senderKey, false, true);
 		assertEquals(1, fragment1.getFragments().size());
@@ -158,7 +165,7 @@ public class NewPacketFormatTest extends TestCase {
 		SessionKey senderKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 		SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, false), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, false));
 
 		Thread.sleep(PacketSender.MAX_COALESCING_DELAY*2);
 		NPFPacket packet1 = sender.createPacket(512, senderQueue, senderKey, false, true);
@@ -227,7 +234,7 @@ public class NewPacketFormatTest extends TestCase {
 		NewPacketFormat receiver = new NewPacketFormat(receiverNode, 0, 0);
 		SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, false), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, false));
 
 		Thread.sleep(PacketSender.MAX_COALESCING_DELAY*2);
 		NPFPacket packet1 = sender.createPacket(512, senderQueue, senderKey, false, true);
@@ -270,7 +277,7 @@ public class NewPacketFormatTest extends TestCase {
 		NewPacketFormat sender = new NewPacketFormat(senderNode, 0, 0);
 		PeerMessageQueue senderQueue = new PeerMessageQueue();
 		
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, true), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, true));
 
 		Thread.sleep(PacketSender.MAX_COALESCING_DELAY*2);
 		NPFPacket packet1 = sender.createPacket(512, senderQueue, senderKey, false, true);
@@ -318,7 +325,7 @@ public class NewPacketFormatTest extends TestCase {
 		SessionKey senderKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 		SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
 
-		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, true), 1024);
+		senderQueue.queueAndEstimateSize(new MessageItem(new byte[128], null, false, null, (short) 0, false, true));
 
 		Thread.sleep(PacketSender.MAX_COALESCING_DELAY*2);
 		NPFPacket packet1 = sender.createPacket(512, senderQueue, senderKey, false, true);
@@ -365,4 +372,189 @@ public class NewPacketFormatTest extends TestCase {
 
 		assertTrue(Arrays.equals(correct, encrypted));
 	}
+
+	/** Sends packets through the real encryption path, and decrypts them using the
+	 * EncryptedSeqNumIndex. */
+	public void testEncryptedRoundTripWithIndex() throws Exception {
+		EncryptedSeqNumIndex index = new EncryptedSeqNumIndex(null);
+		CryptoPeerNode senderNode = new CryptoPeerNode();
+		NewPacketFormat sender = new NewPacketFormat(senderNode, 0, 0);
+		CryptoPeerNode receiverNode = new CryptoPeerNode();
+		NewPacketFormat receiver = new NewPacketFormat(receiverNode, 0, 0, index);
+		SessionKey[] keys = makeKeys(12345);
+		senderNode.currentKey = keys[0];
+		receiverNode.currentKey = keys[1];
+		SessionKey receiverKey = keys[1];
+		SessionKey otherKey = makeKeys(54321)[1];
+		receiverNode.previousKey = otherKey;
+
+		int packets = 700;
+		for(int i=0;i<packets;i++) {
+			// Queue more than fits in a packet, so the packet is sent immediately.
+			for(int j=0;j<5;j++)
+				senderNode.queue.queueAndEstimateSize(new MessageItem(new byte[300], null, false, null, (short) 0, false, false));
+			assertTrue(sender.maybeSendPacket(System.currentTimeMillis(), false, keys[0]));
+			byte[] data = senderNode.sent.remove(0);
+			// Ack it straight away so the send window doesn't fill up.
+			keys[0].packetContext.ack(i, senderNode, keys[0]);
+			if(i == 0) {
+				// The first packet creates the watch list.
+				assertTrue(receiver.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), null));
+				assertEquals(1024, index.size());
+				continue;
+			}
+			byte[] encrypted = Arrays.copyOfRange(data, NewPacketFormat.HMAC_LENGTH, NewPacketFormat.HMAC_LENGTH + 4);
+			int seqNum = index.get(encrypted, receiverKey);
+			assertEquals(i, seqNum);
+			// The HMAC catches a match on the wrong key.
+			assertFalse(receiver.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), null, otherKey, seqNum));
+			assertTrue(receiver.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), null, receiverKey, seqNum));
+		}
+		// Most of the messages have been delivered.
+		assertTrue(receiverNode.received > packets * 3);
+		// The watch list has moved, and the index has moved with it.
+		assertEquals(1024, index.size());
+		assertEquals(-1, index.get(NewPacketFormat.encryptSequenceNumber(0, receiverKey), receiverKey));
+		assertEquals(packets + 100, index.get(NewPacketFormat.encryptSequenceNumber(packets + 100, receiverKey), receiverKey));
+		index.removeAll(receiverKey);
+		assertEquals(0, index.size());
+	}
+
+	public void testSeqNumIndexCollisions() {
+		EncryptedSeqNumIndex index = new EncryptedSeqNumIndex(null);
+		SessionKey[] keys = new SessionKey[3];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), i);
+		Random r = new Random(1234);
+		byte[][] encrypted = new byte[10000][4];
+		for(int i=0;i<encrypted.length;i++) {
+			if(i % 10 == 0 && i > 0)
+				encrypted[i] = encrypted[i-1]; // Collision.
+			else
+				r.nextBytes(encrypted[i]);
+			index.add(encrypted[i], keys[i % keys.length], i);
+		}
+		assertEquals(encrypted.length, index.size());
+		for(int i=0;i<encrypted.length;i+=2)
+			index.remove(encrypted[i], keys[i % keys.length]);
+		assertEquals(encrypted.length / 2, index.size());
+		for(int i=0;i<encrypted.length;i++)
+			assertEquals(i % 2 == 0 ? -1 : i, index.get(encrypted[i], keys[i % keys.length]));
+	}
+
+	/** The in-place crypto must produce exactly what the old code did. */
+	public void testPacketCryptoCompatibility() throws Exception {
+		SessionKey[] keys = makeKeys(4321);
+		SessionKey key = keys[0];
+		Random r = new Random(4321);
+		int hmacLength = NewPacketFormat.HMAC_LENGTH;
+		for(int i=0;i<50;i++) {
+			byte[] data = new byte[hmacLength + 5 + r.nextInt(1200)];
+			r.nextBytes(data);
+			byte[] plaintext = data.clone();
+
+			// How packets used to be encrypted.
+			byte[] IV = new byte[key.ivCipher.getBlockSize() / 8];
+			System.arraycopy(key.ivNonce, 0, IV, 0, IV.length);
+			System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
+			key.ivCipher.encipher(IV, IV);
+			byte[] expected = data.clone();
+			PCFBMode.create(key.outgoingCipher, IV).blockEncipher(expected, hmacLength, expected.length - hmacLength);
+			byte[] hash = HMAC.macWithSHA256(key.hmacKey, Arrays.copyOfRange(expected, hmacLength, expected.length), hmacLength);
+			System.arraycopy(hash, 0, expected, 0, hmacLength);
+
+			key.outgoingCrypto().encryptAndMac(data, 0, data.length, hmacLength);
+			assertTrue(Arrays.equals(expected, data));
+
+			// And decrypt it again, at an offset.
+			int seqNum = ((plaintext[hmacLength] & 0xFF) << 24) | ((plaintext[hmacLength + 1] & 0xFF) << 16)
+					| ((plaintext[hmacLength + 2] & 0xFF) << 8) | (plaintext[hmacLength + 3] & 0xFF);
+			byte[] buf = new byte[data.length + 20];
+			System.arraycopy(data, 0, buf, 10, data.length);
+			assertFalse(keys[1].incomingCrypto().verifyAndDecrypt(buf, 10, data.length - 1, hmacLength, seqNum));
+			assertTrue(Arrays.equals(data, Arrays.copyOfRange(buf, 10, 10 + data.length)));
+			assertTrue(keys[1].incomingCrypto().verifyAndDecrypt(buf, 10, data.length, hmacLength, seqNum));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(plaintext, hmacLength, plaintext.length),
+					Arrays.copyOfRange(buf, 10 + hmacLength, 10 + data.length)));
+		}
+	}
+
+	/** Packets per second through the send and receive crypto path. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		SessionKey[] keys = makeKeys(1);
+		int hmacLength = NewPacketFormat.HMAC_LENGTH;
+		byte[] packet = new byte[1280];
+		new Random(1).nextBytes(packet);
+		int iterations = 200000;
+		for(int round=0;round<3;round++) { // First round is warmup.
+			long start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				packet[hmacLength] = (byte) (i >>> 24);
+				packet[hmacLength + 1] = (byte) (i >>> 16);
+				packet[hmacLength + 2] = (byte) (i >>> 8);
+				packet[hmacLength + 3] = (byte) i;
+				keys[0].outgoingCrypto().encryptAndMac(packet, 0, packet.length, hmacLength);
+				if(!keys[1].incomingCrypto().verifyAndDecrypt(packet, 0, packet.length, hmacLength, i))
+					fail();
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println("NewPacketFormat crypto, 1280 byte packets: " +
+					(iterations * 1000000000L / elapsed) + " packets/sec (encrypt + decrypt)");
+		}
+	}
+
+	private static SessionKey[] makeKeys(long seed) throws UnsupportedCipherException {
+		Random r = new Random(seed);
+		byte[] key = new byte[32];
+		r.nextBytes(key);
+		BlockCipher cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		r.nextBytes(key);
+		BlockCipher ivCipher = new Rijndael(256, 256);
+		ivCipher.initialize(key);
+		byte[] ivNonce = new byte[32];
+		r.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		r.nextBytes(hmacKey);
+		return new SessionKey[] {
+				new SessionKey(null, cipher, null, null, null, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 1),
+				new SessionKey(null, null, null, cipher, null, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 1)
+		};
+	}
+
+	/** Keeps the packets it sends, and counts the messages it receives. */
+	private static class CryptoPeerNode extends NullBasePeerNode {
+
+		final PeerMessageQueue queue = new PeerMessageQueue();
+		final List<byte[]> sent = new ArrayList<byte[]>();
+		final Random random = new Random(0);
+		int received;
+
+		@Override
+		public PeerMessageQueue getMessageQueue() {
+			return queue;
+		}
+
+		@Override
+		public void sendEncryptedPacket(byte[] data) throws LocalAddressException {
+			sent.add(data);
+		}
+
+		@Override
+		public Random paddingGen() {
+			return random;
+		}
+
+		@Override
+		public void verified(SessionKey s) {
+			// Ignore
+		}
+
+		@Override
+		protected void processDecryptedMessage(byte[] data, int offset, int length, int overhead) {
+			received++;
+		}
+
+	}
 }
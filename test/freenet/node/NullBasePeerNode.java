@@ -156,6 +156,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void wakeUpSenderAt(long time) {
+		// Do nothing
+	}
+
 	@Override
 	public int getMaxPacketSize() {
 		return 1280;
@@ -196,6 +201,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void sentAcks(int acks, int bytes) {
+		// Do nothing
+	}
+
 	@Override
 	public void resentBytes(int bytesToResend) {
 		// Ignore
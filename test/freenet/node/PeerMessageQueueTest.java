@@ -3,6 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.io.comm.DMT;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 public class PeerMessageQueueTest extends TestCase {
@@ -19,7 +24,7 @@ public class PeerMessageQueueTest extends TestCase {
 		MessageItem item = new MessageItem(new byte[1024], null, false, null, (short) 0, false, false);
 		long end = System.currentTimeMillis();
 
-		pmq.queueAndEstimateSize(item, 1024);
+		pmq.queueAndEstimateSize(item);
 
 		//The timeout for item should be within (start + 100) and (end + 100)
 		long urgentTime = pmq.getNextUrgentTime(Long.MAX_VALUE, System.currentTimeMillis());
@@ -49,8 +54,8 @@ public class PeerMessageQueueTest extends TestCase {
 		MessageItem itemNonUrgent = new MessageItem(new byte[1024], null, false, null, (short) 0, false, false);
 
 		//Queue the least urgent item first to get the wrong order
-		pmq.queueAndEstimateSize(itemNonUrgent, 1024);
-		pmq.queueAndEstimateSize(itemUrgent, 1024);
+		pmq.queueAndEstimateSize(itemNonUrgent);
+		pmq.queueAndEstimateSize(itemUrgent);
 
 		//getNextUrgentTime() should return the timeout of itemUrgent, which is within (start + 100)
 		//and (end + 100)
@@ -75,10 +80,123 @@ public class PeerMessageQueueTest extends TestCase {
 		MessageItem itemNonUrgent = new MessageItem(new byte[1024], null, false, null, (short) 0, false, false);
 
 		//Queue the least urgent item first to get the wrong order
-		pmq.queueAndEstimateSize(itemNonUrgent, 1024);
-		pmq.queueAndEstimateSize(itemUrgent, 1024);
+		pmq.queueAndEstimateSize(itemNonUrgent);
+		pmq.queueAndEstimateSize(itemUrgent);
 
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	public void testSizeAndRemove() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		assertFalse(pmq.mustSendSize(0, 0));
+		MessageItem a = new MessageItem(new byte[100], null, false, null, DMT.PRIORITY_HIGH, false, false);
+		MessageItem b = new MessageItem(new byte[200], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+		assertEquals(102, pmq.queueAndEstimateSize(a));
+		assertEquals(304, pmq.queueAndEstimateSize(b));
+		assertTrue(pmq.mustSendSize(100, 399));
+		assertFalse(pmq.mustSendSize(100, 400));
+		assertTrue(pmq.removeMessage(b));
+		assertFalse(pmq.removeMessage(b));
+		assertFalse(pmq.mustSendSize(0, 100));
+		assertSame(a, pmq.grabQueuedMessageItem(0));
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+		// Requeued at the front after failing to send it.
+		pmq.pushfrontPrioritizedMessageItem(a);
+		assertTrue(pmq.mustSendSize(0, 99));
+		assertEquals(a.submitted + PacketSender.MAX_COALESCING_DELAY, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+		assertEquals(1, pmq.grabQueuedMessageItems().length);
+		assertFalse(pmq.mustSendSize(0, 0));
+	}
+
+	/** Several threads queue messages while one grabs them, as the PacketSender does. Every
+	 * message must come out exactly once. */
+	public void testConcurrentQueueAndGrab() throws InterruptedException {
+		final PeerMessageQueue pmq = new PeerMessageQueue();
+		final int threads = 4;
+		final int perThread = 5000;
+		Thread[] producers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			producers[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<perThread;j++) {
+						short prio = (short) (j % DMT.NUM_PRIORITIES);
+						pmq.queueAndEstimateSize(new MessageItem(new byte[10], null, false, null, prio, false, false));
+					}
+				}
+			};
+			producers[i].start();
+		}
+		IdentityHashMap<MessageItem, Boolean> seen = new IdentityHashMap<MessageItem, Boolean>();
+		long deadline = System.currentTimeMillis() + 60*1000;
+		while(seen.size() < threads * perThread) {
+			assertTrue("Timed out", System.currentTimeMillis() < deadline);
+			pmq.getNextUrgentTime(Long.MAX_VALUE, 0);
+			MessageItem item = pmq.grabQueuedMessageItem(0);
+			if(item == null) {
+				Thread.yield();
+				continue;
+			}
+			assertNull(seen.put(item, Boolean.TRUE));
+		}
+		for(Thread t : producers)
+			t.join();
+		assertNull(pmq.grabQueuedMessageItem(0));
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+	}
+
+	/** How long queueing a message takes while another thread is grabbing messages and
+	 * polling the urgent time, as the PacketSender does. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int producerThreads = 4;
+		final int perThread = 200000;
+		for(int round=0;round<3;round++) { // First round is warmup.
+			final PeerMessageQueue pmq = new PeerMessageQueue();
+			final AtomicLong maxNanos = new AtomicLong();
+			final AtomicLong totalNanos = new AtomicLong();
+			Thread[] producers = new Thread[producerThreads];
+			for(int i=0;i<producerThreads;i++) {
+				producers[i] = new Thread() {
+					@Override
+					public void run() {
+						long max = 0;
+						long total = 0;
+						for(int j=0;j<perThread;j++) {
+							short prio = (short) (j % DMT.NUM_PRIORITIES);
+							MessageItem item = new MessageItem(new byte[100], null, false, null, prio, false, false);
+							long start = System.nanoTime();
+							pmq.queueAndEstimateSize(item);
+							long elapsed = System.nanoTime() - start;
+							total += elapsed;
+							if(elapsed > max) max = elapsed;
+						}
+						totalNanos.addAndGet(total);
+						synchronized(maxNanos) {
+							if(max > maxNanos.get()) maxNanos.set(max);
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for(Thread t : producers)
+				t.start();
+			int grabbed = 0;
+			while(grabbed < producerThreads * perThread) {
+				pmq.getNextUrgentTime(Long.MAX_VALUE, 0);
+				pmq.mustSendSize(0, 1024);
+				if(pmq.grabQueuedMessageItem(0) != null)
+					grabbed++;
+			}
+			long elapsed = System.nanoTime() - start;
+			for(Thread t : producers)
+				t.join();
+			System.out.println("PeerMessageQueue: " + producerThreads + " threads queueing, " +
+					(grabbed * 1000000000L / elapsed) + " messages/sec through the queue, queueing took " +
+					(totalNanos.get() / grabbed) + "ns on average, " + (maxNanos.get() / 1000) + "us at most");
+		}
+	}
 }
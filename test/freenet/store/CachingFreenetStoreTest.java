@@ -30,6 +30,7 @@ import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
 import freenet.keys.SSKVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.StoreAccessStats;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Fields;
@@ -244,6 +245,83 @@ public class CachingFreenetStoreTest extends TestCase {
 		cachingStore.close();
 	}
 
+	/* Test that blocks read from the underlying store are cached, and a scan doesn't evict a
+	 * block which is used often */
+	public void testReadCacheCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, KeyCollisionException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreReadCache", store, weakPRNG, 50, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		long blockSize = CHKBlock.DATA_LENGTH + CHKBlock.TOTAL_HEADERS_LENGTH + 100;
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, blockSize * 4, cachingFreenetStorePeriod, saltStore, ticker);
+		cachingStore.start(null, true);
+		
+		List<ClientCHKBlock> chkBlocks = new ArrayList<ClientCHKBlock>();
+		for(int i=0;i<20;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			// Straight to disk.
+			CHKBlock b = block.getBlock();
+			saltStore.put(b, b.getRawData(), b.getRawHeaders(), false, false);
+			chkBlocks.add(block);
+		}
+		
+		// The hot block is cached on the first read.
+		ClientCHK hot = chkBlocks.get(0).getClientKey();
+		for(int i=0;i<5;i++)
+			assertEquals("test0", decodeBlockCHK(store.fetch(hot.getNodeCHK(), false, false, null), hot));
+		StoreAccessStats stats = cachingStore.getSessionAccessStats();
+		assertEquals(4, stats.cacheHits());
+		assertEquals(1, stats.cacheMisses());
+		assertEquals(blockSize * 4, stats.cacheCapacity());
+		
+		// Scan everything else once.
+		for(int i=1;i<20;i++) {
+			ClientCHK key = chkBlocks.get(i).getClientKey();
+			assertEquals("test" + i, decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+			assertTrue(cachingStore.cacheSize() <= blockSize * 4);
+		}
+		assertEquals(4, stats.cacheHits());
+		
+		// The hot block is still cached.
+		assertNotNull(store.fetch(hot.getNodeCHK(), false, false, null));
+		assertEquals(5, stats.cacheHits());
+		assertEquals(stats.readRequests(), stats.cacheHits() + stats.cacheMisses());
+		assertEquals(25, stats.hits());
+		
+		cachingStore.close();
+	}
+	
+	/* Test that writes are never lost when the cache is full */
+	public void testFullCacheCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreFull", store, weakPRNG, 50, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		long blockSize = CHKBlock.DATA_LENGTH + CHKBlock.TOTAL_HEADERS_LENGTH + 100;
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, blockSize * 4, cachingFreenetStorePeriod, saltStore, ticker);
+		cachingStore.start(null, true);
+		
+		List<ClientCHKBlock> chkBlocks = new ArrayList<ClientCHKBlock>();
+		for(int i=0;i<10;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			chkBlocks.add(block);
+			assertTrue(cachingStore.cacheSize() <= blockSize * 4);
+		}
+		
+		// The first blocks had to be written to make room.
+		ClientCHK first = chkBlocks.get(0).getClientKey();
+		assertNotNull(saltStore.fetch(first.getRoutingKey(), first.getNodeCHK().getFullKey(), false, false, false, false, null));
+		for(int i=0;i<10;i++) {
+			ClientCHK key = chkBlocks.get(i).getClientKey();
+			assertEquals("test" + i, decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+		
+		cachingStore.close();
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
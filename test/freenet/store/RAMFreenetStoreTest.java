@@ -0,0 +1,150 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.NodeCHK;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor;
+
+public class RAMFreenetStoreTest extends TestCase {
+
+	private static List<ClientCHKBlock> blocks;
+
+	private static synchronized List<ClientCHKBlock> getBlocks(int count) throws CHKEncodeException, IOException {
+		if(blocks == null) blocks = new ArrayList<ClientCHKBlock>();
+		while(blocks.size() < count)
+			blocks.add(encodeBlock("test" + blocks.size()));
+		return blocks.subList(0, count);
+	}
+
+	public void testMaxKeys() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 10);
+		List<ClientCHKBlock> list = getBlocks(30);
+		for(int i=0;i<10;i++)
+			store.put(list.get(i).getBlock(), false);
+		assertEquals(10, ramStore.keyCount());
+		for(int i=10;i<30;i++) {
+			// Keep using the first block, it should not be evicted.
+			assertNotNull(store.fetch(nodeKey(list.get(0)), false, false, null));
+			store.put(list.get(i).getBlock(), false);
+			assertEquals(10, ramStore.keyCount());
+		}
+		assertNotNull(store.fetch(nodeKey(list.get(0)), false, false, null));
+		assertNotNull(store.fetch(nodeKey(list.get(29)), false, false, null));
+		ramStore.setMaxKeys(5, true);
+		assertEquals(5, ramStore.keyCount());
+		ramStore.clear();
+		assertEquals(0, ramStore.keyCount());
+		assertEquals(0, ramStore.bytesUsed());
+	}
+
+	public void testMaxBytes() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		long blockSize = CHKBlock.DATA_LENGTH + CHKBlock.TOTAL_HEADERS_LENGTH;
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 100, blockSize * 10);
+		for(ClientCHKBlock block : getBlocks(20))
+			store.put(block.getBlock(), false);
+		// The overhead for each block means we can't quite fit 10.
+		assertEquals(9, ramStore.keyCount());
+		assertTrue(ramStore.bytesUsed() <= ramStore.getMaxBytes());
+		ramStore.setMaxBytes(blockSize * 3);
+		assertEquals(2, ramStore.keyCount());
+	}
+
+	public void testConcurrent() throws Exception {
+		final CHKStore store = new CHKStore();
+		final int maxKeys = 200;
+		final RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, maxKeys);
+		final List<ClientCHKBlock> list = getBlocks(400);
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0;i<2000;i++) {
+							ClientCHKBlock block = list.get((i * 7 + seed * 13) % list.size());
+							CHKBlock found = store.fetch(nodeKey(block), false, false, null);
+							if(found == null)
+								store.put(block.getBlock(), false);
+							else if(!found.getKey().equals(block.getKey()))
+								errors.incrementAndGet();
+						}
+					} catch (Throwable t) {
+						t.printStackTrace();
+						errors.incrementAndGet();
+					}
+				}
+			};
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		assertEquals(0, errors.get());
+		assertEquals(maxKeys, ramStore.keyCount());
+		assertEquals(ramStore.hits() + ramStore.misses(), 4 * 2000);
+	}
+
+	/** Many threads reading a small hot set, as with the pubkey cache. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final CHKStore store = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(store, 10000);
+		final List<ClientCHKBlock> list = getBlocks(1000);
+		for(ClientCHKBlock block : list)
+			store.put(block.getBlock(), false);
+		final NodeCHK[] keys = new NodeCHK[list.size()];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = nodeKey(list.get(i));
+		int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+		final int iterations = 200000;
+		for(int round=0;round<2;round++) { // First round is warmup.
+			Thread[] threads = new Thread[threadCount];
+			for(int t=0;t<threadCount;t++) {
+				final int seed = t;
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(int i=0;i<iterations;i++)
+								store.fetch(keys[(i + seed) % keys.length], false, false, null);
+						} catch (IOException e) {
+							throw new Error(e);
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for(Thread t : threads)
+				t.start();
+			for(Thread t : threads)
+				t.join();
+			long elapsed = System.nanoTime() - start;
+			System.out.println("RAMFreenetStore fetch, " + threadCount + " threads: " +
+					((long) iterations * threadCount * 1000000000L / elapsed) + " ops/sec");
+		}
+	}
+
+	private static NodeCHK nodeKey(ClientCHKBlock block) {
+		return block.getClientKey().getNodeCHK();
+	}
+
+	private static ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
@@ -0,0 +1,147 @@
+package freenet.store.saltedhash;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class LockManagerTest extends TestCase {
+
+	/** Same number of probes as SaltedHashFreenetStore, current and previous store size. */
+	private static final int PROBES = 10;
+
+	public void testLockSetSortedAndUnique() {
+		LockManager lockManager = new LockManager(16);
+		LockManager.LockSet set = new LockManager.LockSet(4);
+		lockManager.add(set, 5);
+		lockManager.add(set, 21); // Same stripe as 5
+		lockManager.add(set, 3);
+		lockManager.add(set, 3);
+		lockManager.add(set, 15);
+		assertEquals(3, set.size());
+		assertTrue(lockManager.lockEntries(set));
+		lockManager.unlockEntries(set);
+		set.clear();
+		assertEquals(0, set.size());
+	}
+
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lockManager = new LockManager(64);
+		final long storeSize = 200;
+		final int[] owners = new int[(int) storeSize];
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t + 1;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(id);
+					LockManager.LockSet set = new LockManager.LockSet(PROBES);
+					long[] offsets = new long[PROBES];
+					for (int i = 0; i < 2000; i++) {
+						set.clear();
+						for (int j = 0; j < PROBES; j++) {
+							offsets[j] = (long) r.nextInt((int) storeSize);
+							lockManager.add(set, offsets[j]);
+						}
+						if (!lockManager.lockEntries(set)) {
+							errors.incrementAndGet();
+							return;
+						}
+						try {
+							for (long offset : offsets) {
+								int owner = owners[(int) offset];
+								if (owner != 0 && owner != id)
+									errors.incrementAndGet();
+								owners[(int) offset] = id;
+							}
+							Thread.yield();
+							for (long offset : offsets)
+								owners[(int) offset] = 0;
+						} finally {
+							lockManager.unlockEntries(set);
+						}
+					}
+				}
+			};
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, errors.get());
+	}
+
+	public void testShutdown() throws InterruptedException {
+		final LockManager lockManager = new LockManager(16);
+		final LockManager.LockSet held = new LockManager.LockSet(1);
+		lockManager.add(held, 1);
+		assertTrue(lockManager.lockEntries(held));
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				lockManager.shutdown();
+			}
+		};
+		t.start();
+		t.join(200);
+		assertTrue("shutdown() must wait for locked entries", t.isAlive());
+		lockManager.unlockEntries(held);
+		t.join();
+		LockManager.LockSet set = new LockManager.LockSet(1);
+		lockManager.add(set, 2);
+		assertFalse(lockManager.lockEntries(set));
+	}
+
+	/** Compare the striped locks against a single lock, which is how the old LockManager
+	 * behaved: one global lock around a map of locked offsets. */
+	public void testBenchmark() throws InterruptedException {
+		if (!TestProperty.BENCHMARK) return;
+
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		for (int i = 0; i < 2; i++) { // First round is warmup.
+			long single = benchmark(new LockManager(1), threads);
+			long striped = benchmark(new LockManager(LockManager.DEFAULT_STRIPES), threads);
+			System.out.println("Lock/unlock " + threads + " threads: single lock " + single
+			        + " ops/sec, " + LockManager.DEFAULT_STRIPES + " stripes " + striped + " ops/sec");
+		}
+	}
+
+	private long benchmark(final LockManager lockManager, int threadCount) throws InterruptedException {
+		final int iterations = 200000;
+		final long storeSize = 1000000;
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					LockManager.LockSet set = new LockManager.LockSet(PROBES);
+					byte[] buf = new byte[0x80]; // One metadata entry
+					for (int i = 0; i < iterations; i++) {
+						set.clear();
+						for (int j = 0; j < PROBES / 2; j++)
+							lockManager.add(set, (long) (r.nextDouble() * storeSize));
+						lockManager.lockEntries(set);
+						try {
+							// Roughly the work of reading the metadata.
+							r.nextBytes(buf);
+						} finally {
+							lockManager.unlockEntries(set);
+						}
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+		return (long) iterations * threadCount * 1000000000L / elapsed;
+	}
+}
@@ -0,0 +1,137 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	private static final int PAGE = ResizablePersistentIntBuffer.PAGE_INTS;
+	private static final int SIZE = PAGE * 10 + 17; // Last page is partial.
+
+	private File tempDir;
+	private int oldPersistenceTime;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+		oldPersistenceTime = ResizablePersistentIntBuffer.getPersistenceTime();
+	}
+
+	@Override
+	protected void tearDown() {
+		ResizablePersistentIntBuffer.setPersistenceTime(oldPersistenceTime);
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testPersistOnShutdown() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertTrue(buf.isNew());
+		buf.fill(7);
+		buf.put(5, 1);
+		buf.put(SIZE - 1, 2);
+		buf.shutdown();
+		assertEquals((long) SIZE * 4, f.length());
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertFalse(buf.isNew());
+		// Clean shutdown, so there is no journal.
+		assertNull(buf.getJournalledPages());
+		assertEquals(1, buf.get(5));
+		assertEquals(2, buf.get(SIZE - 1));
+		assertEquals(7, buf.get(PAGE * 3));
+		buf.shutdown();
+	}
+
+	public void testOnlyDirtyPagesWritten() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.fill(7);
+		buf.forceWrite();
+		// Scribble on two pages behind its back. Only one of them will be written again.
+		scribble(f, PAGE * 2);
+		scribble(f, PAGE * 6);
+		buf.put(PAGE * 2 + 1, 3);
+		buf.shutdown();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertEquals(7, buf.get(PAGE * 2));
+		assertEquals(3, buf.get(PAGE * 2 + 1));
+		assertEquals(-1, buf.get(PAGE * 6));
+		buf.shutdown();
+	}
+
+	public void testJournalAfterAbort() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		buf.fill(7);
+		buf.forceWrite();
+		buf.put(PAGE * 4 + 10, 1);
+		buf.put(PAGE * 9, 2);
+		buf.put(PAGE * 4 + 11, 3);
+		buf.put(SIZE - 1, 4);
+		buf.abort();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		int[] pages = buf.getJournalledPages();
+		assertNotNull(pages);
+		assertEquals(3, pages.length);
+		assertEquals(4, pages[0]);
+		assertEquals(9, pages[1]);
+		assertEquals(10, pages[2]);
+		// The changes were lost, the caller must recompute them.
+		assertEquals(7, buf.get(PAGE * 4 + 10));
+		// The journal survives until the buffer is written, in case we crash again.
+		buf.abort();
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertEquals(3, buf.getJournalledPages().length);
+		buf.put(PAGE * 4 + 10, 1);
+		buf.forceWrite();
+		buf.abort();
+		buf = new ResizablePersistentIntBuffer(f, SIZE);
+		assertEquals(0, buf.getJournalledPages().length);
+		assertEquals(1, buf.get(PAGE * 4 + 10));
+		buf.shutdown();
+	}
+
+	public void testResize() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE);
+		for(int i=0;i<SIZE;i++)
+			buf.put(i, i);
+		buf.resize(SIZE * 2);
+		assertEquals((long) SIZE * 8, f.length());
+		assertEquals(SIZE - 1, buf.get(SIZE - 1));
+		assertEquals(0, buf.get(SIZE * 2 - 1));
+		buf.resize(PAGE + 3);
+		assertEquals((long) (PAGE + 3) * 4, f.length());
+		buf.abort();
+
+		// Resizing writes everything, so nothing to recover.
+		buf = new ResizablePersistentIntBuffer(f, PAGE + 3);
+		assertEquals(0, buf.getJournalledPages().length);
+		for(int i=0;i<PAGE+3;i++)
+			assertEquals(i, buf.get(i));
+		buf.shutdown();
+	}
+
+	private void scribble(File f, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek((long) offset * 4);
+			raf.writeInt(-1);
+		} finally {
+			raf.close();
+		}
+	}
+
+}
@@ -23,6 +23,7 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
@@ -125,6 +126,171 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* Blocks written through the memory mapping must be readable after it is turned off and
+	 * after the store is reopened. */
+	public void testMemoryMappedCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMappedCHK", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setMemoryMapped(true);
+		assertTrue(saltStore.isMemoryMapped());
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+
+		saltStore.setMemoryMapped(false);
+		assertFalse(saltStore.isMemoryMapped());
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		saltStore.setMemoryMapped(true);
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMappedCHK", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
+	/* Blocks must be readable while they are still in the write queue, and must be on disk
+	 * after the store is closed. */
+	public void testWriteQueueCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreQueuedCHK", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setWriteQueueSize(3);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		assertEquals(3, saltStore.getSessionAccessStats().writeQueueCapacity());
+		assertTrue(saltStore.getSessionAccessStats().writeQueueLength() <= 3);
+
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreQueuedCHK", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
+	/* Fetching many keys at once must find the same blocks as fetching them one at a time. */
+	public void testFetchMultipleCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		checkFetchMultipleCHK(false);
+		checkFetchMultipleCHK(true);
+	}
+
+	private void checkFetchMultipleCHK(boolean useSlotFilter) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreFetchMultiple", store, weakPRNG, 100, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		// Every other block is in the store.
+		ClientCHKBlock[] blocks = new ClientCHKBlock[40];
+		NodeCHK[] keys = new NodeCHK[blocks.length];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			keys[i] = blocks[i].getClientKey().getNodeCHK();
+			if(i % 2 == 0)
+				store.put(blocks[i].getBlock(), false);
+		}
+		long hits = saltStore.hits();
+		long misses = saltStore.misses();
+
+		CHKBlock[] found = new CHKBlock[keys.length];
+		// Already found elsewhere, so not looked up.
+		found[2] = blocks[2].getBlock();
+		assertEquals(blocks.length / 2 - 1, store.fetch(keys, found, false, false));
+		for(int i=0;i<blocks.length;i++) {
+			if(i % 2 == 0)
+				assertEquals("test" + i, decodeBlockCHK(found[i], blocks[i].getClientKey()));
+			else
+				assertNull(found[i]);
+		}
+		assertEquals(hits + blocks.length / 2 - 1, saltStore.hits());
+		assertEquals(misses + blocks.length / 2, saltStore.misses());
+
+		saltStore.close();
+	}
+
+	/* Big enough that the resize is split between several threads. */
+	public void testParallelResizeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreResizeCHK", store, weakPRNG, 7000, true, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[50];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+
+		saltStore.setMaxKeys(12000, true);
+		checkBlocks(store, blocks);
+		assertEquals(blocks.length, saltStore.keyCount());
+
+		saltStore.setMaxKeys(3000, true);
+		checkBlocks(store, blocks);
+		assertEquals(blocks.length, saltStore.keyCount());
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreResizeCHK", store, weakPRNG, 3000, true, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+		saltStore.start(null, true);
+		checkBlocks(store, blocks);
+		saltStore.close();
+	}
+
+	private void checkBlocks(CHKStore store, ClientCHKBlock[] blocks) throws IOException, CHKVerifyException, CHKDecodeException {
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -301,6 +301,52 @@ public class SaltedHashSlotFilterTest extends TestCase {
 		saltStore.close();
 	}
 	
+	public void testCHKRecoverFromJournal() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		ResizablePersistentIntBuffer.setPersistenceTime(600*1000); // Much longer than the test will take.
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+		File crashed = new File(tempDir, "crashed");
+		FileUtil.removeAll(crashed);
+
+		// Write an empty slot filter, so it says every slot is free.
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<TEST_COUNT;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+		}
+		// The slot filter has not been written since. Copying the files now is the same as
+		// crashing.
+		crashed.mkdir();
+		for(File file : f.listFiles())
+			assertTrue(FileUtil.copyFile(file, new File(crashed, file.getName())));
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(crashed, "testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		// No rebuild needed.
+		saltStore.testingWaitForCleanerDone(0, 1);
+
+		for(int i=0;i<TEST_COUNT;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			ClientCHK key = block.getClientKey();
+			assertTrue(saltStore.probablyInStore(key.getRoutingKey()));
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+
+		saltStore.close();
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -0,0 +1,133 @@
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class WriteBehindQueueTest extends TestCase {
+
+	private static final int META = 4;
+	private static final int HD = 8;
+
+	/** Records writes instead of doing them. */
+	private static class RecordingWriter implements WriteBehindQueue.SlotWriter {
+		final List<String> writes = new ArrayList<String>();
+		final byte[] meta = new byte[META * 16];
+		final byte[] hd = new byte[HD * 16];
+
+		@Override
+		public synchronized void writeMetaData(long firstSlot, ByteBuffer[] bufs, int count) {
+			writes.add("meta " + firstSlot + "+" + count);
+			for (int i = 0; i < count; i++)
+				bufs[i].get(meta, (int) (firstSlot + i) * META, META);
+		}
+
+		@Override
+		public synchronized void writeHD(long firstSlot, ByteBuffer[] bufs, int count) {
+			writes.add("hd " + firstSlot + "+" + count);
+			for (int i = 0; i < count; i++)
+				bufs[i].get(hd, (int) (firstSlot + i) * HD, HD);
+		}
+	}
+
+	private static ByteBuffer fill(int length, int value) {
+		byte[] buf = new byte[length];
+		for (int i = 0; i < length; i++)
+			buf[i] = (byte) value;
+		return ByteBuffer.wrap(buf);
+	}
+
+	public void testCoalesceAndGather() throws IOException {
+		RecordingWriter writer = new RecordingWriter();
+		WriteBehindQueue queue = new WriteBehindQueue("test", writer, 16);
+		queue.add(5, fill(META, 1), fill(HD, 1));
+		queue.add(3, fill(META, 2), fill(HD, 2));
+		queue.add(4, fill(META, 3), null);
+		queue.add(5, fill(META, 4), null); // Keeps the header/data from the first write.
+		queue.add(9, fill(META, 5), fill(HD, 5));
+		assertEquals(4, queue.size());
+		assertEquals(1, queue.coalesced());
+
+		ByteBuffer buf = ByteBuffer.allocate(META);
+		assertTrue(queue.readMetaData(5, buf));
+		assertEquals(4, buf.get(0));
+		buf = ByteBuffer.allocate(HD);
+		assertTrue(queue.readHD(5, buf));
+		assertEquals(1, buf.get(0));
+		buf.clear();
+		assertFalse(queue.readHD(4, buf));
+		assertFalse(queue.readMetaData(6, ByteBuffer.allocate(META)));
+
+		queue.flush();
+		assertEquals(0, queue.size());
+		assertEquals(4, queue.flushed());
+		assertEquals("[meta 3+3, meta 9+1, hd 3+1, hd 5+1, hd 9+1]", writer.writes.toString());
+		assertEquals(2, writer.meta[3 * META]);
+		assertEquals(3, writer.meta[4 * META]);
+		assertEquals(4, writer.meta[5 * META]);
+		assertEquals(1, writer.hd[5 * HD]);
+		assertEquals(0, writer.hd[4 * HD]);
+		queue.close();
+	}
+
+	public void testFlushRange() throws IOException {
+		RecordingWriter writer = new RecordingWriter();
+		WriteBehindQueue queue = new WriteBehindQueue("test", writer, 16);
+		queue.add(1, fill(META, 1), fill(HD, 1));
+		queue.add(10, fill(META, 2), fill(HD, 2));
+		queue.flushRange(8, 4);
+		assertEquals(1, queue.size());
+		assertTrue(queue.readMetaData(1, ByteBuffer.allocate(META)));
+		assertFalse(queue.readMetaData(10, ByteBuffer.allocate(META)));
+		queue.close();
+		assertEquals(0, queue.size());
+	}
+
+	public void testBackpressure() throws IOException {
+		RecordingWriter writer = new RecordingWriter();
+		WriteBehindQueue queue = new WriteBehindQueue("test", writer, 2);
+		queue.start();
+		for (int i = 0; i < 10; i++)
+			queue.add(i, fill(META, i), fill(HD, i));
+		assertTrue(queue.size() <= 2);
+		queue.close();
+		assertEquals(0, queue.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, writer.meta[i * META]);
+	}
+
+	public void testDropFrom() throws IOException {
+		RecordingWriter writer = new RecordingWriter();
+		WriteBehindQueue queue = new WriteBehindQueue("test", writer, 16);
+		queue.add(1, fill(META, 1), fill(HD, 1));
+		queue.add(7, fill(META, 2), fill(HD, 2));
+		queue.add(12, fill(META, 3), fill(HD, 3));
+		assertEquals(2, queue.dropFrom(7));
+		assertEquals(1, queue.size());
+		queue.close();
+		assertEquals("[meta 1+1, hd 1+1]", writer.writes.toString());
+	}
+
+	public void testWriteFailureCounted() throws IOException {
+		WriteBehindQueue queue = new WriteBehindQueue("test", new WriteBehindQueue.SlotWriter() {
+			@Override
+			public void writeMetaData(long firstSlot, ByteBuffer[] bufs, int count) throws IOException {
+				throw new IOException("test");
+			}
+
+			@Override
+			public void writeHD(long firstSlot, ByteBuffer[] bufs, int count) throws IOException {
+				throw new IOException("test");
+			}
+		}, 16);
+		queue.add(1, fill(META, 1), fill(HD, 1));
+		queue.add(2, fill(META, 2), fill(HD, 2));
+		queue.flush();
+		assertEquals(2, queue.failed());
+		assertEquals(0, queue.flushed());
+		queue.close();
+	}
+}
@@ -0,0 +1,131 @@
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class BandwidthClassTest extends TestCase {
+
+	private long now = SECONDS.toNanos(1000);
+
+	private BandwidthClass makeRoot(long rate, long burst, long initialValue) {
+		return new BandwidthClass("root", rate, burst, initialValue) {
+			@Override
+			protected long nanoTime() {
+				return now;
+			}
+		};
+	}
+
+	public void testShares() {
+		BandwidthClass root = makeRoot(1000, 1000, 0);
+		BandwidthClass a = root.addChild("a", 3);
+		BandwidthClass b = root.addChild("b", 1);
+		assertEquals(750, a.getRate());
+		assertEquals(250, b.getRate());
+		now += SECONDS.toNanos(1);
+		assertTrue(a.instantGrab(750));
+		assertTrue(b.instantGrab(250));
+		assertFalse(a.instantGrab(1));
+		assertFalse(b.instantGrab(1));
+		assertEquals(1000, root.getBytes());
+		assertEquals(0, a.getBorrowedBytes());
+		b.setWeight(3);
+		assertEquals(500, a.getRate());
+		assertEquals(500, b.getRate());
+	}
+
+	public void testBorrow() {
+		BandwidthClass root = makeRoot(1000, 1000, 0);
+		BandwidthClass a = root.addChild("a", 3);
+		root.addChild("b", 1);
+		now += SECONDS.toNanos(1);
+		// b isn't using its share, so a can have it.
+		assertTrue(a.instantGrab(750));
+		assertTrue(a.instantGrab(250));
+		assertFalse(a.instantGrab(1));
+		assertEquals(1000, a.getBytes());
+		assertEquals(250, a.getBorrowedBytes());
+	}
+
+	public void testShareBeforeBorrowing() {
+		BandwidthClass root = makeRoot(1000, 1000, 0);
+		BandwidthClass a = root.addChild("a", 3);
+		BandwidthClass b = root.addChild("b", 1);
+		now += SECONDS.toNanos(1);
+		assertTrue(a.instantGrab(750));
+		assertTrue(a.instantGrab(250));
+		// b still gets its share, even though a has borrowed everything the root had.
+		assertTrue(b.instantGrab(250));
+		assertTrue(root.getCount() < 0);
+		// a can't borrow again until the root has recovered, but can use its own share.
+		now += MILLISECONDS.toNanos(250);
+		assertTrue(a.instantGrab(150));
+		assertFalse(a.instantGrab(100));
+	}
+
+	public void testRecycle() {
+		BandwidthClass root = makeRoot(1000, 1000, 0);
+		assertEquals(MILLISECONDS.toNanos(100), root.timeUntilAvailable(100));
+		assertFalse(root.instantGrab(100));
+		now += MILLISECONDS.toNanos(100);
+		assertEquals(0, root.timeUntilAvailable(100));
+		assertTrue(root.instantGrab(100));
+		assertEquals(0, root.getCount());
+		root.recycle(100);
+		assertEquals(100, root.getCount());
+		assertEquals(0, root.getBytes());
+		root.forceGrab(300);
+		assertEquals(-200, root.getCount());
+		assertEquals(MILLISECONDS.toNanos(300), root.timeUntilAvailable(100));
+	}
+
+	public void testSetRate() {
+		BandwidthClass root = makeRoot(1000, 1000, 500);
+		BandwidthClass a = root.addChild("a", 1);
+		root.setRate(2000, 4000);
+		assertEquals(500, root.getCount());
+		assertEquals(2000, a.getRate());
+		assertEquals(4000, a.getBurst());
+		try {
+			a.setRate(100, 100);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	public void testConcurrentGrabs() throws InterruptedException {
+		final int threads = 4;
+		final int iterations = 10000;
+		final BandwidthClass root = makeRoot(1000, 1000000, 1000000);
+		final BandwidthClass a = root.addChild("a", 1);
+		root.addChild("b", 1);
+		final AtomicLong grabbed = new AtomicLong();
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<iterations;j++) {
+						if(a.instantGrab(10)) grabbed.addAndGet(10);
+						a.forceGrab(1);
+					}
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t)
+			thread.join();
+		long total = threads * iterations * 11;
+		assertEquals(threads * iterations * 10, grabbed.get());
+		assertEquals(total, root.getBytes());
+		assertEquals(total, a.getBytes());
+		assertEquals(threads * iterations * 10, a.getBorrowedBytes());
+		assertEquals(1000000 - total, root.getCount());
+	}
+
+}
@@ -0,0 +1,151 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+import freenet.support.io.RingBufferPipe;
+
+public class DecompressorThreadManagerTest extends TestCase {
+
+	private PooledExecutor exec;
+
+	@Override
+	protected void setUp() {
+		exec = new PooledExecutor();
+		exec.start();
+	}
+
+	private byte[] makeData(int length) {
+		Random r = new Random(1234);
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		return data;
+	}
+
+	/** Compress with each codec in turn, so the last must be decompressed first. */
+	private byte[] compress(byte[] data, COMPRESSOR_TYPE[] codecs) throws IOException {
+		for(COMPRESSOR_TYPE codec : codecs) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			codec.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+			data = os.toByteArray();
+		}
+		return data;
+	}
+
+	private byte[] decompress(final byte[] compressed, COMPRESSOR_TYPE[] codecs, long maxLen) throws Throwable {
+		final RingBufferPipe pipe = new RingBufferPipe();
+		DecompressorThreadManager manager = new DecompressorThreadManager(pipe.getInputStream(), new ArrayList<COMPRESSOR_TYPE>(Arrays.asList(codecs)), maxLen);
+		InputStream is = manager.execute(exec);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				OutputStream os = pipe.getOutputStream();
+				try {
+					os.write(compressed);
+				} catch (IOException e) {
+					// A stage failed and closed its input; the manager has the error.
+				} finally {
+					Closer.close(os);
+				}
+			}
+		};
+		writer.start();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try {
+			FileUtil.copy(is, result, -1);
+		} finally {
+			is.close();
+		}
+		writer.join();
+		manager.waitFinished();
+		return result.toByteArray();
+	}
+
+	public void testMultiStage() throws Throwable {
+		COMPRESSOR_TYPE[] codecs = new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.GZIP };
+		byte[] data = makeData(1024*1024);
+		byte[] compressed = compress(data, codecs);
+		assertTrue(Arrays.equals(data, decompress(compressed, codecs, data.length)));
+	}
+
+	public void testNoDecompressors() throws Throwable {
+		byte[] data = makeData(1024);
+		assertTrue(Arrays.equals(data, decompress(data, new COMPRESSOR_TYPE[0], data.length)));
+	}
+
+	public void testTooBig() throws Throwable {
+		COMPRESSOR_TYPE[] codecs = new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.GZIP };
+		byte[] data = makeData(1024*1024);
+		try {
+			decompress(compress(data, codecs), codecs, data.length / 2);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	/** The old way: a thread per stage, connected by PipedInputStream. */
+	private byte[] decompressPiped(byte[] compressed, COMPRESSOR_TYPE[] codecs, final long maxLen) throws Exception {
+		InputStream input = new ByteArrayInputStream(compressed);
+		Thread[] threads = new Thread[codecs.length];
+		for(int i=codecs.length-1;i>=0;i--) {
+			final COMPRESSOR_TYPE codec = codecs[i];
+			final InputStream in = input;
+			final PipedOutputStream out = new PipedOutputStream();
+			input = new PipedInputStream(out);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						codec.decompress(in, out, maxLen, -1);
+						out.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		FileUtil.copy(input, result, -1);
+		for(Thread t : threads)
+			t.join();
+		return result.toByteArray();
+	}
+
+	public void testBenchmark() throws Throwable {
+		if(!TestProperty.BENCHMARK) return;
+		COMPRESSOR_TYPE[] codecs = new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.GZIP };
+		byte[] data = makeData(32*1024*1024);
+		byte[] compressed = compress(data, codecs);
+		for(int round=0;round<4;round++) { // First round is warmup.
+			long start = System.nanoTime();
+			byte[] piped = decompressPiped(compressed, codecs, data.length);
+			long pipedTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			byte[] pooled = decompress(compressed, codecs, data.length);
+			long pooledTime = System.nanoTime() - start;
+			assertTrue(Arrays.equals(data, piped));
+			assertTrue(Arrays.equals(data, pooled));
+			if(round > 0)
+				System.out.println("Decompressing "+data.length+" bytes through "+codecs.length+" stages: PipedInputStream "+
+						(pipedTime / 1000000)+"ms, RingBufferPipe "+(pooledTime / 1000000)+"ms");
+		}
+	}
+
+}
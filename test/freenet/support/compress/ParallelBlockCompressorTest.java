@@ -0,0 +1,117 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+public class ParallelBlockCompressorTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 64*1024;
+
+	private final ParallelBlockCompressor gzipBlocks = new ParallelBlockCompressor(new GzipCompressor(), BLOCK_SIZE);
+
+	@Override
+	protected void tearDown() {
+		ParallelBlockCompressor.setExecutor(null);
+	}
+
+	private byte[] makeData(int length) {
+		// Compressible, but not trivially.
+		Random r = new Random(1234);
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		return data;
+	}
+
+	private byte[] compress(Compressor c, byte[] data) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long written = c.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		assertEquals(written, os.size());
+		return os.toByteArray();
+	}
+
+	private byte[] decompress(Compressor c, byte[] compressed, long maxLength) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long length = c.decompress(new ByteArrayInputStream(compressed), os, maxLength, -1);
+		assertEquals(length, os.size());
+		return os.toByteArray();
+	}
+
+	private void checkRoundTrip(Compressor c, int length) throws IOException {
+		byte[] data = makeData(length);
+		byte[] compressed = compress(c, data);
+		if(length >= 1024) assertTrue(compressed.length < length);
+		assertTrue(Arrays.equals(data, decompress(c, compressed, length)));
+	}
+
+	public void testRoundTrip() throws IOException {
+		for(int length : new int[] { 0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE * 5 + 17 })
+			checkRoundTrip(gzipBlocks, length);
+	}
+
+	public void testRoundTripParallel() throws IOException {
+		PooledExecutor exec = new PooledExecutor();
+		exec.start();
+		ParallelBlockCompressor.setExecutor(exec);
+		checkRoundTrip(gzipBlocks, BLOCK_SIZE * 20 + 17);
+		checkRoundTrip(COMPRESSOR_TYPE.BZIP2_BLOCKS, 3*1000*1000);
+	}
+
+	public void testMaxWriteLength() throws IOException {
+		byte[] data = makeData(BLOCK_SIZE * 4);
+		try {
+			gzipBlocks.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length, 1024);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	public void testMaxLength() throws IOException {
+		byte[] data = makeData(BLOCK_SIZE * 4);
+		byte[] compressed = compress(gzipBlocks, data);
+		try {
+			gzipBlocks.decompress(new ByteArrayInputStream(compressed), new ByteArrayOutputStream(), BLOCK_SIZE, compressed.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(data.length, e.estimatedSize);
+		}
+	}
+
+	public void testCorrupt() throws IOException {
+		byte[] compressed = compress(gzipBlocks, makeData(BLOCK_SIZE));
+		// Uncompressed length of the first block.
+		compressed[1] = 0x7f;
+		try {
+			decompress(gzipBlocks, compressed, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		compressed[0] = 2;
+		try {
+			decompress(gzipBlocks, compressed, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+	}
+
+	public void testNotDefault() throws InvalidCompressionCodecException {
+		assertEquals(COMPRESSOR_TYPE.BZIP2_BLOCKS, COMPRESSOR_TYPE.getCompressorByMetadataID((short)4));
+		assertEquals(COMPRESSOR_TYPE.LZMA_BLOCKS, COMPRESSOR_TYPE.getCompressorByName("LZMA_BLOCKS"));
+		for(COMPRESSOR_TYPE c : COMPRESSOR_TYPE.getCompressorsArray(null, false)) {
+			assertFalse(c == COMPRESSOR_TYPE.BZIP2_BLOCKS);
+			assertFalse(c == COMPRESSOR_TYPE.LZMA_BLOCKS);
+		}
+		assertEquals(3, COMPRESSOR_TYPE.getCompressorsArray(null, false).length);
+	}
+
+}
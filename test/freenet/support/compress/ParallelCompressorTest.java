@@ -0,0 +1,117 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class ParallelCompressorTest extends TestCase {
+
+	private static final COMPRESSOR_TYPE[] CODECS =
+		new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+
+	private PooledExecutor exec;
+
+	@Override
+	protected void setUp() {
+		exec = new PooledExecutor();
+		exec.start();
+	}
+
+	private byte[] makeText(int length) {
+		Random r = new Random(1234);
+		StringBuilder sb = new StringBuilder();
+		String[] words = new String[] { "freenet", "node", "block", "insert", "request", "key", "peer", "the", "a" };
+		while(sb.length() < length) {
+			sb.append(words[r.nextInt(words.length)]);
+			sb.append(r.nextInt(10) == 0 ? '\n' : ' ');
+		}
+		return sb.toString().substring(0, length).getBytes();
+	}
+
+	private byte[] makeRandom(int length) {
+		byte[] data = new byte[length];
+		new Random(1234).nextBytes(data);
+		return data;
+	}
+
+	private long sizeWith(COMPRESSOR_TYPE codec, byte[] data) throws IOException {
+		return codec.compress(new ArrayBucket(data), new ArrayBucketFactory(), data.length, Long.MAX_VALUE).size();
+	}
+
+	private byte[] decompress(ParallelCompressor.Result result, int length) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		result.codec.decompress(new ByteArrayInputStream(BucketTools.toByteArray(result.data)), os, length, -1);
+		return os.toByteArray();
+	}
+
+	public void testSmallest() throws IOException {
+		byte[] data = makeText(300*1024);
+		ParallelCompressor compressor = new ParallelCompressor(CODECS, new ArrayBucketFactory(), exec);
+		ByteArrayInputStream is = new ByteArrayInputStream(data);
+		ParallelCompressor.Result result = compressor.compress(is, data.length, data.length, 0);
+		assertNotNull(result);
+		assertEquals(0, is.available());
+		long best = Long.MAX_VALUE;
+		for(COMPRESSOR_TYPE codec : CODECS)
+			best = Math.min(best, sizeWith(codec, data));
+		assertEquals(best, result.size);
+		assertEquals(best, result.data.size());
+		assertTrue(Arrays.equals(data, decompress(result, data.length)));
+	}
+
+	/** The first codec in the list which fits wins, however the threads are scheduled. */
+	public void testStopAtSize() throws IOException {
+		byte[] data = makeText(300*1024);
+		COMPRESSOR_TYPE[] reversed = new COMPRESSOR_TYPE[] { CODECS[1], CODECS[0] };
+		for(int i=0;i<5;i++) {
+			// Everything fits.
+			assertEquals(CODECS[0], compressWithStopAtSize(CODECS, data, data.length));
+			assertEquals(reversed[0], compressWithStopAtSize(reversed, data, data.length));
+		}
+		// Only the smaller output fits, whichever order the codecs are in.
+		long gzip = sizeWith(COMPRESSOR_TYPE.GZIP, data);
+		long bzip2 = sizeWith(COMPRESSOR_TYPE.BZIP2, data);
+		assertTrue(gzip != bzip2);
+		COMPRESSOR_TYPE smaller = gzip < bzip2 ? COMPRESSOR_TYPE.GZIP : COMPRESSOR_TYPE.BZIP2;
+		long stopAtSize = Math.min(gzip, bzip2);
+		assertEquals(smaller, compressWithStopAtSize(CODECS, data, stopAtSize));
+		assertEquals(smaller, compressWithStopAtSize(reversed, data, stopAtSize));
+	}
+
+	private COMPRESSOR_TYPE compressWithStopAtSize(COMPRESSOR_TYPE[] codecs, byte[] data, long stopAtSize) throws IOException {
+		ParallelCompressor compressor = new ParallelCompressor(codecs, new ArrayBucketFactory(), exec);
+		ParallelCompressor.Result result = compressor.compress(new ByteArrayInputStream(data), data.length, data.length, stopAtSize);
+		assertNotNull(result);
+		assertTrue(Arrays.equals(data, decompress(result, data.length)));
+		result.data.free();
+		return result.codec;
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = makeRandom(300*1024);
+		ParallelCompressor compressor = new ParallelCompressor(CODECS, new ArrayBucketFactory(), exec);
+		assertNull(compressor.compress(new ByteArrayInputStream(data), data.length, data.length, 0));
+	}
+
+	public void testSkipUnlikelyCodecs() throws IOException {
+		Bucket random = new ArrayBucket(makeRandom((int) ParallelCompressor.MIN_SAMPLED_SIZE));
+		COMPRESSOR_TYPE[] codecs = ParallelCompressor.skipUnlikelyCodecs(CODECS, random);
+		assertEquals(1, codecs.length);
+		assertEquals(COMPRESSOR_TYPE.GZIP, codecs[0]);
+		Bucket text = new ArrayBucket(makeText((int) ParallelCompressor.MIN_SAMPLED_SIZE));
+		assertTrue(Arrays.equals(CODECS, ParallelCompressor.skipUnlikelyCodecs(CODECS, text)));
+		Bucket small = new ArrayBucket(makeRandom(1024));
+		assertTrue(Arrays.equals(CODECS, ParallelCompressor.skipUnlikelyCodecs(CODECS, small)));
+	}
+
+}
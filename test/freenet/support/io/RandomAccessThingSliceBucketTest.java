@@ -0,0 +1,70 @@
+package freenet.support.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RandomAccessThingSliceBucketTest extends TestCase {
+
+	public void testWriteRead() throws IOException {
+		byte[] backing = new byte[30];
+		ByteArrayRandomAccessThing raf = new ByteArrayRandomAccessThing(backing);
+		RandomAccessThingSliceBucket first = new RandomAccessThingSliceBucket(raf, 0, 10, 0);
+		RandomAccessThingSliceBucket second = new RandomAccessThingSliceBucket(raf, 10, 10, 0);
+		assertEquals(0, second.size());
+		OutputStream os = second.getOutputStream();
+		os.write(new byte[] { 1, 2, 3, 4, 5 });
+		os.write(6);
+		os.close();
+		assertEquals(6, second.size());
+		assertEquals(0, first.size());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6, 0, 0, 0, 0 }, Arrays.copyOfRange(backing, 10, 20)));
+		InputStream is = second.getInputStream();
+		byte[] buf = new byte[6];
+		new DataInputStream(is).readFully(buf);
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6 }, buf));
+		assertEquals(-1, is.read());
+		is.close();
+	}
+
+	public void testExistingData() throws IOException {
+		byte[] backing = new byte[] { 9, 8, 7, 6 };
+		RandomAccessThingSliceBucket bucket = new RandomAccessThingSliceBucket(new ByteArrayRandomAccessThing(backing), 2, 2, 2);
+		InputStream is = bucket.getInputStream();
+		assertEquals(7, is.read());
+		assertEquals(6, is.read());
+		assertEquals(-1, is.read());
+	}
+
+	public void testOverflow() throws IOException {
+		byte[] backing = new byte[8];
+		RandomAccessThingSliceBucket bucket = new RandomAccessThingSliceBucket(new ByteArrayRandomAccessThing(backing), 0, 4, 0);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[4]);
+		try {
+			os.write(1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertEquals(4, bucket.size());
+	}
+
+	public void testReadOnly() {
+		RandomAccessThingSliceBucket bucket = new RandomAccessThingSliceBucket(new ByteArrayRandomAccessThing(new byte[4]), 0, 4, 4);
+		RandomAccessThingSliceBucket shadow = (RandomAccessThingSliceBucket) bucket.createShadow();
+		assertTrue(shadow.isReadOnly());
+		assertEquals(4, shadow.size());
+		try {
+			shadow.getOutputStream();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RingBufferPipeTest extends TestCase {
+
+	public void testWrapAround() throws IOException {
+		RingBufferPipe pipe = new RingBufferPipe(10);
+		InputStream is = pipe.getInputStream();
+		OutputStream os = pipe.getOutputStream();
+		byte[] buf = new byte[10];
+		for(int i=0;i<5;i++) {
+			os.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+			assertEquals(7, is.available());
+			assertEquals(7, is.read(buf));
+			assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6, 7 }, Arrays.copyOf(buf, 7)));
+		}
+		os.write(42);
+		assertEquals(42, is.read());
+		os.close();
+		assertEquals(-1, is.read());
+		assertEquals(-1, is.read(buf));
+		is.close();
+	}
+
+	public void testReaderClosed() throws IOException {
+		RingBufferPipe pipe = new RingBufferPipe(10);
+		pipe.getInputStream().close();
+		try {
+			pipe.getOutputStream().write(1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testThreads() throws Exception {
+		final byte[] data = new byte[1024*1024];
+		new Random(1234).nextBytes(data);
+		final RingBufferPipe pipe = new RingBufferPipe(1000);
+		final Exception[] failure = new Exception[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream os = pipe.getOutputStream();
+					Random r = new Random(5678);
+					int written = 0;
+					while(written < data.length) {
+						int x = Math.min(data.length - written, r.nextInt(3000));
+						os.write(data, written, x);
+						written += x;
+					}
+					os.close();
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		writer.start();
+		InputStream is = pipe.getInputStream();
+		byte[] read = new byte[data.length];
+		int offset = 0;
+		Random r = new Random(9012);
+		while(true) {
+			int x = is.read(read, offset, Math.min(read.length - offset, 1 + r.nextInt(2000)));
+			if(x == -1) break;
+			offset += x;
+			if(offset == read.length) {
+				assertEquals(-1, is.read());
+				break;
+			}
+		}
+		writer.join();
+		assertNull(failure[0]);
+		assertEquals(data.length, offset);
+		assertTrue(Arrays.equals(data, read));
+	}
+
+}